@@ -4,4 +4,5 @@ export interface Todo {
   status: boolean; // server filter
   body: string; // local filter
   category: string; // server filter
+  createdAt?: string; // server filter (createdAfter, createdBefore)
 }
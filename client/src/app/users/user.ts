@@ -6,6 +6,7 @@ export interface User {
   email: string;
   avatar?: string;
   role: UserRole;
+  createdAt?: string;
 }
 
 export type UserRole = 'admin' | 'editor' | 'viewer';
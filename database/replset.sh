@@ -0,0 +1,32 @@
+#!/usr/bin/env bash
+
+# Starts a local three-member replica set for trying out read preferences,
+# write concerns, and change streams. Run the server against it with
+#
+#   MONGO_ADDR=localhost:27017,localhost:27018,localhost:27019 MONGO_REPLICA_SET=rs0 ./gradlew run
+#
+# Stop it with `replset.sh stop`.
+
+set_name="${MONGO_REPLICA_SET:-rs0}"
+data_dir="${REPLSET_DIR:-/tmp/$set_name}"
+ports=(27017 27018 27019)
+
+if [[ "$1" == "stop" ]]; then
+  for port in "${ports[@]}"; do
+    mongo --quiet --port "$port" admin --eval "db.shutdownServer()" > /dev/null
+  done
+  exit 0
+fi
+
+for port in "${ports[@]}"; do
+  mkdir -p "$data_dir/$port"
+  echo Starting replica set member on port $port
+  mongod --replSet "$set_name" --port "$port" --dbpath "$data_dir/$port" \
+    --logpath "$data_dir/$port.log" --bind_ip localhost --fork
+done
+
+members=""
+for i in "${!ports[@]}"; do
+  members="$members{_id: $i, host: 'localhost:${ports[$i]}'},"
+done
+mongo --quiet --port "${ports[0]}" --eval "rs.initiate({_id: '$set_name', members: [$members]})"
@@ -0,0 +1,111 @@
+package umm3601;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares how long a page's worth of API requests takes over HTTP/1.1
+ * and over HTTP/2 (h2c) against a running server.
+ *
+ * A "page load" fires every path at once, like the client does when a
+ * page comes up, and ends when the last response arrives. Over HTTP/1.1
+ * at most `connections` requests are in flight at a time, the way a
+ * browser limits itself to a few connections per host (6 in Chrome and
+ * Firefox); over HTTP/2 they're all multiplexed on one connection.
+ *
+ * Usage:
+ *
+ *     PageLoadBenchmark <pages> <connections> <base url> <path>...
+ *
+ * The first few pages of each kind are a warm-up and aren't counted.
+ */
+public final class PageLoadBenchmark {
+
+  private static final int WARM_UP_PAGES = 20;
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final double PERCENT = 100;
+  private static final double P90 = 0.9;
+  // Where the paths start in the arguments
+  private static final int FIRST_PATH_ARG = 3;
+
+  private final List<URI> page = new ArrayList<>();
+  private final int connections;
+
+  private PageLoadBenchmark(URI base, List<String> paths, int connections) {
+    for (String path : paths) {
+      page.add(base.resolve(path));
+    }
+    this.connections = connections;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    if (args.length <= FIRST_PATH_ARG) {
+      System.err.println("Usage: PageLoadBenchmark <pages> <connections> <base url> <path>...");
+      System.exit(2);
+    }
+    int pages = Integer.parseInt(args[0]);
+    int connections = Integer.parseInt(args[1]);
+    URI base = URI.create(args[2]);
+    PageLoadBenchmark benchmark = new PageLoadBenchmark(base,
+        Arrays.asList(args).subList(FIRST_PATH_ARG, args.length), connections);
+
+    double http1 = benchmark.run("HTTP/1.1 (" + connections + " connections)", HttpClient.Version.HTTP_1_1, pages);
+    double http2 = benchmark.run("HTTP/2 (1 connection)", HttpClient.Version.HTTP_2, pages);
+    System.out.printf("HTTP/2 median page load is %.0f%% of HTTP/1.1's%n", PERCENT * http2 / http1);
+  }
+
+  /**
+   * Load the page `pages` times with one client.
+   *
+   * @return the median page load time in milliseconds
+   */
+  private double run(String label, HttpClient.Version version, int pages) throws InterruptedException {
+    HttpClient http = HttpClient.newBuilder()
+        .version(version)
+        .executor(Executors.newCachedThreadPool(runnable -> {
+          Thread thread = new Thread(runnable, "page-load-client");
+          thread.setDaemon(true);
+          return thread;
+        }))
+        .build();
+    // HTTP/2 is limited by the server's max concurrent streams instead
+    Semaphore inFlight = new Semaphore(version == HttpClient.Version.HTTP_2 ? Integer.MAX_VALUE : connections);
+
+    List<Double> times = new ArrayList<>();
+    HttpClient.Version negotiated = null;
+    for (int i = 0; i < WARM_UP_PAGES + pages; i++) {
+      long start = System.nanoTime();
+      List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>();
+      for (URI url : page) {
+        inFlight.acquire();
+        HttpRequest request = HttpRequest.newBuilder(url).timeout(REQUEST_TIMEOUT).build();
+        responses.add(http.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+            .whenComplete((response, error) -> inFlight.release()));
+      }
+      for (CompletableFuture<HttpResponse<Void>> response : responses) {
+        negotiated = response.join().version();
+      }
+      if (i >= WARM_UP_PAGES) {
+        times.add((System.nanoTime() - start) / NANOS_PER_MILLI);
+      }
+    }
+
+    Collections.sort(times);
+    double median = times.get(times.size() / 2);
+    System.out.printf("%s, negotiated %s: %d pages of %d requests, median %.1f ms, p90 %.1f ms%n",
+        label, negotiated, pages, page.size(), median, times.get((int) (times.size() * P90)));
+    return median;
+  }
+}
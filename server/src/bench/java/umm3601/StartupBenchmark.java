@@ -0,0 +1,144 @@
+package umm3601;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the server takes to start: launches it (with
+ * whatever command line we're comparing, e.g., with and without an
+ * AppCDS archive) a number of times, and for each run reports
+ *
+ *  - how long until the HTTP port answers at all, and
+ *  - how long until `url` (normally `/api/todos`) returns a 200, which
+ *    also includes connecting to Mongo and loading everything needed to
+ *    serve a real request.
+ *
+ * Usage:
+ *
+ *     StartupBenchmark <runs> <url> -- <label> <command...> [-- <label> <command...>]...
+ *
+ * The `cdsClassList` Gradle task also uses this, with one run, as the
+ * training run that records which classes get loaded.
+ */
+public final class StartupBenchmark {
+
+  private static final long POLL_MILLIS = 10;
+  private static final long STOP_TIMEOUT_SECONDS = 30;
+  private static final Duration GIVE_UP_AFTER = Duration.ofSeconds(120);
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(5);
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final int HTTP_OK = 200;
+  // Where the first `<label> <command...>` starts in the arguments
+  private static final int FIRST_COMMAND_ARG = 3;
+
+  private final HttpClient http = HttpClient.newBuilder().connectTimeout(REQUEST_TIMEOUT).build();
+
+  private StartupBenchmark() {
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length <= FIRST_COMMAND_ARG || !"--".equals(args[FIRST_COMMAND_ARG - 1])) {
+      System.err.println("Usage: StartupBenchmark <runs> <url> -- <label> <command...> [-- <label> <command...>]...");
+      System.exit(2);
+    }
+    int runs = Integer.parseInt(args[0]);
+    URI url = URI.create(args[1]);
+
+    StartupBenchmark benchmark = new StartupBenchmark();
+    List<String> group = new ArrayList<>();
+    for (String arg : Arrays.asList(args).subList(FIRST_COMMAND_ARG, args.length)) {
+      if ("--".equals(arg)) {
+        benchmark.compare(runs, url, group);
+        group.clear();
+      } else {
+        group.add(arg);
+      }
+    }
+    benchmark.compare(runs, url, group);
+  }
+
+  private void compare(int runs, URI url, List<String> labelAndCommand) throws IOException, InterruptedException {
+    String label = labelAndCommand.get(0);
+    List<String> command = labelAndCommand.subList(1, labelAndCommand.size());
+    List<Double> portTimes = new ArrayList<>();
+    List<Double> readyTimes = new ArrayList<>();
+    for (int run = 1; run <= runs; run++) {
+      double[] times = startOnce(url, command);
+      portTimes.add(times[0]);
+      readyTimes.add(times[1]);
+      System.out.printf("%s run %d: port open after %.0f ms, first 200 from %s after %.0f ms%n",
+          label, run, times[0], url.getPath(), times[1]);
+    }
+    System.out.printf("%s median of %d: port open %.0f ms, first 200 %.0f ms%n",
+        label, runs, median(portTimes), median(readyTimes));
+  }
+
+  /**
+   * Start the server once and time it.
+   *
+   * @return the milliseconds until the port answered, and until `url`
+   *   returned a 200
+   */
+  private double[] startOnce(URI url, List<String> command) throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    Process server = new ProcessBuilder(command)
+        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+        .redirectError(ProcessBuilder.Redirect.DISCARD)
+        .start();
+    try {
+      double portOpen = -1;
+      long deadline = start + GIVE_UP_AFTER.toNanos();
+      while (System.nanoTime() < deadline) {
+        if (!server.isAlive()) {
+          throw new IllegalStateException("The server exited with status " + server.exitValue());
+        }
+        int status = poll(url);
+        long now = System.nanoTime();
+        if (status > 0 && portOpen < 0) {
+          portOpen = (now - start) / NANOS_PER_MILLI;
+        }
+        if (status == HTTP_OK) {
+          return new double[] {portOpen, (now - start) / NANOS_PER_MILLI};
+        }
+        Thread.sleep(POLL_MILLIS);
+      }
+      throw new IllegalStateException("No 200 from " + url + " after " + GIVE_UP_AFTER);
+    } finally {
+      // Ask nicely, so shutdown hooks (and the class list) get to finish
+      server.destroy();
+      if (!server.waitFor(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        server.destroyForcibly().waitFor();
+      }
+    }
+  }
+
+  /**
+   * Make one request.
+   *
+   * @return the response's status, or 0 if nothing answered
+   */
+  private int poll(URI url) throws InterruptedException {
+    try {
+      HttpRequest request = HttpRequest.newBuilder(url).timeout(REQUEST_TIMEOUT).build();
+      return http.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    } catch (IOException e) {
+      // Not listening yet, or dropped the connection while starting up
+      return 0;
+    }
+  }
+
+  private static double median(List<Double> values) {
+    List<Double> sorted = new ArrayList<>(values);
+    Collections.sort(sorted);
+    return sorted.get(sorted.size() / 2);
+  }
+}
@@ -0,0 +1,118 @@
+package umm3601;
+
+import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
+import static java.util.Map.entry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJackson;
+import umm3601.mongotest.InMemoryMongo;
+import umm3601.todo.TodoController;
+
+/**
+ * Times the todo controller's handlers end to end against the in-memory
+ * Mongo, so changes to the controller (filters, caching, serialization)
+ * can be compared without a `mongod` or the network in the way. The times
+ * include the in-memory Mongo's own work, which is roughly a scan of the
+ * collection per query; compare runs of the same benchmark, not these
+ * numbers with a real server's.
+ */
+@SuppressWarnings({ "MagicNumber" })
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ControllerBenchmark {
+
+  @Param({ "100", "10000" })
+  private int size;
+
+  private MongoClient mongoClient;
+  private TodoController todoController;
+  private String id;
+  private final MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private final MockHttpServletResponse mockRes = new MockHttpServletResponse();
+  private final Map<String, Object> appAttributes = Map.ofEntries(
+      entry(JSON_MAPPER_KEY, new JavalinJackson()),
+      entry(ContextUtil.maxRequestSizeKey, new JavalinConfig().maxRequestSize));
+
+  @Setup
+  public void setUp() {
+    mongoClient = InMemoryMongo.client();
+    MongoDatabase database = mongoClient.getDatabase("benchmark");
+    List<Document> todos = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      todos.add(new Document("_id", new ObjectId())
+          .append("owner", "Owner " + (i % 50))
+          .append("status", i % 2 == 0)
+          .append("body", "Lorem ipsum dolor sit amet, consectetur adipiscing elit, number " + i)
+          .append("category", "category " + (i % 7)));
+    }
+    database.getCollection("todos").insertMany(todos);
+    id = todos.get(size / 2).getObjectId("_id").toHexString();
+    todoController = new TodoController(database);
+  }
+
+  @TearDown
+  public void tearDown() {
+    mongoClient.close();
+  }
+
+  private Context context(String queryString, Map<String, String> pathParams) {
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString(queryString);
+    return ContextUtil.init(mockReq, mockRes, "api/todos", pathParams, HandlerType.GET, appAttributes);
+  }
+
+  @Benchmark
+  public String listAll() throws IOException {
+    Context ctx = context("", Map.of());
+    todoController.getTodos(ctx);
+    return ctx.resultString();
+  }
+
+  @Benchmark
+  public String listFiltered() throws IOException {
+    Context ctx = context("owner=owner%201&status=true&sortby=category", Map.of());
+    todoController.getTodos(ctx);
+    return ctx.resultString();
+  }
+
+  @Benchmark
+  public String getById() {
+    Context ctx = context("", Map.of("id", id));
+    todoController.getTodo(ctx);
+    return ctx.resultString();
+  }
+}
@@ -0,0 +1,104 @@
+package umm3601;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import org.bson.BsonReaderMark;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.mongojack.JacksonCodecRegistry;
+import org.mongojack.internal.MongoJackModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import umm3601.todo.Todo;
+
+/**
+ * Compares the two ways a list endpoint can turn the BSON documents Mongo
+ * sends into a JSON response: decoding each into a `Todo` with MongoJack
+ * and serializing the list (what `getTodos` used to do), or transcoding
+ * the BSON straight to JSON (`BsonExporter.list`).
+ */
+@SuppressWarnings({ "MagicNumber" })
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListBenchmark {
+
+  @Param({ "10", "1000", "100000" })
+  private int size;
+
+  private List<RawBsonDocument> documents;
+  private Codec<Todo> todoCodec;
+  private ObjectWriter writer;
+  private final JsonFactory jsonFactory = new JsonFactory();
+  private final List<String> fields = List.of("_id", "owner", "status", "category", "body");
+  private final Map<String, Integer> positions = BsonExporter.columnPositions(fields);
+  private final Object[] defaults = {null, null, false, null, null};
+
+  @Setup
+  public void setUp() {
+    documents = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      Document todo = new Document("_id", new ObjectId())
+          .append("owner", "Owner " + (i % 50))
+          .append("status", i % 2 == 0)
+          .append("body", "Lorem ipsum dolor sit amet, consectetur adipiscing elit, number " + i)
+          .append("category", "category " + (i % 7))
+          .append("ownerFolded", "owner " + (i % 50))
+          .append("categoryFolded", "category " + (i % 7));
+      documents.add(new RawBsonDocument(todo, new DocumentCodec()));
+    }
+    todoCodec = new JacksonCodecRegistry(MongoJackModule.configure(new ObjectMapper())).get(Todo.class);
+    writer = ApiJson.objectMapper().writer();
+  }
+
+  @Benchmark
+  public byte[] pojo() throws IOException {
+    List<Todo> todos = new ArrayList<>(documents.size());
+    for (RawBsonDocument document : documents) {
+      todos.add(document.decode(todoCodec));
+    }
+    return writer.writeValueAsBytes(todos);
+  }
+
+  @Benchmark
+  public byte[] passthrough() throws IOException {
+    ByteArrayBuilder bytes = new ByteArrayBuilder(jsonFactory._getBufferRecycler());
+    try (JsonGenerator json = jsonFactory.createGenerator(bytes)) {
+      BsonReaderMark[] marks = new BsonReaderMark[fields.size()];
+      json.writeStartArray();
+      for (RawBsonDocument document : documents) {
+        BsonExporter.writeJson(document, positions, defaults, marks, json);
+      }
+      json.writeEndArray();
+    }
+    byte[] result = bytes.toByteArray();
+    bytes.release();
+    return result;
+  }
+}
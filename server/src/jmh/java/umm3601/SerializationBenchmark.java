@@ -0,0 +1,81 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.javalin.plugin.json.JavalinJackson;
+import io.javalin.plugin.json.JsonMapper;
+import umm3601.todo.Todo;
+
+/**
+ * Compares serializing a list of todos the way `ctx.json` used to (with
+ * Javalin's default Jackson mapper, by reflection, to a `String`) with
+ * the API's mapper, both to a `String` (`ctx.json`) and to bytes
+ * (`ctx.jsonStream`). Run it with `./gradlew jmh`, which also reports
+ * allocation per operation.
+ */
+@SuppressWarnings({ "MagicNumber" })
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+  @Param({ "10", "1000", "100000" })
+  private int size;
+
+  private List<Todo> todos;
+  private ObjectMapper reflection;
+  private JsonMapper api;
+
+  @Setup
+  public void setUp() {
+    todos = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      Todo todo = new Todo();
+      todo._id = new ObjectId().toHexString();
+      todo.owner = "Owner " + (i % 50);
+      todo.status = i % 2 == 0;
+      todo.category = "category " + (i % 7);
+      todo.body = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, number " + i;
+      todos.add(todo);
+    }
+    reflection = JavalinJackson.Companion.defaultMapper();
+    api = ApiJson.create();
+  }
+
+  @Benchmark
+  public String reflectionToString() throws IOException {
+    return reflection.writeValueAsString(todos);
+  }
+
+  @Benchmark
+  public String apiToString() {
+    return api.toJsonString(todos);
+  }
+
+  @Benchmark
+  public InputStream apiToStream() {
+    return api.toJsonStream(todos);
+  }
+}
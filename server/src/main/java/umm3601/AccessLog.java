@@ -0,0 +1,319 @@
+package umm3601;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.eclipse.jetty.server.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.http.Context;
+
+/**
+ * A structured access log: one JSON object per line for every request,
+ * with the route, query parameters, status, response size, and how long
+ * the request spent in Mongo and in total.
+ *
+ * Request threads only build an `Entry` and drop it into a lock-free
+ * `RingBuffer`; a background thread does all the formatting and file IO,
+ * in batches. If the buffer is full (because the disk can't keep up) the
+ * entry is dropped and counted rather than making the request wait.
+ *
+ * The log file is rotated when it gets bigger than `maxBytes`:
+ * `access.log` becomes `access.log.1`, `access.log.1` becomes
+ * `access.log.2`, and so on, keeping `maxFiles` old files.
+ *
+ * The time in Mongo is the request's `MongoTimer` tally, which is kept on
+ * its context so it includes commands run for it on other threads.
+ */
+public class AccessLog implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AccessLog.class);
+
+  private static final String NOTES_ATTRIBUTE = "umm3601.accessLogNotes";
+  private static final String MONGO_TIME_ATTRIBUTE = "umm3601.mongoTime";
+  private static final int BATCH_SIZE = 256;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+  private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final Path file;
+  private final long maxBytes;
+  private final int maxFiles;
+  private final RingBuffer<Entry> buffer;
+  private final JsonFactory jsonFactory = new JsonFactory();
+  private final LongAdder dropped;
+  private final LongAdder written;
+  private final Thread appender;
+
+  private volatile boolean running = true;
+  private OutputStream out;
+  private long bytesInFile;
+
+  /**
+   * Construct an access log and start its background appender.
+   *
+   * @param file the file to write to
+   * @param maxBytes rotate the file once it's bigger than this
+   * @param maxFiles the number of rotated files to keep
+   * @param capacity the number of entries that can be waiting to be written
+   * @param metrics where to count written and dropped entries
+   */
+  public AccessLog(Path file, long maxBytes, int maxFiles, int capacity, Metrics metrics) {
+    this.file = file;
+    this.maxBytes = maxBytes;
+    this.maxFiles = maxFiles;
+    this.buffer = new RingBuffer<>(capacity);
+    this.dropped = metrics.counter("accessLog.dropped");
+    this.written = metrics.counter("accessLog.written");
+    metrics.gauge("accessLog.buffered", buffer::size);
+
+    this.appender = new Thread(this::run, "access-log-appender");
+    this.appender.setDaemon(true);
+    this.appender.start();
+  }
+
+  /**
+   * Attach an extra piece of information to the current request's log
+   * entry. This is for the occasional bit of debugging output that would
+   * otherwise be printed to the console.
+   *
+   * @param ctx the Javalin HTTP context of the request
+   * @param key the name to log the value under
+   * @param value the value to log
+   */
+  public static void note(Context ctx, String key, Object value) {
+    Map<String, Object> notes = ctx.attribute(NOTES_ATTRIBUTE);
+    if (notes == null) {
+      notes = new LinkedHashMap<>();
+      ctx.attribute(NOTES_ATTRIBUTE, notes);
+    }
+    // Turning this into a string is left to the appender thread
+    notes.put(key, value);
+  }
+
+  /**
+   * Mark the start of a request; call this from a `before` handler.
+   *
+   * @param ctx the Javalin HTTP context of the request
+   */
+  public void start(Context ctx) {
+    ctx.attribute(MONGO_TIME_ATTRIBUTE, MongoTimer.begin());
+  }
+
+  /**
+   * Log a finished request. This has the signature of a Javalin
+   * `RequestLogger`.
+   *
+   * @param ctx the Javalin HTTP context of the request
+   * @param executionTimeMs how long Javalin spent on the request
+   */
+  public void log(Context ctx, Float executionTimeMs) {
+    log(ctx, ctx.status(), executionTimeMs);
+  }
+
+  /**
+   * Log a finished request with the given status.
+   *
+   * @param ctx the Javalin HTTP context of the request
+   * @param status the response's status
+   * @param executionTimeMs how long Javalin spent on the request
+   */
+  void log(Context ctx, int status, Float executionTimeMs) {
+    LongAdder mongoTime = ctx.attribute(MONGO_TIME_ATTRIBUTE);
+    MongoTimer.end();
+    Entry entry = new Entry(
+        System.currentTimeMillis(),
+        ctx.method(),
+        route(ctx),
+        ctx.path(),
+        ctx.queryParamMap(),
+        status,
+        responseBytes(ctx),
+        mongoTime == null ? 0 : mongoTime.sum(),
+        executionTimeMs,
+        ctx.attribute(NOTES_ATTRIBUTE));
+    if (!buffer.offer(entry)) {
+      dropped.increment();
+    }
+  }
+
+  private static long responseBytes(Context ctx) {
+    // Jetty counts what's been written to the response body, even if
+    // it's still sitting in the output buffer.
+    Request request = Request.getBaseRequest(ctx.req);
+    return request == null ? -1 : request.getResponse().getContentCount();
+  }
+
+  private static String route(Context ctx) {
+    try {
+      return ctx.endpointHandlerPath();
+    } catch (IllegalStateException e) {
+      // No route matched (e.g., a 404), so there's no endpoint path
+      return "";
+    }
+  }
+
+  /**
+   * Write out anything still buffered and close the log file.
+   */
+  @Override
+  public void close() {
+    running = false;
+    LockSupport.unpark(appender);
+    try {
+      appender.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    try {
+      open();
+      while (running) {
+        if (writeBatch() == 0) {
+          LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+      }
+      // Flush whatever came in while we were shutting down
+      int flushed = writeBatch();
+      while (flushed > 0) {
+        flushed = writeBatch();
+      }
+      out.close();
+    } catch (IOException e) {
+      LOGGER.error("Access log failed; no more requests will be logged", e);
+    }
+  }
+
+  private int writeBatch() throws IOException {
+    int count = buffer.drain(this::write, BATCH_SIZE);
+    if (count > 0) {
+      out.flush();
+      written.add(count);
+      if (bytesInFile > maxBytes) {
+        rotate();
+      }
+    }
+    return count;
+  }
+
+  private void write(Entry entry) {
+    try {
+      byte[] line = entry.toJson(jsonFactory).getBytes(StandardCharsets.UTF_8);
+      out.write(line);
+      out.write('\n');
+      bytesInFile += line.length + 1;
+    } catch (IOException e) {
+      dropped.increment();
+    }
+  }
+
+  private void open() throws IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+    bytesInFile = Files.size(file);
+  }
+
+  private void rotate() throws IOException {
+    out.close();
+    for (int i = maxFiles - 1; i >= 1; i--) {
+      Path older = Paths.get(file + "." + i);
+      if (Files.exists(older)) {
+        Files.move(older, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    if (maxFiles > 0) {
+      Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.delete(file);
+    }
+    open();
+  }
+
+  /**
+   * Everything we know about a finished request. Formatting this as JSON
+   * is left to the appender thread.
+   */
+  private static final class Entry {
+    private final long timestamp;
+    private final String method;
+    private final String route;
+    private final String path;
+    private final Map<String, List<String>> filters;
+    private final int status;
+    private final long bytes;
+    private final long mongoNanos;
+    private final Float totalMillis;
+    private final Map<String, Object> notes;
+
+    @SuppressWarnings("ParameterNumber")
+    Entry(long timestamp, String method, String route, String path, Map<String, List<String>> filters,
+        int status, long bytes, long mongoNanos, Float totalMillis, Map<String, Object> notes) {
+      this.timestamp = timestamp;
+      this.method = method;
+      this.route = route;
+      this.path = path;
+      this.filters = filters;
+      this.status = status;
+      this.bytes = bytes;
+      this.mongoNanos = mongoNanos;
+      this.totalMillis = totalMillis;
+      this.notes = notes;
+    }
+
+    String toJson(JsonFactory factory) throws IOException {
+      StringWriter line = new StringWriter();
+      try (JsonGenerator json = factory.createGenerator(line)) {
+        json.writeStartObject();
+        json.writeStringField("time", Instant.ofEpochMilli(timestamp).toString());
+        json.writeStringField("method", method);
+        json.writeStringField("route", route);
+        json.writeStringField("path", path);
+        json.writeObjectFieldStart("filters");
+        for (Map.Entry<String, List<String>> filter : filters.entrySet()) {
+          json.writeArrayFieldStart(filter.getKey());
+          for (String value : filter.getValue()) {
+            json.writeString(value);
+          }
+          json.writeEndArray();
+        }
+        json.writeEndObject();
+        json.writeNumberField("status", status);
+        json.writeNumberField("bytes", bytes);
+        json.writeNumberField("mongoMs", (double) mongoNanos / NANOS_PER_MILLI);
+        json.writeNumberField("totalMs", totalMillis == null ? 0 : totalMillis);
+        if (notes != null) {
+          json.writeObjectFieldStart("notes");
+          for (Map.Entry<String, Object> note : notes.entrySet()) {
+            json.writeStringField(note.getKey(), String.valueOf(note.getValue()));
+          }
+          json.writeEndObject();
+        }
+        json.writeEndObject();
+      }
+      return line.toString();
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package umm3601;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A concurrency limit that adapts to how the thing behind it is coping,
+ * using additive-increase/multiplicative-decrease (AIMD).
+ *
+ * Every completed request is a sample. If it took longer than the latency
+ * target, or failed, the limit is cut by `BACKOFF_RATIO`. Otherwise, if we
+ * were actually using a good part of the limit, the limit grows by one.
+ * So the limit creeps up while the database is healthy and drops quickly
+ * when it slows down.
+ *
+ * Callers that arrive while the limit is reached wait in a bounded queue
+ * for up to `maxWaitMillis`; if the queue is full, or they time out, they
+ * are rejected right away instead of piling up.
+ */
+public class AdaptiveLimiter {
+
+  private static final double BACKOFF_RATIO = 0.9;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final int maxQueued;
+  private final long maxWaitNanos;
+  private final long latencyTargetNanos;
+
+  private double limit;
+  private int inFlight;
+  private int queued;
+
+  /**
+   * Construct a limiter.
+   *
+   * @param initialLimit the concurrency limit to start with
+   * @param minLimit the limit will never drop below this
+   * @param maxLimit the limit will never grow above this
+   * @param maxQueued the most callers that can wait for a slot at once
+   * @param maxWaitMillis how long a caller can wait for a slot
+   * @param latencyTargetMillis requests slower than this count as a sign of
+   *   overload
+   */
+  public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueued, long maxWaitMillis,
+      long latencyTargetMillis) {
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.maxQueued = maxQueued;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis);
+  }
+
+  /**
+   * Try to get a slot without waiting.
+   *
+   * @return whether a slot was acquired; if so, `release` must be called
+   */
+  public synchronized boolean tryAcquire() {
+    if (inFlight < (int) limit) {
+      inFlight++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Get a slot, waiting in the queue if there isn't one free.
+   *
+   * @return whether a slot was acquired; if so, `release` must be called
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized boolean acquire() throws InterruptedException {
+    if (tryAcquire()) {
+      return true;
+    }
+    if (queued >= maxQueued) {
+      return false;
+    }
+    queued++;
+    try {
+      long deadline = System.nanoTime() + maxWaitNanos;
+      long remaining = maxWaitNanos;
+      while (inFlight >= (int) limit) {
+        if (remaining <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        remaining = deadline - System.nanoTime();
+      }
+      inFlight++;
+      return true;
+    } finally {
+      queued--;
+    }
+  }
+
+  /**
+   * Give back a slot and adjust the limit based on how the request went.
+   *
+   * @param latencyNanos how long the request held the slot
+   * @param failed whether the request failed in a way that suggests overload
+   */
+  public synchronized void release(long latencyNanos, boolean failed) {
+    if (failed || latencyNanos > latencyTargetNanos) {
+      limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+    } else if (inFlight * 2 >= limit) {
+      limit = Math.min(maxLimit, limit + 1);
+    }
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * The current concurrency limit.
+   *
+   * @return the limit
+   */
+  public synchronized int limit() {
+    return (int) limit;
+  }
+
+  /**
+   * The number of requests currently holding a slot.
+   *
+   * @return the number of requests in flight
+   */
+  public synchronized int inFlight() {
+    return inFlight;
+  }
+
+  /**
+   * The number of callers currently waiting for a slot.
+   *
+   * @return the number of queued callers
+   */
+  public synchronized int queued() {
+    return queued;
+  }
+}
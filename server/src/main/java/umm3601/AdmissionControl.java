@@ -0,0 +1,146 @@
+package umm3601;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.javalin.core.security.AccessManager;
+import io.javalin.core.security.RouteRole;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HandlerType;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Admission control in front of the controllers: when the database slows
+ * down we'd rather turn some requests away immediately with a `503` than
+ * let them all queue up in Jetty and time out.
+ *
+ * Requests are split into four groups, each with its own
+ * `AdaptiveLimiter`:
+ *
+ * - `write`: anything that changes data (`POST`, `PUT`, `PATCH`, `DELETE`)
+ * - `read`: `GET`s of a single item (routes with a path parameter)
+ * - `list`: other `GET`s, which can scan whole collections
+ * - `bulk`: exports and imports, which run for as long as it takes to
+ *   move the data, so their latency says nothing about load; they just
+ *   get a small fixed number of slots
+ *
+ * Writes are favored over list scans: while any write is waiting for a
+ * slot, list requests that can't get a slot straight away are rejected
+ * rather than queued. Admin routes are never limited, so we can always
+ * see what's going on, and neither are event streams or the readiness
+ * check.
+ */
+public class AdmissionControl implements AccessManager {
+
+  private static final String RETRY_AFTER_SECONDS = "1";
+  private static final int BULK_LIMIT = 4;
+
+  private final Group write;
+  private final Group read;
+  private final Group list;
+  private final Group bulk;
+
+  /**
+   * Construct admission control where every group starts out with the
+   * same settings.
+   *
+   * @param initialLimit the concurrency limit each group starts with
+   * @param maxLimit the highest each group's limit can grow to
+   * @param maxQueued how many requests can wait for a slot in each group
+   * @param maxWaitMillis how long a request can wait for a slot
+   * @param latencyTargetMillis requests slower than this shrink the limit
+   * @param metrics where to report limits, rejections, and queue times
+   */
+  public AdmissionControl(int initialLimit, int maxLimit, int maxQueued, long maxWaitMillis,
+      long latencyTargetMillis, Metrics metrics) {
+    write = new Group("write", new AdaptiveLimiter(initialLimit, 1, maxLimit, maxQueued, maxWaitMillis,
+        latencyTargetMillis), metrics);
+    read = new Group("read", new AdaptiveLimiter(initialLimit, 1, maxLimit, maxQueued, maxWaitMillis,
+        latencyTargetMillis), metrics);
+    list = new Group("list", new AdaptiveLimiter(initialLimit, 1, maxLimit, maxQueued, maxWaitMillis,
+        latencyTargetMillis), metrics);
+    bulk = new Group("bulk", new AdaptiveLimiter(BULK_LIMIT, 1, BULK_LIMIT, maxQueued, maxWaitMillis,
+        Long.MAX_VALUE), metrics);
+  }
+
+  @Override
+  public void manage(Handler handler, Context ctx, Set<RouteRole> permittedRoles) throws Exception {
+    Group group = groupFor(ctx);
+    if (group == null) {
+      handler.handle(ctx);
+      return;
+    }
+
+    long queuedAt = System.nanoTime();
+    boolean admitted = group == list && write.limiter.queued() > 0
+        ? list.limiter.tryAcquire()
+        : group.limiter.acquire();
+    long start = System.nanoTime();
+    group.metrics.histogram("admission." + group.name + ".queueMicros")
+        .record(TimeUnit.NANOSECONDS.toMicros(start - queuedAt));
+    if (!admitted) {
+      group.metrics.counter("admission." + group.name + ".rejected").increment();
+      ctx.header("Retry-After", RETRY_AFTER_SECONDS);
+      throw new ServiceUnavailableResponse("The server is too busy right now, please try again shortly");
+    }
+
+    boolean failed = false;
+    try {
+      handler.handle(ctx);
+    } catch (HttpResponseException e) {
+      // Things like 400s and 404s are the client's problem, not a sign
+      // that we're overloaded.
+      throw e;
+    } catch (Exception e) {
+      failed = true;
+      throw e;
+    } finally {
+      group.limiter.release(System.nanoTime() - start, failed);
+    }
+  }
+
+  private Group groupFor(Context ctx) {
+    String path = ctx.endpointHandlerPath();
+    // Long-lived streams only hold a request thread while they're being
+    // set up, so there's no point limiting them.
+    if (path.startsWith("/api/admin") || path.equals("/api") || path.equals("/api/ready")
+        || path.endsWith("/stream")) {
+      return null;
+    }
+    if (path.endsWith("/export") || path.endsWith("/import")) {
+      return bulk;
+    }
+    HandlerType method = ctx.handlerType();
+    switch (method) {
+      case POST:
+      case PUT:
+      case PATCH:
+      case DELETE:
+        return write;
+      case GET:
+        return path.contains("{") ? read : list;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * A named group of routes sharing a limiter.
+   */
+  private static final class Group {
+    private final String name;
+    private final AdaptiveLimiter limiter;
+    private final Metrics metrics;
+
+    Group(String name, AdaptiveLimiter limiter, Metrics metrics) {
+      this.name = name;
+      this.limiter = limiter;
+      this.metrics = metrics;
+      metrics.gauge("admission." + name + ".limit", limiter::limit);
+      metrics.gauge("admission." + name + ".inFlight", limiter::inFlight);
+      metrics.gauge("admission." + name + ".queued", limiter::queued);
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package umm3601;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import io.javalin.plugin.json.JavalinJackson;
+import io.javalin.plugin.json.JsonMapper;
+import umm3601.todo.Todo;
+import umm3601.todo.TodoSerializer;
+import umm3601.user.User;
+import umm3601.user.UserSerializer;
+
+/**
+ * The JSON mapper for the API. Todos and users are stored in Mongo with
+ * some fields that are only for the server's use (like the folded shadow
+ * fields used for case-insensitive filters); this mapper leaves those out
+ * of responses and ignores them in request bodies. It also ignores the
+ * `createdAt` that responses include, so a client can send back what it
+ * got without setting it. MongoJack has its own mapper, so what's stored
+ * in Mongo isn't affected.
+ *
+ * Todos and users, which are most of what the API sends, are written by
+ * `TodoSerializer` and `UserSerializer` rather than by reflection. The
+ * mapper also reuses one `ObjectWriter` (and an `ObjectReader` per type)
+ * instead of looking them up for every request, and `ctx.jsonStream`
+ * serializes straight to bytes in Jackson's recycled buffers, skipping
+ * the `String` that `ctx.json` builds and then encodes again.
+ */
+public final class ApiJson {
+
+  private ApiJson() {
+  }
+
+  /**
+   * Create the API's JSON mapper.
+   *
+   * @return the mapper to give Javalin
+   */
+  public static JsonMapper create() {
+    return new Mapper(objectMapper());
+  }
+
+  /**
+   * Create a Jackson `ObjectMapper` configured the same way as the API's
+   * JSON mapper, for code that needs Jackson's streaming or tree APIs.
+   *
+   * @return the object mapper
+   */
+  public static ObjectMapper objectMapper() {
+    SimpleModule models = new SimpleModule("api-models")
+        .addSerializer(Todo.class, new TodoSerializer())
+        .addSerializer(User.class, new UserSerializer());
+    return JavalinJackson.Companion.defaultMapper()
+        .registerModule(models)
+        .addMixIn(Todo.class, TodoMixin.class)
+        .addMixIn(User.class, UserMixin.class);
+  }
+
+  @JsonIgnoreProperties({ "ownerFolded", "categoryFolded", "createdAt" })
+  private interface TodoMixin {
+  }
+
+  @JsonIgnoreProperties({ "companyFolded", "createdAt" })
+  private interface UserMixin {
+  }
+
+  /**
+   * Javalin's view of the API's `ObjectMapper`.
+   */
+  private static final class Mapper implements JsonMapper {
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter writer;
+    private final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    Mapper(ObjectMapper objectMapper) {
+      this.objectMapper = objectMapper;
+      this.writer = objectMapper.writer();
+    }
+
+    @Override
+    public String toJsonString(Object obj) {
+      try {
+        return writer.writeValueAsString(obj);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public InputStream toJsonStream(Object obj) {
+      try {
+        return new ByteArrayInputStream(writer.writeValueAsBytes(obj));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public <T> T fromJsonString(String json, Class<T> targetClass) {
+      try {
+        return reader(targetClass).readValue(json);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public <T> T fromJsonStream(InputStream json, Class<T> targetClass) {
+      try {
+        return reader(targetClass).readValue(json);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private ObjectReader reader(Class<?> targetClass) {
+      return readers.computeIfAbsent(targetClass, objectMapper::readerFor);
+    }
+  }
+}
@@ -0,0 +1,637 @@
+package umm3601;
+
+import static com.mongodb.client.model.Accumulators.sum;
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.type;
+import static com.mongodb.client.model.Projections.include;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Sorts;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonReader;
+import org.bson.BsonReaderMark;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.io.ByteBufferBsonInput;
+import org.bson.types.ObjectId;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.HttpCode;
+
+/**
+ * Sends documents from a collection to the client straight from their
+ * BSON, for the list endpoints (`list`) and for bulk exports (`export`).
+ *
+ * Documents come from Mongo as `RawBsonDocument`s and are transcoded
+ * straight from their BSON bytes to JSON, with no POJO (or even
+ * `Document`) in between, so each one is decoded once instead of twice.
+ * The JSON is exactly what the model's serializer would write: the
+ * model's fields in the model's order, whatever order they're stored in,
+ * object ids as plain hex strings, and a field the document doesn't have
+ * written as the model's default for it (`null`, `false`, or 0).
+ *
+ * `export` streams a whole (filtered) collection as NDJSON (one JSON
+ * object per line) or CSV, for bulk jobs that would otherwise pull a list
+ * endpoint's entire JSON array into memory on both ends.
+ *
+ * `countPerDay` counts the matching documents by the day they were
+ * added, for reports that would otherwise pull a whole list to do it.
+ *
+ * Documents are always exported in `_id` order, so if a transfer is cut
+ * off the client can pick up where it left off by passing the last `_id`
+ * it got as `after`.
+ *
+ * If the collection is split across shards (see `Shards`), each request
+ * reads from the shards it needs at once and merges their sorted results
+ * (see `SortedMerge`), so the client sees the same order as from one
+ * collection.
+ *
+ * Lists are read within the list operation's deadline, hedged if it's
+ * slow, and coalesced with identical lists already in flight, as
+ * `MongoPolicies` says. Exports have no deadline.
+ *
+ * Query parameters:
+ *
+ *  - `format`: `ndjson` (the default) or `csv`
+ *  - `after`: only export documents with an `_id` after this one
+ *  - `batchSize`: how many documents to fetch from Mongo at a time
+ */
+public class BsonExporter {
+
+  public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+  public static final String CSV_CONTENT_TYPE = "text/csv";
+
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+  private static final int MAX_BATCH_SIZE = 10_000;
+  // The most days `countPerDay` will send an entry for, about ten years
+  static final int MAX_DAYS = 3660;
+
+  private final Shards shards;
+  private final List<MongoCollection<RawBsonDocument>> collections;
+  private final MongoPolicies policies;
+  private final String listOperation;
+  private final List<String> columns;
+  private final Map<String, Integer> columnPositions;
+  private final Object[] defaults;
+  private final Bson projection;
+  private final JsonFactory jsonFactory = new JsonFactory();
+
+  /**
+   * Construct an exporter for a collection.
+   *
+   * @param collection the collection to export
+   * @param columns the model's fields, in the order its serializer writes
+   *   them; nothing else is sent
+   * @param defaults what to write for fields a document doesn't have, if
+   *   not `null`: a `Boolean` or `Integer`
+   */
+  public BsonExporter(MongoCollection<RawBsonDocument> collection, List<String> columns, Map<String, Object> defaults) {
+    this(new Shards(1), List.of(collection), columns, defaults);
+  }
+
+  /**
+   * Construct an exporter for a collection that's split across shards.
+   *
+   * @param shards the shards
+   * @param collections the collection on each shard, in shard order
+   * @param columns the model's fields, in the order its serializer writes
+   *   them; nothing else is sent
+   * @param defaults what to write for fields a document doesn't have, if
+   *   not `null`: a `Boolean` or `Integer`
+   */
+  public BsonExporter(Shards shards, List<MongoCollection<RawBsonDocument>> collections, List<String> columns,
+      Map<String, Object> defaults) {
+    this(shards, collections, columns, defaults, MongoPolicies.defaults(), "documents.list");
+  }
+
+  /**
+   * Construct an exporter for a collection that's split across shards,
+   * whose lists have a deadline and may be hedged.
+   *
+   * @param shards the shards
+   * @param collections the collection on each shard, in shard order
+   * @param columns the model's fields, in the order its serializer writes
+   *   them; nothing else is sent
+   * @param defaults what to write for fields a document doesn't have, if
+   *   not `null`: a `Boolean` or `Integer`
+   * @param policies the deadlines and hedging to use
+   * @param listOperation the operation lists count as, e.g., `todos.list`
+   */
+  public BsonExporter(Shards shards, List<MongoCollection<RawBsonDocument>> collections, List<String> columns,
+      Map<String, Object> defaults, MongoPolicies policies, String listOperation) {
+    this.shards = shards;
+    this.collections = collections;
+    this.policies = policies;
+    this.listOperation = listOperation;
+    this.columns = columns;
+    this.columnPositions = columnPositions(columns);
+    this.defaults = new Object[columns.size()];
+    defaults.forEach((field, value) -> this.defaults[columnPositions.get(field)] = value);
+    this.projection = include(columns);
+  }
+
+  /**
+   * Send the documents matching `filter` as a JSON array, the way a list
+   * endpoint would with `ctx.json`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param filter the documents to send
+   * @param sortBy the field to sort them by
+   * @param descending whether to sort in descending order
+   * @throws IOException if transcoding fails
+   */
+  public void list(Context ctx, Bson filter, String sortBy, boolean descending) throws IOException {
+    list(ctx, shards.all(), filter, sortBy, descending);
+  }
+
+  /**
+   * Send the documents matching `filter` on some of the shards as a JSON
+   * array, the way a list endpoint would with `ctx.json`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param targets the shards the documents could be on
+   * @param filter the documents to send
+   * @param sortBy the field to sort them by
+   * @param descending whether to sort in descending order
+   * @throws IOException if transcoding fails
+   */
+  public void list(Context ctx, List<Integer> targets, Bson filter, String sortBy, boolean descending)
+      throws IOException {
+    long maxTimeMillis = policies.maxTimeMillis(listOperation);
+    // Identical lists in flight at once share one query and its JSON
+    List<Object> key = List.of(targets, keyOf(filter), sortBy, descending, columns);
+    byte[] json;
+    try {
+      json = policies.read(listOperation, key,
+          preference -> listJson(targets, filter, sortBy, descending, preference, maxTimeMillis));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    ctx.contentType(ContentType.APPLICATION_JSON);
+    ctx.result(json);
+  }
+
+  /**
+   * Send how many of the documents matching `filter` were added on each
+   * day; see the other `countPerDay`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param filter the documents to count
+   */
+  public void countPerDay(Context ctx, Bson filter) {
+    countPerDay(ctx, shards.all(), filter);
+  }
+
+  /**
+   * Send how many of the documents matching `filter` on some of the shards
+   * were added on each day (in UTC), from when their ids were made (see
+   * `CreationTime`), as a JSON array with an entry for every day from the
+   * first to the last:
+   *
+   *     [{"day": "2022-02-01", "count": 3}, {"day": "2022-02-02", "count": 0}, ...]
+   *
+   * Mongo does the counting, grouping by the day in each id, so only one
+   * small document per day comes back. Documents whose ids aren't
+   * ObjectIds aren't counted.
+   *
+   * If the first and last days are more than `MAX_DAYS` apart (say,
+   * because of one very old or made-up id), this fails with a 400 rather
+   * than send an entry for every day in between; the client can narrow
+   * the range with `createdAfter` and `createdBefore`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param targets the shards the documents could be on
+   * @param filter the documents to count
+   */
+  public void countPerDay(Context ctx, List<Integer> targets, Bson filter) {
+    long maxTimeMillis = policies.maxTimeMillis(listOperation);
+    TreeMap<String, Long> counts = policies.read(listOperation, List.of("perDay", targets, keyOf(filter)),
+        preference -> countPerDay(targets, filter, preference, maxTimeMillis));
+    List<Map<String, Object>> days = new ArrayList<>();
+    if (!counts.isEmpty()) {
+      LocalDate first = LocalDate.parse(counts.firstKey());
+      LocalDate last = LocalDate.parse(counts.lastKey());
+      if (ChronoUnit.DAYS.between(first, last) >= MAX_DAYS) {
+        throw new BadRequestResponse("The matching documents were added from " + first + " to " + last
+            + ", which is more than " + MAX_DAYS + " days; narrow it down with createdAfter and createdBefore");
+      }
+      for (LocalDate day = first; !day.isAfter(last); day = day.plusDays(1)) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("day", day.toString());
+        entry.put("count", counts.getOrDefault(day.toString(), 0L));
+        days.add(entry);
+      }
+    }
+    ctx.json(days);
+  }
+
+  // A filter as JSON, to key coalesced reads by, since most filters don't
+  // implement equals
+  private String keyOf(Bson filter) {
+    return filter.toBsonDocument(BsonDocument.class, collections.get(0).getCodecRegistry()).toJson();
+  }
+
+  // The count for each day (as `yyyy-MM-dd`, which sorts in order) that
+  // has any documents
+  private TreeMap<String, Long> countPerDay(List<Integer> targets, Bson filter, ReadPreference preference,
+      long maxTimeMillis) {
+    List<Bson> pipeline = List.of(
+        match(and(filter, type("_id", BsonType.OBJECT_ID))),
+        group(new Document("$dateToString", new Document("format", "%Y-%m-%d")
+            .append("date", new Document("$toDate", "$_id"))), sum("count", 1)));
+    TreeMap<String, Long> counts = new TreeMap<>();
+    for (List<Document> days : shards.fanOut(targets, shard -> collections.get(shard)
+        .withReadPreference(preference)
+        .aggregate(pipeline, Document.class)
+        .maxTime(maxTimeMillis, TimeUnit.MILLISECONDS)
+        .into(new ArrayList<>()))) {
+      for (Document day : days) {
+        counts.merge(day.getString("_id"), ((Number) day.get("count")).longValue(), Long::sum);
+      }
+    }
+    return counts;
+  }
+
+  private byte[] listJson(List<Integer> targets, Bson filter, String sortBy, boolean descending,
+      ReadPreference preference, long maxTimeMillis) {
+    Bson sort = descending ? Sorts.descending(sortBy) : Sorts.ascending(sortBy);
+    List<MongoCursor<RawBsonDocument>> cursors = shards.fanOut(targets, shard -> collections.get(shard)
+        .withReadPreference(preference)
+        .find(filter)
+        .projection(projection)
+        .sort(sort)
+        .maxTime(maxTimeMillis, TimeUnit.MILLISECONDS)
+        .iterator());
+    ByteArrayBuilder bytes = new ByteArrayBuilder(jsonFactory._getBufferRecycler());
+    try (JsonGenerator json = jsonFactory.createGenerator(bytes)) {
+      Iterator<RawBsonDocument> documents = merge(cursors, SortedMerge.bsonOrder(sortBy, descending));
+      BsonReaderMark[] marks = new BsonReaderMark[columns.size()];
+      json.writeStartArray();
+      while (documents.hasNext()) {
+        writeJson(documents.next(), columnPositions, defaults, marks, json);
+      }
+      json.writeEndArray();
+    } catch (IOException e) {
+      // So it can get out of the read, which may be on another thread
+      throw new UncheckedIOException(e);
+    } finally {
+      cursors.forEach(MongoCursor::close);
+    }
+    byte[] result = bytes.toByteArray();
+    bytes.release();
+    return result;
+  }
+
+  /**
+   * Stream the documents matching `filter` as the response.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param filter the filter to apply, the same as the list endpoint's
+   * @throws IOException if the client goes away
+   */
+  public void export(Context ctx, Bson filter) throws IOException {
+    export(ctx, shards.all(), filter);
+  }
+
+  /**
+   * Stream the documents matching `filter` on some of the shards as the
+   * response.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param targets the shards the documents could be on
+   * @param filter the filter to apply, the same as the list endpoint's
+   * @throws IOException if the client goes away
+   */
+  public void export(Context ctx, List<Integer> targets, Bson filter) throws IOException {
+    String format = ctx.queryParamAsClass("format", String.class)
+        .check(f -> f.equals("ndjson") || f.equals("csv"), "format must be ndjson or csv")
+        .getOrDefault("ndjson");
+    int batchSize = ctx.queryParamAsClass("batchSize", Integer.class)
+        .check(n -> n > 0 && n <= MAX_BATCH_SIZE, "batchSize must be between 1 and " + MAX_BATCH_SIZE)
+        .getOrDefault(DEFAULT_BATCH_SIZE);
+    Bson query = filter;
+    String after = ctx.queryParam("after");
+    if (after != null) {
+      if (!ObjectId.isValid(after)) {
+        throw new BadRequestResponse("after wasn't a legal Mongo Object ID.");
+      }
+      query = and(filter, gt("_id", new ObjectId(after)));
+    }
+
+    ctx.status(HttpCode.OK);
+    ctx.contentType(format.equals("csv") ? CSV_CONTENT_TYPE : NDJSON_CONTENT_TYPE);
+    OutputStream out = ctx.res.getOutputStream();
+    Bson shardQuery = query;
+    List<MongoCursor<RawBsonDocument>> cursors = shards.fanOut(targets, shard -> collections.get(shard)
+        .find(shardQuery)
+        .projection(projection)
+        .sort(Sorts.ascending("_id"))
+        .batchSize(batchSize)
+        .iterator());
+    try {
+      Iterator<RawBsonDocument> documents = merge(cursors, SortedMerge.bsonOrder("_id", false));
+      if (format.equals("csv")) {
+        writeCsv(documents, out);
+      } else {
+        writeNdjson(documents, out);
+      }
+    } finally {
+      cursors.forEach(MongoCursor::close);
+    }
+  }
+
+  private static Iterator<RawBsonDocument> merge(List<MongoCursor<RawBsonDocument>> cursors,
+      Comparator<RawBsonDocument> order) {
+    // No need for a heap with just one
+    return cursors.size() == 1 ? cursors.get(0) : new SortedMerge<>(cursors, order);
+  }
+
+  private void writeNdjson(Iterator<RawBsonDocument> cursor, OutputStream out) throws IOException {
+    try (JsonGenerator json = jsonFactory.createGenerator(out)) {
+      json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      BsonReaderMark[] marks = new BsonReaderMark[columns.size()];
+      while (cursor.hasNext()) {
+        writeJson(cursor.next(), columnPositions, defaults, marks, json);
+        json.writeRaw('\n');
+      }
+    }
+  }
+
+  private void writeCsv(Iterator<RawBsonDocument> cursor, OutputStream out) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    writeCsvRow(columns, writer);
+    String[] row = new String[columns.size()];
+    while (cursor.hasNext()) {
+      writeCsvRow(cursor.next(), columnPositions, row, writer);
+    }
+    writer.flush();
+  }
+
+  /**
+   * Write a document as a JSON object, straight from its BSON.
+   *
+   * @param document the document to write
+   * @param json where to write it
+   * @throws IOException if writing fails
+   */
+  static void writeJson(RawBsonDocument document, JsonGenerator json) throws IOException {
+    try (BsonBinaryReader reader = reader(document)) {
+      writeDocument(reader, json);
+    }
+  }
+
+  /**
+   * Write a document as a JSON object with exactly the given fields, in
+   * order, straight from its BSON. A `createdAt` field the document
+   * doesn't have is worked out from its `_id` (see `CreationTime`).
+   *
+   * @param document the document to write
+   * @param positions where each field goes, from `columnPositions`
+   * @param defaults what to write for each field if the document doesn't
+   *   have it (`null` for `null`)
+   * @param marks scratch space with one slot per field, reused between
+   *   documents
+   * @param json where to write it
+   * @throws IOException if writing fails
+   */
+  static void writeJson(RawBsonDocument document, Map<String, Integer> positions, Object[] defaults,
+      BsonReaderMark[] marks, JsonGenerator json) throws IOException {
+    Arrays.fill(marks, null);
+    try (BsonBinaryReader reader = reader(document)) {
+      // Find where each field is, then go back and write them in order
+      ObjectId id = null;
+      reader.readStartDocument();
+      while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+        String name = reader.readName();
+        Integer position = positions.get(name);
+        if (position != null) {
+          marks[position] = reader.getMark();
+        }
+        if (name.equals("_id") && reader.getCurrentBsonType() == BsonType.OBJECT_ID) {
+          id = reader.readObjectId();
+        } else {
+          reader.skipValue();
+        }
+      }
+      json.writeStartObject();
+      for (Map.Entry<String, Integer> field : positions.entrySet()) {
+        int position = field.getValue();
+        json.writeFieldName(field.getKey());
+        if (marks[position] != null) {
+          marks[position].reset();
+          writeValue(reader, json);
+        } else if (id != null && field.getKey().equals(CreationTime.CREATED_AT)) {
+          json.writeString(CreationTime.createdAt(id));
+        } else {
+          writeDefault(defaults[position], json);
+        }
+      }
+      json.writeEndObject();
+    }
+  }
+
+  private static void writeDefault(Object value, JsonGenerator json) throws IOException {
+    if (value instanceof Boolean) {
+      json.writeBoolean((Boolean) value);
+    } else if (value instanceof Integer) {
+      json.writeNumber((Integer) value);
+    } else {
+      json.writeNull();
+    }
+  }
+
+  /**
+   * Where each column goes in a CSV row, or a JSON object. The map
+   * iterates in column order.
+   *
+   * @param columns the fields to write, in order
+   * @return a map from field name to column number
+   */
+  static Map<String, Integer> columnPositions(List<String> columns) {
+    Map<String, Integer> positions = new LinkedHashMap<>();
+    for (int i = 0; i < columns.size(); i++) {
+      positions.put(columns.get(i), i);
+    }
+    return positions;
+  }
+
+  /**
+   * Write the given columns of a document as a CSV row. Missing fields and
+   * nested documents or arrays are left empty, except `createdAt`, which
+   * is worked out from the `_id` as in `writeJson`.
+   *
+   * @param document the document to write
+   * @param positions the column each field goes in, from `columnPositions`
+   * @param row scratch space with one slot per column, reused between rows
+   * @param writer where to write the row
+   * @throws IOException if writing fails
+   */
+  static void writeCsvRow(RawBsonDocument document, Map<String, Integer> positions, String[] row, Writer writer)
+      throws IOException {
+    Arrays.fill(row, "");
+    ObjectId id = null;
+    try (BsonBinaryReader reader = reader(document)) {
+      reader.readStartDocument();
+      while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+        String name = reader.readName();
+        Integer position = positions.get(name);
+        if (name.equals("_id") && reader.getCurrentBsonType() == BsonType.OBJECT_ID) {
+          id = reader.readObjectId();
+          if (position != null) {
+            row[position] = id.toHexString();
+          }
+        } else if (position == null) {
+          reader.skipValue();
+        } else {
+          row[position] = scalarAsString(reader);
+        }
+      }
+      reader.readEndDocument();
+    }
+    Integer createdAt = positions.get(CreationTime.CREATED_AT);
+    if (createdAt != null && id != null && row[createdAt].isEmpty()) {
+      row[createdAt] = CreationTime.createdAt(id);
+    }
+    writeCsvRow(Arrays.asList(row), writer);
+  }
+
+  private static void writeCsvRow(List<String> values, Writer writer) throws IOException {
+    for (int i = 0; i < values.size(); i++) {
+      if (i > 0) {
+        writer.write(',');
+      }
+      writer.write(csvEscape(values.get(i)));
+    }
+    writer.write("\r\n");
+  }
+
+  private static String csvEscape(String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+      return value;
+    }
+    return '"' + value.replace("\"", "\"\"") + '"';
+  }
+
+  private static BsonBinaryReader reader(RawBsonDocument document) {
+    return new BsonBinaryReader(new ByteBufferBsonInput(document.getByteBuffer()));
+  }
+
+  private static void writeDocument(BsonReader reader, JsonGenerator json) throws IOException {
+    reader.readStartDocument();
+    json.writeStartObject();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      json.writeFieldName(reader.readName());
+      writeValue(reader, json);
+    }
+    reader.readEndDocument();
+    json.writeEndObject();
+  }
+
+  private static void writeValue(BsonReader reader, JsonGenerator json) throws IOException {
+    switch (reader.getCurrentBsonType()) {
+      case DOCUMENT:
+        writeDocument(reader, json);
+        break;
+      case ARRAY:
+        reader.readStartArray();
+        json.writeStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+          writeValue(reader, json);
+        }
+        reader.readEndArray();
+        json.writeEndArray();
+        break;
+      case STRING:
+        json.writeString(reader.readString());
+        break;
+      case OBJECT_ID:
+        json.writeString(reader.readObjectId().toHexString());
+        break;
+      case BOOLEAN:
+        json.writeBoolean(reader.readBoolean());
+        break;
+      case INT32:
+        json.writeNumber(reader.readInt32());
+        break;
+      case INT64:
+        json.writeNumber(reader.readInt64());
+        break;
+      case DOUBLE:
+        json.writeNumber(reader.readDouble());
+        break;
+      case DECIMAL128:
+        json.writeNumber(reader.readDecimal128().bigDecimalValue());
+        break;
+      case DATE_TIME:
+        json.writeString(Instant.ofEpochMilli(reader.readDateTime()).toString());
+        break;
+      case NULL:
+        reader.readNull();
+        json.writeNull();
+        break;
+      default:
+        // Nothing in our collections uses the other BSON types
+        reader.skipValue();
+        json.writeNull();
+        break;
+    }
+  }
+
+  private static String scalarAsString(BsonReader reader) {
+    switch (reader.getCurrentBsonType()) {
+      case STRING:
+        return reader.readString();
+      case OBJECT_ID:
+        return reader.readObjectId().toHexString();
+      case BOOLEAN:
+        return Boolean.toString(reader.readBoolean());
+      case INT32:
+        return Integer.toString(reader.readInt32());
+      case INT64:
+        return Long.toString(reader.readInt64());
+      case DOUBLE:
+        return Double.toString(reader.readDouble());
+      case DECIMAL128:
+        return reader.readDecimal128().bigDecimalValue().toPlainString();
+      case DATE_TIME:
+        return Instant.ofEpochMilli(reader.readDateTime()).toString();
+      default:
+        reader.skipValue();
+        return "";
+    }
+  }
+}
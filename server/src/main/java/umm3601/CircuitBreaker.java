@@ -0,0 +1,179 @@
+package umm3601;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+/**
+ * Stops sending requests to Mongo for a while when it's unhealthy, so
+ * they fail straight away with a `503` instead of each one tying up a
+ * worker until it times out.
+ *
+ * The breaker starts closed, letting everything through. After
+ * `failureThreshold` requests in a row fail with an error that says Mongo
+ * is unhealthy (see `isUnhealthy`), it opens and turns everything away for
+ * `openMillis`. Then it's half open: one request is let through as a
+ * trial, and the breaker closes again as soon as any Mongo command
+ * succeeds, or opens for another `openMillis` if the trial fails. If the
+ * trial doesn't turn out to need Mongo, another one is let through after
+ * another `openMillis`.
+ *
+ * Failures are counted per request, by whatever handles the request's
+ * exceptions, since some of them (e.g., not finding a server) happen
+ * before any command is sent. Successes are counted per command, by
+ * listening to the Mongo client, so a request that never touched Mongo
+ * can't close the breaker.
+ */
+public class CircuitBreaker implements CommandListener {
+
+  /**
+   * Whether the breaker is letting requests through.
+   */
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openNanos;
+  private final LongSupplier clock;
+
+  private volatile State state = State.CLOSED;
+  private volatile int failures;
+  private long openUntil;
+
+  /**
+   * Construct a breaker.
+   *
+   * @param failureThreshold how many requests in a row have to fail
+   *   before it opens
+   * @param openMillis how long it stays open before letting a trial
+   *   request through
+   */
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    this(failureThreshold, openMillis, System::nanoTime);
+  }
+
+  /**
+   * Construct a breaker with its own clock, for testing.
+   *
+   * @param failureThreshold how many requests in a row have to fail
+   *   before it opens
+   * @param openMillis how long it stays open before letting a trial
+   *   request through
+   * @param clock the current time in nanoseconds
+   */
+  CircuitBreaker(int failureThreshold, long openMillis, LongSupplier clock) {
+    this.failureThreshold = failureThreshold;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    this.clock = clock;
+  }
+
+  /**
+   * Whether a request should be let through to Mongo.
+   *
+   * @return `true` if it should, or `false` if it should be turned away
+   */
+  public boolean allowRequest() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    synchronized (this) {
+      long now = clock.getAsLong();
+      if (state == State.CLOSED) {
+        return true;
+      }
+      if (now - openUntil < 0) {
+        return false;
+      }
+      // Let this one through as a trial, and no other until it's had time
+      // to fail
+      state = State.HALF_OPEN;
+      openUntil = now + openNanos;
+      return true;
+    }
+  }
+
+  /**
+   * Note that Mongo answered.
+   */
+  public void recordSuccess() {
+    if (state == State.CLOSED && failures == 0) {
+      return;
+    }
+    synchronized (this) {
+      failures = 0;
+      state = State.CLOSED;
+    }
+  }
+
+  /**
+   * Note that a request failed because Mongo is unhealthy.
+   */
+  public synchronized void recordFailure() {
+    failures++;
+    if (state == State.HALF_OPEN || failures >= failureThreshold) {
+      state = State.OPEN;
+      openUntil = clock.getAsLong() + openNanos;
+    }
+  }
+
+  /**
+   * Whether the breaker is letting requests through.
+   *
+   * @return the state
+   */
+  public State state() {
+    return state;
+  }
+
+  /**
+   * How long until the breaker lets a trial request through, for a
+   * `Retry-After` header.
+   *
+   * @return the time in seconds, at least 1
+   */
+  public synchronized long retryAfterSeconds() {
+    long remaining = openUntil - clock.getAsLong();
+    return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + TimeUnit.SECONDS.toNanos(1) - 1));
+  }
+
+  /**
+   * Whether an error means Mongo is unhealthy, rather than that there was
+   * something wrong with the request: it couldn't be reached, it's
+   * electing a new primary, or it ran out of time.
+   *
+   * @param e the error
+   * @return whether it should count towards opening the breaker
+   */
+  public static boolean isUnhealthy(Throwable e) {
+    return e instanceof MongoTimeoutException
+        || e instanceof MongoSocketException
+        || e instanceof MongoExecutionTimeoutException
+        || e instanceof MongoNotPrimaryException
+        || e instanceof MongoNodeIsRecoveringException;
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event) {
+    // Nothing to do until it finishes
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event) {
+    recordSuccess();
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+    // Counted when the request fails, so it isn't counted twice
+  }
+}
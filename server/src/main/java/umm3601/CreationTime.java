@@ -0,0 +1,124 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+
+/**
+ * When todos and users were added, from the time Mongo puts at the start
+ * of every `ObjectId`, so there's no need to store it separately.
+ *
+ * The list endpoints take `createdAfter` and `createdBefore` query
+ * parameters, either an ISO-8601 time with an offset
+ * (`2022-02-01T09:30:00Z`) or a day (`2022-02-01`, which means its start
+ * in UTC). They become a range on `_id`, which Mongo answers from the `_id` index every collection has.
+ * `createdAfter` includes its own second and `createdBefore` doesn't,
+ * since ids only say what second they were made in.
+ *
+ * Responses include a `createdAt` field with the same kind of time,
+ * worked out from the `_id`.
+ */
+public final class CreationTime {
+
+  public static final String CREATED_AT = "createdAt";
+  public static final String CREATED_AFTER_KEY = "createdAfter";
+  public static final String CREATED_BEFORE_KEY = "createdBefore";
+
+  // An id's time is the number of seconds since 1970 in 32 unsigned bits
+  private static final long MAX_SECONDS = 0xffffffffL;
+  private static final String ZERO_COUNTER = "0000000000000000";
+
+  private CreationTime() {
+  }
+
+  /**
+   * Add the filters for the request's `createdAfter` and `createdBefore`
+   * query parameters, if it has them.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param filters the filters to add to
+   */
+  public static void addFilters(Context ctx, List<Bson> filters) {
+    String after = ctx.queryParam(CREATED_AFTER_KEY);
+    if (after != null) {
+      filters.add(gte("_id", firstIdAt(parse(CREATED_AFTER_KEY, after))));
+    }
+    String before = ctx.queryParam(CREATED_BEFORE_KEY);
+    if (before != null) {
+      filters.add(lt("_id", firstIdAt(parse(CREATED_BEFORE_KEY, before))));
+    }
+  }
+
+  /**
+   * The smallest id that could have been made at the given time, i.e.,
+   * every id made at or after that second is at least this one.
+   *
+   * @param time the time
+   * @return the id
+   */
+  public static ObjectId firstIdAt(Instant time) {
+    long seconds = Math.max(0, Math.min(MAX_SECONDS, time.getEpochSecond()));
+    return new ObjectId(String.format("%08x", seconds) + ZERO_COUNTER);
+  }
+
+  /**
+   * When the document with the given id was added.
+   *
+   * @param id the document's id, as a hex string
+   * @return the time as ISO-8601, or `null` if the id isn't an `ObjectId`
+   */
+  public static String createdAt(String id) {
+    return id != null && ObjectId.isValid(id) ? createdAt(new ObjectId(id)) : null;
+  }
+
+  /**
+   * When the document with the given id was added.
+   *
+   * @param id the document's id
+   * @return the time as ISO-8601
+   */
+  public static String createdAt(ObjectId id) {
+    return Instant.ofEpochSecond(Integer.toUnsignedLong(id.getTimestamp())).toString();
+  }
+
+  /**
+   * The day (in UTC) that the document with the given id was added.
+   *
+   * @param id the document's id
+   * @return the day
+   */
+  public static LocalDate createdOn(ObjectId id) {
+    return LocalDate.ofInstant(Instant.ofEpochSecond(Integer.toUnsignedLong(id.getTimestamp())), ZoneOffset.UTC);
+  }
+
+  /**
+   * Parse a `createdAfter` or `createdBefore` query parameter.
+   *
+   * @param name the parameter's name, for the error message
+   * @param value the parameter's value
+   * @return the time it means
+   */
+  static Instant parse(String name, String value) {
+    try {
+      if (value.indexOf('T') < 0) {
+        return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant();
+      }
+      return OffsetDateTime.parse(value).toInstant();
+    } catch (DateTimeException e) {
+      throw new BadRequestResponse(name + " must be an ISO-8601 time (like 2022-02-01T09:30:00Z) or day"
+          + " (like 2022-02-01)");
+    }
+  }
+}
@@ -0,0 +1,298 @@
+package umm3601;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoInterruptedException;
+import com.mongodb.ReadPreference;
+
+/**
+ * Runs Mongo reads with a deadline, and optionally hedges slow ones by
+ * sending the same read to another member of the replica set and taking
+ * whichever answer comes back first.
+ *
+ * The deadline is the operation's `MongoPolicies.maxTimeMillis`, which
+ * the read should also pass to Mongo as `maxTimeMS` so the server gives
+ * up on it too. The caller waits that long plus a little grace for the
+ * answer to arrive, then fails with a `MongoExecutionTimeoutException`,
+ * just as if Mongo had given up itself; this covers the time Mongo's own
+ * limit doesn't, e.g., waiting for a connection or a slow network.
+ *
+ * A hedged read starts the same way, but if it hasn't been answered by
+ * the time most reads of that kind have (the `quantile` of the last
+ * `WINDOW` reads' latencies, but no sooner than `minDelayMillis`), a
+ * second copy is sent with `MongoPolicies.hedgePreference`, which will
+ * usually pick a different member. The first answer wins; the other one
+ * is left to finish (or hit its `maxTimeMS`) and is thrown away, because
+ * interrupting a thread in the middle of a Mongo call makes the driver
+ * discard the connection. Nothing is hedged until `MIN_SAMPLES` reads
+ * have been timed.
+ *
+ * The copies run on a pool of at most `threads` threads, with no queue,
+ * so reads that have been given up on can't pile up threads without
+ * limit. When every thread is busy, a read runs on the calling thread,
+ * with only Mongo's `maxTimeMS` to stop it, and isn't hedged.
+ *
+ * Reads with no deadline that aren't hedged run on the calling thread,
+ * exactly as if they'd been called directly.
+ */
+public class HedgedReads {
+
+  // Don't trust the latency percentile until there's this many samples
+  static final int MIN_SAMPLES = 100;
+  // How many of the latest reads of each kind the percentile is taken over
+  static final int WINDOW = 1000;
+  // How many reads to time between working out the percentile again
+  private static final int RECOMPUTE_EVERY = 16;
+  private static final long KEEP_ALIVE_SECONDS = 60;
+  // How long past the deadline to wait for Mongo's own timeout to arrive
+  static final long GRACE_MILLIS = 250;
+  // Mongo's error code for exceeding `maxTimeMS`
+  private static final int MAX_TIME_EXPIRED = 50;
+
+  private final MongoPolicies policies;
+  private final Metrics metrics;
+  private final double quantile;
+  private final long minDelayMicros;
+  private final ThreadPoolExecutor executor;
+  private final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+  /**
+   * Construct hedged reads.
+   *
+   * @param policies which operations have deadlines and are hedged
+   * @param metrics where to record each operation's latency and how often
+   *   it was hedged or ran out of time
+   * @param quantile how far into the latencies seen so far a read has to
+   *   get before it's hedged, e.g., 0.95
+   * @param minDelayMillis the soonest a read is hedged
+   * @param threads the most reads to run on threads of their own at once
+   */
+  public HedgedReads(MongoPolicies policies, Metrics metrics, double quantile, long minDelayMillis, int threads) {
+    this.policies = policies;
+    this.metrics = metrics;
+    this.quantile = quantile;
+    this.minDelayMicros = TimeUnit.MILLISECONDS.toMicros(minDelayMillis);
+    this.executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new SynchronousQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, "mongo-read");
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Run a read.
+   *
+   * @param operation the operation, e.g., `todos.list`
+   * @param read the read, given the read preference to use (which it
+   *   should apply with `withReadPreference`); it may be run twice at
+   *   once, so it mustn't have side effects
+   * @param <T> the type of the answer
+   * @return the first answer
+   * @throws MongoExecutionTimeoutException if there was no answer in time
+   */
+  public <T> T read(String operation, Function<ReadPreference, T> read) {
+    ReadPreference preference = policies.readPreference(operation);
+    long maxTimeMillis = policies.maxTimeMillis(operation);
+    boolean hedged = policies.hedged(operation);
+    if (maxTimeMillis <= 0 && !hedged) {
+      return read.apply(preference);
+    }
+
+    Metrics.Histogram latency = metrics.histogram("mongo." + operation + ".micros");
+    LatencyWindow recent = latencies.computeIfAbsent(operation, op -> new LatencyWindow());
+    long start = System.nanoTime();
+    long deadline = maxTimeMillis > 0
+        ? start + TimeUnit.MILLISECONDS.toNanos(maxTimeMillis + GRACE_MILLIS)
+        : Long.MAX_VALUE;
+    Race<T> race = new Race<>();
+    if (!race.start(read, preference)) {
+      // Every thread is busy
+      metrics.counter("mongo." + operation + ".ranOnCaller").increment();
+      return read.apply(preference);
+    }
+    try {
+      long hedgeAfter = hedgeAfterMicros(recent);
+      if (hedged && hedgeAfter >= 0) {
+        long hedgeAt = start + TimeUnit.MICROSECONDS.toNanos(hedgeAfter);
+        if (!race.finishedBy(Math.min(hedgeAt, deadline)) && System.nanoTime() < deadline
+            && race.start(read, policies.hedgePreference(operation))) {
+          metrics.counter("mongo." + operation + ".hedged").increment();
+        }
+      }
+      Answer<T> answer = race.winner.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+      latency.record(micros);
+      recent.record(micros);
+      if (answer.attempt > 0) {
+        metrics.counter("mongo." + operation + ".hedgeWins").increment();
+      }
+      return answer.value;
+    } catch (TimeoutException e) {
+      race.cancel();
+      metrics.counter("mongo." + operation + ".deadlineExceeded").increment();
+      throw new MongoExecutionTimeoutException(MAX_TIME_EXPIRED,
+          operation + " didn't finish within " + maxTimeMillis + " ms");
+    } catch (InterruptedException e) {
+      race.cancel();
+      Thread.currentThread().interrupt();
+      throw new MongoInterruptedException("Interrupted waiting for " + operation, e);
+    } catch (ExecutionException e) {
+      // Rethrow what the read threw, as if it had been thrown here
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * How long a read can run before it's hedged.
+   *
+   * @return the delay in microseconds, or -1 if there aren't enough
+   *   samples yet to tell
+   */
+  long hedgeAfterMicros(LatencyWindow recent) {
+    long percentile = recent.percentile(quantile);
+    return percentile < 0 ? -1 : Math.max(minDelayMicros, percentile);
+  }
+
+  /**
+   * One or two copies of a read, racing to be the first to answer. It
+   * fails only once every copy has failed.
+   */
+  private final class Race<T> {
+    private final CompletableFuture<Answer<T>> winner = new CompletableFuture<>();
+    private final Future<?>[] attempts = new Future<?>[2];
+    private int started;
+    private int failed;
+
+    /**
+     * Start another copy of the read, unless it's already been answered
+     * or there's no thread free to run it.
+     *
+     * @return whether it was started
+     */
+    synchronized boolean start(Function<ReadPreference, T> read, ReadPreference preference) {
+      if (winner.isDone()) {
+        return false;
+      }
+      int attempt = started;
+      try {
+        attempts[attempt] = executor.submit(MongoTimer.carry(() -> {
+          try {
+            winner.complete(new Answer<>(read.apply(preference), attempt));
+          } catch (RuntimeException e) {
+            failed(e);
+          }
+        }));
+      } catch (RejectedExecutionException e) {
+        return false;
+      }
+      started++;
+      return true;
+    }
+
+    private synchronized void failed(RuntimeException e) {
+      if (++failed == started) {
+        winner.completeExceptionally(e);
+      }
+    }
+
+    /**
+     * Wait until some time for the read to be answered (or to fail).
+     *
+     * @param until the time to give up waiting, from `System.nanoTime()`
+     * @return whether it was
+     */
+    boolean finishedBy(long until) throws InterruptedException {
+      try {
+        winner.get(Math.max(0, until - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        return false;
+      } catch (ExecutionException e) {
+        // It'll be rethrown when the caller asks for the answer
+      }
+      return true;
+    }
+
+    /**
+     * Drop any copies that haven't started running yet.
+     */
+    synchronized void cancel() {
+      for (int i = 0; i < started; i++) {
+        attempts[i].cancel(false);
+      }
+    }
+  }
+
+  /**
+   * The latencies of the last `WINDOW` reads of one kind, so how long a
+   * read waits before it's hedged follows how fast reads are now, not
+   * since the server started.
+   */
+  static final class LatencyWindow {
+    private final long[] samples = new long[WINDOW];
+    private long recorded;
+    private long computedAt = -RECOMPUTE_EVERY;
+    private long computed;
+
+    /**
+     * Record how long a read took.
+     *
+     * @param micros the read's latency in microseconds
+     */
+    synchronized void record(long micros) {
+      samples[(int) (recorded++ % WINDOW)] = micros;
+    }
+
+    /**
+     * The latency that this fraction of the recent reads were at least as
+     * fast as.
+     *
+     * @param quantile the fraction, e.g., 0.95
+     * @return the latency in microseconds, or -1 if there aren't enough
+     *   samples yet to tell
+     */
+    synchronized long percentile(double quantile) {
+      if (recorded < MIN_SAMPLES) {
+        return -1;
+      }
+      // Sorting the window on every read would be wasted effort, as it
+      // barely changes from one read to the next
+      if (recorded - computedAt >= RECOMPUTE_EVERY) {
+        long[] sorted = Arrays.copyOf(samples, (int) Math.min(recorded, WINDOW));
+        Arrays.sort(sorted);
+        computed = sorted[Math.max(0, (int) Math.ceil(sorted.length * quantile) - 1)];
+        computedAt = recorded;
+      }
+      return computed;
+    }
+  }
+
+  /**
+   * An answer, and which copy of the read it came from.
+   */
+  private static final class Answer<T> {
+    private final T value;
+    private final int attempt;
+
+    Answer(T value, int attempt) {
+      this.value = value;
+      this.attempt = attempt;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package umm3601;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A small least-recently-used cache of documents by id, in front of the
+ * get-by-id and multi-get endpoints, so a profile screen that keeps
+ * asking for the same few todos or users doesn't go to Mongo every time.
+ *
+ * Entries expire after a fixed time, which bounds how stale a document
+ * can be if it's changed by something other than this server. Changes
+ * made through this server call `invalidate`.
+ *
+ * A read that misses has to go to Mongo and then `put` what it found. If
+ * the document is changed in the meantime, the read may have seen the old
+ * version, so every `invalidate` bumps a counter, readers take a `stamp`
+ * before they go to Mongo, and `put` ignores anything read before the
+ * latest invalidation.
+ *
+ * Nothing here depends on the keys being ids, so it also holds small
+ * results keyed by their query, like the user age histograms.
+ *
+ * @param <T> the type of the documents
+ */
+public class IdCache<T> {
+
+  private static final int INITIAL_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private final int capacity;
+  private final long ttlNanos;
+  private final LongSupplier clock;
+  private final LinkedHashMap<String, Cached<T>> entries;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private long invalidations;
+
+  /**
+   * Construct a cache.
+   *
+   * @param capacity the most documents to keep
+   * @param ttlMillis how long to keep a document before reading it again
+   */
+  public IdCache(int capacity, long ttlMillis) {
+    this(capacity, ttlMillis, System::nanoTime);
+  }
+
+  IdCache(int capacity, long ttlMillis, LongSupplier clock) {
+    this.capacity = capacity;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.clock = clock;
+    this.entries = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Cached<T>> eldest) {
+        return size() > IdCache.this.capacity;
+      }
+    };
+  }
+
+  /**
+   * Take a stamp to pass to `put` after reading from Mongo.
+   *
+   * @return the stamp
+   */
+  public synchronized long stamp() {
+    return invalidations;
+  }
+
+  /**
+   * Get a document, if it's cached and hasn't expired.
+   *
+   * @param id the document's id
+   * @return the document, or `null` if it isn't cached
+   */
+  public synchronized T get(String id) {
+    Cached<T> entry = entries.get(id);
+    if (entry != null && clock.getAsLong() - entry.added > ttlNanos) {
+      entries.remove(id);
+      entry = null;
+    }
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return entry.value;
+  }
+
+  /**
+   * Cache a document read from Mongo, unless something has been
+   * invalidated since `stamp` was taken.
+   *
+   * @param id the document's id
+   * @param value the document
+   * @param stamp what `stamp` returned before the read
+   */
+  public synchronized void put(String id, T value, long stamp) {
+    if (stamp == invalidations) {
+      entries.put(id, new Cached<>(value, clock.getAsLong()));
+    }
+  }
+
+  /**
+   * Forget a document that's been changed or deleted.
+   *
+   * @param id the document's id
+   */
+  public synchronized void invalidate(String id) {
+    invalidations++;
+    entries.remove(id);
+  }
+
+  /**
+   * Forget everything.
+   */
+  public synchronized void clear() {
+    invalidations++;
+    entries.clear();
+  }
+
+  /**
+   * How many documents are cached, including any that have expired but
+   * haven't been looked up since.
+   *
+   * @return the number of documents
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long hits() {
+    return hits.sum();
+  }
+
+  public long misses() {
+    return misses.sum();
+  }
+
+  // Not `Entry`, which would hide `Map.Entry` in the map's subclass above
+  private static final class Cached<T> {
+    private final T value;
+    private final long added;
+
+    Cached(T value, long added) {
+      this.value = value;
+      this.added = added;
+    }
+  }
+}
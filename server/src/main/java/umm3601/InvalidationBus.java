@@ -0,0 +1,397 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.gte;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+import com.mongodb.CursorType;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the in-memory caches of several servers behind a load balancer
+ * in step with each other: when one server changes a document, every
+ * other server drops it from its `IdCache` (which also bumps the cache's
+ * stamp, so a read already in flight doesn't put the old version back),
+ * and learns any new values for its `PrefixIndex`es (e.g., todo owners).
+ *
+ * Each server writes what it changed to a small capped collection,
+ * `invalidations`, and tails that collection with a tailable cursor, so
+ * messages arrive as soon as they're written. Unlike a change stream, this
+ * works against a standalone `mongod` too. Messages are written by a
+ * background thread that puts everything waiting into one message per
+ * collection, so a burst of writes (e.g., an import) is a few messages
+ * rather than thousands.
+ *
+ * Messages say when they were sent, so each server measures how far
+ * behind it is (`invalidations.lagMillis`, which is only as good as the
+ * servers' clocks agree). A server that falls further behind than
+ * `maxLagMillis`, or loses its place in the collection (e.g., because it
+ * wrapped around while the server was disconnected), can't know what it
+ * missed, so it flushes its caches completely instead.
+ *
+ * Only what goes through one of the servers is seen; documents changed
+ * some other way (e.g., in the Mongo shell) are still only bounded by
+ * the cache's time to live.
+ */
+public class InvalidationBus {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(InvalidationBus.class);
+
+  static final String COLLECTION = "invalidations";
+  // How far back to look when (re)opening the tail, so messages from
+  // servers whose clocks are a little behind ours aren't missed.
+  // Seeing a message twice does no harm.
+  static final long OVERLAP_MILLIS = 5000;
+  private static final long RETRY_DELAY_MILLIS = 1000;
+  private static final long MAX_AWAIT_MILLIS = 1000;
+  // Mongo's error code for a collection that already exists
+  private static final int NAMESPACE_EXISTS = 48;
+
+  private final MongoDatabase database;
+  private final long capacityBytes;
+  private final long maxLagMillis;
+  private final Metrics metrics;
+  private final LongSupplier clock;
+  private final String node = new ObjectId().toHexString();
+  private final Map<String, Listener> listeners = new ConcurrentHashMap<>();
+  private final BlockingQueue<Message> outgoing = new LinkedBlockingQueue<>();
+
+  private volatile boolean running;
+  private volatile MongoCursor<Document> cursor;
+  private volatile long lastLagMillis;
+  // Messages sent before this are covered by a flush
+  private volatile long flushedAt;
+
+  /**
+   * Construct a bus. Nothing is read or written until it's started.
+   *
+   * @param database the database to keep the `invalidations` collection in
+   * @param capacityBytes how big the collection is, if it has to be
+   *   created
+   * @param maxLagMillis how far behind a server can be before it flushes
+   *   its caches instead of catching up
+   * @param metrics where to report the lag and how often caches were
+   *   flushed
+   */
+  public InvalidationBus(MongoDatabase database, long capacityBytes, long maxLagMillis, Metrics metrics) {
+    this(database, capacityBytes, maxLagMillis, metrics, System::currentTimeMillis);
+  }
+
+  InvalidationBus(MongoDatabase database, long capacityBytes, long maxLagMillis, Metrics metrics,
+      LongSupplier clock) {
+    this.database = database;
+    this.capacityBytes = capacityBytes;
+    this.maxLagMillis = maxLagMillis;
+    this.metrics = metrics;
+    this.clock = clock;
+    metrics.gauge("invalidations.lastLagMillis", () -> lastLagMillis);
+  }
+
+  /**
+   * Say what to do when another server changes documents in a collection.
+   *
+   * @param collection the collection, e.g., `todos`
+   * @param invalidated given the ids of the changed documents, and any
+   *   new values of indexed fields (e.g., `{"owner": ["Fry"]}`)
+   * @param flush called instead when there's no telling what changed
+   */
+  public void register(String collection, BiConsumer<List<String>, Map<String, List<String>>> invalidated,
+      Runnable flush) {
+    listeners.put(collection, new Listener(invalidated, flush));
+  }
+
+  /**
+   * Tell the other servers that documents changed.
+   *
+   * @param collection the collection, e.g., `todos`
+   * @param ids the ids of the changed or deleted documents
+   * @param added new values of indexed fields, e.g., `{"owner": ["Fry"]}`
+   */
+  public void publish(String collection, List<String> ids, Map<String, List<String>> added) {
+    if (running) {
+      outgoing.add(new Message(collection, false, ids, added));
+    }
+  }
+
+  /**
+   * Tell the other servers that there's no telling which documents in a
+   * collection changed, so they should flush their caches of it.
+   *
+   * @param collection the collection, e.g., `todos`
+   */
+  public void publishFlush(String collection) {
+    if (running) {
+      outgoing.add(new Message(collection, true, List.of(), Map.of()));
+    }
+  }
+
+  /**
+   * Start sending and receiving invalidations on background threads.
+   */
+  public void start() {
+    running = true;
+    startDaemon("invalidation-sender", this::send);
+    startDaemon("invalidation-receiver", this::receive);
+  }
+
+  /**
+   * Stop sending and receiving invalidations.
+   */
+  public void stop() {
+    running = false;
+    MongoCursor<Document> current = cursor;
+    if (current != null) {
+      current.close();
+    }
+  }
+
+  private static void startDaemon(String name, Runnable task) {
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private MongoCollection<Document> collection() {
+    try {
+      database.createCollection(COLLECTION, new CreateCollectionOptions().capped(true).sizeInBytes(capacityBytes));
+    } catch (MongoCommandException e) {
+      if (e.getErrorCode() != NAMESPACE_EXISTS) {
+        throw e;
+      }
+    }
+    return database.getCollection(COLLECTION);
+  }
+
+  private void send() {
+    MongoCollection<Document> collection = null;
+    while (running) {
+      try {
+        List<Message> batch = new ArrayList<>();
+        batch.add(outgoing.take());
+        outgoing.drainTo(batch);
+        if (collection == null) {
+          collection = collection();
+        }
+        collection.insertMany(combine(batch));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (MongoException e) {
+        // The other servers will only notice when their caches expire
+        LOGGER.warn("Couldn't send cache invalidations: {}", e.getMessage());
+        metrics.counter("invalidations.sendFailures").increment();
+      }
+    }
+  }
+
+  /**
+   * One document per collection for everything in a batch of messages.
+   */
+  List<Document> combine(List<Message> batch) {
+    Map<String, Message> byCollection = new LinkedHashMap<>();
+    for (Message message : batch) {
+      byCollection.merge(message.collection, message, Message::plus);
+    }
+    List<Document> documents = new ArrayList<>();
+    long sentAt = clock.getAsLong();
+    for (Message message : byCollection.values()) {
+      Document document = new Document("node", node)
+          .append("sentAt", sentAt)
+          .append("collection", message.collection);
+      if (message.flush) {
+        document.append("flush", true);
+      } else {
+        document.append("ids", new ArrayList<>(message.ids));
+        Document added = new Document();
+        message.added.forEach((field, values) -> added.append(field, new ArrayList<>(values)));
+        document.append("added", added);
+      }
+      documents.add(document);
+    }
+    return documents;
+  }
+
+  private void receive() {
+    long since = clock.getAsLong();
+    boolean reconnecting = false;
+    while (running) {
+      try {
+        MongoCollection<Document> collection = collection();
+        try (MongoCursor<Document> tail = collection.find(gte("sentAt", since - OVERLAP_MILLIS))
+            .cursorType(CursorType.TailableAwait)
+            .maxAwaitTime(MAX_AWAIT_MILLIS, TimeUnit.MILLISECONDS)
+            .iterator()) {
+          cursor = tail;
+          if (reconnecting) {
+            // We were cut off, and caches have been refilling since: flush
+            // again now that we'll hear about anything after this
+            flush("the invalidation stream reconnected");
+            reconnecting = false;
+          }
+          while (running && tail.hasNext()) {
+            Document message = tail.next();
+            since = Math.max(since, message.getLong("sentAt"));
+            deliver(message);
+          }
+        }
+        // The tail died, e.g., because the collection was empty; reopen it
+        sleep(RETRY_DELAY_MILLIS);
+      } catch (MongoException e) {
+        if (!running) {
+          return;
+        }
+        LOGGER.warn("Lost the invalidation stream, retrying in {} ms: {}", RETRY_DELAY_MILLIS, e.getMessage());
+        flush("the invalidation stream was lost");
+        reconnecting = true;
+        sleep(RETRY_DELAY_MILLIS);
+      }
+    }
+  }
+
+  /**
+   * Act on a message from the `invalidations` collection.
+   *
+   * @param message the message
+   */
+  @SuppressWarnings("unchecked")
+  void deliver(Document message) {
+    if (node.equals(message.getString("node"))) {
+      return;
+    }
+    long sentAt = message.getLong("sentAt");
+    long lag = Math.max(0, clock.getAsLong() - sentAt);
+    lastLagMillis = lag;
+    metrics.histogram("invalidations.lagMillis").record(lag);
+    metrics.counter("invalidations.received").increment();
+    if (lag > maxLagMillis) {
+      // Catching up one message at a time would leave the caches stale
+      // for too long, and one flush covers everything sent before it
+      if (sentAt >= flushedAt) {
+        flush("invalidations are " + lag + " ms behind");
+      }
+      return;
+    }
+    if (sentAt < flushedAt - OVERLAP_MILLIS) {
+      // Already covered by a flush
+      return;
+    }
+    Listener listener = listeners.get(message.getString("collection"));
+    if (listener == null) {
+      return;
+    }
+    try {
+      if (message.getBoolean("flush", false)) {
+        listener.flush.run();
+        return;
+      }
+      Map<String, List<String>> added = new LinkedHashMap<>();
+      Document addedDocument = message.get("added", new Document());
+      for (String field : addedDocument.keySet()) {
+        added.put(field, (List<String>) addedDocument.get(field));
+      }
+      listener.invalidated.accept(message.getList("ids", String.class, List.of()), added);
+    } catch (RuntimeException e) {
+      LOGGER.warn("Couldn't apply cache invalidations for {}", message.getString("collection"), e);
+    }
+  }
+
+  /**
+   * Flush every cache, since there's no telling what we missed.
+   */
+  private void flush(String why) {
+    flushedAt = clock.getAsLong();
+    metrics.counter("invalidations.flushes").increment();
+    LOGGER.warn("Flushing caches because {}", why);
+    for (Map.Entry<String, Listener> entry : listeners.entrySet()) {
+      try {
+        entry.getValue().flush.run();
+      } catch (RuntimeException e) {
+        LOGGER.warn("Couldn't flush the caches of {}", entry.getKey(), e);
+      }
+    }
+  }
+
+  private void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      running = false;
+    }
+  }
+
+  /**
+   * What to do about invalidations of one collection.
+   */
+  private static final class Listener {
+    private final BiConsumer<List<String>, Map<String, List<String>>> invalidated;
+    private final Runnable flush;
+
+    Listener(BiConsumer<List<String>, Map<String, List<String>>> invalidated, Runnable flush) {
+      this.invalidated = invalidated;
+      this.flush = flush;
+    }
+  }
+
+  /**
+   * Changes to one collection, waiting to be sent.
+   */
+  static final class Message {
+    private final String collection;
+    private final boolean flush;
+    private final Set<String> ids;
+    private final Map<String, Set<String>> added;
+
+    Message(String collection, boolean flush, List<String> ids, Map<String, List<String>> added) {
+      this.collection = collection;
+      this.flush = flush;
+      this.ids = new LinkedHashSet<>(ids);
+      this.added = new LinkedHashMap<>();
+      added.forEach((field, values) -> this.added.put(field, new LinkedHashSet<>(values)));
+    }
+
+    private Message(String collection, boolean flush, Set<String> ids, Map<String, Set<String>> added) {
+      this.collection = collection;
+      this.flush = flush;
+      this.ids = ids;
+      this.added = added;
+    }
+
+    /**
+     * Everything in this message and another about the same collection.
+     */
+    Message plus(Message other) {
+      if (flush || other.flush) {
+        return new Message(collection, true, Set.of(), Map.of());
+      }
+      Set<String> allIds = new LinkedHashSet<>(ids);
+      allIds.addAll(other.ids);
+      Map<String, Set<String>> allAdded = new LinkedHashMap<>();
+      added.forEach((field, values) -> allAdded.put(field, new LinkedHashSet<>(values)));
+      other.added.forEach((field, values) -> allAdded.computeIfAbsent(field, f -> new LinkedHashSet<>())
+          .addAll(values));
+      return new Message(collection, false, allIds, allAdded);
+    }
+  }
+}
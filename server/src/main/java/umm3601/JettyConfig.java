@@ -0,0 +1,163 @@
+package umm3601;
+
+import java.util.concurrent.BlockingQueue;
+
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * How the embedded Jetty server that Javalin runs on is set up: its
+ * thread pool, its connector (port, acceptor and selector threads, accept
+ * backlog, idle timeout), and whether it speaks HTTP/2.
+ *
+ * HTTP/2 here is h2c (HTTP/2 over plain TCP), alongside HTTP/1.1 on the
+ * same port: a client can either start with HTTP/2's connection preface
+ * ("prior knowledge") or send an HTTP/1.1 request with `Upgrade: h2c`.
+ * Either way all of its requests then share one connection instead of
+ * each waiting for one of a handful of HTTP/1.1 connections. Browsers only
+ * use HTTP/2 over TLS, so they get this through a proxy in front of the
+ * server that talks h2c to it.
+ *
+ * Anything left at -1 (or 0 for the queue) gets Jetty's default.
+ */
+public final class JettyConfig {
+
+  // Javalin's own defaults for the thread pool it would otherwise create
+  static final int DEFAULT_MIN_THREADS = 8;
+  static final int DEFAULT_MAX_THREADS = 250;
+  static final int DEFAULT_THREAD_IDLE_TIMEOUT_MS = 60_000;
+  // Jetty's default, which is also how long a keep-alive connection stays open
+  static final long DEFAULT_IDLE_TIMEOUT_MS = 30_000;
+  static final int DEFAULT_MAX_CONCURRENT_STREAMS = 128;
+
+  private final int port;
+  private int acceptors = -1;
+  private int selectors = -1;
+  private int acceptQueueSize;
+  private int minThreads = DEFAULT_MIN_THREADS;
+  private int maxThreads = DEFAULT_MAX_THREADS;
+  private int threadIdleTimeoutMillis = DEFAULT_THREAD_IDLE_TIMEOUT_MS;
+  private int queueSize;
+  private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MS;
+  private boolean keepAlive = true;
+  private boolean http2 = true;
+  private int maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+
+  /**
+   * Construct a config with the defaults.
+   *
+   * @param port the port to listen on
+   */
+  public JettyConfig(int port) {
+    this.port = port;
+  }
+
+  /**
+   * Set how many threads accept connections and how many handle I/O on
+   * them.
+   *
+   * @param acceptorCount the number of acceptor threads
+   * @param selectorCount the number of selector threads
+   * @param backlog the listen backlog for connections not yet accepted
+   * @return this config
+   */
+  public JettyConfig connectorThreads(int acceptorCount, int selectorCount, int backlog) {
+    this.acceptors = acceptorCount;
+    this.selectors = selectorCount;
+    this.acceptQueueSize = backlog;
+    return this;
+  }
+
+  /**
+   * Set the size of the pool of threads that handle requests.
+   *
+   * @param min the fewest threads to keep around
+   * @param max the most threads to start
+   * @param idleMillis how long a thread above `min` can sit idle before
+   *   it stops
+   * @param queueLimit how many jobs can wait for a thread before new ones
+   *   are turned away, or 0 for no limit
+   * @return this config
+   */
+  public JettyConfig threadPool(int min, int max, int idleMillis, int queueLimit) {
+    this.minThreads = min;
+    this.maxThreads = max;
+    this.threadIdleTimeoutMillis = idleMillis;
+    this.queueSize = queueLimit;
+    return this;
+  }
+
+  /**
+   * Set how connections are kept open between requests.
+   *
+   * @param persistent whether HTTP/1.1 connections are reused at all
+   * @param idleMillis how long an idle connection stays open
+   * @return this config
+   */
+  public JettyConfig connections(boolean persistent, long idleMillis) {
+    this.keepAlive = persistent;
+    this.idleTimeoutMillis = idleMillis;
+    return this;
+  }
+
+  /**
+   * Set whether the server speaks h2c.
+   *
+   * @param enabled whether to accept HTTP/2 over plain TCP
+   * @param maxStreams how many requests one HTTP/2 client can have in
+   *   progress at once
+   * @return this config
+   */
+  public JettyConfig http2(boolean enabled, int maxStreams) {
+    this.http2 = enabled;
+    this.maxConcurrentStreams = maxStreams;
+    return this;
+  }
+
+  /**
+   * The port the server listens on.
+   *
+   * @return the port
+   */
+  public int port() {
+    return port;
+  }
+
+  /**
+   * Create a Jetty server set up this way, for Javalin's `config.server`.
+   *
+   * @return the server, not yet started
+   */
+  public Server createServer() {
+    BlockingQueue<Runnable> queue = queueSize > 0
+        ? new BlockingArrayQueue<>(queueSize, 0, queueSize)
+        : new BlockingArrayQueue<>(minThreads, minThreads);
+    QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, minThreads, threadIdleTimeoutMillis, queue);
+    threadPool.setName("JettyServerThreadPool");
+    Server server = new Server(threadPool);
+
+    HttpConfiguration httpConfig = new HttpConfiguration();
+    httpConfig.setSendServerVersion(false);
+    httpConfig.setPersistentConnectionsEnabled(keepAlive);
+    HttpConnectionFactory http1 = new HttpConnectionFactory(httpConfig);
+
+    ServerConnector connector;
+    if (http2) {
+      HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfig);
+      h2c.setMaxConcurrentStreams(maxConcurrentStreams);
+      connector = new ServerConnector(server, acceptors, selectors, http1, h2c);
+    } else {
+      connector = new ServerConnector(server, acceptors, selectors, http1);
+    }
+    connector.setPort(port);
+    connector.setIdleTimeout(idleTimeoutMillis);
+    connector.setAcceptQueueSize(acceptQueueSize);
+    server.addConnector(connector);
+    return server;
+  }
+}
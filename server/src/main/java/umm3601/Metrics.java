@@ -0,0 +1,145 @@
+package umm3601;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A very small in-process metrics registry: named counters, gauges, and
+ * histograms, all of which can be dumped as JSON from
+ * `/api/admin/metrics`.
+ *
+ * We don't need anything as heavy as a full metrics library here; this
+ * is just enough to see what the server's doing.
+ */
+public class Metrics {
+
+  private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+  /**
+   * Get the counter with the given name, creating it if needed.
+   *
+   * @param name the name of the counter
+   * @return the counter
+   */
+  public LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, key -> new LongAdder());
+  }
+
+  /**
+   * Register a gauge, a value that's read whenever a snapshot is taken.
+   *
+   * @param name the name of the gauge
+   * @param gauge where to read the value from
+   */
+  public void gauge(String name, Supplier<? extends Number> gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /**
+   * Get the histogram with the given name, creating it if needed.
+   *
+   * @param name the name of the histogram
+   * @return the histogram
+   */
+  public Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, key -> new Histogram());
+  }
+
+  /**
+   * Take a snapshot of every metric, sorted by name.
+   *
+   * @return a map from metric name to its current value
+   */
+  public Map<String, Object> snapshot() {
+    Map<String, Object> result = new TreeMap<>();
+    counters.forEach((name, counter) -> result.put(name, counter.sum()));
+    gauges.forEach((name, gauge) -> result.put(name, gauge.get()));
+    histograms.forEach((name, histogram) -> result.put(name, histogram.snapshot()));
+    return result;
+  }
+
+  /**
+   * A lock-free histogram of non-negative longs with power-of-two buckets.
+   * Percentiles are approximate: they report the upper bound of the
+   * bucket the percentile falls in.
+   */
+  public static final class Histogram {
+    private static final int BUCKETS = 64;
+    private static final double P50 = 0.5;
+    private static final double P99 = 0.99;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a single value.
+     *
+     * @param value the value to record; negative values are recorded as zero
+     */
+    public void record(long value) {
+      long v = Math.max(0, value);
+      buckets.incrementAndGet(bucketOf(v));
+      count.increment();
+      sum.add(v);
+      max.accumulate(v);
+    }
+
+    /**
+     * The number of values recorded so far.
+     *
+     * @return the count
+     */
+    public long count() {
+      return count.sum();
+    }
+
+    /**
+     * The approximate value at the given quantile.
+     *
+     * @param quantile a number between 0 and 1
+     * @return the upper bound of the bucket containing that quantile
+     */
+    public long percentile(double quantile) {
+      long total = count.sum();
+      if (total == 0) {
+        return 0;
+      }
+      long target = (long) Math.ceil(total * quantile);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= target) {
+          return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+        }
+      }
+      return max.get();
+    }
+
+    Map<String, Object> snapshot() {
+      long total = count.sum();
+      Map<String, Object> result = new TreeMap<>();
+      result.put("count", total);
+      result.put("sum", sum.sum());
+      result.put("mean", total == 0 ? 0 : (double) sum.sum() / total);
+      result.put("max", max.get());
+      result.put("p50", percentile(P50));
+      result.put("p99", percentile(P99));
+      return result;
+    }
+
+    private static int bucketOf(long value) {
+      // Bucket i holds values in [2^(i-1), 2^i), with 0 in bucket 0.
+      return BUCKETS - Long.numberOfLeadingZeros(value);
+    }
+  }
+}
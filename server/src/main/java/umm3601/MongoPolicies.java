@@ -0,0 +1,268 @@
+package umm3601;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+/**
+ * The read preference, write concern, and deadline to use for each kind
+ * of Mongo operation the controllers perform.
+ *
+ * Operations are named `<collection>.<kind>`, e.g., `todos.list` or
+ * `users.delete`. By default:
+ *
+ * - List and summary reads (`*.list`) use `MONGO_LIST_READ_PREFERENCE`
+ *   (default `primary`), with `MONGO_MAX_STALENESS_SECONDS` applied if it's
+ *   set and the preference allows secondaries.
+ * - Lookups by id (`*.get`) always go to the primary, so reading a todo
+ *   right after adding it works.
+ * - Writes (`*.insert`, `*.delete`, ...) use `MONGO_WRITE_CONCERN`
+ *   (default `acknowledged`).
+ * - List reads have to finish within `MONGO_LIST_MAX_TIME_MS` (default
+ *   10 seconds) and lookups by id within `MONGO_GET_MAX_TIME_MS` (default
+ *   2 seconds); other operations have no deadline. 0 means no deadline.
+ * - List reads are hedged (see `HedgedReads`) only if `MONGO_HEDGE_READS`
+ *   is `true` and their read preference lets them go to more than one
+ *   member (`secondary`, `secondaryPreferred`, or `nearest`); the second
+ *   copy uses the same read preference, including its maximum staleness.
+ *   A read is hedged once it's taken longer than `MONGO_HEDGE_QUANTILE`
+ *   (default 0.95) of the recent reads of its kind, or
+ *   `MONGO_HEDGE_MIN_DELAY_MS` (default 10), if that's longer. Reads with
+ *   a deadline or that may be hedged run on at most `MONGO_READ_THREADS`
+ *   (default 32) threads of their own.
+ * - Identical list reads that are in flight at the same time are
+ *   coalesced into one (see `SingleFlight`) unless `MONGO_COALESCE_READS`
+ *   is `false`.
+ *
+ * Any single operation can be overridden with `MONGO_READ_PREFERENCE_<OP>`,
+ * `MONGO_WRITE_CONCERN_<OP>`, `MONGO_MAX_TIME_MS_<OP>`,
+ * `MONGO_HEDGE_READS_<OP>`, or `MONGO_COALESCE_READS_<OP>`, where `<OP>` is the operation name in upper
+ * case with the dot replaced by an underscore (e.g.,
+ * `MONGO_READ_PREFERENCE_TODOS_LIST=secondaryPreferred`).
+ */
+public class MongoPolicies {
+
+  private static final String LIST_SUFFIX = ".list";
+  private static final String GET_SUFFIX = ".get";
+  private static final String DEFAULT_LIST_MAX_TIME_MS = "10000";
+  private static final String DEFAULT_GET_MAX_TIME_MS = "2000";
+  private static final String DEFAULT_HEDGE_QUANTILE = "0.95";
+  private static final String DEFAULT_HEDGE_MIN_DELAY_MS = "10";
+  private static final String DEFAULT_READ_THREADS = "32";
+  // The read preferences that can send two copies of a read to different
+  // members
+  private static final Set<String> HEDGEABLE = Set.of("secondary", "secondaryPreferred", "nearest");
+
+  private final Map<String, String> settings;
+  private final ReadPreference listReadPreference;
+  private final WriteConcern defaultWriteConcern;
+  private final long listMaxTimeMillis;
+  private final long getMaxTimeMillis;
+  private final boolean hedgeReads;
+  private final boolean coalesceReads;
+  private final HedgedReads reads;
+  private final Metrics metrics;
+  private final ConcurrentMap<String, SingleFlight<Object, Object>> flights = new ConcurrentHashMap<>();
+
+  /**
+   * Construct policies from a map of settings, normally the environment.
+   *
+   * @param settings the settings to read, e.g., `System.getenv()`
+   */
+  public MongoPolicies(Map<String, String> settings) {
+    this(settings, new Metrics());
+  }
+
+  /**
+   * Construct policies from a map of settings, normally the environment.
+   *
+   * @param settings the settings to read, e.g., `System.getenv()`
+   * @param metrics where to report how long reads take and how often
+   *   they're hedged, coalesced, or run out of time
+   */
+  public MongoPolicies(Map<String, String> settings, Metrics metrics) {
+    this.settings = settings;
+    this.listReadPreference = parseReadPreference(settings.getOrDefault("MONGO_LIST_READ_PREFERENCE", "primary"));
+    this.defaultWriteConcern = parseWriteConcern(settings.getOrDefault("MONGO_WRITE_CONCERN", "acknowledged"));
+    this.listMaxTimeMillis = Long.parseLong(settings.getOrDefault("MONGO_LIST_MAX_TIME_MS", DEFAULT_LIST_MAX_TIME_MS));
+    this.getMaxTimeMillis = Long.parseLong(settings.getOrDefault("MONGO_GET_MAX_TIME_MS", DEFAULT_GET_MAX_TIME_MS));
+    this.hedgeReads = Boolean.parseBoolean(settings.getOrDefault("MONGO_HEDGE_READS", "false"));
+    this.coalesceReads = Boolean.parseBoolean(settings.getOrDefault("MONGO_COALESCE_READS", "true"));
+    this.metrics = metrics;
+    this.reads = new HedgedReads(this, metrics,
+        Double.parseDouble(settings.getOrDefault("MONGO_HEDGE_QUANTILE", DEFAULT_HEDGE_QUANTILE)),
+        Long.parseLong(settings.getOrDefault("MONGO_HEDGE_MIN_DELAY_MS", DEFAULT_HEDGE_MIN_DELAY_MS)),
+        Integer.parseInt(settings.getOrDefault("MONGO_READ_THREADS", DEFAULT_READ_THREADS)));
+  }
+
+  /**
+   * Policies that use the driver defaults for everything, i.e., the
+   * behavior of a plain `MongoClient`, with no deadlines, hedging, or
+   * coalescing.
+   *
+   * @return the default policies
+   */
+  public static MongoPolicies defaults() {
+    return new MongoPolicies(Map.of("MONGO_LIST_MAX_TIME_MS", "0", "MONGO_GET_MAX_TIME_MS", "0",
+        "MONGO_COALESCE_READS", "false"));
+  }
+
+  /**
+   * The read preference for the named operation.
+   *
+   * @param operation the operation, e.g., `todos.list`
+   * @return the read preference to use
+   */
+  public ReadPreference readPreference(String operation) {
+    String override = settings.get("MONGO_READ_PREFERENCE_" + envSuffix(operation));
+    if (override != null) {
+      return parseReadPreference(override);
+    }
+    return operation.endsWith(LIST_SUFFIX) ? listReadPreference : ReadPreference.primary();
+  }
+
+  /**
+   * The write concern for the named operation.
+   *
+   * @param operation the operation, e.g., `todos.insert`
+   * @return the write concern to use
+   */
+  public WriteConcern writeConcern(String operation) {
+    String override = settings.get("MONGO_WRITE_CONCERN_" + envSuffix(operation));
+    return override != null ? parseWriteConcern(override) : defaultWriteConcern;
+  }
+
+  /**
+   * How long the named operation may take, to pass to Mongo as
+   * `maxTimeMS`.
+   *
+   * @param operation the operation, e.g., `todos.list`
+   * @return the deadline in milliseconds, or 0 for none
+   */
+  public long maxTimeMillis(String operation) {
+    String override = settings.get("MONGO_MAX_TIME_MS_" + envSuffix(operation));
+    if (override != null) {
+      return Long.parseLong(override);
+    }
+    if (operation.endsWith(LIST_SUFFIX)) {
+      return listMaxTimeMillis;
+    }
+    return operation.endsWith(GET_SUFFIX) ? getMaxTimeMillis : 0;
+  }
+
+  /**
+   * Whether slow reads for the named operation are hedged. They never are
+   * if their read preference only allows one member, e.g., `primary`.
+   *
+   * @param operation the operation, e.g., `todos.list`
+   * @return whether to hedge them
+   */
+  public boolean hedged(String operation) {
+    if (!HEDGEABLE.contains(readPreference(operation).getName())) {
+      return false;
+    }
+    String override = settings.get("MONGO_HEDGE_READS_" + envSuffix(operation));
+    if (override != null) {
+      return Boolean.parseBoolean(override);
+    }
+    return hedgeReads && operation.endsWith(LIST_SUFFIX);
+  }
+
+  /**
+   * Whether identical reads for the named operation that are in flight at
+   * the same time are coalesced into one.
+   *
+   * @param operation the operation, e.g., `todos.list`
+   * @return whether to coalesce them
+   */
+  public boolean coalesced(String operation) {
+    String override = settings.get("MONGO_COALESCE_READS_" + envSuffix(operation));
+    if (override != null) {
+      return Boolean.parseBoolean(override);
+    }
+    return coalesceReads && operation.endsWith(LIST_SUFFIX);
+  }
+
+  /**
+   * The read preference for the second copy of a hedged read. It's the
+   * operation's own, so the copy only goes to members the first could
+   * have (no staler than `MONGO_MAX_STALENESS_SECONDS`, for one); the
+   * driver picks one of those at random, so it's usually a different
+   * member than the first copy went to.
+   *
+   * @param operation the operation, e.g., `todos.list`
+   * @return the read preference to hedge with
+   */
+  public ReadPreference hedgePreference(String operation) {
+    return readPreference(operation);
+  }
+
+  /**
+   * Run a read for the named operation, within its deadline, hedging it
+   * if it's slow (see `HedgedReads`).
+   *
+   * @param operation the operation, e.g., `todos.list`
+   * @param read the read, given the read preference to use
+   * @param <T> the type of the answer
+   * @return the answer
+   */
+  public <T> T read(String operation, Function<ReadPreference, T> read) {
+    return reads.read(operation, read);
+  }
+
+  /**
+   * Run a read for the named operation as `read(operation, read)` does,
+   * but if it's coalesced and an identical read (one with an equal key) is
+   * already in flight, wait for that one's answer instead of running it
+   * again. The answer may be shared, so it must not be changed.
+   *
+   * @param operation the operation, e.g., `todos.list`
+   * @param key what identifies the read, e.g., its filter, sort, and
+   *   projection
+   * @param read the read, given the read preference to use
+   * @param <T> the type of the answer
+   * @return the answer
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T read(String operation, Object key, Function<ReadPreference, T> read) {
+    if (!coalesced(operation)) {
+      return read(operation, read);
+    }
+    SingleFlight<Object, Object> flight = flights.computeIfAbsent(operation,
+        op -> new SingleFlight<>(metrics, "mongo." + op));
+    return (T) flight.run(key, () -> read(operation, read));
+  }
+
+  private ReadPreference parseReadPreference(String name) {
+    ReadPreference preference = ReadPreference.valueOf(name);
+    String staleness = settings.get("MONGO_MAX_STALENESS_SECONDS");
+    if (staleness == null || preference.equals(ReadPreference.primary())) {
+      return preference;
+    }
+    return ReadPreference.valueOf(name, List.of(), Long.parseLong(staleness), TimeUnit.SECONDS);
+  }
+
+  private static WriteConcern parseWriteConcern(String name) {
+    // Allow a plain number of nodes (e.g., "2") as well as the named concerns.
+    if (!name.isEmpty() && name.chars().allMatch(Character::isDigit)) {
+      return new WriteConcern(Integer.parseInt(name));
+    }
+    WriteConcern concern = WriteConcern.valueOf(name);
+    if (concern == null) {
+      throw new IllegalArgumentException("Unknown Mongo write concern: " + name);
+    }
+    return concern;
+  }
+
+  private static String envSuffix(String operation) {
+    return operation.toUpperCase(Locale.ROOT).replace('.', '_');
+  }
+}
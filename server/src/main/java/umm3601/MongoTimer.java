@@ -0,0 +1,135 @@
+package umm3601;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+/**
+ * Keeps track of how much time each request has spent waiting on Mongo
+ * commands, so the access log can say how much of a request's time went
+ * to the database.
+ *
+ * The synchronous driver runs commands (and so calls its command
+ * listeners) on the thread that issued them, but that isn't always the
+ * Jetty thread handling the request: shards are asked at once (see
+ * `Shards`), slow reads are hedged (`HedgedReads`), and a read can be
+ * answered by an identical one another request started (`SingleFlight`).
+ * So each request gets a tally, which the access log keeps on its
+ * context, and which is the current thread's while the request is being
+ * handled. Work handed to another thread is wrapped with `carry`, so the
+ * commands it runs count towards the same tally, and `add` credits a
+ * request with Mongo time someone else spent on its behalf.
+ *
+ * Commands run when there's no tally (e.g., by background jobs) aren't
+ * counted anywhere.
+ */
+public class MongoTimer implements CommandListener {
+
+  private static final ThreadLocal<LongAdder> CURRENT = new ThreadLocal<>();
+
+  /**
+   * Start a new tally for the current thread, e.g., at the start of a
+   * request.
+   *
+   * @return the tally, to keep with the request
+   */
+  public static LongAdder begin() {
+    LongAdder tally = new LongAdder();
+    CURRENT.set(tally);
+    return tally;
+  }
+
+  /**
+   * Stop counting for the current thread, e.g., at the end of a request.
+   */
+  public static void end() {
+    CURRENT.remove();
+  }
+
+  /**
+   * The time the current thread's request has spent in Mongo commands,
+   * on any thread, since `begin()`.
+   *
+   * @return the elapsed time in nanoseconds, or 0 if there's no tally
+   */
+  public static long elapsedNanos() {
+    LongAdder tally = CURRENT.get();
+    return tally == null ? 0 : tally.sum();
+  }
+
+  /**
+   * Credit the current thread's request with Mongo time spent for it
+   * elsewhere.
+   *
+   * @param nanos the time in nanoseconds
+   */
+  public static void add(long nanos) {
+    LongAdder tally = CURRENT.get();
+    if (tally != null) {
+      tally.add(nanos);
+    }
+  }
+
+  /**
+   * Wrap work that's going to run on another thread so its Mongo
+   * commands count towards the current thread's request.
+   *
+   * @param work the work
+   * @param <T> the type of its answer
+   * @return the wrapped work
+   */
+  public static <T> Supplier<T> carry(Supplier<T> work) {
+    LongAdder tally = CURRENT.get();
+    if (tally == null) {
+      return work;
+    }
+    return () -> {
+      LongAdder previous = CURRENT.get();
+      CURRENT.set(tally);
+      try {
+        return work.get();
+      } finally {
+        if (previous == null) {
+          CURRENT.remove();
+        } else {
+          CURRENT.set(previous);
+        }
+      }
+    };
+  }
+
+  /**
+   * Wrap work that's going to run on another thread so its Mongo
+   * commands count towards the current thread's request.
+   *
+   * @param work the work
+   * @return the wrapped work
+   */
+  public static Runnable carry(Runnable work) {
+    Supplier<Void> carried = carry(() -> {
+      work.run();
+      return null;
+    });
+    return carried::get;
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event) {
+    // Nothing to do until it finishes
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event) {
+    add(event.getElapsedTime(TimeUnit.NANOSECONDS));
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+    add(event.getElapsedTime(TimeUnit.NANOSECONDS));
+  }
+}
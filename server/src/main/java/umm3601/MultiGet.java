@@ -0,0 +1,178 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.bson.types.ObjectId;
+import org.mongojack.JacksonMongoCollection;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpCode;
+
+/**
+ * Fetches many documents by id in one call, for `GET /api/todos?ids=...`
+ * and `POST /api/todos/_mget` (and the same for users).
+ *
+ * All the ids go to Mongo as a single `$in` query, less any that are in
+ * the `IdCache` (if there is one). If the collection is split across
+ * shards (see `Shards`), the query goes to all of them at once, since the
+ * ids don't say which shard a document is on. The response has one entry per
+ * requested id, in the order they were asked for, each either with the
+ * document or with why there isn't one:
+ *
+ *     {"results": [
+ *       {"id": "...", "found": true, "todo": {...}},
+ *       {"id": "...", "found": false, "error": "The requested todo was not found"}
+ *     ]}
+ *
+ * @param <T> the type of the documents
+ */
+public class MultiGet<T> {
+
+  public static final int MAX_IDS = 1000;
+
+  private final String noun;
+  private final Shards shards;
+  private final List<JacksonMongoCollection<T>> collections;
+  private final Function<T, String> idOf;
+  private final IdCache<T> cache;
+
+  /**
+   * Construct a multi-get for a collection.
+   *
+   * @param noun what the documents are called in responses and errors,
+   *   e.g., "todo"
+   * @param collection the collection to read from
+   * @param idOf how to get a document's id
+   * @param cache the cache to read through, or `null` for none
+   */
+  public MultiGet(String noun, JacksonMongoCollection<T> collection, Function<T, String> idOf, IdCache<T> cache) {
+    this(noun, new Shards(1), List.of(collection), idOf, cache);
+  }
+
+  /**
+   * Construct a multi-get for a collection that's split across shards.
+   *
+   * @param noun what the documents are called in responses and errors,
+   *   e.g., "todo"
+   * @param shards the shards
+   * @param collections the collection on each shard, in shard order
+   * @param idOf how to get a document's id
+   * @param cache the cache to read through, or `null` for none
+   */
+  public MultiGet(String noun, Shards shards, List<JacksonMongoCollection<T>> collections, Function<T, String> idOf,
+      IdCache<T> cache) {
+    this.noun = noun;
+    this.shards = shards;
+    this.collections = collections;
+    this.idOf = idOf;
+    this.cache = cache;
+  }
+
+  /**
+   * Respond with the documents whose ids are in the comma-separated `ids`
+   * query parameter.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void fromQuery(Context ctx) {
+    respond(ctx, Arrays.asList(ctx.queryParam("ids").split(",", -1)));
+  }
+
+  /**
+   * Respond with the documents whose ids are in the request body, as
+   * `{"ids": [...]}`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void fromBody(Context ctx) {
+    Request request = ctx.bodyValidator(Request.class)
+        .check(r -> r.ids != null, "The request must have a list of ids")
+        .get();
+    respond(ctx, request.ids);
+  }
+
+  private void respond(Context ctx, List<String> ids) {
+    if (ids.size() > MAX_IDS) {
+      throw new BadRequestResponse("Can't get more than " + MAX_IDS + " " + noun + "s at once");
+    }
+    ctx.status(HttpCode.OK);
+    ctx.json(Map.of("results", get(ids)));
+  }
+
+  /**
+   * Look up documents by id.
+   *
+   * @param ids the ids to look up
+   * @return one entry per id, in the same order
+   */
+  public List<Map<String, Object>> get(List<String> ids) {
+    Map<String, T> found = new HashMap<>();
+    Set<ObjectId> misses = new LinkedHashSet<>();
+    for (String id : ids) {
+      if (isValid(id)) {
+        ObjectId objectId = new ObjectId(id);
+        T cached = cache == null ? null : cache.get(objectId.toHexString());
+        if (cached != null) {
+          found.put(objectId.toHexString(), cached);
+        } else {
+          misses.add(objectId);
+        }
+      }
+    }
+    if (!misses.isEmpty()) {
+      long stamp = cache == null ? 0 : cache.stamp();
+      List<List<T>> fromShards = shards.fanOut(shards.all(),
+          shard -> collections.get(shard).find(in("_id", misses)).into(new ArrayList<>()));
+      for (List<T> documents : fromShards) {
+        for (T document : documents) {
+          String id = idOf.apply(document);
+          found.put(id, document);
+          if (cache != null) {
+            cache.put(id, document, stamp);
+          }
+        }
+      }
+    }
+
+    List<Map<String, Object>> results = new ArrayList<>(ids.size());
+    for (String id : ids) {
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("id", id);
+      T document = isValid(id) ? found.get(new ObjectId(id).toHexString()) : null;
+      result.put("found", document != null);
+      if (document != null) {
+        result.put(noun, document);
+      } else if (isValid(id)) {
+        result.put("error", "The requested " + noun + " was not found");
+      } else {
+        result.put("error", "The requested " + noun + " id wasn't a legal Mongo Object ID.");
+      }
+      results.add(result);
+    }
+    return results;
+  }
+
+  // `ObjectId.isValid` throws on `null`, which a `_mget` body can have
+  private static boolean isValid(String id) {
+    return id != null && ObjectId.isValid(id);
+  }
+
+  /**
+   * The body of a `_mget` request.
+   */
+  @SuppressWarnings({"VisibilityModifier"})
+  public static class Request {
+    public List<String> ids;
+  }
+}
@@ -0,0 +1,254 @@
+package umm3601;
+
+import static com.mongodb.client.model.Accumulators.sum;
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Filters.regex;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+import com.mongodb.client.MongoCollection;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+/**
+ * An in-memory, sorted index of the distinct values of one field (e.g.,
+ * a todo's `owner`), keyed by their case-folded form, so we can answer
+ * "which values start with `fr`, ignoring case?" without asking Mongo.
+ * That's what answers autocomplete (`/api/todos/owners?prefix=fr`).
+ *
+ * Each value is reference counted, so it goes away when the last
+ * document with it is deleted. The index is loaded from Mongo the first
+ * time it's used, and then kept up to date by the controller that owns
+ * it calling `add` and `remove` as it writes. If it's ever unsure it errs
+ * on the side of keeping a value around.
+ *
+ * Only this server's writes (and those other servers announce; see
+ * `InvalidationBus`) reach the index, so it can miss values written some
+ * other way, e.g., by `mongoimport`. That's fine for suggestions, but
+ * not for deciding what a filter matches, so the prefix filters
+ * (`prefixFilter`) are always answered by Mongo.
+ */
+public class PrefixIndex {
+
+  // Separates the folded value from the original in the map's keys. It
+  // sorts before every other character, so all the originals of a folded
+  // value are together.
+  private static final char SEPARATOR = '\u0000';
+
+  private final String field;
+  private final List<MongoCollection<Document>> collections;
+  private final ConcurrentLinkedQueue<Map.Entry<String, Integer>> pendingDuringLoad = new ConcurrentLinkedQueue<>();
+  // Held while reading from Mongo, so only one load runs at a time
+  private final Object loadLock = new Object();
+
+  private volatile ConcurrentSkipListMap<String, Integer> values;
+  private volatile boolean loading;
+
+  /**
+   * Construct an index of a field's values. Nothing is read from Mongo
+   * until the index is first used.
+   *
+   * @param collection the collection to load the values from
+   * @param field the name of the field to index
+   */
+  public PrefixIndex(MongoCollection<Document> collection, String field) {
+    this(List.of(collection), field);
+  }
+
+  /**
+   * Construct an index of a field's values across all the shards of a
+   * collection (see `Shards`). Nothing is read from Mongo until the index
+   * is first used.
+   *
+   * @param collections the collection on each shard
+   * @param field the name of the field to index
+   */
+  public PrefixIndex(List<MongoCollection<Document>> collections, String field) {
+    this.collections = collections;
+    this.field = field;
+  }
+
+  /**
+   * Fold a value for case-insensitive comparison: Unicode-normalize it
+   * (so, e.g., the "ﬁ" ligature matches "fi") and lowercase it.
+   *
+   * @param value the value to fold
+   * @return the folded value
+   */
+  public static String fold(String value) {
+    return Normalizer.normalize(value, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Up to `limit` distinct values that start with `prefix`, ignoring case,
+   * in order.
+   *
+   * @param prefix the prefix to look for
+   * @param limit the most values to return
+   * @return the matching values
+   */
+  public List<String> complete(String prefix, int limit) {
+    List<String> matches = new ArrayList<>();
+    for (String key : range(fold(prefix)).keySet()) {
+      if (matches.size() >= limit) {
+        break;
+      }
+      matches.add(original(key));
+    }
+    return matches;
+  }
+
+  /**
+   * A filter matching documents whose field starts with `prefix`, ignoring
+   * case, where the documents also store a folded "shadow" copy of the
+   * field (e.g., `ownerFolded`, which is `fold(owner)`).
+   *
+   * Mostly, that's an anchored, case-sensitive regex on the shadow field,
+   * which Mongo answers with a range scan of its index. But documents can
+   * arrive without a shadow field at any time (e.g., from `mongoimport`,
+   * or a server that predates them), and not only before a backfill has
+   * finished, so those are matched on the field itself with an anchored
+   * case-insensitive regex. That part uses the shadow field's index too,
+   * to find the documents without one.
+   *
+   * @param field the name of the field
+   * @param shadowField the name of the field with the folded values
+   * @param prefix the prefix to look for
+   * @return the filter
+   */
+  public static Bson prefixFilter(String field, String shadowField, String prefix) {
+    return or(
+        regex(shadowField, "^" + Pattern.quote(fold(prefix))),
+        and(exists(shadowField, false), regex(field, "^" + Pattern.quote(prefix), "i")));
+  }
+
+  /**
+   * Record that a document with this value was written.
+   *
+   * @param value the document's value of the field
+   */
+  public void add(String value) {
+    if (value != null) {
+      update(value, 1);
+    }
+  }
+
+  /**
+   * Record that a document with this value was deleted.
+   *
+   * @param value the deleted document's value of the field
+   */
+  public void remove(String value) {
+    if (value != null) {
+      update(value, -1);
+    }
+  }
+
+  /**
+   * (Re)load the index from Mongo.
+   */
+  public void load() {
+    synchronized (loadLock) {
+      reload();
+    }
+  }
+
+  // Read the values from Mongo without holding our monitor, so writes
+  // can still `add` and `remove` meanwhile; the caller holds `loadLock`.
+  private ConcurrentSkipListMap<String, Integer> reload() {
+    ConcurrentSkipListMap<String, Integer> loaded = new ConcurrentSkipListMap<>();
+    synchronized (this) {
+      loading = true;
+      pendingDuringLoad.clear();
+    }
+    for (MongoCollection<Document> collection : collections) {
+      for (Document distinct : collection.aggregate(List.of(group("$" + field, sum("count", 1))))) {
+        Object value = distinct.get("_id");
+        if (value instanceof String) {
+          loaded.merge(key((String) value), distinct.getInteger("count"), Integer::sum);
+        }
+      }
+    }
+    synchronized (this) {
+      // Writes that happened while we were reading might or might not
+      // have been counted already; replaying them can only over-count,
+      // which just keeps a value around a bit longer than needed.
+      for (Map.Entry<String, Integer> change : pendingDuringLoad) {
+        apply(loaded, change.getKey(), change.getValue());
+      }
+      pendingDuringLoad.clear();
+      values = loaded;
+      loading = false;
+    }
+    return loaded;
+  }
+
+  /**
+   * Forget the values, so they're loaded from Mongo again the next time
+   * the index is used, e.g., because documents may have been written by
+   * another server without us hearing about it.
+   */
+  public synchronized void unload() {
+    values = null;
+  }
+
+  private synchronized void update(String value, int delta) {
+    if (loading) {
+      pendingDuringLoad.add(Map.entry(value, delta));
+    }
+    if (values != null) {
+      apply(values, value, delta);
+    }
+  }
+
+  private static void apply(ConcurrentSkipListMap<String, Integer> map, String value, int delta) {
+    if (delta > 0) {
+      map.merge(key(value), delta, Integer::sum);
+    } else {
+      map.computeIfPresent(key(value), (k, count) -> count + delta > 0 ? count + delta : null);
+    }
+  }
+
+  private NavigableMap<String, Integer> range(String foldedPrefix) {
+    ConcurrentSkipListMap<String, Integer> current = values;
+    if (current == null) {
+      synchronized (loadLock) {
+        current = values;
+        if (current == null) {
+          current = reload();
+        }
+      }
+    }
+    return current.subMap(foldedPrefix, true, foldedPrefix + Character.MAX_VALUE, false);
+  }
+
+  private static String key(String value) {
+    return fold(value) + SEPARATOR + value;
+  }
+
+  private static String original(String key) {
+    return key.substring(key.indexOf(SEPARATOR) + 1);
+  }
+
+  /**
+   * The number of distinct values in the index, for metrics.
+   *
+   * @return the number of distinct values, or 0 if it hasn't been loaded
+   */
+  public int size() {
+    Map<String, Integer> current = values;
+    return current == null ? 0 : current.size();
+  }
+}
@@ -0,0 +1,450 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.nor;
+import static com.mongodb.client.model.Filters.or;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * A small query language for the `q` parameter of the list endpoints, for
+ * filters the other parameters can't express, like an OR:
+ *
+ *     status:false AND (category:homework OR category:groceries)
+ *
+ * A query is comparisons joined with `AND`, `OR`, and `NOT` (`AND` binds
+ * tighter than `OR`), with parentheses for grouping. A comparison is one of
+ *
+ *  - `field:value`, an exact match
+ *  - `field>value`, `field>=value`, `field<value`, or `field<=value`
+ *  - `field:low..high`, a range including both ends
+ *  - `field in (a, b, c)`, any of the values
+ *
+ * Values are single words, or double-quoted (with `\"` for a quote) if
+ * they have spaces, parentheses, colons, or the like in them. Keywords
+ * aren't case-sensitive. Each collection says which of its fields can be
+ * queried, and as what type; anything else is a `400 Bad Request`, as is
+ * nesting `NOT`s and parentheses more than `MAX_DEPTH` deep.
+ *
+ * Unlike the list endpoints' own parameters (e.g., `owner=fr`, which
+ * matches "Fry" and "fred"), string comparisons here are exact and
+ * case-sensitive: `owner:Fry` doesn't match "fry", and `owner>F` compares
+ * the way Mongo does. That keeps `:`, `in`, and ranges consistent with
+ * each other, and lets them use ordinary indexes.
+ *
+ * `createdAt` compares the time in the `_id` (see `CreationTime`). Its
+ * values are days (`2022-02-01`) or times (`"2022-02-01T09:30:00Z"`),
+ * which stand for the whole day or second: `createdAt:2022-02-01` is
+ * anything added that day, and `createdAt>2022-02-01` anything after it.
+ *
+ * Queries compile to a Mongo filter. The most recently used plans are
+ * kept by their text, so a query that's repeated, as a dashboard's are,
+ * is only parsed once.
+ */
+public class QueryLanguage {
+
+  /**
+   * The types of values a field can be queried with.
+   */
+  public enum Type {
+    STRING, BOOLEAN, INTEGER, ID, CREATED
+  }
+
+  public static final int DEFAULT_PLANS = 256;
+  public static final int MAX_QUERY_LENGTH = 2000;
+  // How deep `NOT`s and parentheses can nest, well short of both our stack
+  // and Mongo's limit of 100 levels of nested documents
+  public static final int MAX_DEPTH = 20;
+
+  private static final int INITIAL_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private final String noun;
+  private final Map<String, Type> fields;
+  private final int capacity;
+  private final LinkedHashMap<String, Bson> plans;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Construct the query language for a collection.
+   *
+   * @param noun what the documents are called in errors, e.g., "todos"
+   * @param fields the fields that can be queried, and their types
+   */
+  public QueryLanguage(String noun, Map<String, Type> fields) {
+    this(noun, fields, DEFAULT_PLANS);
+  }
+
+  /**
+   * Construct the query language for a collection.
+   *
+   * @param noun what the documents are called in errors, e.g., "todos"
+   * @param fields the fields that can be queried, and their types
+   * @param capacity the most compiled queries to keep
+   */
+  public QueryLanguage(String noun, Map<String, Type> fields, int capacity) {
+    this.noun = noun;
+    this.fields = fields;
+    this.capacity = capacity;
+    this.plans = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Bson> eldest) {
+        return size() > QueryLanguage.this.capacity;
+      }
+    };
+  }
+
+  /**
+   * Compile a query to a Mongo filter, or find it already compiled.
+   *
+   * @param query the query
+   * @return the filter
+   * @throws BadRequestResponse if the query isn't legal
+   */
+  public Bson compile(String query) {
+    synchronized (plans) {
+      Bson plan = plans.get(query);
+      if (plan != null) {
+        hits.increment();
+        return plan;
+      }
+    }
+    misses.increment();
+    if (query.length() > MAX_QUERY_LENGTH) {
+      throw new BadRequestResponse("Queries can't be longer than " + MAX_QUERY_LENGTH + " characters");
+    }
+    Bson plan = new Parser(query).query();
+    synchronized (plans) {
+      plans.put(query, plan);
+    }
+    return plan;
+  }
+
+  /**
+   * How many compiled queries are kept.
+   *
+   * @return the number of queries
+   */
+  public int size() {
+    synchronized (plans) {
+      return plans.size();
+    }
+  }
+
+  public long hits() {
+    return hits.sum();
+  }
+
+  public long misses() {
+    return misses.sum();
+  }
+
+  /**
+   * A recursive descent parser for one query, which compiles it as it
+   * goes.
+   */
+  private final class Parser {
+    private final String text;
+    private final List<Token> tokens;
+    private int next;
+    private int depth;
+
+    Parser(String text) {
+      this.text = text;
+      this.tokens = tokenize(text);
+    }
+
+    Bson query() {
+      if (peek().kind == Kind.END) {
+        throw error("Empty query", peek());
+      }
+      Bson filter = disjunction();
+      if (peek().kind != Kind.END) {
+        throw error("Expected AND, OR, or the end of the query", peek());
+      }
+      return filter;
+    }
+
+    private Bson disjunction() {
+      List<Bson> terms = new ArrayList<>(List.of(conjunction()));
+      while (keyword("OR")) {
+        terms.add(conjunction());
+      }
+      return terms.size() == 1 ? terms.get(0) : or(terms);
+    }
+
+    private Bson conjunction() {
+      List<Bson> terms = new ArrayList<>(List.of(negation()));
+      while (keyword("AND")) {
+        terms.add(negation());
+      }
+      return terms.size() == 1 ? terms.get(0) : and(terms);
+    }
+
+    private Bson negation() {
+      Token start = peek();
+      if (keyword("NOT")) {
+        nest(start);
+        Bson negated = nor(negation());
+        depth--;
+        return negated;
+      }
+      if (start.kind == Kind.OPEN) {
+        next++;
+        nest(start);
+        Bson inner = disjunction();
+        expect(Kind.CLOSE, "Expected )");
+        depth--;
+        return inner;
+      }
+      return comparison();
+    }
+
+    private void nest(Token at) {
+      if (++depth > MAX_DEPTH) {
+        throw error("NOT and parentheses can't be nested more than " + MAX_DEPTH + " deep", at);
+      }
+    }
+
+    private Bson comparison() {
+      Token name = expect(Kind.WORD, "Expected a field name");
+      Type type = fields.get(name.text);
+      if (type == null) {
+        throw error(capitalize(noun) + " don't have a field named " + name.text + " that can be queried", name);
+      }
+      String field = type == Type.CREATED ? "_id" : name.text;
+
+      if (keyword("IN")) {
+        expect(Kind.OPEN, "Expected ( after in");
+        List<Token> values = new ArrayList<>(List.of(value()));
+        while (peek().kind == Kind.COMMA) {
+          next++;
+          values.add(value());
+        }
+        expect(Kind.CLOSE, "Expected , or )");
+        if (type == Type.CREATED) {
+          List<Bson> days = new ArrayList<>();
+          for (Token value : values) {
+            days.add(between(field, type, value, value));
+          }
+          return or(days);
+        }
+        List<Object> converted = new ArrayList<>();
+        for (Token value : values) {
+          converted.add(convert(type, value));
+        }
+        return in(field, converted);
+      }
+
+      Token operator = expect(Kind.OPERATOR, "Expected :, >, >=, <, <=, or in after " + name.text);
+      Token value = value();
+      if (operator.text.equals(":")) {
+        if (peek().kind == Kind.RANGE) {
+          next++;
+          return between(field, type, value, value());
+        }
+        return type == Type.CREATED ? between(field, type, value, value) : eq(field, convert(type, value));
+      }
+      if (type == Type.BOOLEAN) {
+        throw error(name.text + " can only be compared with : or in", operator);
+      }
+      if (type == Type.CREATED) {
+        // A day or time stands for all of it; see the class comment
+        switch (operator.text) {
+          case ">":
+            return gte(field, CreationTime.firstIdAt(interval(value)[1]));
+          case ">=":
+            return gte(field, CreationTime.firstIdAt(interval(value)[0]));
+          case "<":
+            return lt(field, CreationTime.firstIdAt(interval(value)[0]));
+          default:
+            return lt(field, CreationTime.firstIdAt(interval(value)[1]));
+        }
+      }
+      Object converted = convert(type, value);
+      switch (operator.text) {
+        case ">":
+          return gt(field, converted);
+        case ">=":
+          return gte(field, converted);
+        case "<":
+          return lt(field, converted);
+        default:
+          return lte(field, converted);
+      }
+    }
+
+    private Bson between(String field, Type type, Token low, Token high) {
+      if (type == Type.BOOLEAN) {
+        throw error("Booleans don't have ranges", low);
+      }
+      if (type == Type.CREATED) {
+        return and(gte(field, CreationTime.firstIdAt(interval(low)[0])),
+            lt(field, CreationTime.firstIdAt(interval(high)[1])));
+      }
+      return and(gte(field, convert(type, low)), lte(field, convert(type, high)));
+    }
+
+    // The start and end of the day or second a `createdAt` value stands for
+    private Instant[] interval(Token value) {
+      Instant start;
+      try {
+        start = CreationTime.parse(CreationTime.CREATED_AT, value.text);
+      } catch (BadRequestResponse e) {
+        throw error(e.getMessage(), value);
+      }
+      boolean day = value.text.indexOf('T') < 0;
+      Instant end = day
+          ? start.atOffset(ZoneOffset.UTC).plusDays(1).toInstant()
+          : Instant.ofEpochSecond(start.getEpochSecond() + 1);
+      return new Instant[] {start, end};
+    }
+
+    private Object convert(Type type, Token value) {
+      switch (type) {
+        case BOOLEAN:
+          if (value.text.equals("true") || value.text.equals("false")) {
+            return Boolean.parseBoolean(value.text);
+          }
+          throw error("Expected true or false", value);
+        case INTEGER:
+          try {
+            return Integer.parseInt(value.text);
+          } catch (NumberFormatException e) {
+            throw error("Expected a whole number", value);
+          }
+        case ID:
+          if (ObjectId.isValid(value.text)) {
+            return new ObjectId(value.text);
+          }
+          throw error("Expected a Mongo Object ID", value);
+        default:
+          return value.text;
+      }
+    }
+
+    private Token value() {
+      Token value = peek();
+      if (value.kind != Kind.WORD && value.kind != Kind.QUOTED) {
+        throw error("Expected a value", value);
+      }
+      next++;
+      return value;
+    }
+
+    private boolean keyword(String word) {
+      Token token = peek();
+      if (token.kind == Kind.WORD && token.text.equalsIgnoreCase(word)) {
+        next++;
+        return true;
+      }
+      return false;
+    }
+
+    private Token expect(Kind kind, String message) {
+      Token token = peek();
+      if (token.kind != kind) {
+        throw error(message, token);
+      }
+      next++;
+      return token;
+    }
+
+    private Token peek() {
+      return tokens.get(next);
+    }
+
+    private BadRequestResponse error(String message, Token at) {
+      return new BadRequestResponse(message + " at position " + (at.position + 1) + " of the query: " + text);
+    }
+
+    private List<Token> tokenize(String query) {
+      List<Token> found = new ArrayList<>();
+      int i = 0;
+      while (i < query.length()) {
+        char c = query.charAt(i);
+        int start = i;
+        if (Character.isWhitespace(c)) {
+          i++;
+        } else if (c == '(' || c == ')' || c == ',') {
+          found.add(new Token(c == '(' ? Kind.OPEN : c == ')' ? Kind.CLOSE : Kind.COMMA, String.valueOf(c), i));
+          i++;
+        } else if (c == ':' || c == '<' || c == '>') {
+          i += c != ':' && i + 1 < query.length() && query.charAt(i + 1) == '=' ? 2 : 1;
+          found.add(new Token(Kind.OPERATOR, query.substring(start, i), start));
+        } else if (query.startsWith("..", i)) {
+          found.add(new Token(Kind.RANGE, "..", i));
+          i += 2;
+        } else if (c == '"') {
+          StringBuilder value = new StringBuilder();
+          i++;
+          while (i < query.length() && query.charAt(i) != '"') {
+            if (query.charAt(i) == '\\' && i + 1 < query.length()) {
+              i++;
+            }
+            value.append(query.charAt(i));
+            i++;
+          }
+          if (i >= query.length()) {
+            throw error("Unclosed quote", new Token(Kind.END, "", start));
+          }
+          i++;
+          found.add(new Token(Kind.QUOTED, value.toString(), start));
+        } else {
+          while (i < query.length() && isWordChar(query.charAt(i)) && !query.startsWith("..", i)) {
+            i++;
+          }
+          if (i == start) {
+            throw error("Unexpected " + c, new Token(Kind.END, "", start));
+          }
+          found.add(new Token(Kind.WORD, query.substring(start, i), start));
+        }
+      }
+      found.add(new Token(Kind.END, "", query.length()));
+      return found;
+    }
+  }
+
+  private static boolean isWordChar(char c) {
+    return !Character.isWhitespace(c) && "():,<>\"".indexOf(c) < 0;
+  }
+
+  private static String capitalize(String word) {
+    return word.isEmpty() ? word : word.substring(0, 1).toUpperCase(Locale.ROOT) + word.substring(1);
+  }
+
+  private enum Kind {
+    WORD, QUOTED, OPERATOR, RANGE, OPEN, CLOSE, COMMA, END
+  }
+
+  private static final class Token {
+    private final Kind kind;
+    private final String text;
+    private final int position;
+
+    Token(Kind kind, String text, int position) {
+      this.kind = kind;
+      this.text = text;
+      this.position = position;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package umm3601;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, lock-free, multi-producer/single-consumer ring buffer.
+ *
+ * Producers never block: `offer` claims a slot with a compare-and-set on
+ * the tail, and if the buffer is full it just returns `false`. Each slot
+ * has a sequence number that the producer sets after writing the slot,
+ * which is how the (single) consumer knows the slot is ready to read.
+ *
+ * @param <T> the type of the elements
+ */
+public class RingBuffer<T> {
+
+  private final int mask;
+  private final AtomicReferenceArray<T> slots;
+  private final AtomicLongArray published;
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong head = new AtomicLong();
+
+  /**
+   * Construct a ring buffer.
+   *
+   * @param capacity the number of elements the buffer can hold; rounded up
+   *   to a power of two
+   */
+  public RingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    this.mask = size - 1;
+    this.slots = new AtomicReferenceArray<>(size);
+    this.published = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      // Slot i is first written by the producer that claims position i
+      published.set(i, i - size);
+    }
+  }
+
+  /**
+   * Add an element if there's room. Safe to call from any thread.
+   *
+   * @param element the element to add
+   * @return whether the element was added
+   */
+  public boolean offer(T element) {
+    while (true) {
+      long position = tail.get();
+      if (position - head.get() > mask) {
+        return false;
+      }
+      if (tail.compareAndSet(position, position + 1)) {
+        int slot = (int) position & mask;
+        slots.set(slot, element);
+        published.set(slot, position);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Hand up to `max` ready elements to `consumer`, in order. Must only be
+   * called from one thread at a time.
+   *
+   * @param consumer what to do with each element
+   * @param max the most elements to drain
+   * @return the number of elements drained
+   */
+  public int drain(Consumer<? super T> consumer, int max) {
+    long position = head.get();
+    int drained = 0;
+    while (drained < max) {
+      int slot = (int) position & mask;
+      if (published.get(slot) != position) {
+        break;
+      }
+      T element = slots.get(slot);
+      slots.set(slot, null);
+      position++;
+      head.lazySet(position);
+      drained++;
+      consumer.accept(element);
+    }
+    return drained;
+  }
+
+  /**
+   * The number of elements waiting to be drained (approximately, if other
+   * threads are adding elements).
+   *
+   * @return the number of elements in the buffer
+   */
+  public int size() {
+    return (int) Math.max(0, tail.get() - head.get());
+  }
+
+  /**
+   * The number of elements the buffer can hold.
+   *
+   * @return the capacity
+   */
+  public int capacity() {
+    return mask + 1;
+  }
+}
@@ -1,45 +1,157 @@
 package umm3601;
 
-import java.util.Arrays;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import com.mongodb.ConnectionString;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.MongoExecutionTimeoutException;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.event.CommandListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import io.javalin.Javalin;
 import io.javalin.core.util.RouteOverviewPlugin;
-import io.javalin.http.InternalServerErrorResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpCode;
+import io.javalin.http.ServiceUnavailableResponse;
 import umm3601.user.UserController;
+import umm3601.todo.TodoChangeFeed;
 import umm3601.todo.TodoController;
+import umm3601.todo.TodoInsertBatcher;
 
 public class Server {
 
-  private static final int PORT_NUMBER = 4567;
+  private static final Logger LOGGER = LoggerFactory.getLogger(Server.class);
+
+  private static final String UNAVAILABLE = "The database is unavailable right now, please try again shortly";
+
+  private static final int DEFAULT_PORT = 4567;
+
+  // How many events a `/api/todos/stream` subscriber can fall behind
+  // before we drop them and tell it to resync.
+  private static final int DEFAULT_FEED_BUFFER = 256;
+
+  // The most todos written in one `insertMany` when insert batching is on.
+  private static final int DEFAULT_INSERT_BATCH_SIZE = 100;
+
+  // Defaults for the adaptive concurrency limits on each group of routes;
+  // see `AdmissionControl`.
+  private static final int DEFAULT_ADMISSION_INITIAL_LIMIT = 20;
+  private static final int DEFAULT_ADMISSION_MAX_LIMIT = 200;
+  private static final int DEFAULT_ADMISSION_QUEUE_SIZE = 50;
+  private static final long DEFAULT_ADMISSION_QUEUE_TIMEOUT_MS = 100;
+  private static final long DEFAULT_ADMISSION_LATENCY_TARGET_MS = 250;
+
+  // Access log rotation and buffering defaults; see `AccessLog`.
+  private static final long DEFAULT_ACCESS_LOG_MAX_BYTES = 10L * 1024 * 1024;
+  private static final int DEFAULT_ACCESS_LOG_FILES = 5;
+  private static final int DEFAULT_ACCESS_LOG_BUFFER = 8192;
+
+  // Finds slower than this are recorded by the `SlowQueryProfiler`, and
+  // each slow query shape is re-explained at most this often.
+  private static final long DEFAULT_SLOW_QUERY_THRESHOLD_MS = 100;
+  private static final long DEFAULT_SLOW_QUERY_EXPLAIN_INTERVAL_MS = 60_000;
+  private static final int DEFAULT_SLOW_QUERY_LIMIT = 20;
+
+  // How fast the shadow field migrations go; see `ShadowFieldMigration`.
+  private static final int DEFAULT_MIGRATION_BATCH_SIZE = 500;
+  private static final long DEFAULT_MIGRATION_PAUSE_MS = 100;
+
+  // How long a cached todo or user is trusted; see `IdCache`.
+  private static final long DEFAULT_ID_CACHE_TTL_MS = 30_000;
+
+  // How many rounds of requests to warm up with, and the longest to spend
+  // on it, before `/api/ready` says we're ready; see `WarmUp`.
+  private static final int DEFAULT_WARM_UP_ITERATIONS = 200;
+  private static final long DEFAULT_WARM_UP_MAX_MS = 60_000;
+
+  // How many requests in a row have to fail because Mongo is unhealthy
+  // before we stop sending it any, and for how long; see `CircuitBreaker`.
+  private static final int DEFAULT_BREAKER_FAILURES = 5;
+  private static final long DEFAULT_BREAKER_OPEN_MS = 5_000;
+
+  // How big the capped collection of cache invalidations is, and how far
+  // behind it a server can fall before flushing its caches instead; see
+  // `InvalidationBus`.
+  private static final long DEFAULT_INVALIDATION_BYTES = 4L * 1024 * 1024;
+  private static final long DEFAULT_INVALIDATION_MAX_LAG_MS = 5_000;
 
   public static void main(String[] args) {
 
-    // Get the MongoDB address and database name from environment variables and
-    // if they aren't set, use the defaults of "localhost" and "dev".
-    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    // Get the MongoDB database name from an environment variable and
+    // if it isn't set, use the default of "dev".
     String databaseName = System.getenv().getOrDefault("MONGO_DB", "dev");
 
-    // Setup the MongoDB client object with the information we set earlier
-    MongoClient mongoClient = MongoClients.create(MongoClientSettings
-        .builder()
-        .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
-        .build());
+    // Keeps track of how long each request spends waiting on Mongo
+    MongoTimer mongoTimer = new MongoTimer();
+    // Keeps track of which queries are slow, and why
+    SlowQueryProfiler slowQueries = new SlowQueryProfiler(
+        envLong("SLOW_QUERY_THRESHOLD_MS", DEFAULT_SLOW_QUERY_THRESHOLD_MS),
+        envLong("SLOW_QUERY_EXPLAIN_INTERVAL_MS", DEFAULT_SLOW_QUERY_EXPLAIN_INTERVAL_MS));
+    // Fails requests fast while Mongo is unhealthy
+    CircuitBreaker breaker = new CircuitBreaker(envInt("MONGO_BREAKER_FAILURES", DEFAULT_BREAKER_FAILURES),
+        envLong("MONGO_BREAKER_OPEN_MS", DEFAULT_BREAKER_OPEN_MS));
+    MongoClient mongoClient = createMongoClient(mongoTimer, slowQueries, breaker);
+    slowQueries.attach(mongoClient);
+
+    Metrics metrics = new Metrics();
+    metrics.gauge("mongo.breaker.state", () -> breaker.state().ordinal());
+
+    // Which read preference, write concern, and deadline each route uses
+    MongoPolicies policies = new MongoPolicies(System.getenv(), metrics);
 
     // Get the database
     MongoDatabase database = mongoClient.getDatabase(databaseName);
 
+    // The todos can be split across several databases, on this Mongo
+    // deployment or others, by owner; see `todoShards`.
+    List<MongoClient> shardClients = new ArrayList<>();
+    List<MongoDatabase> todoDatabases = todoShards(database, mongoClient, List.of(mongoTimer, breaker), shardClients);
+
+    List<TodoInsertBatcher> batchers = createInsertBatchers(todoDatabases, policies, metrics);
+
     // Initialize dependencies
-    UserController userController = new UserController(database);
-    TodoController todoController = new TodoController(database);
+    UserController userController = new UserController(database, policies, createIdCache("users", metrics));
+    TodoController todoController = new TodoController(todoDatabases, policies, batchers,
+        createIdCache("todos", metrics));
+    reportQueryPlans("todos", todoController.queries(), metrics);
+    reportQueryPlans("users", userController.queries(), metrics);
+    TodoChangeFeed todoChangeFeed = new TodoChangeFeed(todoDatabases,
+        envInt("TODO_FEED_BUFFER", DEFAULT_FEED_BUFFER));
+    InvalidationBus invalidationBus = createInvalidationBus(database, metrics, userController, todoController);
+    List<ShadowFieldMigration> migrations = new ArrayList<>();
+    migrations.add(userController.migration());
+    migrations.addAll(todoController.migrations());
+
+    AccessLog accessLog = createAccessLog(metrics);
+
+    // Turn requests away with a 503 when we're overloaded, rather than
+    // letting them queue up. Set `ADMISSION_CONTROL=false` to turn this off.
+    boolean admissionControl = Boolean.parseBoolean(System.getenv().getOrDefault("ADMISSION_CONTROL", "true"));
+
+    JettyConfig jetty = createJettyConfig();
 
     Javalin server = Javalin.create(config -> {
+      config.server(jetty::createServer);
       config.registerPlugin(new RouteOverviewPlugin("/api"));
+      config.jsonMapper(ApiJson.create());
+      if (accessLog != null) {
+        config.requestLogger(accessLog::log);
+      }
+      if (admissionControl) {
+        config.accessManager(createAdmissionControl(metrics));
+      }
     });
     /*
      * We want to shut the `mongoClient` down if the server either
@@ -49,12 +161,171 @@ public class Server {
      * these events and close it then.
      */
     server.events(event -> {
-      event.serverStartFailed(mongoClient::close);
-      event.serverStopped(mongoClient::close);
+      event.serverStarted(() -> {
+        // Nothing before this talks to Mongo, so the port opens without
+        // waiting on the cluster; the client connects in the background.
+        startInBackground("create-indexes", () -> {
+          userController.createIndexes();
+          todoController.createIndexes();
+        });
+        todoChangeFeed.start();
+        if (invalidationBus != null) {
+          invalidationBus.start();
+        }
+        for (ShadowFieldMigration migration : migrations) {
+          migration.start(envInt("MIGRATION_BATCH_SIZE", DEFAULT_MIGRATION_BATCH_SIZE),
+              envLong("MIGRATION_PAUSE_MS", DEFAULT_MIGRATION_PAUSE_MS));
+        }
+      });
+      event.serverStartFailed(() -> {
+        mongoClient.close();
+        shardClients.forEach(MongoClient::close);
+      });
+      event.serverStopped(() -> {
+        todoChangeFeed.stop();
+        if (invalidationBus != null) {
+          invalidationBus.stop();
+        }
+        migrations.forEach(ShadowFieldMigration::stop);
+        if (batchers != null) {
+          batchers.forEach(TodoInsertBatcher::close);
+        }
+        if (accessLog != null) {
+          accessLog.close();
+        }
+        mongoClient.close();
+        shardClients.forEach(MongoClient::close);
+      });
     });
     Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
 
-    server.start(PORT_NUMBER);
+    if (accessLog != null) {
+      server.before(accessLog::start);
+    }
+    addCircuitBreaker(server, breaker, metrics);
+
+    server.start(jetty.port());
+
+    addRoutes(server, userController, todoController, todoChangeFeed);
+
+    addAdminRoutes(server, metrics, slowQueries, migrations);
+
+    // Say whether we're warmed up and ready for traffic, for load
+    // balancers: 503 until we are, then 200
+    WarmUp warmUp = createWarmUp(jetty.port());
+    server.get("/api/ready", ctx -> {
+      ctx.status(warmUp.isReady() ? HttpCode.OK : HttpCode.SERVICE_UNAVAILABLE);
+      ctx.json(warmUp.status());
+    });
+
+    // This catches any uncaught exceptions thrown in the server
+    // code and turns them into a 500 response ("Internal Server
+    // Error Response"). In general you'll like to *never* actually
+    // return this, as it's an instance of the server crashing in
+    // some way, and returning a 500 to your user is *super*
+    // unhelpful to them. In a production system you'd almost
+    // certainly want to use a logging library to log all errors
+    // caught here so you'd know about them and could try to address
+    // them.
+    server.exception(Exception.class, (e, ctx) -> error(ctx, HttpCode.INTERNAL_SERVER_ERROR, e.toString()));
+
+    // Now that every route is in place
+    warmUp.start();
+  }
+
+  /**
+   * Run a one-off startup task on its own daemon thread, logging rather
+   * than losing any failure.
+   *
+   * @param name the name of the thread
+   * @param task the task to run
+   */
+  private static void startInBackground(String name, Runnable task) {
+    Thread thread = new Thread(() -> {
+      try {
+        task.run();
+      } catch (MongoException e) {
+        LOGGER.error("Startup task {} failed", name, e);
+      }
+    }, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Put the circuit breaker in front of every route that needs Mongo, and
+   * count requests that fail because Mongo is unhealthy against it. Those
+   * get a `504` if Mongo (or we) gave up waiting for an answer, or a `503`
+   * if it couldn't be reached, rather than a `500`. The admin routes,
+   * `/api/ready`, and the change streams are never turned away.
+   *
+   * @param server the Javalin server
+   * @param breaker the circuit breaker
+   * @param metrics where to count the requests it turns away
+   */
+  static void addCircuitBreaker(Javalin server, CircuitBreaker breaker, Metrics metrics) {
+    server.before("/api/*", ctx -> {
+      String path = ctx.path();
+      if (path.startsWith("/api/admin") || path.equals("/api/ready") || path.endsWith("/stream")) {
+        return;
+      }
+      if (!breaker.allowRequest()) {
+        metrics.counter("mongo.breaker.rejected").increment();
+        ctx.header("Retry-After", String.valueOf(breaker.retryAfterSeconds()));
+        throw new ServiceUnavailableResponse(UNAVAILABLE);
+      }
+    });
+    // Exception handlers have to answer themselves (see `error`)
+    server.exception(MongoException.class, (e, ctx) -> {
+      if (!CircuitBreaker.isUnhealthy(e)) {
+        error(ctx, HttpCode.INTERNAL_SERVER_ERROR, e.toString());
+        return;
+      }
+      breaker.recordFailure();
+      if (e instanceof MongoExecutionTimeoutException) {
+        error(ctx, HttpCode.GATEWAY_TIMEOUT, "The database took too long to answer");
+        return;
+      }
+      ctx.header("Retry-After", String.valueOf(breaker.retryAfterSeconds()));
+      error(ctx, HttpCode.SERVICE_UNAVAILABLE, UNAVAILABLE);
+    });
+  }
+
+  /**
+   * Answer with an error from an exception handler, in the same shape as
+   * Javalin's own error responses. Exception handlers can't just throw
+   * one of Javalin's `HttpResponseException`s like other handlers can,
+   * because Javalin turns an exception thrown from an exception handler
+   * into an empty `500`.
+   *
+   * @param ctx the request
+   * @param status the status to answer with
+   * @param message what went wrong
+   */
+  private static void error(Context ctx, HttpCode status, String message) {
+    ctx.status(status);
+    ctx.json(Map.of("title", message, "status", status.getStatus(), "details", Map.of()));
+  }
+
+  /**
+   * Add the user and todo routes.
+   *
+   * @param server the server to add the routes to
+   * @param userController the controller for users
+   * @param todoController the controller for todos
+   * @param todoChangeFeed the feed of todo changes
+   */
+  private static void addRoutes(Javalin server, UserController userController, TodoController todoController,
+      TodoChangeFeed todoChangeFeed) {
+    // Stream every matching user as NDJSON or CSV. Like the other fixed
+    // paths below, this has to come before the `{id}` route.
+    server.get("/api/users/export", userController::exportUsers);
+
+    // Count the matching users added on each day
+    server.get("/api/users/created-per-day", userController::getUsersCreatedPerDay);
+
+    // Count the matching users in each band of ages
+    server.get("/api/users/age-histogram", userController::getAgeHistogram);
 
     // Get specific user
     server.get("/api/users/{id}", userController::getUser);
@@ -62,6 +333,21 @@ public class Server {
     // List users, filtered using query parameters
     server.get("/api/users", userController::getUsers);
 
+    // Stream todo inserts and deletes as Server-Sent Events. This, the
+    // owner autocomplete, the export, and the counts per day have to be
+    // registered before `/api/todos/{id}` or "stream", "owners", "export",
+    // and "created-per-day" would be treated as ids.
+    server.sse("/api/todos/stream", todoChangeFeed::subscribe);
+
+    // Autocomplete todo owners from a prefix
+    server.get("/api/todos/owners", todoController::getOwners);
+
+    // Stream every matching todo as NDJSON or CSV
+    server.get("/api/todos/export", todoController::exportTodos);
+
+    // Count the matching todos added on each day
+    server.get("/api/todos/created-per-day", todoController::getTodosCreatedPerDay);
+
     // Get specific todo
     server.get("/api/todos/{id}", todoController::getTodo);
 
@@ -82,17 +368,330 @@ public class Server {
     // of the HTTP request
     server.post("/api/todos", todoController::addNewTodo);
 
-    // This catches any uncaught exceptions thrown in the server
-    // code and turns them into a 500 response ("Internal Server
-    // Error Response"). In general you'll like to *never* actually
-    // return this, as it's an instance of the server crashing in
-    // some way, and returning a 500 to your user is *super*
-    // unhelpful to them. In a production system you'd almost
-    // certainly want to use a logging library to log all errors
-    // caught here so you'd know about them and could try to address
-    // them.
-    server.exception(Exception.class, (e, ctx) -> {
-      throw new InternalServerErrorResponse(e.toString());
+    // Change some fields of a todo, or the status of many todos
+    server.patch("/api/todos/{id}", todoController::updateTodo);
+    server.patch("/api/todos", todoController::updateTodos);
+
+    // Get many todos (or users) by id at once, for lists of ids too long
+    // for `?ids=`
+    server.post("/api/todos/_mget", todoController::getTodosById);
+    server.post("/api/users/_mget", userController::getUsersById);
+
+    // Import todos from NDJSON or a JSON array in the body of the
+    // HTTP request
+    server.post("/api/todos/import", todoController::importTodos);
+  }
+
+  /**
+   * Add the `/api/admin` routes, which show what the server is doing.
+   *
+   * @param server the server to add the routes to
+   * @param metrics the server's metrics
+   * @param slowQueries the profiler recording slow queries
+   * @param migrations the background migrations
+   */
+  private static void addAdminRoutes(Javalin server, Metrics metrics, SlowQueryProfiler slowQueries,
+      List<ShadowFieldMigration> migrations) {
+    // Dump the server's internal metrics
+    server.get("/api/admin/metrics", ctx -> ctx.json(metrics.snapshot()));
+
+    // List the slowest query shapes and how Mongo ran them
+    server.get("/api/admin/slow-queries", ctx -> ctx.json(slowQueries.worstShapes(
+        ctx.queryParamAsClass("limit", Integer.class).getOrDefault(DEFAULT_SLOW_QUERY_LIMIT))));
+
+    // Show how far the shadow field migrations have got
+    server.get("/api/admin/migrations", ctx -> {
+      List<Map<String, Object>> progress = new ArrayList<>();
+      for (ShadowFieldMigration migration : migrations) {
+        progress.add(migration.progress());
+      }
+      ctx.json(progress);
     });
   }
+
+  /**
+   * Create the Mongo client.
+   *
+   * @param mongoTimer a command listener that times each request's Mongo calls
+   * @param slowQueries a command listener that records slow finds
+   * @param breaker a command listener that closes the circuit breaker
+   *   when Mongo answers
+   * @return the client
+   */
+  private static MongoClient createMongoClient(MongoTimer mongoTimer, SlowQueryProfiler slowQueries,
+      CircuitBreaker breaker) {
+    // Get the MongoDB address from an environment variable and
+    // if it isn't set, use the default of "localhost".
+    // `MONGO_ADDR` can be a comma-separated list of `host[:port]` to
+    // connect to the members of a replica set, in which case
+    // `MONGO_REPLICA_SET` should be set to the set's name.
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    String replicaSet = System.getenv("MONGO_REPLICA_SET");
+
+    List<ServerAddress> mongoHosts = new ArrayList<>();
+    for (String host : mongoAddr.split(",")) {
+      mongoHosts.add(new ServerAddress(host.trim()));
+    }
+
+    // Setup the MongoDB client object with the information we set earlier
+    return MongoClients.create(MongoClientSettings
+        .builder()
+        .addCommandListener(mongoTimer)
+        .addCommandListener(slowQueries)
+        .addCommandListener(breaker)
+        .applyToClusterSettings(builder -> {
+          builder.hosts(mongoHosts);
+          if (replicaSet != null) {
+            builder.requiredReplicaSetName(replicaSet);
+          }
+        })
+        .build());
+  }
+
+  /**
+   * The databases the todos are split across, from `MONGO_SHARDS`: a list
+   * of databases, separated by `;` or spaces, each either just the name of
+   * a database on the main Mongo deployment (`MONGO_ADDR`) or a Mongo
+   * connection string that names its database, e.g.,
+   * `todos0;todos1;mongodb://other-host:27017/todos2`. Their order decides
+   * which todos go where, so it mustn't change once there are todos in
+   * them. Without `MONGO_SHARDS` the todos are all in the main database.
+   *
+   * Shards on other deployments get the `listeners` (e.g., to time each
+   * request's Mongo calls), but their finds aren't explained by the
+   * `SlowQueryProfiler`, which only knows about the main client.
+   *
+   * @param database the main database
+   * @param mongoClient the main Mongo client
+   * @param listeners the command listeners for clients on other deployments
+   * @param shardClients where to put the clients created for other
+   *   deployments, so they can be closed
+   * @return the database for each shard, in order
+   */
+  private static List<MongoDatabase> todoShards(MongoDatabase database, MongoClient mongoClient,
+      List<CommandListener> listeners, List<MongoClient> shardClients) {
+    String shardList = System.getenv("MONGO_SHARDS");
+    if (shardList == null || shardList.isBlank()) {
+      return List.of(database);
+    }
+    // One client per deployment, however many databases are on it
+    Map<String, MongoClient> clients = new HashMap<>();
+    List<MongoDatabase> databases = new ArrayList<>();
+    for (String shard : shardList.trim().split("[;\\s]+")) {
+      if (!shard.startsWith("mongodb://") && !shard.startsWith("mongodb+srv://")) {
+        databases.add(mongoClient.getDatabase(shard));
+        continue;
+      }
+      ConnectionString connectionString = new ConnectionString(shard);
+      if (connectionString.getDatabase() == null) {
+        throw new IllegalArgumentException("MONGO_SHARDS entry " + shard + " doesn't name a database");
+      }
+      String deployment = connectionString.getHosts() + "/" + connectionString.getRequiredReplicaSetName();
+      MongoClient client = clients.computeIfAbsent(deployment, d -> {
+        MongoClient created = MongoClients.create(MongoClientSettings.builder()
+            .applyConnectionString(connectionString)
+            .commandListenerList(listeners)
+            .build());
+        shardClients.add(created);
+        return created;
+      });
+      databases.add(client.getDatabase(connectionString.getDatabase()));
+    }
+    LOGGER.info("Todos are split across {} shards", databases.size());
+    return databases;
+  }
+
+  /**
+   * Create the access log, which writes a JSON line for each request to
+   * `ACCESS_LOG_FILE` (default "access.log").
+   *
+   * @param metrics where to count logged and dropped requests
+   * @return the access log, or `null` if `ACCESS_LOG_FILE` is set to an
+   *   empty string to turn access logging off
+   */
+  private static AccessLog createAccessLog(Metrics metrics) {
+    String accessLogFile = System.getenv().getOrDefault("ACCESS_LOG_FILE", "access.log");
+    if (accessLogFile.isEmpty()) {
+      return null;
+    }
+    return new AccessLog(Paths.get(accessLogFile),
+        envLong("ACCESS_LOG_MAX_BYTES", DEFAULT_ACCESS_LOG_MAX_BYTES),
+        envInt("ACCESS_LOG_FILES", DEFAULT_ACCESS_LOG_FILES),
+        envInt("ACCESS_LOG_BUFFER", DEFAULT_ACCESS_LOG_BUFFER),
+        metrics);
+  }
+
+  /**
+   * Set up Jetty's thread pool and connector from the environment:
+   *
+   *  - `PORT`
+   *  - `JETTY_ACCEPTORS`, `JETTY_SELECTORS`, `JETTY_ACCEPT_QUEUE`
+   *  - `JETTY_MIN_THREADS`, `JETTY_MAX_THREADS`,
+   *    `JETTY_THREAD_IDLE_TIMEOUT_MS`, `JETTY_QUEUE_SIZE`
+   *  - `JETTY_KEEP_ALIVE`, `JETTY_IDLE_TIMEOUT_MS`
+   *  - `HTTP2`, `HTTP2_MAX_STREAMS`
+   *
+   * @return the Jetty config
+   */
+  private static JettyConfig createJettyConfig() {
+    return new JettyConfig(envInt("PORT", DEFAULT_PORT))
+        .connectorThreads(envInt("JETTY_ACCEPTORS", -1), envInt("JETTY_SELECTORS", -1),
+            envInt("JETTY_ACCEPT_QUEUE", 0))
+        .threadPool(envInt("JETTY_MIN_THREADS", JettyConfig.DEFAULT_MIN_THREADS),
+            envInt("JETTY_MAX_THREADS", JettyConfig.DEFAULT_MAX_THREADS),
+            envInt("JETTY_THREAD_IDLE_TIMEOUT_MS", JettyConfig.DEFAULT_THREAD_IDLE_TIMEOUT_MS),
+            envInt("JETTY_QUEUE_SIZE", 0))
+        .connections(Boolean.parseBoolean(System.getenv().getOrDefault("JETTY_KEEP_ALIVE", "true")),
+            envLong("JETTY_IDLE_TIMEOUT_MS", JettyConfig.DEFAULT_IDLE_TIMEOUT_MS))
+        .http2(Boolean.parseBoolean(System.getenv().getOrDefault("HTTP2", "true")),
+            envInt("HTTP2_MAX_STREAMS", JettyConfig.DEFAULT_MAX_CONCURRENT_STREAMS));
+  }
+
+  /**
+   * Create a cache of documents by id, if `ID_CACHE_SIZE` (the most
+   * documents to cache for each collection) is set; see `IdCache`.
+   * `ID_CACHE_TTL_MS` is how long a cached document is trusted.
+   *
+   * @param name the collection's name, for metrics
+   * @param metrics where to report hits and misses
+   * @param <T> the type of the documents
+   * @return the cache, or `null` if caching is off
+   */
+  private static <T> IdCache<T> createIdCache(String name, Metrics metrics) {
+    int size = envInt("ID_CACHE_SIZE", 0);
+    if (size <= 0) {
+      return null;
+    }
+    IdCache<T> cache = new IdCache<>(size, envLong("ID_CACHE_TTL_MS", DEFAULT_ID_CACHE_TTL_MS));
+    metrics.gauge("cache." + name + ".hits", cache::hits);
+    metrics.gauge("cache." + name + ".misses", cache::misses);
+    metrics.gauge("cache." + name + ".size", cache::size);
+    return cache;
+  }
+
+  /**
+   * Report how often a query language finds `q` queries already compiled;
+   * see `QueryLanguage`.
+   *
+   * @param name the collection's name, for metrics
+   * @param queries the query language
+   * @param metrics where to report hits and misses
+   */
+  private static void reportQueryPlans(String name, QueryLanguage queries, Metrics metrics) {
+    metrics.gauge("queryPlans." + name + ".hits", queries::hits);
+    metrics.gauge("queryPlans." + name + ".misses", queries::misses);
+    metrics.gauge("queryPlans." + name + ".size", queries::size);
+  }
+
+  /**
+   * Coalesce concurrent todo inserts into batches, one batcher per shard,
+   * if a batching window (`TODO_INSERT_BATCH_WINDOW_MS`) is given.
+   *
+   * @param todoDatabases the databases the todos are split across
+   * @param policies the write concern to use
+   * @param metrics where to report batch sizes and latencies
+   * @return the batchers, or `null` to write each insert on its own
+   */
+  private static List<TodoInsertBatcher> createInsertBatchers(List<MongoDatabase> todoDatabases,
+      MongoPolicies policies, Metrics metrics) {
+    long insertBatchWindow = envLong("TODO_INSERT_BATCH_WINDOW_MS", 0);
+    if (insertBatchWindow <= 0) {
+      return null;
+    }
+    List<TodoInsertBatcher> insertBatchers = new ArrayList<>();
+    for (MongoDatabase todoDatabase : todoDatabases) {
+      insertBatchers.add(new TodoInsertBatcher(todoDatabase, policies.writeConcern("todos.insert"),
+          insertBatchWindow, envInt("TODO_INSERT_BATCH_SIZE", DEFAULT_INSERT_BATCH_SIZE), metrics));
+    }
+    return insertBatchers;
+  }
+
+  /**
+   * With several servers behind a load balancer, `INVALIDATION_BUS=true`
+   * has each one tell the others about its writes, so they can keep
+   * their caches current; see `InvalidationBus`.
+   * `INVALIDATION_BUS_BYTES` is the size of the capped collection the
+   * messages go through and `INVALIDATION_MAX_LAG_MS` how far behind a
+   * server can fall before it flushes its caches instead.
+   *
+   * @param database the database to keep the messages in
+   * @param metrics where to report how far behind this server is
+   * @param userController the user controller, to keep current
+   * @param todoController the todo controller, to keep current
+   * @return the bus, or `null` if it's off
+   */
+  private static InvalidationBus createInvalidationBus(MongoDatabase database, Metrics metrics,
+      UserController userController, TodoController todoController) {
+    if (!Boolean.parseBoolean(System.getenv().getOrDefault("INVALIDATION_BUS", "false"))) {
+      return null;
+    }
+    InvalidationBus bus = new InvalidationBus(database,
+        envLong("INVALIDATION_BUS_BYTES", DEFAULT_INVALIDATION_BYTES),
+        envLong("INVALIDATION_MAX_LAG_MS", DEFAULT_INVALIDATION_MAX_LAG_MS), metrics);
+    userController.shareInvalidations(bus);
+    todoController.shareInvalidations(bus);
+    return bus;
+  }
+
+  /**
+   * Create the warm-up that runs before `/api/ready` says we're ready,
+   * configured from the environment:
+   *
+   *  - `WARM_UP_ITERATIONS`: how many rounds of requests to send, or 0 to
+   *    skip warming up
+   *  - `WARM_UP_MAX_MS`: the longest to spend warming up
+   *  - `WARM_UP_PATHS`: the list requests to send each round, separated by
+   *    `;`, instead of `WarmUp`'s usual mix
+   *
+   * @param port the port the server is listening on
+   * @return the warm-up
+   */
+  private static WarmUp createWarmUp(int port) {
+    String paths = System.getenv("WARM_UP_PATHS");
+    return new WarmUp(URI.create("http://localhost:" + port),
+        paths == null ? WarmUp.DEFAULT_PATHS : List.of(paths.trim().split("\\s*;\\s*")),
+        envInt("WARM_UP_ITERATIONS", DEFAULT_WARM_UP_ITERATIONS),
+        envLong("WARM_UP_MAX_MS", DEFAULT_WARM_UP_MAX_MS));
+  }
+
+  /**
+   * Create the adaptive concurrency limits that sit in front of the
+   * controllers, configured from `ADMISSION_*` environment variables.
+   *
+   * @param metrics where to report limits and rejections
+   * @return the admission control
+   */
+  private static AdmissionControl createAdmissionControl(Metrics metrics) {
+    return new AdmissionControl(
+        envInt("ADMISSION_INITIAL_LIMIT", DEFAULT_ADMISSION_INITIAL_LIMIT),
+        envInt("ADMISSION_MAX_LIMIT", DEFAULT_ADMISSION_MAX_LIMIT),
+        envInt("ADMISSION_QUEUE_SIZE", DEFAULT_ADMISSION_QUEUE_SIZE),
+        envLong("ADMISSION_QUEUE_TIMEOUT_MS", DEFAULT_ADMISSION_QUEUE_TIMEOUT_MS),
+        envLong("ADMISSION_LATENCY_TARGET_MS", DEFAULT_ADMISSION_LATENCY_TARGET_MS),
+        metrics);
+  }
+
+  /**
+   * Read an integer setting from the environment.
+   *
+   * @param name the environment variable to read
+   * @param defaultValue the value to use if it isn't set
+   * @return the setting's value
+   */
+  static int envInt(String name, int defaultValue) {
+    String value = System.getenv(name);
+    return value == null ? defaultValue : Integer.parseInt(value.trim());
+  }
+
+  /**
+   * Read a long integer setting from the environment.
+   *
+   * @param name the environment variable to read
+   * @param defaultValue the value to use if it isn't set
+   * @return the setting's value
+   */
+  static long envLong(String name, long defaultValue) {
+    String value = System.getenv(name);
+    return value == null ? defaultValue : Long.parseLong(value.trim());
+  }
 }
@@ -0,0 +1,247 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A background job that backfills case-folded "shadow" copies of fields
+ * (e.g., `ownerFolded` for `owner`) into documents written before the
+ * write paths started storing them.
+ *
+ * It's meant to be safe to run against a live collection:
+ *
+ *  - It works through the collection in `_id` order, `batchSize`
+ *    documents at a time, pausing `pauseMillis` between batches so it
+ *    doesn't crowd out real requests.
+ *  - Each update only applies if the source field still has the value we
+ *    read, so it can't clobber a concurrent write.
+ *  - After each batch it saves the last `_id` it got to in the
+ *    `migrations` collection, so if the server restarts it picks up where
+ *    it left off rather than starting over.
+ *
+ * Once it's finished, `isComplete()` is true, but that's only a report
+ * of what it did: documents without shadow fields can still turn up
+ * afterwards (e.g., from `mongoimport`), so filters never assume every
+ * document has one (see `PrefixIndex.prefixFilter`).
+ */
+public class ShadowFieldMigration {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ShadowFieldMigration.class);
+
+  private final String name;
+  private final MongoCollection<Document> collection;
+  private final MongoCollection<Document> progressCollection;
+  private final Map<String, String> shadowToSource;
+
+  private volatile boolean complete;
+  private volatile boolean running;
+  // Set once by `stop`, so a stop that comes before the worker gets going
+  // isn't lost
+  private volatile boolean stopped;
+  private volatile long migrated;
+  private volatile long estimatedTotal;
+  private volatile Object lastId;
+  private Thread worker;
+
+  /**
+   * Construct a migration.
+   *
+   * @param name the name progress is saved under, e.g., "todos.folded"
+   * @param collection the collection to migrate
+   * @param progressCollection where to save progress
+   * @param shadowToSource the shadow fields to fill in, and the field each
+   *   is a folded copy of
+   */
+  public ShadowFieldMigration(String name, MongoCollection<Document> collection,
+      MongoCollection<Document> progressCollection, Map<String, String> shadowToSource) {
+    this.name = name;
+    this.collection = collection;
+    this.progressCollection = progressCollection;
+    this.shadowToSource = shadowToSource;
+  }
+
+  /**
+   * Start migrating on a background thread.
+   *
+   * @param batchSize the number of documents to update at a time
+   * @param pauseMillis how long to wait between batches
+   */
+  public synchronized void start(int batchSize, long pauseMillis) {
+    if (worker != null || stopped) {
+      return;
+    }
+    running = true;
+    worker = new Thread(() -> {
+      try {
+        run(batchSize, pauseMillis);
+      } catch (MongoException e) {
+        LOGGER.error("Migration {} failed; it will resume from where it got to on restart", name, e);
+      }
+    }, "migration-" + name);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Stop migrating after the current batch, or before the first one if it
+   * hasn't got that far yet. A stopped migration can't be started again.
+   */
+  public synchronized void stop() {
+    stopped = true;
+    if (worker != null) {
+      worker.interrupt();
+    }
+  }
+
+  /**
+   * Whether the migration has been through every document. Documents
+   * written since then some other way might still lack shadow fields.
+   *
+   * @return whether the migration has finished
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * How far the migration has got, for `/api/admin/migrations`.
+   *
+   * @return a description of the migration's progress
+   */
+  public Map<String, Object> progress() {
+    Map<String, Object> progress = new LinkedHashMap<>();
+    progress.put("name", name);
+    progress.put("complete", complete);
+    progress.put("running", running);
+    progress.put("migrated", migrated);
+    progress.put("estimatedTotal", estimatedTotal);
+    progress.put("lastId", lastId == null ? null : lastId.toString());
+    return progress;
+  }
+
+  /**
+   * Migrate everything that needs it, on this thread, resuming from any
+   * saved progress.
+   *
+   * @param batchSize the number of documents to update at a time
+   * @param pauseMillis how long to wait between batches
+   */
+  public void run(int batchSize, long pauseMillis) {
+    running = true;
+    try {
+      migrate(batchSize, pauseMillis);
+    } finally {
+      running = false;
+    }
+  }
+
+  private void migrate(int batchSize, long pauseMillis) {
+    Document saved = progressCollection.find(eq("_id", name)).first();
+    if (saved != null) {
+      complete = saved.getBoolean("complete", false);
+      migrated = saved.get("migrated", 0L);
+      lastId = saved.get("lastId");
+    }
+    if (complete) {
+      return;
+    }
+    estimatedTotal = collection.estimatedDocumentCount();
+    LOGGER.info("Migration {} starting after {} ({} of about {} documents done)",
+        name, lastId, migrated, estimatedTotal);
+
+    List<String> sources = new ArrayList<>(shadowToSource.values());
+    List<Bson> missing = new ArrayList<>();
+    for (String shadow : shadowToSource.keySet()) {
+      missing.add(exists(shadow, false));
+    }
+
+    // Interrupted (by `stop`) during a batch, when there's no pause to
+    // notice it
+    while (!stopped && !Thread.currentThread().isInterrupted()) {
+      Bson filter = lastId == null ? or(missing) : and(gt("_id", lastId), or(missing));
+      List<Document> batch = collection.find(filter)
+          .projection(include(sources))
+          .sort(Sorts.ascending("_id"))
+          .limit(batchSize)
+          .into(new ArrayList<>());
+      if (batch.isEmpty()) {
+        complete = true;
+        save();
+        LOGGER.info("Migration {} complete; {} documents migrated", name, migrated);
+        break;
+      }
+
+      List<WriteModel<Document>> updates = new ArrayList<>();
+      for (Document document : batch) {
+        updates.add(backfill(document));
+      }
+      collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+      migrated += batch.size();
+      lastId = batch.get(batch.size() - 1).get("_id");
+      save();
+      LOGGER.info("Migration {}: {} of about {} documents done", name, migrated, estimatedTotal);
+
+      pause(pauseMillis);
+    }
+  }
+
+  private WriteModel<Document> backfill(Document document) {
+    // Only update the document if the fields we folded haven't changed
+    // since we read them; if they have, whoever changed them wrote the
+    // shadow fields too.
+    List<Bson> unchanged = new ArrayList<>();
+    List<Bson> sets = new ArrayList<>();
+    unchanged.add(eq("_id", document.get("_id")));
+    for (Map.Entry<String, String> shadow : shadowToSource.entrySet()) {
+      Object value = document.get(shadow.getValue());
+      unchanged.add(eq(shadow.getValue(), value));
+      sets.add(set(shadow.getKey(), value instanceof String ? PrefixIndex.fold((String) value) : null));
+    }
+    return new UpdateOneModel<>(and(unchanged), combine(sets));
+  }
+
+  private void save() {
+    progressCollection.replaceOne(eq("_id", name),
+        new Document("_id", name)
+            .append("complete", complete)
+            .append("migrated", migrated)
+            .append("lastId", lastId),
+        new ReplaceOptions().upsert(true));
+  }
+
+  private void pause(long pauseMillis) {
+    if (pauseMillis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(pauseMillis);
+    } catch (InterruptedException e) {
+      // We're being stopped; the loop will see it
+      Thread.currentThread().interrupt();
+    }
+  }
+}
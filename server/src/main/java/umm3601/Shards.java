@@ -0,0 +1,168 @@
+package umm3601;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntFunction;
+
+/**
+ * Which of several shards (e.g., several Mongo databases holding the
+ * same collection) each document lives in, and how to ask them all at
+ * once.
+ *
+ * Documents are placed by a hash of a shard key (for todos, the owner),
+ * folded the same way the case-insensitive filters are (see
+ * `PrefixIndex.fold`), so all the spellings of one key are in one place.
+ * A request about one key goes to just that shard; anything else,
+ * including a filter on a prefix of the key (which could match keys on
+ * any shard), is sent to every shard at once with `fanOut` and the
+ * answers are combined (see `SortedMerge`).
+ *
+ * With a single shard everything is in shard 0 and nothing is ever sent
+ * to another thread.
+ *
+ * Changing the number of shards moves most keys to a different shard, so
+ * it needs the data redistributed to match; nothing here does that.
+ */
+public class Shards {
+
+  // The 32-bit finalizer from MurmurHash3, to spread out `String.hashCode`
+  // (which is the same in every JVM) before taking it mod the shard count
+  private static final int MIX_SHIFT_1 = 16;
+  private static final int MIX_SHIFT_2 = 13;
+  private static final int MIX_MULTIPLIER_1 = 0x85ebca6b;
+  private static final int MIX_MULTIPLIER_2 = 0xc2b2ae35;
+
+  private final int count;
+  private final ExecutorService executor;
+
+  /**
+   * Construct shards.
+   *
+   * @param count the number of shards
+   */
+  public Shards(int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("There must be at least one shard");
+    }
+    this.count = count;
+    this.executor = count == 1 ? null : Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "shard-fan-out");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * The number of shards.
+   *
+   * @return the number of shards
+   */
+  public int count() {
+    return count;
+  }
+
+  /**
+   * Which shard documents with this key belong in.
+   *
+   * @param key the shard key, e.g., the todo's owner
+   * @return the shard's position
+   */
+  public int shardFor(String key) {
+    if (key == null || count == 1) {
+      return 0;
+    }
+    int hash = PrefixIndex.fold(key).hashCode();
+    hash ^= hash >>> MIX_SHIFT_1;
+    hash *= MIX_MULTIPLIER_1;
+    hash ^= hash >>> MIX_SHIFT_2;
+    hash *= MIX_MULTIPLIER_2;
+    hash ^= hash >>> MIX_SHIFT_1;
+    return Math.floorMod(hash, count);
+  }
+
+  /**
+   * The shards documents with any of these keys could be in.
+   *
+   * @param keys the shard keys
+   * @return the shards' positions, in order
+   */
+  public List<Integer> shardsFor(Collection<String> keys) {
+    TreeSet<Integer> shards = new TreeSet<>();
+    for (String key : keys) {
+      shards.add(shardFor(key));
+    }
+    return new ArrayList<>(shards);
+  }
+
+  /**
+   * Every shard's position, for requests that have to go to all of them.
+   *
+   * @return 0 up to the number of shards
+   */
+  public List<Integer> all() {
+    List<Integer> all = new ArrayList<>(count);
+    for (int shard = 0; shard < count; shard++) {
+      all.add(shard);
+    }
+    return all;
+  }
+
+  /**
+   * Do something on several shards at once and wait for all of them. A
+   * single shard is done on the calling thread.
+   *
+   * @param shards the shards' positions
+   * @param task what to do on each shard, given its position
+   * @param <T> the type of each shard's result
+   * @return each shard's result, in the same order as `shards`
+   */
+  public <T> List<T> fanOut(List<Integer> shards, IntFunction<T> task) {
+    List<T> results = new ArrayList<>(shards.size());
+    if (shards.size() <= 1 || executor == null) {
+      for (int shard : shards) {
+        results.add(task.apply(shard));
+      }
+      return results;
+    }
+    List<CompletableFuture<T>> futures = new ArrayList<>(shards.size());
+    for (int shard : shards) {
+      // Counting each shard's Mongo time towards the request; see `MongoTimer`
+      futures.add(CompletableFuture.supplyAsync(MongoTimer.carry(() -> task.apply(shard)), executor));
+    }
+    try {
+      for (CompletableFuture<T> future : futures) {
+        results.add(future.join());
+      }
+    } catch (CompletionException e) {
+      // Don't leave the other shards' cursors open
+      for (CompletableFuture<T> future : futures) {
+        future.thenAccept(Shards::closeQuietly);
+      }
+      // Rethrow what the shard threw, so it's handled as if it had been
+      // thrown here (e.g., a `MongoException` still turns into a 500)
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+    return results;
+  }
+
+  private static void closeQuietly(Object result) {
+    if (result instanceof Closeable) {
+      try {
+        ((Closeable) result).close();
+      } catch (IOException | RuntimeException e) {
+        // We're already failing with the error that matters
+      }
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package umm3601;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical work that's in flight at the same time: the first
+ * caller with a given key does the work, and any others that arrive with
+ * the same key before it's finished wait for it and get the same answer
+ * (or the same exception), instead of doing it again.
+ *
+ * Nothing is kept once the work is done, so this is not a cache: a
+ * caller that arrives just after the answer was handed out does the work
+ * again. That makes it safe for anything that's fine to share between
+ * requests that arrive together, e.g., a list query and its JSON when a
+ * dashboard full of clients refreshes at once, even when there's no cache
+ * (or the cache is off).
+ *
+ * The answer is shared, not copied, so it must not be changed. The
+ * Mongo time the work took is credited to every caller that waited for
+ * it, as well as the one that did it (see `MongoTimer`).
+ *
+ * @param <K> the type of the keys, which need `equals` and `hashCode`
+ * @param <V> the type of the answers
+ */
+public class SingleFlight<K, V> {
+
+  private final ConcurrentMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+  private final LongAdder flights;
+  private final LongAdder coalesced;
+
+  /**
+   * Construct a single flight.
+   *
+   * @param metrics where to count the work done (`<name>.flights`) and
+   *   the callers that waited for someone else's (`<name>.coalesced`)
+   * @param name the name of the work, e.g., `mongo.todos.list`
+   */
+  public SingleFlight(Metrics metrics, String name) {
+    this.flights = metrics.counter(name + ".flights");
+    this.coalesced = metrics.counter(name + ".coalesced");
+  }
+
+  /**
+   * Do some work, or wait for the same work that's already in flight.
+   *
+   * @param key what identifies the work; callers with equal keys share
+   *   an answer
+   * @param work the work
+   * @return the answer
+   */
+  public V run(K key, Supplier<V> work) {
+    Flight<V> flight = new Flight<>();
+    Flight<V> existing = inFlight.putIfAbsent(key, flight);
+    if (existing != null) {
+      coalesced.increment();
+      try {
+        return await(existing.result);
+      } finally {
+        MongoTimer.add(existing.mongoNanos);
+      }
+    }
+    flights.increment();
+    long mongoBefore = MongoTimer.elapsedNanos();
+    try {
+      V value = work.get();
+      flight.mongoNanos = MongoTimer.elapsedNanos() - mongoBefore;
+      flight.result.complete(value);
+      return value;
+    } catch (RuntimeException | Error e) {
+      flight.mongoNanos = MongoTimer.elapsedNanos() - mongoBefore;
+      flight.result.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, flight);
+    }
+  }
+
+  /**
+   * How many keys have work in flight right now.
+   *
+   * @return the number of keys
+   */
+  public int inFlight() {
+    return inFlight.size();
+  }
+
+  /**
+   * Work in flight: its answer, and how long it spent in Mongo, which is
+   * set before the answer is.
+   */
+  private static final class Flight<V> {
+    private final CompletableFuture<V> result = new CompletableFuture<>();
+    private volatile long mongoNanos;
+  }
+
+  private static <V> V await(CompletableFuture<V> flight) {
+    try {
+      return flight.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for coalesced work", e);
+    } catch (ExecutionException e) {
+      // Rethrow what the work threw, as if it had been thrown here
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,370 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Times every Mongo `find` and keeps statistics on the ones that take
+ * longer than a threshold, grouped by the "shape" of the query: the
+ * filter with all the values replaced by `?`, plus the sort. So
+ * `{owner: /Fry/i}` and `{owner: /Blanche/i}` are the same shape.
+ *
+ * For each slow shape we also, at most once per `explainIntervalMillis`,
+ * run `explain` with `executionStats` on a real example of the query in
+ * the background, and keep the winning plan (e.g., `COLLSCAN` or
+ * `IXSCAN`) and how many documents it examined versus returned. That's
+ * what tells us which indexes are missing.
+ *
+ * The documents a slow find returns include those from the `getMore`s
+ * that page through the rest of its cursor, so they can be compared with
+ * the documents examined.
+ *
+ * The worst shapes are listed at `/api/admin/slow-queries`.
+ */
+public class SlowQueryProfiler implements CommandListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SlowQueryProfiler.class);
+
+  // Don't let a flood of distinct shapes use up all our memory
+  private static final int MAX_SHAPES = 1000;
+  private static final int MAX_OPEN_CURSORS = 1000;
+  private static final int MAX_PENDING_EXPLAINS = 16;
+  private static final String PLACEHOLDER = "?";
+
+  private final long thresholdNanos;
+  private final long explainIntervalMillis;
+  private final ConcurrentMap<Integer, StartedFind> inFlight = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, ShapeStats> shapes = new ConcurrentHashMap<>();
+  // The cursors of slow finds that haven't been exhausted yet, by server
+  // and cursor id, and the getMores on them that haven't finished.
+  private final ConcurrentMap<String, ShapeStats> openCursors = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Integer, String> inFlightGetMores = new ConcurrentHashMap<>();
+  private final ExecutorService explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+      new LinkedBlockingQueue<>(MAX_PENDING_EXPLAINS), runnable -> {
+        Thread thread = new Thread(runnable, "slow-query-explainer");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private volatile MongoClient client;
+
+  /**
+   * Construct a profiler.
+   *
+   * @param thresholdMillis finds that take at least this long are recorded
+   * @param explainIntervalMillis how often each shape can be re-explained
+   */
+  public SlowQueryProfiler(long thresholdMillis, long explainIntervalMillis) {
+    this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    this.explainIntervalMillis = explainIntervalMillis;
+  }
+
+  /**
+   * Give the profiler the client to run `explain`s with. The profiler has
+   * to be registered as a listener before the client is created, so this
+   * is separate from the constructor; until it's called nothing is
+   * explained.
+   *
+   * @param mongoClient the client whose queries are being profiled
+   */
+  public void attach(MongoClient mongoClient) {
+    this.client = mongoClient;
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event) {
+    BsonDocument command = event.getCommand();
+    String server = event.getConnectionDescription().getServerAddress().toString();
+    if ("getMore".equals(event.getCommandName())) {
+      String cursor = cursorKey(server, command.getInt64("getMore").getValue());
+      if (openCursors.containsKey(cursor)) {
+        inFlightGetMores.put(event.getRequestId(), cursor);
+      }
+      return;
+    }
+    if ("killCursors".equals(event.getCommandName())) {
+      for (BsonValue id : command.getArray("cursors", new BsonArray())) {
+        openCursors.remove(cursorKey(server, id.asInt64().getValue()));
+      }
+      return;
+    }
+    if (!"find".equals(event.getCommandName())) {
+      return;
+    }
+    // The command document is only good for the duration of this call,
+    // so keep copies of the parts we need.
+    BsonDocument filter = command.getDocument("filter", new BsonDocument()).clone();
+    BsonDocument sort = command.getDocument("sort", new BsonDocument()).clone();
+    inFlight.put(event.getRequestId(), new StartedFind(event.getDatabaseName(),
+        command.getString("find").getValue(), filter, sort));
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event) {
+    BsonDocument cursor = event.getResponse().getDocument("cursor", new BsonDocument());
+    long cursorId = cursor.getInt64("id", new BsonInt64(0)).getValue();
+    String getMore = inFlightGetMores.remove(event.getRequestId());
+    if (getMore != null) {
+      ShapeStats stats = cursorId == 0 ? openCursors.remove(getMore) : openCursors.get(getMore);
+      if (stats != null) {
+        stats.addReturned(cursor.getArray("nextBatch", new BsonArray()).size());
+      }
+      return;
+    }
+    StartedFind find = inFlight.remove(event.getRequestId());
+    long elapsed = event.getElapsedTime(TimeUnit.NANOSECONDS);
+    if (find == null || elapsed < thresholdNanos) {
+      return;
+    }
+    int returned = cursor.getArray("firstBatch", new BsonArray()).size();
+    ShapeStats stats = record(find, elapsed, returned);
+    // Cursors that are never exhausted or killed (because the server timed
+    // them out, say) stay here, so there's a limit on how many we follow.
+    if (stats != null && cursorId != 0 && openCursors.size() < MAX_OPEN_CURSORS) {
+      openCursors.put(cursorKey(event.getConnectionDescription().getServerAddress().toString(), cursorId), stats);
+    }
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+    inFlight.remove(event.getRequestId());
+    String getMore = inFlightGetMores.remove(event.getRequestId());
+    if (getMore != null) {
+      openCursors.remove(getMore);
+    }
+  }
+
+  /**
+   * The slowest query shapes seen so far, worst first.
+   *
+   * @param limit the most shapes to return
+   * @return a description of each shape, its timings, and its last plan
+   */
+  public List<Map<String, Object>> worstShapes(int limit) {
+    List<ShapeStats> sorted = new ArrayList<>(shapes.values());
+    sorted.sort(Comparator.comparingLong(ShapeStats::totalNanos).reversed());
+    List<Map<String, Object>> result = new ArrayList<>();
+    for (ShapeStats stats : sorted.subList(0, Math.min(limit, sorted.size()))) {
+      result.add(stats.describe());
+    }
+    return result;
+  }
+
+  /**
+   * Replace every value in a filter with `?`, keeping the field names and
+   * operators, so queries that only differ in their values look the same.
+   * Regular expression options are kept, since a case-insensitive regex
+   * behaves quite differently from a case-sensitive one.
+   *
+   * @param filter the filter of a find
+   * @return the normalized shape of the filter
+   */
+  public static BsonDocument normalize(BsonDocument filter) {
+    BsonDocument shape = new BsonDocument();
+    for (Map.Entry<String, BsonValue> entry : filter.entrySet()) {
+      String key = entry.getKey();
+      BsonValue value = entry.getValue();
+      if (value.isDocument()) {
+        shape.put(key, normalize(value.asDocument()));
+      } else if (value.isArray() && ("$and".equals(key) || "$or".equals(key) || "$nor".equals(key))) {
+        BsonArray clauses = new BsonArray();
+        for (BsonValue clause : value.asArray()) {
+          clauses.add(clause.isDocument() ? normalize(clause.asDocument()) : new BsonString(PLACEHOLDER));
+        }
+        shape.put(key, clauses);
+      } else if (value.isRegularExpression()) {
+        shape.put(key, new BsonString("/?/" + value.asRegularExpression().getOptions()));
+      } else if ("$options".equals(key)) {
+        shape.put(key, value);
+      } else {
+        shape.put(key, new BsonString(PLACEHOLDER));
+      }
+    }
+    return shape;
+  }
+
+  private static String cursorKey(String server, long cursorId) {
+    return server + " " + cursorId;
+  }
+
+  // The statistics the find was added to, or null if there are already
+  // too many shapes to add a new one
+  private ShapeStats record(StartedFind find, long elapsedNanos, int returned) {
+    String key = find.collection + " " + normalize(find.filter).toJson() + " sort " + find.sort.toJson();
+    if (!shapes.containsKey(key) && shapes.size() >= MAX_SHAPES) {
+      return null;
+    }
+    ShapeStats stats = shapes.computeIfAbsent(key,
+        k -> new ShapeStats(find.collection, normalize(find.filter), find.sort));
+    stats.add(elapsedNanos, returned);
+    if (client != null && stats.claimExplain(explainIntervalMillis)) {
+      try {
+        explainer.execute(() -> explain(stats, find));
+      } catch (RejectedExecutionException e) {
+        // Too many explains queued up already; we'll get it next time
+        stats.releaseExplain();
+      }
+    }
+    return stats;
+  }
+
+  private void explain(ShapeStats stats, StartedFind find) {
+    BsonDocument findCommand = new BsonDocument("find", new BsonString(find.collection))
+        .append("filter", find.filter)
+        .append("sort", find.sort);
+    try {
+      Document explained = client.getDatabase(find.database).runCommand(
+          new BsonDocument("explain", findCommand).append("verbosity", new BsonString("executionStats")));
+      stats.setPlan(explained);
+    } catch (MongoException e) {
+      LOGGER.warn("Couldn't explain slow query on {}: {}", find.collection, e.getMessage());
+      stats.releaseExplain();
+    }
+  }
+
+  /**
+   * The parts of a `find` command we need once we know how long it took.
+   */
+  private static final class StartedFind {
+    private final String database;
+    private final String collection;
+    private final BsonDocument filter;
+    private final BsonDocument sort;
+
+    StartedFind(String database, String collection, BsonDocument filter, BsonDocument sort) {
+      this.database = database;
+      this.collection = collection;
+      this.filter = filter;
+      this.sort = sort;
+    }
+  }
+
+  /**
+   * Running statistics for one query shape.
+   */
+  private static final class ShapeStats {
+    private final String collection;
+    private final BsonDocument shape;
+    private final BsonDocument sort;
+
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+    private long returned;
+    private long lastExplainMillis;
+    private boolean explaining;
+    private Map<String, Object> plan;
+
+    ShapeStats(String collection, BsonDocument shape, BsonDocument sort) {
+      this.collection = collection;
+      this.shape = shape;
+      this.sort = sort;
+    }
+
+    synchronized void add(long elapsedNanos, int docsReturned) {
+      count++;
+      totalNanos += elapsedNanos;
+      maxNanos = Math.max(maxNanos, elapsedNanos);
+      returned += docsReturned;
+    }
+
+    synchronized void addReturned(int docsReturned) {
+      returned += docsReturned;
+    }
+
+    synchronized long totalNanos() {
+      return totalNanos;
+    }
+
+    synchronized boolean claimExplain(long intervalMillis) {
+      long now = System.currentTimeMillis();
+      if (explaining || (plan != null && now - lastExplainMillis < intervalMillis)) {
+        return false;
+      }
+      explaining = true;
+      lastExplainMillis = now;
+      return true;
+    }
+
+    synchronized void releaseExplain() {
+      explaining = false;
+    }
+
+    synchronized void setPlan(Document explained) {
+      Document queryPlanner = explained.get("queryPlanner", new Document());
+      Document executionStats = explained.get("executionStats", new Document());
+      Map<String, Object> summary = new LinkedHashMap<>();
+      summary.put("stages", leafStages(queryPlanner.get("winningPlan", new Document())));
+      summary.put("docsExamined", executionStats.get("totalDocsExamined"));
+      summary.put("keysExamined", executionStats.get("totalKeysExamined"));
+      summary.put("docsReturned", executionStats.get("nReturned"));
+      summary.put("executionTimeMillis", executionStats.get("executionTimeMillis"));
+      summary.put("winningPlan", queryPlanner.get("winningPlan"));
+      plan = summary;
+      explaining = false;
+    }
+
+    synchronized Map<String, Object> describe() {
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("collection", collection);
+      result.put("filter", Document.parse(shape.toJson()));
+      result.put("sort", Document.parse(sort.toJson()));
+      result.put("count", count);
+      result.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(totalNanos));
+      result.put("maxMillis", TimeUnit.NANOSECONDS.toMillis(maxNanos));
+      result.put("meanMillis", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos / count));
+      result.put("docsReturned", returned);
+      result.put("plan", plan);
+      return result;
+    }
+
+    /**
+     * The leaf stages of a plan, e.g., `COLLSCAN` or `IXSCAN owner_1`,
+     * which is what actually tells us whether an index was used.
+     */
+    private static List<String> leafStages(Document stage) {
+      List<String> leaves = new ArrayList<>();
+      Document input = stage.get("inputStage", Document.class);
+      List<?> inputs = stage.get("inputStages", List.class);
+      if (input != null) {
+        leaves.addAll(leafStages(input));
+      } else if (inputs != null) {
+        for (Object child : inputs) {
+          if (child instanceof Document) {
+            leaves.addAll(leafStages((Document) child));
+          }
+        }
+      } else if (stage.containsKey("stage")) {
+        String indexName = stage.getString("indexName");
+        leaves.add(stage.getString("stage") + (indexName == null ? "" : " " + indexName));
+      }
+      return leaves;
+    }
+  }
+}
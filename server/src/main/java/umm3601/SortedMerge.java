@@ -0,0 +1,178 @@
+package umm3601;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.bson.BsonDocument;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+
+/**
+ * Merges several already-sorted sequences (e.g., one cursor per shard,
+ * each with the same `sort`) into one sorted sequence, without reading
+ * any of them ahead: a k-way merge that keeps the next item from each
+ * sequence in a heap.
+ *
+ * When items from different sequences are equal, the one from the
+ * earlier sequence comes first.
+ *
+ * @param <T> the type of the items
+ */
+public class SortedMerge<T> implements Iterator<T> {
+
+  private final PriorityQueue<Head<T>> heads;
+
+  /**
+   * Construct a merge.
+   *
+   * @param sources the sequences to merge, each already sorted by `order`
+   * @param order the order they're sorted in
+   */
+  public SortedMerge(List<? extends Iterator<T>> sources, Comparator<? super T> order) {
+    Comparator<Head<T>> byItem = (a, b) -> order.compare(a.item, b.item);
+    heads = new PriorityQueue<>(Math.max(1, sources.size()), byItem.thenComparingInt(head -> head.source));
+    for (int i = 0; i < sources.size(); i++) {
+      Iterator<T> source = sources.get(i);
+      if (source.hasNext()) {
+        heads.add(new Head<>(source.next(), i, source));
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return !heads.isEmpty();
+  }
+
+  @Override
+  public T next() {
+    Head<T> head = heads.poll();
+    if (head == null) {
+      throw new NoSuchElementException();
+    }
+    T item = head.item;
+    if (head.rest.hasNext()) {
+      heads.add(new Head<>(head.rest.next(), head.source, head.rest));
+    }
+    return item;
+  }
+
+  /**
+   * The order Mongo sorts documents in by one field, for merging results
+   * that Mongo sorted with `Sorts.ascending(field)` or
+   * `Sorts.descending(field)`.
+   *
+   * Values of different types sort by type, the way Mongo does (missing
+   * and `null` first, then numbers, strings, documents, arrays, binary
+   * data, object ids, booleans, and dates). Within a type it's the natural
+   * order, except that strings are compared by UTF-16 code unit rather
+   * than by code point, which only differs for characters outside the
+   * Basic Multilingual Plane. Arrays and documents, which Mongo compares
+   * element by element, all count as equal here.
+   *
+   * @param field the field sorted on
+   * @param descending whether it's sorted in descending order
+   * @param <D> the type of the documents
+   * @return the order
+   */
+  public static <D extends BsonDocument> Comparator<D> bsonOrder(String field, boolean descending) {
+    Comparator<D> ascending = (a, b) -> compare(a.get(field), b.get(field));
+    return descending ? ascending.reversed() : ascending;
+  }
+
+  /**
+   * Compare two values in the order described in `bsonOrder`.
+   *
+   * @param a one value, or `null` if it's missing
+   * @param b the other value, or `null` if it's missing
+   * @return negative, zero, or positive as `a` sorts before, with, or
+   *   after `b`
+   */
+  public static int compare(BsonValue a, BsonValue b) {
+    int byType = Integer.compare(typeRank(a), typeRank(b));
+    if (byType != 0 || a == null || b == null) {
+      return byType;
+    }
+    if (a.isNumber()) {
+      return Double.compare(a.asNumber().doubleValue(), b.asNumber().doubleValue());
+    }
+    switch (a.getBsonType()) {
+      case STRING:
+      case SYMBOL:
+        return stringValue(a).compareTo(stringValue(b));
+      case OBJECT_ID:
+        return a.asObjectId().getValue().compareTo(b.asObjectId().getValue());
+      case BOOLEAN:
+        return Boolean.compare(a.asBoolean().getValue(), b.asBoolean().getValue());
+      case DATE_TIME:
+        return Long.compare(a.asDateTime().getValue(), b.asDateTime().getValue());
+      case TIMESTAMP:
+        return a.asTimestamp().compareTo(b.asTimestamp());
+      default:
+        return 0;
+    }
+  }
+
+  private static String stringValue(BsonValue value) {
+    return value.getBsonType() == BsonType.SYMBOL ? value.asSymbol().getSymbol() : value.asString().getValue();
+  }
+
+  // Mongo's order of BSON types for sorting
+  @SuppressWarnings({ "MagicNumber" })
+  private static int typeRank(BsonValue value) {
+    if (value == null) {
+      return 1;
+    }
+    switch (value.getBsonType()) {
+      case MIN_KEY:
+        return 0;
+      case NULL:
+      case UNDEFINED:
+        return 1;
+      case INT32:
+      case INT64:
+      case DOUBLE:
+      case DECIMAL128:
+        return 2;
+      case STRING:
+      case SYMBOL:
+        return 3;
+      case DOCUMENT:
+        return 4;
+      case ARRAY:
+        return 5;
+      case BINARY:
+        return 6;
+      case OBJECT_ID:
+        return 7;
+      case BOOLEAN:
+        return 8;
+      case DATE_TIME:
+        return 9;
+      case TIMESTAMP:
+        return 10;
+      case REGULAR_EXPRESSION:
+        return 11;
+      default:
+        return 12;
+    }
+  }
+
+  /**
+   * The next item from one of the sequences, and the rest of it.
+   */
+  private static final class Head<T> {
+    private final T item;
+    private final int source;
+    private final Iterator<T> rest;
+
+    Head(T item, int source, Iterator<T> rest) {
+      this.item = item;
+      this.source = source;
+      this.rest = rest;
+    }
+  }
+}
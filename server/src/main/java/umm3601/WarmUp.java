@@ -0,0 +1,213 @@
+package umm3601;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up a freshly started server before it says it's ready for
+ * traffic, so real requests don't pay for the JIT compiling Jackson,
+ * MongoJack, the BSON transcoding, and the controllers.
+ *
+ * It sends the server a mix of real requests over HTTP, one at a time:
+ * the lists with a few different filters and sorts, autocomplete, and
+ * getting todos and users by id (and many at once), with ids taken from
+ * the first list responses. Everything it sends is a `GET`, so it's safe
+ * to point at the real database; a read-only copy of a sample works too.
+ *
+ * `/api/ready` answers `503` until warm-up is over, then `200`, so a load
+ * balancer can hold off sending the instance traffic until then. Warm-up
+ * is over after `iterations` rounds of the mix, or after `maxMillis`
+ * whatever's happened (e.g., if Mongo isn't answering), so a slow warm-up
+ * can't keep the instance out of service forever.
+ */
+public class WarmUp {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WarmUp.class);
+
+  // The mix of list requests, before the ones by id are added
+  static final List<String> DEFAULT_PATHS = List.of(
+      "/api/todos",
+      "/api/todos?status=true&sortby=category",
+      "/api/todos?owner=b&contains=a&sortorder=desc",
+      "/api/todos/owners?prefix=a",
+      "/api/users",
+      "/api/users?age=25&sortby=company",
+      "/api/users?company=o&role=admin");
+
+  // How many ids from each list to get one at a time and all at once
+  private static final int SAMPLE_IDS = 5;
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final int HTTP_OK = 200;
+
+  private final URI base;
+  private final List<String> paths;
+  private final int iterations;
+  private final long maxMillis;
+  private final ObjectMapper objectMapper = ApiJson.objectMapper();
+  private final HttpClient http = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .connectTimeout(REQUEST_TIMEOUT)
+      .build();
+
+  private volatile boolean ready;
+  private volatile int completed;
+  private volatile long failures;
+  private volatile double millis;
+  private volatile double lastIterationMillis;
+
+  /**
+   * Construct a warm-up.
+   *
+   * @param base the server's address, e.g., `http://localhost:4567`
+   * @param paths the list requests to send each round; requests by id are
+   *   added for whatever the todo and user lists return
+   * @param iterations how many rounds to send, or 0 to be ready straight
+   *   away
+   * @param maxMillis the longest to spend warming up before being ready
+   *   anyway
+   */
+  public WarmUp(URI base, List<String> paths, int iterations, long maxMillis) {
+    this.base = base;
+    this.paths = paths;
+    this.iterations = iterations;
+    this.maxMillis = maxMillis;
+    this.ready = iterations <= 0;
+  }
+
+  /**
+   * Start warming up on a background thread. The server's routes must
+   * already be in place.
+   */
+  public void start() {
+    if (ready) {
+      LOGGER.info("Warm-up is off; ready straight away");
+      return;
+    }
+    Thread thread = new Thread(this::run, "warm-up");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Whether warm-up is over.
+   *
+   * @return whether the server is ready for traffic
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * How warm-up went, for `/api/ready`.
+   *
+   * @return whether it's ready, how many rounds were done and how many
+   *   requests failed, how long it took, and how long the last round took
+   */
+  public Map<String, Object> status() {
+    Map<String, Object> status = new LinkedHashMap<>();
+    status.put("ready", ready);
+    status.put("iterations", completed);
+    status.put("failures", failures);
+    status.put("millis", Math.round(millis));
+    status.put("lastIterationMillis", lastIterationMillis);
+    return status;
+  }
+
+  void run() {
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+    try {
+      List<String> mix = new ArrayList<>(paths);
+      mix.addAll(byIdPaths("/api/todos"));
+      mix.addAll(byIdPaths("/api/users"));
+      while (completed < iterations && System.nanoTime() < deadline) {
+        long iterationStart = System.nanoTime();
+        for (String path : mix) {
+          if (get(path) == null) {
+            failures++;
+          }
+        }
+        lastIterationMillis = (System.nanoTime() - iterationStart) / NANOS_PER_MILLI;
+        completed++;
+        millis = (System.nanoTime() - start) / NANOS_PER_MILLI;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      millis = (System.nanoTime() - start) / NANOS_PER_MILLI;
+      ready = true;
+    }
+    if (completed < iterations) {
+      LOGGER.warn("Warm-up gave up after {} ms and {} of {} iterations ({} failed requests); ready anyway",
+          Math.round(millis), completed, iterations, failures);
+    } else {
+      LOGGER.info("Warmed up in {} ms ({} iterations, {} failed requests); the last iteration took {} ms",
+          Math.round(millis), completed, failures, String.format("%.1f", lastIterationMillis));
+    }
+  }
+
+  /**
+   * Requests for a few of the items in a list, one at a time and all at
+   * once, e.g., `/api/todos/{id}` and `/api/todos?ids=...`.
+   */
+  private List<String> byIdPaths(String list) throws InterruptedException {
+    List<String> byId = new ArrayList<>();
+    String body = get(list);
+    if (body == null) {
+      return byId;
+    }
+    List<String> ids = new ArrayList<>();
+    try {
+      for (JsonNode item : objectMapper.readTree(body)) {
+        if (ids.size() >= SAMPLE_IDS) {
+          break;
+        }
+        ids.add(item.path("_id").asText());
+      }
+    } catch (IOException e) {
+      LOGGER.warn("Couldn't read ids from {} to warm up with: {}", list, e.getMessage());
+      return byId;
+    }
+    for (String id : ids) {
+      byId.add(list + "/" + id);
+    }
+    if (!ids.isEmpty()) {
+      byId.add(list + "?ids=" + String.join(",", ids));
+    }
+    return byId;
+  }
+
+  /**
+   * Get a path from the server.
+   *
+   * @return the response body, or `null` if it wasn't a `200`
+   */
+  private String get(String path) throws InterruptedException {
+    HttpRequest request = HttpRequest.newBuilder(base.resolve(path))
+        .timeout(REQUEST_TIMEOUT)
+        .header("User-Agent", "warm-up")
+        .build();
+    try {
+      HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+      return response.statusCode() == HTTP_OK ? response.body() : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+}
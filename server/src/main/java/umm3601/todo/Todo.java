@@ -1,5 +1,7 @@
 package umm3601.todo;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import org.mongojack.Id;
 import org.mongojack.ObjectId;
 
@@ -31,4 +33,15 @@ public class Todo {
   public boolean status;
   public String category;
   public String body;
+
+  // Lowercased, Unicode-normalized copies of `owner` and `category` for
+  // case-insensitive filters. They're filled in by the server and never
+  // sent to clients.
+  public String ownerFolded;
+  public String categoryFolded;
+
+  // When the todo was added, from its `_id` (see `CreationTime`). It's
+  // filled in when the todo is sent to clients and never stored.
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public String createdAt;
 }
@@ -0,0 +1,466 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import org.bson.BsonDocument;
+import org.mongojack.JacksonMongoCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.http.sse.SseClient;
+import umm3601.PrefixIndex;
+
+/**
+ * Pushes todo inserts and deletes to subscribers of `/api/todos/stream`
+ * as Server-Sent Events.
+ *
+ * A single Mongo change stream cursor is tailed by one background thread
+ * (one per shard, if the todos are split across shards) and each change
+ * is fanned out to every subscriber whose filters match.
+ * Every subscriber has its own bounded buffer, and is written to by its
+ * own delivery task, so a client that's slow to read only holds itself
+ * up; if its buffer fills, the buffered events are dropped and it is sent
+ * a single `resync` event telling it to reload `/api/todos`.
+ *
+ * If a stream that was delivering breaks, the feed resumes where it left
+ * off. If it can't, changes may have been missed, so once it has a stream
+ * again every subscriber is sent `resync`. Failures back off from 5
+ * seconds to 5 minutes between attempts.
+ *
+ * Change streams are only available on replica sets, so against a
+ * standalone `mongod` (the usual development setup) the feed logs a
+ * warning and gives up; subscribers still get heartbeats, but no changes.
+ */
+public class TodoChangeFeed {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TodoChangeFeed.class);
+
+  private static final String OWNER_KEY = "owner";
+  private static final String CATEGORY_KEY = "category";
+  private static final String STATUS_KEY = "status";
+
+  private static final long RETRY_DELAY_MILLIS = 5000;
+  private static final long MAX_RETRY_DELAY_MILLIS = 300_000;
+  private static final long AWAIT_SECONDS = 1;
+  private static final long HEARTBEAT_SECONDS = 15;
+
+  // Mongo's error codes for "change streams need a replica set" and, on
+  // servers too old to have them, "unknown pipeline stage"
+  private static final List<Integer> UNSUPPORTED = List.of(40573, 40324);
+
+  private final List<JacksonMongoCollection<Todo>> todoCollections;
+  private final int bufferSize;
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  // Each subscriber has at most one delivery task at a time, so a client
+  // whose writes block only ties up its own thread
+  private final ExecutorService delivery = Executors.newCachedThreadPool(daemon("todo-feed-delivery"));
+  private final ScheduledExecutorService heartbeat =
+      Executors.newSingleThreadScheduledExecutor(daemon("todo-feed-heartbeat"));
+  private final AtomicBoolean running = new AtomicBoolean();
+
+  private final Set<MongoCursor<ChangeStreamDocument<Todo>>> cursors = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger watching = new AtomicInteger();
+
+  /**
+   * Construct a change feed over the todos in the given database.
+   *
+   * @param database the database containing todo data
+   * @param bufferSize the number of events buffered per subscriber before
+   *   that subscriber is told to resync
+   */
+  public TodoChangeFeed(MongoDatabase database, int bufferSize) {
+    this(List.of(database), bufferSize);
+  }
+
+  /**
+   * Construct a change feed over the todos in each of the given
+   * databases, i.e., each shard.
+   *
+   * @param databases the databases containing todo data
+   * @param bufferSize the number of events buffered per subscriber before
+   *   that subscriber is told to resync
+   */
+  public TodoChangeFeed(List<MongoDatabase> databases, int bufferSize) {
+    this.todoCollections = new ArrayList<>(databases.size());
+    for (MongoDatabase database : databases) {
+      todoCollections.add(JacksonMongoCollection.builder().build(database, "todos", Todo.class));
+    }
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Start tailing the change stream and sending heartbeats to subscribers.
+   */
+  public void start() {
+    if (!running.compareAndSet(false, true)) {
+      return;
+    }
+    for (JacksonMongoCollection<Todo> todoCollection : todoCollections) {
+      watching.incrementAndGet();
+      Thread watcher = new Thread(() -> {
+        try {
+          watch(todoCollection);
+        } finally {
+          watching.decrementAndGet();
+        }
+      }, "todo-change-feed");
+      watcher.setDaemon(true);
+      watcher.start();
+    }
+    heartbeat.scheduleAtFixedRate(this::sendHeartbeats, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stop tailing the change stream and release all subscribers.
+   */
+  public void stop() {
+    running.set(false);
+    cursors.forEach(MongoCursor::close);
+    heartbeat.shutdownNow();
+    delivery.shutdownNow();
+    subscribers.clear();
+  }
+
+  /**
+   * Register a new SSE client. The `owner`, `category`, and `status`
+   * query parameters of the request, when present, restrict which
+   * inserts the client is sent.
+   *
+   * @param client the Javalin SSE client to push events to
+   */
+  public void subscribe(SseClient client) {
+    Runnable unsubscribe = subscribe(new Sink() {
+      @Override
+      public void event(String type, Object data) {
+        client.sendEvent(type, data);
+      }
+
+      @Override
+      public void comment(String comment) {
+        client.sendComment(comment);
+      }
+    }, client.ctx.queryParam(OWNER_KEY), client.ctx.queryParam(CATEGORY_KEY), client.ctx.queryParam(STATUS_KEY));
+    client.onClose(unsubscribe);
+  }
+
+  /**
+   * Register a subscriber with the given filters, any of which may be
+   * `null`.
+   *
+   * @param sink where to send the subscriber's events
+   * @return what to run when the subscriber goes away
+   */
+  Runnable subscribe(Sink sink, String owner, String category, String status) {
+    Subscriber subscriber = new Subscriber(sink, owner, category, status);
+    subscribers.add(subscriber);
+    return () -> subscribers.remove(subscriber);
+  }
+
+  /**
+   * The number of clients currently subscribed to the feed.
+   *
+   * @return the number of subscribers
+   */
+  public int subscriberCount() {
+    return subscribers.size();
+  }
+
+  /**
+   * How many change streams (one per shard) the feed is still tailing or
+   * trying to open; 0 once it's given up because Mongo doesn't support
+   * them.
+   *
+   * @return the number of streams
+   */
+  public int watching() {
+    return watching.get();
+  }
+
+  private void watch(JacksonMongoCollection<Todo> todoCollection) {
+    BsonDocument resumeToken = null;
+    // Whether a stream that was delivering broke and couldn't be resumed,
+    // so subscribers may have missed changes
+    boolean missed = false;
+    long retryDelay = RETRY_DELAY_MILLIS;
+    while (running.get()) {
+      boolean open = false;
+      try {
+        ChangeStreamIterable<Todo> stream = todoCollection
+            .watch(List.of(Aggregates.match(in("operationType", "insert", "delete"))))
+            .maxAwaitTime(AWAIT_SECONDS, TimeUnit.SECONDS);
+        if (resumeToken != null) {
+          stream = stream.resumeAfter(resumeToken);
+        }
+        try (MongoChangeStreamCursor<ChangeStreamDocument<Todo>> changes = stream.cursor()) {
+          open = true;
+          retryDelay = RETRY_DELAY_MILLIS;
+          if (missed) {
+            // Now that we're watching again, anything they reload is
+            // either in it or will come through this stream
+            subscribers.forEach(Subscriber::requireResync);
+            missed = false;
+          }
+          cursors.add(changes);
+          try {
+            while (running.get()) {
+              ChangeStreamDocument<Todo> change = changes.tryNext();
+              if (change != null) {
+                publish(change);
+              }
+              // Moves on even when nothing changed, so we can resume
+              // from here rather than from the last change
+              if (changes.getResumeToken() != null) {
+                resumeToken = changes.getResumeToken();
+              }
+            }
+          } finally {
+            cursors.remove(changes);
+          }
+        }
+      } catch (MongoException e) {
+        if (!running.get()) {
+          return;
+        }
+        if (isUnsupported(e)) {
+          LOGGER.warn("This Mongo doesn't support change streams (they need a replica set), so "
+              + "/api/todos/stream will only send heartbeats: {}", e.getMessage());
+          return;
+        }
+        LOGGER.warn("Todo change stream failed, retrying in {} ms: {}", retryDelay, e.getMessage());
+        if (!open && resumeToken != null) {
+          // Resuming failed (e.g., the resume token fell off the oplog),
+          // so start over, and have everyone reload once we're back
+          resumeToken = null;
+          missed = true;
+        } else if (open && resumeToken == null) {
+          missed = true;
+        }
+        try {
+          Thread.sleep(retryDelay);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+      }
+    }
+  }
+
+  /**
+   * Whether an error means this Mongo can't do change streams at all.
+   *
+   * @param e the error
+   * @return whether to give up
+   */
+  static boolean isUnsupported(MongoException e) {
+    return e instanceof MongoCommandException && UNSUPPORTED.contains(e.getCode());
+  }
+
+  private void publish(ChangeStreamDocument<Todo> change) {
+    switch (change.getOperationType()) {
+      case INSERT:
+        publishInsert(change.getFullDocument());
+        break;
+      case DELETE:
+        publishDelete(change.getDocumentKey().getObjectId("_id").getValue().toHexString());
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Send an insert to the subscribers whose filters it matches.
+   *
+   * @param todo the new todo
+   */
+  void publishInsert(Todo todo) {
+    publish(new FeedEvent("insert", todo, null));
+  }
+
+  /**
+   * Send a delete to every subscriber.
+   *
+   * @param id the deleted todo's id
+   */
+  void publishDelete(String id) {
+    publish(new FeedEvent("delete", null, id));
+  }
+
+  private void publish(FeedEvent event) {
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.matches(event)) {
+        subscriber.enqueue(event);
+      }
+    }
+  }
+
+  private void sendHeartbeats() {
+    // Sending a comment is how we notice clients that went away
+    // without closing the connection.
+    for (Subscriber subscriber : subscribers) {
+      subscriber.enqueue(FeedEvent.HEARTBEAT);
+    }
+  }
+
+  private static ThreadFactory daemon(String name) {
+    return runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Where a subscriber's events go; the SSE client, outside of tests.
+   */
+  interface Sink {
+    /**
+     * Send an event.
+     *
+     * @param type the event's name
+     * @param data what to send as its JSON data
+     */
+    void event(String type, Object data);
+
+    /**
+     * Send a comment, which clients ignore.
+     *
+     * @param comment the comment
+     */
+    void comment(String comment);
+  }
+
+  /**
+   * A single change pushed to subscribers. Inserts carry the new todo,
+   * deletes only carry the id, since that's all the change stream knows
+   * about a deleted document.
+   */
+  private static final class FeedEvent {
+    static final FeedEvent HEARTBEAT = new FeedEvent("heartbeat", null, null);
+    static final FeedEvent RESYNC = new FeedEvent("resync", null, null);
+
+    private final String type;
+    private final Todo todo;
+    private final String id;
+
+    FeedEvent(String type, Todo todo, String id) {
+      this.type = type;
+      this.todo = todo;
+      this.id = id;
+    }
+  }
+
+  /**
+   * A connected SSE client, its filters, and its bounded event buffer.
+   * Owner and category match the way they do in `/api/todos`: from the
+   * start of the value, ignoring case.
+   */
+  private final class Subscriber {
+    private final Sink sink;
+    private final String owner;
+    private final String category;
+    private final String status;
+    private final Queue<FeedEvent> buffer;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean resync = new AtomicBoolean();
+
+    Subscriber(Sink sink, String owner, String category, String status) {
+      this.sink = sink;
+      this.owner = owner == null ? null : PrefixIndex.fold(owner);
+      this.category = category == null ? null : PrefixIndex.fold(category);
+      this.status = status;
+      this.buffer = new ArrayBlockingQueue<>(bufferSize);
+    }
+
+    boolean matches(FeedEvent event) {
+      // We don't know anything about a deleted todo except its id,
+      // so every subscriber gets every delete.
+      if (event.todo == null) {
+        return true;
+      }
+      return startsWith(event.todo.owner, owner)
+          && startsWith(event.todo.category, category)
+          && (status == null || status.equals(String.valueOf(event.todo.status)));
+    }
+
+    private boolean startsWith(String value, String foldedPrefix) {
+      return foldedPrefix == null || value != null && PrefixIndex.fold(value).startsWith(foldedPrefix);
+    }
+
+    void enqueue(FeedEvent event) {
+      if (!buffer.offer(event)) {
+        requireResync();
+      }
+      schedule();
+    }
+
+    void requireResync() {
+      buffer.clear();
+      resync.set(true);
+      schedule();
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        delivery.execute(this::drain);
+      }
+    }
+
+    private void drain() {
+      try {
+        if (resync.getAndSet(false)) {
+          buffer.clear();
+          send(FeedEvent.RESYNC);
+        }
+        FeedEvent event = buffer.poll();
+        while (event != null && !resync.get()) {
+          send(event);
+          event = buffer.poll();
+        }
+      } finally {
+        scheduled.set(false);
+      }
+      // Anything that arrived after we stopped polling still needs
+      // to go out.
+      if (!buffer.isEmpty() || resync.get()) {
+        schedule();
+      }
+    }
+
+    private void send(FeedEvent event) {
+      if (event == FeedEvent.HEARTBEAT) {
+        sink.comment("heartbeat");
+      } else if (event.todo != null) {
+        sink.event(event.type, event.todo);
+      } else {
+        sink.event(event.type, Map.of("id", Objects.requireNonNullElse(event.id, "")));
+      }
+    }
+  }
+}
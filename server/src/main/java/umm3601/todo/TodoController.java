@@ -2,29 +2,73 @@ package umm3601.todo;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
 import static com.mongodb.client.model.Filters.regex;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
 
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
 
+import io.javalin.core.validation.BodyValidator;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
+import umm3601.AccessLog;
+import umm3601.ApiJson;
+import umm3601.BsonExporter;
+import umm3601.CreationTime;
+import umm3601.IdCache;
+import umm3601.InvalidationBus;
+import umm3601.MongoPolicies;
+import umm3601.MultiGet;
+import umm3601.PrefixIndex;
+import umm3601.QueryLanguage;
+import umm3601.QueryLanguage.Type;
+import umm3601.ShadowFieldMigration;
+import umm3601.Shards;
 
 /**
  * Controller that manages requests for info about todos.
+ *
+ * The todos can be split across several databases (see `Shards`) by their
+ * owner. Adding a todo only touches its owner's shard, and so do lists,
+ * exports, counts, and bulk updates whose `q` parameter only matches exact
+ * owners (e.g., `q=owner:Fry AND status:true` or `q=owner in (Fry, Leela)`).
+ * Anything else, including the case-insensitive `owner` prefix parameter,
+ * goes to every shard at once.
  */
 public class TodoController {
 
@@ -32,8 +76,70 @@ public class TodoController {
   private static final String CATEGORY_KEY = "category";
   private static final String BODY_KEY = "contains";
   private static final String STATUS_KEY = "status";
+  private static final String BODY_FIELD = "body";
+  private static final String IDS_KEY = "ids";
+  private static final String OWNER_FOLDED = "ownerFolded";
+  private static final String CATEGORY_FOLDED = "categoryFolded";
+  private static final String PREFIX_KEY = "prefix";
+  private static final String QUERY_KEY = "q";
+  private static final int DEFAULT_COMPLETIONS = 10;
+  private static final int DEFAULT_IMPORT_BATCH_SIZE = 500;
+  private static final int MAX_IMPORT_BATCH_SIZE = 10_000;
 
-  private final JacksonMongoCollection<Todo> todoCollection;
+  // The rules every todo has to follow, whether it's added on its own,
+  // imported, or updated: the field, a check, and the message to give if
+  // it fails.
+  // added SupressWarnings for status check, simplified version that checkstyle suggested would not work
+  // The check is needed to ensure the correct boolean values are coming from the client
+  @SuppressWarnings("checkstyle:SimplifyBooleanExpression")
+  private static final List<Rule> RULES = List.of(
+      // Verify that the todo has a name that is not blank
+      new Rule(OWNER_KEY, todo -> todo.owner != null && todo.owner.length() > 0,
+          "Todo must have a non-empty todo owner"),
+      // Verify that the provided body is not blank
+      new Rule(BODY_FIELD, todo -> todo.body != null && todo.body.length() > 0,
+          "Todo must have a non-empty todo body"),
+      // Verify that the status is either true or false
+      new Rule(STATUS_KEY, todo -> todo.status == true || todo.status == false,
+          "Todo must have a legal todo status"),
+      // Verify that the todo has a category that is not blank
+      new Rule(CATEGORY_KEY, todo -> todo.category != null && todo.category.length() > 0,
+          "Todo must have a non-empty category name"));
+
+  private final Shards shards;
+
+  // The collection on each shard with the read preference or write
+  // concern each kind of operation should use; see `MongoPolicies`.
+  private final List<JacksonMongoCollection<Todo>> todoCollections = new ArrayList<>();
+  private final List<JacksonMongoCollection<Todo>> todoInsertCollections = new ArrayList<>();
+  private final List<JacksonMongoCollection<Todo>> todoDeleteCollections = new ArrayList<>();
+  private final List<JacksonMongoCollection<Todo>> todoUpdateCollections = new ArrayList<>();
+  private final List<TodoInsertBatcher> insertBatchers;
+  private final MongoPolicies policies;
+  private final long getMaxTimeMillis;
+  private final BsonExporter exporter;
+  private final TodoImporter importer;
+
+  // The distinct owners, for autocomplete
+  private final PrefixIndex ownerIndex;
+
+  // Backfill the folded shadow fields into todos written before we
+  // stored them, one per shard
+  private final List<ShadowFieldMigration> migrations = new ArrayList<>();
+
+  // Recently read todos by id, or `null` if caching is off
+  private final IdCache<Todo> cache;
+  private volatile InvalidationBus invalidations;
+  private final MultiGet<Todo> multiGet;
+
+  // The `q` parameter's language, over the fields clients see
+  private final QueryLanguage queries = new QueryLanguage("todos", Map.of(
+      "_id", Type.ID,
+      OWNER_KEY, Type.STRING,
+      STATUS_KEY, Type.BOOLEAN,
+      CATEGORY_KEY, Type.STRING,
+      BODY_FIELD, Type.STRING,
+      CreationTime.CREATED_AT, Type.CREATED));
 
   /**
    * Construct a controller for todos.
@@ -41,22 +147,179 @@ public class TodoController {
    * @param database the database containing todo data
    */
   public TodoController(MongoDatabase database) {
-    todoCollection = JacksonMongoCollection.builder().build(database, "todos", Todo.class);
+    this(database, MongoPolicies.defaults(), null);
+  }
+
+  /**
+   * Construct a controller for todos.
+   *
+   * @param database the database containing todo data
+   * @param policies the read preferences and write concerns to use
+   * @param insertBatcher the batcher to send new todos through, or `null`
+   *   to insert each todo on its own
+   */
+  public TodoController(MongoDatabase database, MongoPolicies policies, TodoInsertBatcher insertBatcher) {
+    this(database, policies, insertBatcher, null);
+  }
+
+  /**
+   * Construct a controller for todos.
+   *
+   * @param database the database containing todo data
+   * @param policies the read preferences and write concerns to use
+   * @param insertBatcher the batcher to send new todos through, or `null`
+   *   to insert each todo on its own
+   * @param cache the cache of todos by id to read through, or `null` for
+   *   none
+   */
+  public TodoController(MongoDatabase database, MongoPolicies policies, TodoInsertBatcher insertBatcher,
+      IdCache<Todo> cache) {
+    this(List.of(database), policies, insertBatcher == null ? null : List.of(insertBatcher), cache);
+  }
+
+  /**
+   * Construct a controller for todos split across several databases.
+   *
+   * @param databases the database for each shard, in shard order
+   * @param policies the read preferences and write concerns to use
+   * @param insertBatchers the batcher for each shard to send new todos
+   *   through, or `null` to insert each todo on its own
+   * @param cache the cache of todos by id to read through, or `null` for
+   *   none
+   */
+  public TodoController(List<MongoDatabase> databases, MongoPolicies policies, List<TodoInsertBatcher> insertBatchers,
+      IdCache<Todo> cache) {
+    shards = new Shards(databases.size());
+    List<MongoCollection<Document>> documents = new ArrayList<>();
+    List<MongoCollection<RawBsonDocument>> rawDocuments = new ArrayList<>();
+    for (int shard = 0; shard < databases.size(); shard++) {
+      MongoDatabase database = databases.get(shard);
+      JacksonMongoCollection<Todo> todos = JacksonMongoCollection.builder().build(database, "todos", Todo.class);
+      todoCollections.add(todos.withReadPreference(policies.readPreference("todos.get")));
+      todoInsertCollections.add(todos.withWriteConcern(policies.writeConcern("todos.insert")));
+      todoDeleteCollections.add(todos.withWriteConcern(policies.writeConcern("todos.delete")));
+      todoUpdateCollections.add(todos.withWriteConcern(policies.writeConcern("todos.update")));
+      documents.add(database.getCollection("todos").withReadPreference(policies.readPreference("todos.list")));
+      rawDocuments.add(database.getCollection("todos", RawBsonDocument.class)
+          .withReadPreference(policies.readPreference("todos.list")));
+      migrations.add(new ShadowFieldMigration(databases.size() == 1 ? "todos.folded" : "todos.folded@" + shard,
+          database.getCollection("todos").withWriteConcern(policies.writeConcern("todos.insert")),
+          database.getCollection("migrations"),
+          Map.of(OWNER_FOLDED, OWNER_KEY, CATEGORY_FOLDED, CATEGORY_KEY)));
+    }
+    this.insertBatchers = insertBatchers;
+    this.policies = policies;
+    this.cache = cache;
+    multiGet = new MultiGet<>("todo", shards, todoCollections, todo -> todo._id, cache);
+
+    getMaxTimeMillis = policies.maxTimeMillis("todos.get");
+    exporter = new BsonExporter(shards, rawDocuments,
+        List.of("_id", OWNER_KEY, STATUS_KEY, CATEGORY_KEY, BODY_FIELD, CreationTime.CREATED_AT),
+        Map.of(STATUS_KEY, false), policies, "todos.list");
+    importer = new TodoImporter(todoInsertCollections, todo -> shards.shardFor(todo.owner), ApiJson.objectMapper(),
+        this::inserted);
+    ownerIndex = new PrefixIndex(documents, OWNER_KEY);
+  }
+
+  /**
+   * The migrations, one per shard, that fill in the folded shadow fields
+   * of older todos. Filters work without them, just more slowly.
+   *
+   * @return the migrations
+   */
+  public List<ShadowFieldMigration> migrations() {
+    return migrations;
+  }
+
+  /**
+   * The language of the `q` parameter of the todo list, which keeps the
+   * compiled queries.
+   *
+   * @return the query language
+   */
+  public QueryLanguage queries() {
+    return queries;
+  }
+
+  /**
+   * Keep this server's cache and owner index of todos in step with
+   * other servers', by telling them about every todo we change and
+   * listening for the ones they change.
+   *
+   * @param bus the bus the servers share
+   */
+  public void shareInvalidations(InvalidationBus bus) {
+    bus.register("todos", this::changedElsewhere, this::flushCaches);
+    invalidations = bus;
+  }
+
+  private void changedElsewhere(List<String> ids, Map<String, List<String>> added) {
+    if (cache != null) {
+      ids.forEach(cache::invalidate);
+    }
+    // Another server's deletes aren't passed on, so owners it removed
+    // are still suggested until the index is next loaded
+    added.getOrDefault(OWNER_KEY, List.of()).forEach(ownerIndex::add);
+  }
+
+  private void flushCaches() {
+    if (cache != null) {
+      cache.clear();
+    }
+    ownerIndex.unload();
+  }
+
+  /**
+   * Tell the other servers, if there are any, that todos changed.
+   *
+   * @param ids the todos that changed or were deleted
+   * @param values a todo with any new owner, or `null`
+   */
+  private void changed(List<String> ids, Todo values) {
+    InvalidationBus bus = invalidations;
+    if (bus == null) {
+      return;
+    }
+    Map<String, List<String>> added = new HashMap<>();
+    if (values != null && values.owner != null) {
+      added.put(OWNER_KEY, List.of(values.owner));
+    }
+    bus.publish("todos", ids, added);
+  }
+
+  /**
+   * Create the Mongo indexes the todo filters rely on, if they don't
+   * already exist.
+   */
+  public void createIndexes() {
+    for (JacksonMongoCollection<Todo> todoCollection : todoCollections) {
+      todoCollection.createIndex(Indexes.ascending(OWNER_KEY));
+      todoCollection.createIndex(Indexes.ascending(CATEGORY_KEY));
+      todoCollection.createIndex(Indexes.ascending(OWNER_FOLDED));
+      todoCollection.createIndex(Indexes.ascending(CATEGORY_FOLDED));
+    }
   }
 
   /**
    * Get the single todo specified by the `id` parameter in the request.
+   * The id doesn't say which shard the todo is on, so every shard is asked.
    *
    * @param ctx a Javalin HTTP context
    */
   public void getTodo(Context ctx) {
     String id = ctx.pathParam("id");
-    Todo todo;
+    Todo todo = cache == null ? null : cache.get(id);
 
-    try {
-      todo = todoCollection.find(eq("_id", new ObjectId(id))).first();
-    } catch (IllegalArgumentException e) {
-      throw new BadRequestResponse("The requested todo id wasn't a legal Mongo Object ID.");
+    if (todo == null) {
+      long stamp = cache == null ? 0 : cache.stamp();
+      ObjectId objectId = objectId(id);
+      todo = firstFound(policies.read("todos.get", preference -> shards.fanOut(shards.all(),
+          shard -> todoCollections.get(shard).withReadPreference(preference).find(eq("_id", objectId))
+              .maxTime(getMaxTimeMillis, TimeUnit.MILLISECONDS)
+              .first())));
+      if (todo != null && cache != null) {
+        cache.put(todo._id, todo, stamp);
+      }
     }
     if (todo == null) {
       throw new NotFoundResponse("The requested todo was not found");
@@ -71,30 +334,324 @@ public class TodoController {
    * @param ctx a Javalin HTTP context
    */
   public void deleteTodo(Context ctx) {
-    String id = ctx.pathParam("id");
-    todoCollection.deleteOne(eq("_id", new ObjectId(id)));
+    ObjectId id = new ObjectId(ctx.pathParam("id"));
+    // Find out what we deleted so we can keep the owner index current
+    Todo deleted = firstFound(shards.fanOut(shards.all(),
+        shard -> todoDeleteCollections.get(shard).findOneAndDelete(eq("_id", id),
+            new FindOneAndDeleteOptions().projection(include(OWNER_KEY)))));
+    if (cache != null) {
+      cache.invalidate(id.toHexString());
+    }
+    if (deleted != null) {
+      ownerIndex.remove(deleted.owner);
+    }
+    changed(List.of(id.toHexString()), null);
   }
 
   /**
-   * Get a JSON response with a list of all the todos.
+   * Change some of the fields of the todo specified by the `id` parameter
+   * in the request, in one atomic update: the request body has just the
+   * fields to change, e.g., `{"status": true}`, each checked with the same
+   * rules as `addNewTodo`. The response is the updated todo.
+   *
+   * If a new owner puts the todo on a different shard, it's copied to that
+   * shard and then deleted from the old one, so it briefly shows up in
+   * lists twice. If it can't be deleted from the old shard, the copy is
+   * deleted again, so it's left where it was (with the update applied).
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void updateTodo(Context ctx) {
+    ObjectId id = objectId(ctx.pathParam("id"));
+    ObjectNode patch = ctx.bodyValidator(ObjectNode.class)
+        .check(p -> p.size() > 0, "The update must change at least one field")
+        .get();
+
+    Todo changes = new Todo();
+    List<Bson> updates = new ArrayList<>();
+    patch.fields().forEachRemaining(field -> updates.add(change(changes, field.getKey(), field.getValue())));
+    for (Rule rule : RULES) {
+      if (patch.has(rule.field) && !rule.check.test(changes)) {
+        throw new BadRequestResponse(rule.message);
+      }
+    }
+    // Keep the shadow fields in step; see `prepareForInsert`
+    if (patch.has(OWNER_KEY)) {
+      updates.add(set(OWNER_FOLDED, PrefixIndex.fold(changes.owner)));
+    }
+    if (patch.has(CATEGORY_KEY)) {
+      updates.add(set(CATEGORY_FOLDED, PrefixIndex.fold(changes.category)));
+    }
+
+    // The old owner, to take out of the owner index. If someone else
+    // changes it in the meantime the index is off by one name, which only
+    // matters to autocomplete.
+    Todo before = patch.has(OWNER_KEY)
+        ? firstFound(shards.fanOut(shards.all(), shard -> todoUpdateCollections.get(shard)
+            .find(eq("_id", id)).projection(include(OWNER_KEY)).first()))
+        : null;
+    List<Todo> afters = shards.fanOut(shards.all(),
+        shard -> todoUpdateCollections.get(shard).findOneAndUpdate(eq("_id", id), combine(updates),
+            new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)));
+    int from = 0;
+    while (from < afters.size() && afters.get(from) == null) {
+      from++;
+    }
+    if (from == afters.size()) {
+      throw new NotFoundResponse("The requested todo was not found");
+    }
+    Todo todo = afters.get(from);
+    if (cache != null) {
+      cache.invalidate(id.toHexString());
+    }
+    if (patch.has(OWNER_KEY)) {
+      ownerIndex.remove(before == null ? null : before.owner);
+      ownerIndex.add(todo.owner);
+    }
+    int to = shards.shardFor(todo.owner);
+    if (to != from) {
+      move(todo, from, to);
+    }
+    changed(List.of(id.toHexString()), changes);
+    ctx.status(HttpCode.OK);
+    ctx.json(todo);
+  }
+
+  /**
+   * Set the status of many todos at once. The request body has the new
+   * status and, optionally, the ids of the todos to change, e.g.,
+   * `{"status": true, "ids": [...]}`. Without ids, every todo matching the
+   * same filters as `getTodos` (`owner`, `category`, `contains`, and
+   * `status`, from the query string) is changed; at least one of them is
+   * required, so nobody changes every todo by accident.
+   *
+   * The response says how many todos matched and how many of those
+   * actually changed.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void updateTodos(Context ctx) {
+    ObjectNode request = ctx.bodyValidator(ObjectNode.class).get();
+    if (!request.path(STATUS_KEY).isBoolean()) {
+      throw new BadRequestResponse(ruleFor(STATUS_KEY).message);
+    }
+    request.fieldNames().forEachRemaining(field -> {
+      if (!field.equals(STATUS_KEY) && !field.equals(IDS_KEY)) {
+        throw new BadRequestResponse("Only the status of todos can be changed in bulk, not " + field);
+      }
+    });
+
+    Bson filter;
+    List<String> ids = new ArrayList<>();
+    if (request.has(IDS_KEY)) {
+      request.get(IDS_KEY).forEach(id -> ids.add(id.asText()));
+      if (ids.size() > MultiGet.MAX_IDS) {
+        throw new BadRequestResponse("Can't update more than " + MultiGet.MAX_IDS + " todos by id at once");
+      }
+      List<ObjectId> objectIds = new ArrayList<>();
+      ids.forEach(id -> objectIds.add(objectId(id)));
+      filter = in("_id", objectIds);
+    } else {
+      filter = listFilter(ctx);
+      if (filter instanceof Document && ((Document) filter).isEmpty()) {
+        throw new BadRequestResponse("A bulk update needs a list of ids or at least one filter");
+      }
+    }
+
+    Bson update = set(STATUS_KEY, request.get(STATUS_KEY).booleanValue());
+    Bson shardFilter = filter;
+    long matched = 0;
+    long modified = 0;
+    for (UpdateResult result : shards.fanOut(shardsMatching(filter),
+        shard -> todoUpdateCollections.get(shard).updateMany(shardFilter, update))) {
+      matched += result.getMatchedCount();
+      modified += result.getModifiedCount();
+    }
+    List<String> changedIds = new ArrayList<>();
+    ids.forEach(id -> changedIds.add(new ObjectId(id).toHexString()));
+    if (cache != null) {
+      if (ids.isEmpty()) {
+        // We don't know which todos changed
+        cache.clear();
+      } else {
+        changedIds.forEach(cache::invalidate);
+      }
+    }
+    InvalidationBus bus = invalidations;
+    if (bus != null && ids.isEmpty()) {
+      bus.publishFlush("todos");
+    } else {
+      changed(changedIds, null);
+    }
+    ctx.status(HttpCode.OK);
+    ctx.json(Map.of("matched", matched, "modified", modified));
+  }
+
+  /**
+   * Record one field of an update in `changes`.
+   *
+   * @return the `$set` for the field
+   */
+  private static Bson change(Todo changes, String field, JsonNode value) {
+    switch (field) {
+      case OWNER_KEY:
+        changes.owner = value.isTextual() ? value.textValue() : null;
+        return set(field, changes.owner);
+      case BODY_FIELD:
+        changes.body = value.isTextual() ? value.textValue() : null;
+        return set(field, changes.body);
+      case CATEGORY_KEY:
+        changes.category = value.isTextual() ? value.textValue() : null;
+        return set(field, changes.category);
+      case STATUS_KEY:
+        if (!value.isBoolean()) {
+          throw new BadRequestResponse(ruleFor(STATUS_KEY).message);
+        }
+        changes.status = value.booleanValue();
+        return set(field, changes.status);
+      default:
+        throw new BadRequestResponse("Todos don't have a field named " + field + " that can be changed");
+    }
+  }
+
+  /**
+   * Move a todo from one shard to another: copy it, then delete the
+   * original. If the original can't be deleted (or was deleted by someone
+   * else meanwhile) the copy is deleted too, so the todo is never left on
+   * two shards (or brought back).
+   */
+  private void move(Todo todo, int from, int to) {
+    ObjectId id = new ObjectId(todo._id);
+    // In case it was written before we stored the shadow fields
+    prepareForInsert(todo);
+    todoInsertCollections.get(to).insertOne(todo);
+    DeleteResult deleted;
+    try {
+      deleted = todoDeleteCollections.get(from).deleteOne(eq("_id", id));
+    } catch (MongoException e) {
+      todoDeleteCollections.get(to).deleteOne(eq("_id", id));
+      throw e;
+    }
+    if (deleted.getDeletedCount() == 0) {
+      todoDeleteCollections.get(to).deleteOne(eq("_id", id));
+      throw new NotFoundResponse("The requested todo was deleted while it was being updated");
+    }
+  }
+
+  private static Todo firstFound(List<Todo> fromShards) {
+    for (Todo todo : fromShards) {
+      if (todo != null) {
+        return todo;
+      }
+    }
+    return null;
+  }
+
+  private static ObjectId objectId(String id) {
+    if (!ObjectId.isValid(id)) {
+      throw new BadRequestResponse("The requested todo id wasn't a legal Mongo Object ID.");
+    }
+    return new ObjectId(id);
+  }
+
+  /**
+   * Get a JSON list of the distinct todo owners that start with the
+   * `prefix` query parameter, ignoring case, for autocomplete. At most
+   * `limit` (default 10) owners are returned.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getOwners(Context ctx) {
+    String prefix = Objects.requireNonNullElse(ctx.queryParam(PREFIX_KEY), "");
+    int limit = ctx.queryParamAsClass("limit", Integer.class).getOrDefault(DEFAULT_COMPLETIONS);
+    ctx.json(ownerIndex.complete(prefix, limit));
+  }
+
+  /**
+   * Get a JSON response with a list of all the todos. With an `ids`
+   * query parameter (a comma-separated list), get just those todos
+   * instead; see `MultiGet`.
    *
    * @param ctx a Javalin HTTP context
+   * @throws IOException if transcoding the results fails
    */
-  public void getTodos(Context ctx) {
+  public void getTodos(Context ctx) throws IOException {
+    if (ctx.queryParam("ids") != null) {
+      multiGet.fromQuery(ctx);
+      return;
+    }
+    Bson filter = listFilter(ctx);
 
+    // Sort the results. Use the `sortby` query param (default "name")
+    // as the field to sort by, and the query param `sortorder` (default
+    // "asc") to specify the sort order.
+    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), OWNER_KEY);
+    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
+
+    // Straight from BSON to JSON, without making a POJO of each one
+    exporter.list(ctx, shardsMatching(filter), filter, sortBy, sortOrder.equals("desc"));
+  }
+
+  /**
+   * Get the todos whose ids are listed in the body of the request, as
+   * `{"ids": [...]}`; see `MultiGet`. This is for lists of ids too long to
+   * put in the URL of `GET /api/todos?ids=...`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getTodosById(Context ctx) {
+    multiGet.fromBody(ctx);
+  }
+
+  /**
+   * Stream all the todos matching the same filters as `getTodos`, as
+   * NDJSON or CSV; see `BsonExporter`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if the client goes away
+   */
+  public void exportTodos(Context ctx) throws IOException {
+    Bson filter = listFilter(ctx);
+    exporter.export(ctx, shardsMatching(filter), filter);
+  }
+
+  /**
+   * Get how many of the todos matching the same filters as `getTodos`
+   * were added on each day; see `BsonExporter.countPerDay`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getTodosCreatedPerDay(Context ctx) {
+    Bson filter = listFilter(ctx);
+    exporter.countPerDay(ctx, shardsMatching(filter), filter);
+  }
+
+  /**
+   * Build the filter for the todo list from the request's query
+   * parameters.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the filter
+   */
+  private Bson listFilter(Context ctx) {
     List<Bson> filters = new ArrayList<>(); // start with a blank document
 
+    // Owner and category match case-insensitively from the start of the
+    // value, mostly on the indexed shadow fields; see
+    // `PrefixIndex.prefixFilter`. Any owner could match a prefix, so these
+    // go to every shard.
     if (ctx.queryParamMap().containsKey(OWNER_KEY)) {
-      filters.add(regex(OWNER_KEY, Pattern.quote(ctx.queryParam(OWNER_KEY)), "i"));
+      filters.add(PrefixIndex.prefixFilter(OWNER_KEY, OWNER_FOLDED, ctx.queryParam(OWNER_KEY)));
     }
 
     if (ctx.queryParamMap().containsKey(BODY_KEY)) {
-      System.err.println(regex(BODY_KEY, Pattern.quote(ctx.queryParam(BODY_KEY)), "i"));
-      filters.add(regex("body", Pattern.quote(ctx.queryParam(BODY_KEY)), "i"));
+      Bson bodyFilter = regex(BODY_FIELD, Pattern.quote(ctx.queryParam(BODY_KEY)), "i");
+      AccessLog.note(ctx, "containsFilter", bodyFilter);
+      filters.add(bodyFilter);
     }
 
     if (ctx.queryParamMap().containsKey(CATEGORY_KEY)) {
-      filters.add(regex(CATEGORY_KEY, Pattern.quote(ctx.queryParam(CATEGORY_KEY)), "i"));
+      filters.add(PrefixIndex.prefixFilter(CATEGORY_KEY, CATEGORY_FOLDED, ctx.queryParam(CATEGORY_KEY)));
     }
 
     if (ctx.queryParamMap().containsKey(STATUS_KEY)) {
@@ -104,15 +661,67 @@ public class TodoController {
       Boolean targetStatus = ctx.queryParamAsClass(STATUS_KEY, Boolean.class).get();
       filters.add(eq(STATUS_KEY, targetStatus));
     }
-    // Sort the results. Use the `sortby` query param (default "name")
-    // as the field to sort by, and the query param `sortorder` (default
-    // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), OWNER_KEY);
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
 
-    ctx.json(todoCollection.find(filters.isEmpty() ? new Document() : and(filters))
-        .sort(sortOrder.equals("desc") ? Sorts.descending(sortBy) : Sorts.ascending(sortBy))
-        .into(new ArrayList<>()));
+    // `createdAfter` and `createdBefore`, as a range on `_id`
+    CreationTime.addFilters(ctx, filters);
+
+    // Anything else, in the query language; see `QueryLanguage`
+    if (ctx.queryParam(QUERY_KEY) != null) {
+      filters.add(queries.compile(ctx.queryParam(QUERY_KEY)));
+    }
+    return filters.isEmpty() ? new Document() : and(filters);
+  }
+
+  /**
+   * The shards that can hold todos matching a filter: just the owners'
+   * shards if it only matches exact owners, or else every shard.
+   *
+   * @param filter the filter
+   * @return the shards' positions
+   */
+  private List<Integer> shardsMatching(Bson filter) {
+    BsonDocument document = filter.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+    Set<String> owners = exactValues(document, OWNER_KEY);
+    return owners == null ? shards.all() : shards.shardsFor(owners);
+  }
+
+  // The only values a filter lets a field have, going by a condition on
+  // the field at the top level or in an `$and`, or `null` if we can't tell
+  private static Set<String> exactValues(BsonDocument filter, String field) {
+    Set<String> values = filter.containsKey(field) ? exactValues(filter.get(field)) : null;
+    if (values == null && filter.isArray("$and")) {
+      for (BsonValue term : filter.getArray("$and")) {
+        values = term.isDocument() ? exactValues(term.asDocument(), field) : null;
+        if (values != null) {
+          break;
+        }
+      }
+    }
+    return values;
+  }
+
+  private static Set<String> exactValues(BsonValue condition) {
+    if (condition.isString()) {
+      return Set.of(condition.asString().getValue());
+    }
+    if (!condition.isDocument() || condition.asDocument().size() != 1) {
+      return null;
+    }
+    BsonDocument operator = condition.asDocument();
+    if (operator.isString("$eq")) {
+      return Set.of(operator.getString("$eq").getValue());
+    }
+    if (!operator.isArray("$in") || operator.getArray("$in").isEmpty()) {
+      return null;
+    }
+    Set<String> values = new HashSet<>();
+    for (BsonValue value : operator.getArray("$in")) {
+      if (!value.isString()) {
+        return null;
+      }
+      values.add(value.asString().getValue());
+    }
+    return values;
   }
 
   /**
@@ -120,22 +729,96 @@ public class TodoController {
    *
    * @param ctx a Javalin HTTP context
    */
-   // added SupressWarnings for status check, simplified version that checkstyle suggested would not work
-   // The check is needed to ensure the correct boolean values are coming from the client
-  @SuppressWarnings("checkstyle:SimplifyBooleanExpression")
   public void addNewTodo(Context ctx) {
-    Todo newTodo = ctx.bodyValidator(Todo.class)
-        // Verify that the todo has a name that is not blank
-        .check(todo -> todo.owner != null && todo.owner.length() > 0, "Todo must have a non-empty todo owner")
-        // Verify that the provided body is not blank
-        .check(todo -> todo.body != null && todo.body.length() > 0, "Todo must have a non-empty todo body")
-        // Verify that the status is either true or false
-        .check(todo -> todo.status == true || todo.status == false, "Todo must have a legal todo status")
-        // Verify that the todo has a category that is not blank
-        .check(todo -> todo.category != null && todo.category.length() > 0, "Todo must have a non-empty category name")
-        .get();
-    todoCollection.insertOne(newTodo);
+    BodyValidator<Todo> validator = ctx.bodyValidator(Todo.class);
+    for (Rule rule : RULES) {
+      validator = validator.check(todo -> rule.check.test(todo), rule.message);
+    }
+    Todo newTodo = validator.get();
+    prepareForInsert(newTodo);
+    int shard = shards.shardFor(newTodo.owner);
+    if (insertBatchers != null) {
+      insertBatchers.get(shard).insert(newTodo);
+    } else {
+      todoInsertCollections.get(shard).insertOne(newTodo);
+    }
+    inserted(newTodo);
     ctx.status(HttpCode.OK);
     ctx.json(Map.of("id", newTodo._id));
   }
+
+  /**
+   * Import todos from the request body, which is either NDJSON (one todo
+   * per line) or a JSON array of todos, checking each with the same rules
+   * as `addNewTodo`; see `TodoImporter`. The response summarizes how many
+   * were read, inserted, and rejected, and why. It's a `400` if the JSON
+   * was malformed, or a `503` if Mongo failed to write a batch, so the
+   * import stopped early.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if reading the request fails
+   */
+  public void importTodos(Context ctx) throws IOException {
+    int batchSize = ctx.queryParamAsClass("batchSize", Integer.class)
+        .check(n -> n > 0 && n <= MAX_IMPORT_BATCH_SIZE, "batchSize must be between 1 and " + MAX_IMPORT_BATCH_SIZE)
+        .getOrDefault(DEFAULT_IMPORT_BATCH_SIZE);
+    Map<String, Object> summary = importer.importFrom(ctx.req.getInputStream(), batchSize);
+    if (Boolean.TRUE.equals(summary.get("complete"))) {
+      ctx.status(HttpCode.OK);
+    } else if (Boolean.TRUE.equals(summary.get("writeFailed"))) {
+      ctx.status(HttpCode.SERVICE_UNAVAILABLE);
+    } else {
+      ctx.status(HttpCode.BAD_REQUEST);
+    }
+    ctx.json(summary);
+  }
+
+  /**
+   * Check a new todo against the rules in `RULES`.
+   *
+   * @param todo the todo to check
+   * @return the message for the first rule it breaks, or `null` if it's OK
+   */
+  static String problemWith(Todo todo) {
+    for (Rule rule : RULES) {
+      if (!rule.check.test(todo)) {
+        return rule.message;
+      }
+    }
+    return null;
+  }
+
+  private static Rule ruleFor(String field) {
+    return RULES.stream().filter(rule -> rule.field.equals(field)).findFirst().orElseThrow();
+  }
+
+  /**
+   * Fill in the fields of a new todo that the server maintains.
+   *
+   * @param todo the todo about to be inserted
+   */
+  static void prepareForInsert(Todo todo) {
+    todo.ownerFolded = PrefixIndex.fold(todo.owner);
+    todo.categoryFolded = PrefixIndex.fold(todo.category);
+  }
+
+  private void inserted(Todo todo) {
+    ownerIndex.add(todo.owner);
+    changed(List.of(), todo);
+  }
+
+  /**
+   * A rule about one of a todo's fields.
+   */
+  private static final class Rule {
+    private final String field;
+    private final Predicate<Todo> check;
+    private final String message;
+
+    Rule(String field, Predicate<Todo> check, String message) {
+      this.field = field;
+      this.check = check;
+      this.message = message;
+    }
+  }
 }
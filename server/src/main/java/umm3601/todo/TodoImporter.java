@@ -0,0 +1,259 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+
+import org.mongojack.JacksonMongoCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports todos from a stream of JSON, either NDJSON (one todo per line)
+ * or a single JSON array of todos, in constant memory however big the
+ * stream is.
+ *
+ * The stream is parsed a record at a time with Jackson's streaming
+ * parser. Each record is checked with the same rules as `addNewTodo`,
+ * and the good ones are written with an unordered `insertMany` every
+ * `batchSize` records. The write happens on the thread that's reading, so
+ * while Mongo is busy with a batch we aren't reading any more of the
+ * request, and TCP flow control pushes back on the client; we never hold
+ * more than one batch.
+ *
+ * A record that isn't a valid todo is skipped and reported. JSON that
+ * can't be parsed at all ends the import, but everything before it has
+ * already been written; the summary says how far it got so the client can
+ * resume from there. So does a batch that Mongo fails to write (e.g.,
+ * because it can't be reached); the records it failed on aren't counted
+ * as inserted, though some of them may have been.
+ */
+public class TodoImporter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TodoImporter.class);
+
+  // Only the first few problems are reported in detail, so a bad file
+  // can't make the summary grow without bound
+  private static final int MAX_REPORTED_ERRORS = 100;
+  private static final long PROGRESS_EVERY = 10_000;
+
+  private final List<JacksonMongoCollection<Todo>> todoCollections;
+  private final ToIntFunction<Todo> shardOf;
+  private final ObjectMapper objectMapper;
+  private final Consumer<Todo> onInserted;
+
+  /**
+   * Construct an importer.
+   *
+   * @param todoCollection the collection to insert into
+   * @param objectMapper how to turn JSON records into todos
+   * @param onInserted called with each todo once it's been inserted
+   */
+  public TodoImporter(JacksonMongoCollection<Todo> todoCollection, ObjectMapper objectMapper,
+      Consumer<Todo> onInserted) {
+    this(List.of(todoCollection), todo -> 0, objectMapper, onInserted);
+  }
+
+  /**
+   * Construct an importer for todos split across shards (see
+   * `umm3601.Shards`). Each batch is split up by shard and written to each
+   * shard separately.
+   *
+   * @param todoCollections the collection on each shard, in shard order
+   * @param shardOf which shard a todo goes in
+   * @param objectMapper how to turn JSON records into todos
+   * @param onInserted called with each todo once it's been inserted
+   */
+  public TodoImporter(List<JacksonMongoCollection<Todo>> todoCollections, ToIntFunction<Todo> shardOf,
+      ObjectMapper objectMapper, Consumer<Todo> onInserted) {
+    this.todoCollections = todoCollections;
+    this.shardOf = shardOf;
+    this.objectMapper = objectMapper;
+    this.onInserted = onInserted;
+  }
+
+  /**
+   * Import every todo in `in`.
+   *
+   * @param in the JSON to import
+   * @param batchSize how many todos to write at a time
+   * @return a summary of the import: how many records were read,
+   *   inserted, and rejected, the first few problems, and whether the
+   *   whole stream was read
+   * @throws IOException if reading the stream fails
+   */
+  public Map<String, Object> importFrom(InputStream in, int batchSize) throws IOException {
+    Progress progress = new Progress();
+    List<Todo> batch = new ArrayList<>(batchSize);
+    List<Long> batchRecords = new ArrayList<>(batchSize);
+
+    try (JsonParser parser = objectMapper.getFactory().createParser(in)) {
+      JsonToken token = parser.nextToken();
+      // A JSON array of todos is read element by element, just like NDJSON
+      boolean inArray = token == JsonToken.START_ARRAY;
+      if (inArray) {
+        token = parser.nextToken();
+      }
+      while (!progress.writeFailed && token != null && !(inArray && token == JsonToken.END_ARRAY)) {
+        long record = progress.read++;
+        long line = parser.getCurrentLocation().getLineNr();
+        JsonNode node = objectMapper.readTree(parser);
+        Todo todo = toTodo(node, record, line, progress);
+        if (todo != null) {
+          batch.add(todo);
+          batchRecords.add(record);
+        }
+        if (batch.size() >= batchSize) {
+          write(batch, batchRecords, progress);
+        }
+        if (progress.read % PROGRESS_EVERY == 0) {
+          progress.log();
+        }
+        token = parser.nextToken();
+      }
+      write(batch, batchRecords, progress);
+      progress.complete = !progress.writeFailed;
+    } catch (JsonParseException e) {
+      // Everything up to the bad JSON has been written; the rest is lost
+      write(batch, batchRecords, progress);
+      progress.error("Malformed JSON: " + e.getOriginalMessage(), progress.read, e.getLocation().getLineNr());
+    }
+    progress.log();
+    return progress.summary();
+  }
+
+  private Todo toTodo(JsonNode node, long record, long line, Progress progress) {
+    // E.g., `null`, which would convert to a null todo
+    if (!node.isObject()) {
+      progress.reject("Not a valid todo: expected a JSON object", record, line);
+      return null;
+    }
+    Todo todo;
+    try {
+      todo = objectMapper.treeToValue(node, Todo.class);
+    } catch (JsonProcessingException e) {
+      progress.reject("Not a valid todo: " + e.getOriginalMessage(), record, line);
+      return null;
+    }
+    String problem = TodoController.problemWith(todo);
+    if (problem != null) {
+      progress.reject(problem, record, line);
+      return null;
+    }
+    TodoController.prepareForInsert(todo);
+    return todo;
+  }
+
+  private void write(List<Todo> batch, List<Long> batchRecords, Progress progress) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    // Which of the batch goes to each shard, by position in the batch
+    Map<Integer, List<Integer>> byShard = new TreeMap<>();
+    for (int i = 0; i < batch.size(); i++) {
+      byShard.computeIfAbsent(shardOf.applyAsInt(batch.get(i)), shard -> new ArrayList<>()).add(i);
+    }
+    Set<Integer> written = new HashSet<>();
+    for (Map.Entry<Integer, List<Integer>> shard : byShard.entrySet()) {
+      List<Integer> positions = shard.getValue();
+      List<Todo> todos = new ArrayList<>(positions.size());
+      positions.forEach(i -> todos.add(batch.get(i)));
+      try {
+        todoCollections.get(shard.getKey()).insertMany(todos, new InsertManyOptions().ordered(false));
+        written.addAll(positions);
+      } catch (MongoBulkWriteException e) {
+        written.addAll(positions);
+        for (BulkWriteError error : e.getWriteErrors()) {
+          int position = positions.get(error.getIndex());
+          written.remove(position);
+          progress.reject(error.getMessage(), batchRecords.get(position), -1);
+        }
+      } catch (MongoException e) {
+        // We can't tell which of these were written, so stop here and let
+        // the client resume from the summary
+        LOGGER.warn("Todo import stopped: writing a batch failed", e);
+        progress.writeFailed = true;
+        progress.error("Writing the batch of records " + batchRecords.get(0) + " to "
+            + batchRecords.get(batch.size() - 1) + " failed, so the import stopped: " + e.getMessage(),
+            batchRecords.get(0), -1);
+        break;
+      }
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      if (written.contains(i)) {
+        progress.inserted++;
+        onInserted.accept(batch.get(i));
+      }
+    }
+    batch.clear();
+    batchRecords.clear();
+  }
+
+  /**
+   * How an import is going.
+   */
+  private static final class Progress {
+    private final long start = System.nanoTime();
+    private final List<Map<String, Object>> errors = new ArrayList<>();
+    private long read;
+    private long inserted;
+    private long rejected;
+    private boolean complete;
+    private boolean writeFailed;
+
+    void reject(String message, long record, long line) {
+      rejected++;
+      error(message, record, line);
+    }
+
+    void error(String message, long record, long line) {
+      if (errors.size() < MAX_REPORTED_ERRORS) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("record", record);
+        if (line > 0) {
+          error.put("line", line);
+        }
+        error.put("message", message);
+        errors.add(error);
+      }
+    }
+
+    void log() {
+      long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+      LOGGER.info("Todo import: {} read, {} inserted, {} rejected ({} records/s)",
+          read, inserted, rejected, read / seconds);
+    }
+
+    Map<String, Object> summary() {
+      Map<String, Object> summary = new LinkedHashMap<>();
+      summary.put("complete", complete);
+      summary.put("read", read);
+      summary.put("inserted", inserted);
+      summary.put("rejected", rejected);
+      summary.put("writeFailed", writeFailed);
+      summary.put("millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      summary.put("errors", errors);
+      return summary;
+    }
+  }
+}
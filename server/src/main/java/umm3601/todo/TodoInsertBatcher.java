@@ -0,0 +1,248 @@
+package umm3601.todo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+
+import org.bson.types.ObjectId;
+import org.mongojack.JacksonMongoCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import umm3601.Metrics;
+import umm3601.MongoTimer;
+
+/**
+ * Coalesces concurrent single-todo inserts into `insertMany` calls
+ * ("group commit").
+ *
+ * Callers block in `insert(Todo)` while a background thread collects
+ * everything that arrives within `windowMillis` of the first insert in
+ * a batch (or until `maxBatchSize` is reached) and writes it with one
+ * unordered `insertMany`. Each todo is given its `_id` before it's
+ * queued, so every caller gets back its own id, and write errors are
+ * handed back to just the caller whose todo caused them. Each caller is
+ * credited with the batch's time in Mongo (see `MongoTimer`).
+ */
+public class TodoInsertBatcher implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TodoInsertBatcher.class);
+
+  private static final long IDLE_POLL_MILLIS = 100;
+
+  private final JacksonMongoCollection<Todo> todoCollection;
+  private final long windowNanos;
+  private final int maxBatchSize;
+  private final BlockingQueue<PendingInsert> queue = new LinkedBlockingQueue<>();
+  private final Thread worker;
+
+  private final Metrics.Histogram batchSizes;
+  private final Metrics.Histogram addedLatencyMicros;
+  private final Metrics.Histogram insertMicros;
+  private final LongAdder roundTripsSaved;
+
+  private volatile boolean running = true;
+
+  /**
+   * Construct a batcher for the todos in the given database and start its
+   * background thread.
+   *
+   * @param database the database containing todo data
+   * @param writeConcern the write concern to use for each batch
+   * @param windowMillis how long to wait for more inserts after the first
+   *   insert of a batch arrives
+   * @param maxBatchSize the most todos to write in a single `insertMany`
+   * @param metrics where to record batch sizes and latencies
+   */
+  public TodoInsertBatcher(MongoDatabase database, WriteConcern writeConcern, long windowMillis, int maxBatchSize,
+      Metrics metrics) {
+    this.todoCollection = JacksonMongoCollection.builder().build(database, "todos", Todo.class)
+        .withWriteConcern(writeConcern);
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.maxBatchSize = maxBatchSize;
+    this.batchSizes = metrics.histogram("todos.insertBatch.size");
+    this.addedLatencyMicros = metrics.histogram("todos.insertBatch.addedLatencyMicros");
+    this.insertMicros = metrics.histogram("todos.insertBatch.insertManyMicros");
+    this.roundTripsSaved = metrics.counter("todos.insertBatch.roundTripsSaved");
+    metrics.gauge("todos.insertBatch.queued", queue::size);
+
+    this.worker = new Thread(this::run, "todo-insert-batcher");
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  /**
+   * Insert a todo as part of the next batch, blocking until that batch has
+   * been written. The todo's `_id` is filled in if it doesn't have one.
+   *
+   * @param todo the todo to insert
+   * @throws MongoException if the insert of this particular todo failed
+   */
+  public void insert(Todo todo) {
+    if (!running) {
+      throw new IllegalStateException("The todo insert batcher has been shut down");
+    }
+    if (todo._id == null) {
+      todo._id = new ObjectId().toHexString();
+    }
+    PendingInsert pending = new PendingInsert(todo);
+    queue.add(pending);
+    if (!running && queue.remove(pending)) {
+      // We lost a race with `close()`, and nobody is going to write this.
+      throw new IllegalStateException("The todo insert batcher has been shut down");
+    }
+    try {
+      pending.result.get();
+      MongoTimer.add(pending.mongoNanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MongoException("Interrupted while waiting for todo insert", e);
+    } catch (ExecutionException e) {
+      MongoTimer.add(pending.mongoNanos);
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new MongoException("Todo insert failed", e.getCause());
+    }
+  }
+
+  /**
+   * Stop accepting inserts, write whatever is already queued, and stop the
+   * background thread.
+   */
+  @Override
+  public void close() {
+    running = false;
+    try {
+      worker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    List<PendingInsert> leftovers = new ArrayList<>();
+    queue.drainTo(leftovers);
+    if (!leftovers.isEmpty()) {
+      write(leftovers);
+    }
+  }
+
+  private void run() {
+    while (running) {
+      try {
+        List<PendingInsert> batch = nextBatch();
+        if (!batch.isEmpty()) {
+          write(batch);
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        // `write` completes every future itself, so anything that lands
+        // here is a bug; log it rather than killing the thread.
+        LOGGER.error("Unexpected failure in todo insert batcher", e);
+      }
+    }
+  }
+
+  private List<PendingInsert> nextBatch() throws InterruptedException {
+    List<PendingInsert> batch = new ArrayList<>();
+    // Wake up now and then so `close()` doesn't have to interrupt us
+    // in the middle of a write.
+    PendingInsert first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+    if (first == null) {
+      return batch;
+    }
+    batch.add(first);
+    long deadline = System.nanoTime() + windowNanos;
+    while (batch.size() < maxBatchSize) {
+      long remaining = deadline - System.nanoTime();
+      PendingInsert next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+      if (next == null) {
+        break;
+      }
+      batch.add(next);
+    }
+    return batch;
+  }
+
+  private void write(List<PendingInsert> batch) {
+    long start = System.nanoTime();
+    for (PendingInsert pending : batch) {
+      addedLatencyMicros.record(TimeUnit.NANOSECONDS.toMicros(start - pending.queuedAt));
+    }
+    batchSizes.record(batch.size());
+    roundTripsSaved.add(batch.size() - 1);
+
+    List<Todo> todos = new ArrayList<>(batch.size());
+    for (PendingInsert pending : batch) {
+      todos.add(pending.todo);
+    }
+
+    Map<Integer, MongoException> failures = new HashMap<>();
+    MongoTimer.begin();
+    try {
+      // Unordered, so one bad todo doesn't stop the rest of the batch.
+      todoCollection.insertMany(todos, new InsertManyOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      for (BulkWriteError error : e.getWriteErrors()) {
+        failures.put(error.getIndex(), new MongoException(error.getCode(), error.getMessage()));
+      }
+      if (e.getWriteConcernError() != null) {
+        // Nothing in the batch is known to be durable.
+        MongoException concernFailure = new MongoException(e.getWriteConcernError().getCode(),
+            e.getWriteConcernError().getMessage());
+        for (int i = 0; i < batch.size(); i++) {
+          failures.putIfAbsent(i, concernFailure);
+        }
+      }
+    } catch (RuntimeException e) {
+      for (PendingInsert pending : batch) {
+        pending.mongoNanos = MongoTimer.elapsedNanos();
+        pending.result.completeExceptionally(e);
+      }
+      return;
+    } finally {
+      insertMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+      for (PendingInsert pending : batch) {
+        pending.mongoNanos = MongoTimer.elapsedNanos();
+      }
+      MongoTimer.end();
+    }
+
+    for (int i = 0; i < batch.size(); i++) {
+      MongoException failure = failures.get(i);
+      if (failure == null) {
+        batch.get(i).result.complete(null);
+      } else {
+        batch.get(i).result.completeExceptionally(failure);
+      }
+    }
+  }
+
+  /**
+   * A todo waiting to be written, and the future its caller is blocked on.
+   */
+  private static final class PendingInsert {
+    private final Todo todo;
+    private final long queuedAt = System.nanoTime();
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    // Set before `result` is completed
+    private volatile long mongoNanos;
+
+    PendingInsert(Todo todo) {
+      this.todo = todo;
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package umm3601.user;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import org.mongojack.Id;
 import org.mongojack.ObjectId;
 
@@ -33,4 +35,13 @@ public class User {
   public String email;
   public String avatar;
   public String role;
+
+  // Lowercased, Unicode-normalized copy of `company` for case-insensitive
+  // filters. It's filled in by the server and never sent to clients.
+  public String companyFolded;
+
+  // When the user was added, from its `_id` (see `CreationTime`). It's
+  // filled in when the user is sent to clients and never stored.
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public String createdAt;
 }
@@ -2,21 +2,31 @@ package umm3601.user;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Filters.regex;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lte;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
 
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BucketOptions;
+import com.mongodb.client.model.Indexes;
 
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
@@ -25,6 +35,17 @@ import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
+import umm3601.BsonExporter;
+import umm3601.CreationTime;
+import umm3601.IdCache;
+import umm3601.InvalidationBus;
+import umm3601.MongoPolicies;
+import umm3601.MultiGet;
+import umm3601.PrefixIndex;
+import umm3601.QueryLanguage;
+import umm3601.QueryLanguage.Type;
+import umm3601.ShadowFieldMigration;
+import umm3601.Shards;
 
 /**
  * Controller that manages requests for info about users.
@@ -34,10 +55,52 @@ public class UserController {
   private static final String AGE_KEY = "age";
   private static final String COMPANY_KEY = "company";
   private static final String ROLE_KEY = "role";
+  private static final String COMPANY_FOLDED = "companyFolded";
+  private static final String MIN_AGE_KEY = "minAge";
+  private static final String MAX_AGE_KEY = "maxAge";
+  private static final String BUCKET_KEY = "bucket";
+  private static final String QUERY_KEY = "q";
+  private static final String OTHER_BUCKET = "other";
+  private static final int DEFAULT_AGE_BUCKET = 10;
+  // The ages the histogram has buckets for; anyone older counts as "other"
+  private static final int MAX_HISTOGRAM_AGE = 150;
+  private static final int AGE_HISTOGRAMS = 32;
+  private static final long AGE_HISTOGRAM_TTL_MS = 60_000;
 
   public static final String EMAIL_REGEX = "^[a-zA-Z0-9_!#$%&'*+/=?`{|}~^.-]+@[a-zA-Z0-9.-]+$";
 
+  // The same collection with the read preference or write concern
+  // each kind of operation should use; see `MongoPolicies`.
   private final JacksonMongoCollection<User> userCollection;
+  private final JacksonMongoCollection<User> userInsertCollection;
+  private final JacksonMongoCollection<User> userDeleteCollection;
+  private final MongoCollection<Document> userDocuments;
+  private final BsonExporter exporter;
+  private final MongoPolicies policies;
+  private final long getMaxTimeMillis;
+
+  // Backfills the folded shadow field into users written before we
+  // stored it
+  private final ShadowFieldMigration migration;
+
+  // Recently read users by id, or `null` if caching is off
+  private final IdCache<User> cache;
+  private volatile InvalidationBus invalidations;
+  private final MultiGet<User> multiGet;
+
+  // The `q` parameter's language, over the fields clients see
+  private final QueryLanguage queries = new QueryLanguage("users", Map.of(
+      "_id", Type.ID,
+      "name", Type.STRING,
+      AGE_KEY, Type.INTEGER,
+      COMPANY_KEY, Type.STRING,
+      "email", Type.STRING,
+      ROLE_KEY, Type.STRING,
+      CreationTime.CREATED_AT, Type.CREATED));
+
+  // Age histograms by bucket size and filter. Adding or deleting a user
+  // clears them all.
+  private final IdCache<Map<String, Object>> ageHistograms = new IdCache<>(AGE_HISTOGRAMS, AGE_HISTOGRAM_TTL_MS);
 
   /**
    * Construct a controller for users.
@@ -45,7 +108,102 @@ public class UserController {
    * @param database the database containing user data
    */
   public UserController(MongoDatabase database) {
-    userCollection = JacksonMongoCollection.builder().build(database, "users", User.class);
+    this(database, MongoPolicies.defaults());
+  }
+
+  /**
+   * Construct a controller for users.
+   *
+   * @param database the database containing user data
+   * @param policies the read preferences and write concerns to use
+   */
+  public UserController(MongoDatabase database, MongoPolicies policies) {
+    this(database, policies, null);
+  }
+
+  /**
+   * Construct a controller for users.
+   *
+   * @param database the database containing user data
+   * @param policies the read preferences and write concerns to use
+   * @param cache the cache of users by id to read through, or `null` for
+   *   none
+   */
+  public UserController(MongoDatabase database, MongoPolicies policies, IdCache<User> cache) {
+    JacksonMongoCollection<User> users = JacksonMongoCollection.builder().build(database, "users", User.class);
+    userCollection = users.withReadPreference(policies.readPreference("users.get"));
+    userInsertCollection = users.withWriteConcern(policies.writeConcern("users.insert"));
+    userDeleteCollection = users.withWriteConcern(policies.writeConcern("users.delete"));
+    this.cache = cache;
+    multiGet = new MultiGet<>("user", userCollection, user -> user._id, cache);
+
+    userDocuments = database.getCollection("users").withReadPreference(policies.readPreference("users.list"));
+    this.policies = policies;
+    migration = new ShadowFieldMigration("users.folded",
+        database.getCollection("users").withWriteConcern(policies.writeConcern("users.insert")),
+        database.getCollection("migrations"),
+        Map.of(COMPANY_FOLDED, COMPANY_KEY));
+    getMaxTimeMillis = policies.maxTimeMillis("users.get");
+    exporter = new BsonExporter(new Shards(1),
+        List.of(database.getCollection("users", RawBsonDocument.class)
+            .withReadPreference(policies.readPreference("users.list"))),
+        List.of("_id", "name", AGE_KEY, COMPANY_KEY, "email", "avatar", ROLE_KEY, CreationTime.CREATED_AT),
+        Map.of(AGE_KEY, 0), policies, "users.list");
+  }
+
+  /**
+   * The migration that fills in the folded shadow field of older users.
+   * Filters work without it, just more slowly.
+   *
+   * @return the migration
+   */
+  public ShadowFieldMigration migration() {
+    return migration;
+  }
+
+  /**
+   * The language of the `q` parameter of the user list, which keeps the
+   * compiled queries.
+   *
+   * @return the query language
+   */
+  public QueryLanguage queries() {
+    return queries;
+  }
+
+  /**
+   * Keep this server's cache of users in step with other servers', by
+   * telling them about every user we change and listening for the ones
+   * they change.
+   *
+   * @param bus the bus the servers share
+   */
+  public void shareInvalidations(InvalidationBus bus) {
+    bus.register("users", (ids, added) -> {
+      if (cache != null) {
+        ids.forEach(cache::invalidate);
+      }
+      ageHistograms.clear();
+    }, () -> {
+      if (cache != null) {
+        cache.clear();
+      }
+      ageHistograms.clear();
+    });
+    invalidations = bus;
+  }
+
+  /**
+   * Create the Mongo indexes the user filters rely on, if they don't
+   * already exist.
+   */
+  public void createIndexes() {
+    userCollection.createIndex(Indexes.ascending(COMPANY_KEY));
+    userCollection.createIndex(Indexes.ascending(COMPANY_FOLDED));
+    // Age ranges, on their own or after an exact role or company
+    userCollection.createIndex(Indexes.ascending(AGE_KEY));
+    userCollection.createIndex(Indexes.ascending(ROLE_KEY, AGE_KEY));
+    userCollection.createIndex(Indexes.ascending(COMPANY_FOLDED, AGE_KEY));
   }
 
   /**
@@ -55,12 +213,23 @@ public class UserController {
    */
   public void getUser(Context ctx) {
     String id = ctx.pathParam("id");
-    User user;
+    User user = cache == null ? null : cache.get(id);
 
-    try {
-      user = userCollection.find(eq("_id", new ObjectId(id))).first();
-    } catch (IllegalArgumentException e) {
-      throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
+    if (user == null) {
+      long stamp = cache == null ? 0 : cache.stamp();
+      ObjectId objectId;
+      try {
+        objectId = new ObjectId(id);
+      } catch (IllegalArgumentException e) {
+        throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
+      }
+      user = policies.read("users.get", preference -> userCollection.withReadPreference(preference)
+          .find(eq("_id", objectId))
+          .maxTime(getMaxTimeMillis, TimeUnit.MILLISECONDS)
+          .first());
+      if (user != null && cache != null) {
+        cache.put(user._id, user, stamp);
+      }
     }
     if (user == null) {
       throw new NotFoundResponse("The requested user was not found");
@@ -76,16 +245,158 @@ public class UserController {
    */
   public void deleteUser(Context ctx) {
     String id = ctx.pathParam("id");
-    userCollection.deleteOne(eq("_id", new ObjectId(id)));
+    userDeleteCollection.deleteOne(eq("_id", new ObjectId(id)));
+    if (cache != null) {
+      cache.invalidate(new ObjectId(id).toHexString());
+    }
+    ageHistograms.clear();
+    InvalidationBus bus = invalidations;
+    if (bus != null) {
+      bus.publish("users", List.of(new ObjectId(id).toHexString()), Map.of());
+    }
   }
 
   /**
-   * Get a JSON response with a list of all the users.
+   * Get a JSON response with a list of all the users. With an `ids`
+   * query parameter (a comma-separated list), get just those users
+   * instead; see `MultiGet`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if transcoding the results fails
+   */
+  public void getUsers(Context ctx) throws IOException {
+    if (ctx.queryParam("ids") != null) {
+      multiGet.fromQuery(ctx);
+      return;
+    }
+    Bson filter = listFilter(ctx);
+
+    // Sort the results. Use the `sortby` query param (default "name")
+    // as the field to sort by, and the query param `sortorder` (default
+    // "asc") to specify the sort order.
+    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "name");
+    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
+
+    // Straight from BSON to JSON, without making a POJO of each one
+    exporter.list(ctx, filter, sortBy, sortOrder.equals("desc"));
+  }
+
+  /**
+   * Get the users whose ids are listed in the body of the request, as
+   * `{"ids": [...]}`; see `MultiGet`. This is for lists of ids too long to
+   * put in the URL of `GET /api/users?ids=...`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUsersById(Context ctx) {
+    multiGet.fromBody(ctx);
+  }
+
+  /**
+   * Stream all the users matching the same filters as `getUsers`, as
+   * NDJSON or CSV; see `BsonExporter`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if the client goes away
+   */
+  public void exportUsers(Context ctx) throws IOException {
+    exporter.export(ctx, listFilter(ctx));
+  }
+
+  /**
+   * Get how many of the users matching the same filters as `getUsers`
+   * were added on each day; see `BsonExporter.countPerDay`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUsersCreatedPerDay(Context ctx) {
+    exporter.countPerDay(ctx, listFilter(ctx));
+  }
+
+  /**
+   * Get how many of the users matching the same filters as `getUsers` are
+   * in each band of ages, `bucket` (default 10) years wide:
+   *
+   *     {"bucket": 10,
+   *      "buckets": [{"min": 20, "max": 30, "count": 4}, {"min": 30, "max": 40, "count": 0}, ...],
+   *      "other": 0}
+   *
+   * `min` is inclusive and `max` exclusive. There's a band for every
+   * bucket from the youngest user's to the oldest's. The buckets run from
+   * 0 to 150 (or the first multiple of `bucket` after it), and `other`
+   * counts the users outside them. Mongo does the counting, with
+   * `$bucket`. The answer is cached until a user is added or deleted.
    *
    * @param ctx a Javalin HTTP context
    */
-  public void getUsers(Context ctx) {
+  public void getAgeHistogram(Context ctx) {
+    int bucket = ctx.queryParamAsClass(BUCKET_KEY, Integer.class)
+        .check(n -> n > 0 && n <= MAX_HISTOGRAM_AGE, "bucket must be between 1 and " + MAX_HISTOGRAM_AGE)
+        .getOrDefault(DEFAULT_AGE_BUCKET);
+    Bson filter = listFilter(ctx);
+    String key = bucket + " " + filter.toBsonDocument(BsonDocument.class, userDocuments.getCodecRegistry()).toJson();
 
+    Map<String, Object> histogram = ageHistograms.get(key);
+    if (histogram == null) {
+      long stamp = ageHistograms.stamp();
+      histogram = policies.read("users.list", key, preference -> ageHistogram(filter, bucket, preference));
+      ageHistograms.put(key, histogram, stamp);
+    }
+    ctx.json(histogram);
+  }
+
+  private Map<String, Object> ageHistogram(Bson filter, int bucket, ReadPreference preference) {
+    List<Integer> boundaries = new ArrayList<>();
+    for (int lower = 0; lower < MAX_HISTOGRAM_AGE; lower += bucket) {
+      boundaries.add(lower);
+    }
+    boundaries.add(boundaries.get(boundaries.size() - 1) + bucket);
+
+    Map<Integer, Integer> counts = new LinkedHashMap<>();
+    int other = 0;
+    for (Document band : userDocuments.withReadPreference(preference)
+        .aggregate(List.of(
+            Aggregates.match(filter),
+            Aggregates.bucket("$" + AGE_KEY, boundaries, new BucketOptions()
+                .defaultBucket(OTHER_BUCKET)
+                .output(Accumulators.sum("count", 1)))))
+        .maxTime(policies.maxTimeMillis("users.list"), TimeUnit.MILLISECONDS)) {
+      int count = ((Number) band.get("count")).intValue();
+      if (OTHER_BUCKET.equals(band.get("_id"))) {
+        other = count;
+      } else {
+        counts.put(((Number) band.get("_id")).intValue(), count);
+      }
+    }
+
+    // Mongo leaves out the empty buckets; put back the ones in the middle
+    List<Map<String, Object>> buckets = new ArrayList<>();
+    if (!counts.isEmpty()) {
+      int first = counts.keySet().stream().min(Integer::compare).get();
+      int last = counts.keySet().stream().max(Integer::compare).get();
+      for (int lower = first; lower <= last; lower += bucket) {
+        Map<String, Object> band = new LinkedHashMap<>();
+        band.put("min", lower);
+        band.put("max", lower + bucket);
+        band.put("count", counts.getOrDefault(lower, 0));
+        buckets.add(band);
+      }
+    }
+    Map<String, Object> histogram = new LinkedHashMap<>();
+    histogram.put(BUCKET_KEY, bucket);
+    histogram.put("buckets", buckets);
+    histogram.put(OTHER_BUCKET, other);
+    return histogram;
+  }
+
+  /**
+   * Build the filter for the user list from the request's query
+   * parameters.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the filter
+   */
+  private Bson listFilter(Context ctx) {
     List<Bson> filters = new ArrayList<>(); // start with a blank document
 
     if (ctx.queryParamMap().containsKey(AGE_KEY)) {
@@ -93,23 +404,32 @@ public class UserController {
         filters.add(eq(AGE_KEY, targetAge));
     }
 
+    if (ctx.queryParamMap().containsKey(MIN_AGE_KEY)) {
+      filters.add(gte(AGE_KEY, ctx.queryParamAsClass(MIN_AGE_KEY, Integer.class).get()));
+    }
+
+    if (ctx.queryParamMap().containsKey(MAX_AGE_KEY)) {
+      filters.add(lte(AGE_KEY, ctx.queryParamAsClass(MAX_AGE_KEY, Integer.class).get()));
+    }
+
+    // Company matches case-insensitively from the start of the value,
+    // mostly on the indexed shadow field; see `PrefixIndex.prefixFilter`
     if (ctx.queryParamMap().containsKey(COMPANY_KEY)) {
-      filters.add(regex(COMPANY_KEY,  Pattern.quote(ctx.queryParam(COMPANY_KEY)), "i"));
+      filters.add(PrefixIndex.prefixFilter(COMPANY_KEY, COMPANY_FOLDED, ctx.queryParam(COMPANY_KEY)));
     }
 
     if (ctx.queryParamMap().containsKey(ROLE_KEY)) {
       filters.add(eq(ROLE_KEY, ctx.queryParam(ROLE_KEY)));
     }
 
-    // Sort the results. Use the `sortby` query param (default "name")
-    // as the field to sort by, and the query param `sortorder` (default
-    // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "name");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
+    // `createdAfter` and `createdBefore`, as a range on `_id`
+    CreationTime.addFilters(ctx, filters);
 
-    ctx.json(userCollection.find(filters.isEmpty() ? new Document() : and(filters))
-      .sort(sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy))
-      .into(new ArrayList<>()));
+    // Anything else, in the query language; see `QueryLanguage`
+    if (ctx.queryParam(QUERY_KEY) != null) {
+      filters.add(queries.compile(ctx.queryParam(QUERY_KEY)));
+    }
+    return filters.isEmpty() ? new Document() : and(filters);
   }
 
   /**
@@ -140,7 +460,15 @@ public class UserController {
       newUser.avatar = "https://gravatar.com/avatar/?d=mp";
     }
 
-    userCollection.insertOne(newUser);
+    newUser.companyFolded = PrefixIndex.fold(newUser.company);
+    userInsertCollection.insertOne(newUser);
+    ageHistograms.clear();
+    InvalidationBus bus = invalidations;
+    // Nothing to drop from other servers' caches, but their age
+    // histograms are out of date
+    if (bus != null) {
+      bus.publish("users", List.of(), Map.of());
+    }
     ctx.status(HttpCode.OK);
     ctx.json(Map.of("id", newUser._id));
   }
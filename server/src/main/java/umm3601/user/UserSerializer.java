@@ -0,0 +1,63 @@
+package umm3601.user;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import umm3601.CreationTime;
+
+/**
+ * Writes a `User` as JSON for the API, field by field, instead of going
+ * through Jackson's reflection-based bean serializer. The field names are
+ * encoded (and JSON-escaped) once, up front.
+ *
+ * The output is the same as the bean serializer's, minus the fields that
+ * are only for the server's use (see `ApiJson`), and with `createdAt`
+ * worked out from the `_id` rather than taken from the field. If you add a
+ * field to `User` that clients should see, add it here too.
+ */
+public final class UserSerializer extends StdSerializer<User> {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final SerializableString ID = new SerializedString("_id");
+  private static final SerializableString NAME = new SerializedString("name");
+  private static final SerializableString AGE = new SerializedString("age");
+  private static final SerializableString COMPANY = new SerializedString("company");
+  private static final SerializableString EMAIL = new SerializedString("email");
+  private static final SerializableString AVATAR = new SerializedString("avatar");
+  private static final SerializableString ROLE = new SerializedString("role");
+  private static final SerializableString CREATED_AT = new SerializedString(CreationTime.CREATED_AT);
+
+  public UserSerializer() {
+    super(User.class);
+  }
+
+  @Override
+  public void serialize(User user, JsonGenerator json, SerializerProvider provider) throws IOException {
+    json.writeStartObject(user);
+    writeString(json, ID, user._id);
+    writeString(json, NAME, user.name);
+    json.writeFieldName(AGE);
+    json.writeNumber(user.age);
+    writeString(json, COMPANY, user.company);
+    writeString(json, EMAIL, user.email);
+    writeString(json, AVATAR, user.avatar);
+    writeString(json, ROLE, user.role);
+    writeString(json, CREATED_AT, CreationTime.createdAt(user._id));
+    json.writeEndObject();
+  }
+
+  private static void writeString(JsonGenerator json, SerializableString name, String value) throws IOException {
+    json.writeFieldName(name);
+    if (value == null) {
+      json.writeNull();
+    } else {
+      json.writeString(value);
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandSucceededEvent;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+
+/**
+ * Tests what `AccessLog` writes for each request, including Mongo time
+ * spent on other threads, and when it rotates its file.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class AccessLogSpec {
+
+  private final ObjectMapper json = new ObjectMapper();
+  private final MongoTimer mongoTimer = new MongoTimer();
+  private final Metrics metrics = new Metrics();
+
+  private static Context request(String path, String queryString) {
+    MockHttpServletRequest mockReq = new MockHttpServletRequest();
+    mockReq.setMethod("GET");
+    mockReq.setRequestURI(path);
+    mockReq.setQueryString(queryString);
+    return ContextUtil.init(mockReq, new MockHttpServletResponse(), path, Map.of(), HandlerType.GET, Map.of());
+  }
+
+  // What the driver tells its command listeners when a command finishes
+  private static CommandSucceededEvent commandTaking(long millis) {
+    return new CommandSucceededEvent(1, new ConnectionDescription(new ServerId(new ClusterId(), new ServerAddress())),
+        "find", new BsonDocument(), TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  private List<String> lines(Path file) throws IOException {
+    return Files.readAllLines(file, StandardCharsets.UTF_8);
+  }
+
+  private void awaitWritten(long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while ((Long) metrics.snapshot().get("accessLog.written") < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void writesAJsonLinePerRequest(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("access.log");
+    AccessLog log = new AccessLog(file, 1_000_000, 2, 16, metrics);
+    Context ctx = request("/api/todos", "owner=Fry&status=true");
+    log.start(ctx);
+    AccessLog.note(ctx, "why", "testing");
+    log.log(ctx, 200, 12.5f);
+    log.close();
+
+    List<String> lines = lines(file);
+    assertEquals(1, lines.size());
+    JsonNode entry = json.readTree(lines.get(0));
+    assertEquals("GET", entry.get("method").asText());
+    assertEquals("/api/todos", entry.get("path").asText());
+    assertEquals("Fry", entry.get("filters").get("owner").get(0).asText());
+    assertEquals("testing", entry.get("notes").get("why").asText());
+    assertEquals(12.5, entry.get("totalMs").asDouble());
+    assertEquals(0.0, entry.get("mongoMs").asDouble());
+  }
+
+  @Test
+  public void countsMongoTimeSpentOnOtherThreads(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("access.log");
+    AccessLog log = new AccessLog(file, 1_000_000, 2, 16, metrics);
+    Context ctx = request("/api/todos", "");
+    log.start(ctx);
+
+    mongoTimer.commandSucceeded(commandTaking(1));
+    // Four shards at once, each on its own thread
+    new Shards(4).fanOut(List.of(0, 1, 2, 3), shard -> {
+      mongoTimer.commandSucceeded(commandTaking(2));
+      return shard;
+    });
+    // An identical read that another request already has in flight
+    SingleFlight<String, String> flight = new SingleFlight<>(metrics, "test");
+    Thread leader = new Thread(() -> {
+      MongoTimer.begin();
+      flight.run("key", () -> {
+        // Wait for us to join in
+        while (metrics.counter("test.coalesced").sum() == 0) {
+          Thread.onSpinWait();
+        }
+        mongoTimer.commandSucceeded(commandTaking(4));
+        return "answer";
+      });
+    });
+    leader.start();
+    while (flight.inFlight() == 0) {
+      Thread.onSpinWait();
+    }
+    assertEquals("answer", flight.run("key", () -> "not this one"));
+
+    log.log(ctx, 200, 50f);
+    log.close();
+
+    JsonNode entry = json.readTree(lines(file).get(0));
+    assertEquals(13.0, entry.get("mongoMs").asDouble());
+  }
+
+  @Test
+  public void rotatesWhenTheFileHasTooManyBytes(@TempDir Path directory) throws IOException, InterruptedException {
+    Path file = directory.resolve("access.log");
+    long maxBytes = 2000;
+    AccessLog log = new AccessLog(file, maxBytes, 3, 16, metrics);
+    // Three bytes for each of these in UTF-8, but one character
+    String owner = "✓".repeat(100);
+    for (int i = 0; i < 30; i++) {
+      Context ctx = request("/api/todos", "owner=" + owner);
+      log.start(ctx);
+      log.log(ctx, 200, 1f);
+      // One at a time, so each batch is one line
+      awaitWritten(i + 1);
+    }
+    log.close();
+
+    Path rotated = Paths.get(file + ".1");
+    assertTrue(Files.exists(rotated));
+    long lineBytes = Files.size(rotated) / lines(rotated).size();
+    // It's rotated after the first line that takes it past the limit
+    assertTrue(Files.size(rotated) - lineBytes <= maxBytes, "A rotated file had " + Files.size(rotated) + " bytes");
+    assertTrue(Files.size(rotated) > maxBytes);
+  }
+}
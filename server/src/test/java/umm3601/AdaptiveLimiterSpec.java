@@ -0,0 +1,93 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the AIMD behavior and queueing of `AdaptiveLimiter`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class AdaptiveLimiterSpec {
+
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long SLOW = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  public void admitsUpToTheLimit() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10, 0, 0, 100);
+
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire());
+    assertEquals(2, limiter.inFlight());
+  }
+
+  @Test
+  public void rejectsWhenTheQueueIsFull() throws InterruptedException {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 10, 0, 1000, 100);
+
+    assertTrue(limiter.acquire());
+    // No room to queue, so this fails straight away
+    assertFalse(limiter.acquire());
+  }
+
+  @Test
+  public void queuedCallersTimeOut() throws InterruptedException {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 10, 5, 10, 100);
+
+    assertTrue(limiter.acquire());
+    assertFalse(limiter.acquire());
+    assertEquals(0, limiter.queued());
+  }
+
+  @Test
+  public void queuedCallersGetTheNextFreeSlot() throws InterruptedException {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1, 5, 5000, 100);
+    assertTrue(limiter.acquire());
+
+    Thread releaser = new Thread(() -> {
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      limiter.release(FAST, false);
+    });
+    releaser.start();
+
+    assertTrue(limiter.acquire());
+    releaser.join();
+  }
+
+  @Test
+  public void fastRequestsGrowTheLimit() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10, 0, 0, 100);
+
+    limiter.tryAcquire();
+    limiter.tryAcquire();
+    limiter.release(FAST, false);
+
+    assertEquals(3, limiter.limit());
+  }
+
+  @Test
+  public void slowOrFailedRequestsShrinkTheLimit() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(10, 5, 10, 0, 0, 100);
+
+    for (int i = 0; i < 10; i++) {
+      limiter.tryAcquire();
+      limiter.release(SLOW, false);
+    }
+    assertEquals(5, limiter.limit());
+
+    AdaptiveLimiter failing = new AdaptiveLimiter(10, 1, 10, 0, 0, 100);
+    failing.tryAcquire();
+    failing.release(FAST, true);
+    assertEquals(9, failing.limit());
+  }
+}
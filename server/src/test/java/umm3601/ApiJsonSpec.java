@@ -0,0 +1,77 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.plugin.json.JsonMapper;
+import umm3601.todo.Todo;
+import umm3601.user.User;
+
+/**
+ * Tests that the API's JSON mapper writes todos and users the way the
+ * reflection-based serializer did, without the server-only fields.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ApiJsonSpec {
+
+  private static final String ID = "5f1b1bb8a1b1c1d1e1f10203";
+
+  private final JsonMapper mapper = ApiJson.create();
+
+  private static Todo todo() {
+    Todo todo = new Todo();
+    todo._id = ID;
+    todo.owner = "Fry \"Philip\" J.";
+    todo.status = true;
+    todo.category = "delivery";
+    todo.body = "Line one\nline two é";
+    todo.ownerFolded = "fry \"philip\" j.";
+    todo.categoryFolded = "delivery";
+    return todo;
+  }
+
+  @Test
+  public void todosMatchTheBeanSerializer() {
+    assertEquals("{\"_id\":\"" + ID + "\",\"owner\":\"Fry \\\"Philip\\\" J.\",\"status\":true,"
+        + "\"category\":\"delivery\",\"body\":\"Line one\\nline two é\","
+        + "\"createdAt\":\"2020-07-24T17:34:48Z\"}", mapper.toJsonString(todo()));
+  }
+
+  @Test
+  public void usersMatchTheBeanSerializer() {
+    User user = new User();
+    user._id = ID;
+    user.name = "Leela";
+    user.age = 25;
+    user.company = "Planet Express";
+    user.companyFolded = "planet express";
+
+    assertEquals("{\"_id\":\"" + ID + "\",\"name\":\"Leela\",\"age\":25,\"company\":\"Planet Express\","
+        + "\"email\":null,\"avatar\":null,\"role\":null,\"createdAt\":\"2020-07-24T17:34:48Z\"}",
+        mapper.toJsonString(user));
+  }
+
+  @Test
+  public void streamsMatchStrings() throws IOException {
+    List<Todo> todos = List.of(todo(), new Todo());
+
+    assertEquals(mapper.toJsonString(todos),
+        new String(mapper.toJsonStream(todos).readAllBytes(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void todosRoundTrip() {
+    Todo todo = mapper.fromJsonString(mapper.toJsonString(todo()), Todo.class);
+
+    assertEquals(ID, todo._id);
+    assertEquals("Fry \"Philip\" J.", todo.owner);
+    assertEquals("Line one\nline two é", todo.body);
+    assertEquals(null, todo.ownerFolded);
+    assertEquals(null, todo.createdAt);
+  }
+}
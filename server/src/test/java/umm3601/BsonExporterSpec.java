@@ -0,0 +1,143 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.bson.BsonReaderMark;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how `BsonExporter` transcodes raw BSON to NDJSON and CSV.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class BsonExporterSpec {
+
+  private static final ObjectId ID = new ObjectId("5f1b1bb8a1b1c1d1e1f10203");
+
+  private static RawBsonDocument raw(Document document) {
+    return new RawBsonDocument(document, new DocumentCodec());
+  }
+
+  private static String json(RawBsonDocument document) throws IOException {
+    StringWriter out = new StringWriter();
+    try (JsonGenerator json = new JsonFactory().createGenerator(out)) {
+      BsonExporter.writeJson(document, json);
+    }
+    return out.toString();
+  }
+
+  private static String json(RawBsonDocument document, List<String> fields, Object... defaults) throws IOException {
+    StringWriter out = new StringWriter();
+    try (JsonGenerator json = new JsonFactory().createGenerator(out)) {
+      BsonExporter.writeJson(document, BsonExporter.columnPositions(fields), defaults,
+          new BsonReaderMark[fields.size()], json);
+    }
+    return out.toString();
+  }
+
+  private static String csv(RawBsonDocument document, List<String> columns) throws IOException {
+    StringWriter out = new StringWriter();
+    Map<String, Integer> positions = BsonExporter.columnPositions(columns);
+    BsonExporter.writeCsvRow(document, positions, new String[columns.size()], out);
+    return out.toString();
+  }
+
+  @Test
+  public void objectIdsAreHexStrings() throws IOException {
+    RawBsonDocument todo = raw(new Document("_id", ID)
+        .append("owner", "Fry")
+        .append("status", true)
+        .append("priority", 3)
+        .append("tags", List.of("a", "b")));
+
+    assertEquals("{\"_id\":\"5f1b1bb8a1b1c1d1e1f10203\",\"owner\":\"Fry\",\"status\":true,"
+        + "\"priority\":3,\"tags\":[\"a\",\"b\"]}", json(todo));
+  }
+
+  @Test
+  public void nestedDocumentsAreTranscoded() throws IOException {
+    RawBsonDocument document = raw(new Document("outer", new Document("inner", 1.5)).append("none", null));
+
+    assertEquals("{\"outer\":{\"inner\":1.5},\"none\":null}", json(document));
+  }
+
+  @Test
+  public void csvRowsFollowTheColumns() throws IOException {
+    RawBsonDocument todo = raw(new Document("_id", ID)
+        .append("body", "hello")
+        .append("owner", "Fry")
+        .append("extra", "ignored"));
+
+    // Columns come out in the given order; missing ones are empty
+    assertEquals("5f1b1bb8a1b1c1d1e1f10203,Fry,,hello\r\n",
+        csv(todo, List.of("_id", "owner", "status", "body")));
+  }
+
+  @Test
+  public void csvValuesAreEscaped() throws IOException {
+    RawBsonDocument todo = raw(new Document("owner", "Fry, Philip").append("body", "say \"hi\"\nthen go"));
+
+    assertEquals("\"Fry, Philip\",\"say \"\"hi\"\"\nthen go\"\r\n", csv(todo, List.of("owner", "body")));
+  }
+
+  @Test
+  public void fieldsAreWrittenInModelOrder() throws IOException {
+    // Stored in a different order, with a server-only field, like the seed data
+    RawBsonDocument todo = raw(new Document("_id", ID)
+        .append("owner", "Fry")
+        .append("status", true)
+        .append("body", "deliver it")
+        .append("category", "work")
+        .append("ownerFolded", "fry"));
+
+    assertEquals("{\"_id\":\"5f1b1bb8a1b1c1d1e1f10203\",\"owner\":\"Fry\",\"status\":true,"
+        + "\"category\":\"work\",\"body\":\"deliver it\"}",
+        json(todo, List.of("_id", "owner", "status", "category", "body"), null, null, null, null, null));
+  }
+
+  @Test
+  public void missingFieldsGetTheModelsDefaults() throws IOException {
+    RawBsonDocument user = raw(new Document("name", "Leela"));
+
+    assertEquals("{\"name\":\"Leela\",\"age\":0,\"email\":null}",
+        json(user, List.of("name", "age", "email"), null, 0, null));
+  }
+
+  @Test
+  public void marksAreResetBetweenDocuments() throws IOException {
+    List<String> fields = List.of("a", "b");
+    Map<String, Integer> positions = BsonExporter.columnPositions(fields);
+    BsonReaderMark[] marks = new BsonReaderMark[fields.size()];
+    StringWriter out = new StringWriter();
+    try (JsonGenerator json = new JsonFactory().createGenerator(out)) {
+      BsonExporter.writeJson(raw(new Document("b", 2).append("a", 1)), positions, new Object[2], marks, json);
+      BsonExporter.writeJson(raw(new Document("a", 3)), positions, new Object[2], marks, json);
+    }
+
+    assertEquals("{\"a\":1,\"b\":2} {\"a\":3,\"b\":null}", out.toString());
+  }
+
+  @Test
+  public void createdAtComesFromTheId() throws IOException {
+    RawBsonDocument todo = raw(new Document("_id", ID).append("owner", "Fry"));
+
+    assertEquals("{\"_id\":\"5f1b1bb8a1b1c1d1e1f10203\",\"owner\":\"Fry\",\"createdAt\":\"2020-07-24T17:34:48Z\"}",
+        json(todo, List.of("_id", "owner", "createdAt"), null, null, null));
+    assertEquals("5f1b1bb8a1b1c1d1e1f10203,2020-07-24T17:34:48Z,Fry\r\n",
+        csv(todo, List.of("_id", "createdAt", "owner")));
+    // Only ObjectIds say when they were made
+    assertEquals("{\"owner\":\"Fry\",\"createdAt\":null}",
+        json(raw(new Document("_id", "fry").append("owner", "Fry")), List.of("owner", "createdAt"), null, null));
+  }
+}
@@ -0,0 +1,99 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests when `CircuitBreaker` opens, lets a trial through, and closes.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class CircuitBreakerSpec {
+
+  private final AtomicLong now = new AtomicLong();
+  private final CircuitBreaker breaker = new CircuitBreaker(3, 1000, now::get);
+
+  private void advanceMillis(long millis) {
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  @Test
+  public void opensAfterEnoughFailuresInARow() {
+    breaker.recordFailure();
+    breaker.recordFailure();
+    assertTrue(breaker.allowRequest());
+
+    breaker.recordFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+    assertFalse(breaker.allowRequest());
+    assertEquals(1, breaker.retryAfterSeconds());
+  }
+
+  @Test
+  public void aSuccessResetsTheCount() {
+    breaker.recordFailure();
+    breaker.recordFailure();
+    breaker.recordSuccess();
+    breaker.recordFailure();
+    breaker.recordFailure();
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void letsOneTrialThroughAfterTheCooldown() {
+    for (int i = 0; i < 3; i++) {
+      breaker.recordFailure();
+    }
+    advanceMillis(999);
+    assertFalse(breaker.allowRequest());
+
+    advanceMillis(1);
+    assertTrue(breaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+    // Only the one, until the trial has had time to finish
+    assertFalse(breaker.allowRequest());
+    advanceMillis(1000);
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void aTrialClosesOrReopensIt() {
+    for (int i = 0; i < 3; i++) {
+      breaker.recordFailure();
+    }
+    advanceMillis(1000);
+    assertTrue(breaker.allowRequest());
+    breaker.recordFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+    assertFalse(breaker.allowRequest());
+
+    advanceMillis(1000);
+    assertTrue(breaker.allowRequest());
+    breaker.recordSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void onlyUnhealthyErrorsCount() {
+    assertTrue(CircuitBreaker.isUnhealthy(new MongoTimeoutException("No server")));
+    assertTrue(CircuitBreaker.isUnhealthy(new MongoExecutionTimeoutException(50, "Too slow")));
+    assertFalse(CircuitBreaker.isUnhealthy(new MongoWriteException(
+        new WriteError(11000, "Duplicate key", new BsonDocument()), new ServerAddress())));
+    assertFalse(CircuitBreaker.isUnhealthy(new IllegalArgumentException()));
+  }
+}
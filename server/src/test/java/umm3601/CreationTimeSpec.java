@@ -0,0 +1,63 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Tests how `CreationTime` turns times into id ranges, and ids into
+ * times.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class CreationTimeSpec {
+
+  private static final ObjectId ID = new ObjectId("5f1b1bb8a1b1c1d1e1f10203");
+
+  @Test
+  public void daysAndTimesAreAccepted() {
+    assertEquals(Instant.parse("2022-02-01T00:00:00Z"), CreationTime.parse("createdAfter", "2022-02-01"));
+    assertEquals(Instant.parse("2022-02-01T09:30:00Z"), CreationTime.parse("createdAfter", "2022-02-01T09:30:00Z"));
+    assertEquals(Instant.parse("2022-02-01T07:30:00Z"),
+        CreationTime.parse("createdAfter", "2022-02-01T09:30:00+02:00"));
+  }
+
+  @Test
+  public void otherTimesAreRejected() {
+    assertThrows(BadRequestResponse.class, () -> CreationTime.parse("createdAfter", "yesterday"));
+    assertThrows(BadRequestResponse.class, () -> CreationTime.parse("createdBefore", "2022-02-30"));
+    assertThrows(BadRequestResponse.class, () -> CreationTime.parse("createdBefore", "2022-02-01T09:30:00"));
+  }
+
+  @Test
+  public void firstIdsStartTheirSecond() {
+    Instant made = Instant.ofEpochSecond(0x5f1b1bb8L);
+
+    assertEquals(new ObjectId("5f1b1bb80000000000000000"), CreationTime.firstIdAt(made));
+    // The fraction of a second doesn't matter
+    assertEquals(new ObjectId("5f1b1bb80000000000000000"), CreationTime.firstIdAt(made.plusMillis(999)));
+    assertTrue(CreationTime.firstIdAt(made).compareTo(ID) <= 0);
+    assertTrue(CreationTime.firstIdAt(made.plusSeconds(1)).compareTo(ID) > 0);
+    // Times an id can't hold are clamped
+    assertEquals(new ObjectId("000000000000000000000000"), CreationTime.firstIdAt(Instant.EPOCH.minusSeconds(1)));
+    assertEquals(new ObjectId("ffffffff0000000000000000"),
+        CreationTime.firstIdAt(Instant.parse("2200-01-01T00:00:00Z")));
+  }
+
+  @Test
+  public void idsSayWhenTheyWereMade() {
+    assertEquals("2020-07-24T17:34:48Z", CreationTime.createdAt(ID));
+    assertEquals("2020-07-24T17:34:48Z", CreationTime.createdAt(ID.toHexString()));
+    assertEquals(LocalDate.of(2020, 7, 24), CreationTime.createdOn(ID));
+    assertNull(CreationTime.createdAt("not an id"));
+    assertNull(CreationTime.createdAt((String) null));
+  }
+}
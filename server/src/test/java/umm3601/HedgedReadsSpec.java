@@ -0,0 +1,189 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the deadlines and hedging of `HedgedReads`, with stand-ins for
+ * the Mongo reads.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class HedgedReadsSpec {
+
+  private final Metrics metrics = new Metrics();
+
+  // Hedging on, for reads that can go to any secondary
+  private static final Map<String, String> HEDGED = Map.of(
+      "MONGO_HEDGE_READS", "true",
+      "MONGO_LIST_READ_PREFERENCE", "secondaryPreferred");
+
+  private HedgedReads reads(Map<String, String> settings) {
+    return new HedgedReads(new MongoPolicies(settings), metrics, 0.5, 1, 8);
+  }
+
+  // Time enough reads that hedging kicks in after about a millisecond
+  private void warmUp(HedgedReads reads) {
+    for (int i = 0; i < HedgedReads.MIN_SAMPLES; i++) {
+      reads.read("todos.list", preference -> "fast");
+    }
+  }
+
+  @Test
+  public void readsWithoutADeadlineRunOnTheCallingThread() {
+    HedgedReads reads = reads(Map.of("MONGO_LIST_MAX_TIME_MS", "0"));
+
+    Thread caller = Thread.currentThread();
+    assertEquals(caller, reads.read("todos.list", preference -> Thread.currentThread()));
+  }
+
+  @Test
+  public void givesUpAtTheDeadline() {
+    HedgedReads reads = reads(Map.of("MONGO_LIST_MAX_TIME_MS", "50"));
+    CountDownLatch never = new CountDownLatch(1);
+
+    assertThrows(MongoExecutionTimeoutException.class, () -> reads.read("todos.list", preference -> {
+      try {
+        never.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "too late";
+    }));
+    assertEquals(1, metrics.counter("mongo.todos.list.deadlineExceeded").sum());
+  }
+
+  @Test
+  public void slowReadsAreHedgedWithTheSameReadPreference() {
+    HedgedReads reads = reads(HEDGED);
+    warmUp(reads);
+    List<ReadPreference> preferences = new CopyOnWriteArrayList<>();
+    CountDownLatch firstStuck = new CountDownLatch(1);
+
+    String answer = reads.read("todos.list", preference -> {
+      preferences.add(preference);
+      if (preferences.size() == 1) {
+        try {
+          firstStuck.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return "first";
+      }
+      return "second";
+    });
+    firstStuck.countDown();
+
+    assertEquals("second", answer);
+    assertEquals(List.of(ReadPreference.secondaryPreferred(), ReadPreference.secondaryPreferred()), preferences);
+    assertEquals(1, metrics.counter("mongo.todos.list.hedged").sum());
+    assertEquals(1, metrics.counter("mongo.todos.list.hedgeWins").sum());
+  }
+
+  @Test
+  public void readsFromThePrimaryAreNeverHedged() {
+    HedgedReads reads = reads(Map.of("MONGO_HEDGE_READS", "true"));
+    warmUp(reads);
+
+    assertEquals("slow", reads.read("todos.list", preference -> {
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "slow";
+    }));
+    assertEquals(0, metrics.counter("mongo.todos.list.hedged").sum());
+  }
+
+  @Test
+  public void readsRunOnTheCallerWhenEveryThreadIsBusy() throws InterruptedException {
+    HedgedReads reads = new HedgedReads(new MongoPolicies(Map.of()), metrics, 0.5, 1, 1);
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread other = new Thread(() -> reads.read("todos.list", preference -> {
+      running.countDown();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "done";
+    }));
+    other.start();
+    running.await(5, TimeUnit.SECONDS);
+
+    Thread caller = Thread.currentThread();
+    assertEquals(caller, reads.read("todos.list", preference -> Thread.currentThread()));
+    assertEquals(1, metrics.counter("mongo.todos.list.ranOnCaller").sum());
+    release.countDown();
+    other.join();
+  }
+
+  @Test
+  public void theHedgeDelayFollowsRecentReads() {
+    HedgedReads.LatencyWindow window = new HedgedReads.LatencyWindow();
+    for (int i = 0; i < HedgedReads.WINDOW; i++) {
+      window.record(50_000);
+    }
+    assertEquals(50_000, window.percentile(0.95));
+
+    // Mongo got faster; the old reads age out of the window
+    for (int i = 0; i < HedgedReads.WINDOW; i++) {
+      window.record(1_000);
+    }
+    assertEquals(1_000, window.percentile(0.95));
+  }
+
+  @Test
+  public void nothingIsHedgedUntilThereAreEnoughSamples() {
+    HedgedReads reads = reads(HEDGED);
+
+    assertEquals("slow", reads.read("todos.list", preference -> {
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "slow";
+    }));
+    assertEquals(0, metrics.counter("mongo.todos.list.hedged").sum());
+  }
+
+  @Test
+  public void failsOnlyWhenEveryCopyFails() {
+    HedgedReads reads = reads(HEDGED);
+    warmUp(reads);
+    AtomicInteger copies = new AtomicInteger();
+
+    String answer = reads.read("todos.list", preference -> {
+      if (copies.incrementAndGet() == 1) {
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        throw new MongoSocketReadException("Connection reset", new ServerAddress());
+      }
+      return "second";
+    });
+    assertEquals("second", answer);
+
+    assertThrows(MongoSocketReadException.class, () -> reads.read("todos.list", preference -> {
+      throw new MongoSocketReadException("Connection reset", new ServerAddress());
+    }));
+  }
+}
@@ -0,0 +1,66 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests `IdCache`'s eviction, expiry, and invalidation.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class IdCacheSpec {
+
+  private final AtomicLong now = new AtomicLong();
+  private final IdCache<String> cache = new IdCache<>(2, 1000, now::get);
+
+  @Test
+  public void cachesWhatItsGiven() {
+    cache.put("a", "A", cache.stamp());
+
+    assertEquals("A", cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsed() {
+    cache.put("a", "A", cache.stamp());
+    cache.put("b", "B", cache.stamp());
+    cache.get("a");
+    cache.put("c", "C", cache.stamp());
+
+    assertEquals("A", cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals("C", cache.get("c"));
+  }
+
+  @Test
+  public void entriesExpire() {
+    cache.put("a", "A", cache.stamp());
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+    assertEquals("A", cache.get("a"));
+
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(2));
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void readsFromBeforeAnInvalidationAreIgnored() {
+    cache.put("a", "old A", cache.stamp());
+    // A read starts, then the document is changed before the read finishes
+    long stamp = cache.stamp();
+    cache.invalidate("a");
+    cache.put("a", "old A", stamp);
+
+    assertNull(cache.get("a"));
+
+    cache.put("a", "new A", cache.stamp());
+    assertEquals("new A", cache.get("a"));
+  }
+}
@@ -0,0 +1,117 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how `InvalidationBus` combines the messages it sends and acts on
+ * the ones it receives, without a Mongo to send them through.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class InvalidationBusSpec {
+
+  private final AtomicLong now = new AtomicLong(1_000_000);
+  private final Metrics metrics = new Metrics();
+  private final InvalidationBus bus = new InvalidationBus(null, 4096, 1000, metrics, now::get);
+  private final List<String> invalidated = new ArrayList<>();
+  private final List<Map<String, List<String>>> added = new ArrayList<>();
+  private final AtomicInteger flushes = new AtomicInteger();
+
+  @BeforeEach
+  public void listen() {
+    bus.register("todos", (ids, values) -> {
+      invalidated.addAll(ids);
+      added.add(values);
+    }, flushes::incrementAndGet);
+  }
+
+  private static Document message(String node, long sentAt, List<String> ids, Document addedValues) {
+    return new Document("node", node)
+        .append("sentAt", sentAt)
+        .append("collection", "todos")
+        .append("ids", ids)
+        .append("added", addedValues);
+  }
+
+  @Test
+  public void evictsWhatOtherServersChanged() {
+    now.addAndGet(30);
+    bus.deliver(message("other", 1_000_000, List.of("a", "b"), new Document("owner", List.of("Fry"))));
+
+    assertEquals(List.of("a", "b"), invalidated);
+    assertEquals(List.of(Map.of("owner", List.of("Fry"))), added);
+    assertEquals(0, flushes.get());
+    assertEquals(1, metrics.histogram("invalidations.lagMillis").count());
+    assertEquals(30, metrics.histogram("invalidations.lagMillis").percentile(1.0));
+  }
+
+  @Test
+  public void ignoresItsOwnMessages() {
+    Document own = bus.combine(List.of(new InvalidationBus.Message("todos", false, List.of("a"), Map.of()))).get(0);
+
+    bus.deliver(own);
+    assertTrue(invalidated.isEmpty());
+  }
+
+  @Test
+  public void flushesWhenItFallsBehind() {
+    now.addAndGet(5000);
+    bus.deliver(message("other", 1_000_000, List.of("a"), new Document()));
+    assertEquals(1, flushes.get());
+    assertTrue(invalidated.isEmpty());
+
+    // Anything sent well before the flush is already covered by it
+    bus.deliver(message("other", 1_000_000, List.of("a"), new Document()));
+    assertEquals(1, flushes.get());
+    // Anything since isn't
+    bus.deliver(message("other", 1_005_000, List.of("c"), new Document()));
+    assertEquals(List.of("c"), invalidated);
+  }
+
+  @Test
+  public void passesOnFlushesFromOtherServers() {
+    bus.deliver(new Document("node", "other")
+        .append("sentAt", now.get())
+        .append("collection", "todos")
+        .append("flush", true));
+    bus.deliver(new Document("node", "other")
+        .append("sentAt", now.get())
+        .append("collection", "users")
+        .append("flush", true));
+
+    assertEquals(1, flushes.get());
+  }
+
+  @Test
+  public void combinesABurstIntoOneMessagePerCollection() {
+    List<Document> documents = bus.combine(List.of(
+        new InvalidationBus.Message("todos", false, List.of("a"), Map.of("owner", List.of("Fry"))),
+        new InvalidationBus.Message("users", false, List.of("u"), Map.of()),
+        new InvalidationBus.Message("todos", false, List.of("b", "a"), Map.of("owner", List.of("Leela", "Fry")))));
+
+    assertEquals(2, documents.size());
+    Document todos = documents.get(0);
+    assertEquals("todos", todos.getString("collection"));
+    assertEquals(List.of("a", "b"), todos.getList("ids", String.class));
+    assertEquals(List.of("Fry", "Leela"), todos.get("added", Document.class).getList("owner", String.class));
+    assertEquals(1_000_000L, todos.getLong("sentAt"));
+
+    List<Document> withFlush = bus.combine(List.of(
+        new InvalidationBus.Message("todos", false, List.of("a"), Map.of()),
+        new InvalidationBus.Message("todos", true, List.of(), Map.of())));
+    assertEquals(List.of(new Document("node", withFlush.get(0).getString("node"))
+        .append("sentAt", 1_000_000L)
+        .append("collection", "todos")
+        .append("flush", true)), withFlush);
+  }
+}
@@ -0,0 +1,72 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the counters and histograms in `Metrics`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class MetricsSpec {
+
+  @Test
+  public void countersAccumulate() {
+    Metrics metrics = new Metrics();
+    metrics.counter("hits").increment();
+    metrics.counter("hits").add(4);
+
+    assertEquals(5L, metrics.snapshot().get("hits"));
+  }
+
+  @Test
+  public void gaugesAreReadAtSnapshotTime() {
+    Metrics metrics = new Metrics();
+    int[] value = {1};
+    metrics.gauge("value", () -> value[0]);
+    value[0] = 7;
+
+    assertEquals(7, metrics.snapshot().get("value"));
+  }
+
+  @Test
+  public void histogramTracksCountSumAndMax() {
+    Metrics.Histogram histogram = new Metrics().histogram("sizes");
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+
+    assertEquals(100, histogram.count());
+    assertEquals(100, histogram.percentile(1.0));
+    // 50 lands in the [32, 64) bucket
+    assertEquals(63, histogram.percentile(0.5));
+  }
+
+  @Test
+  public void histogramPercentilesNeverExceedMax() {
+    Metrics.Histogram histogram = new Metrics().histogram("sizes");
+    histogram.record(0);
+    histogram.record(0);
+    histogram.record(5);
+
+    assertEquals(0, histogram.percentile(0.5));
+    assertEquals(5, histogram.percentile(0.99));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void snapshotIncludesHistogramSummary() {
+    Metrics metrics = new Metrics();
+    metrics.histogram("latency").record(10);
+    metrics.histogram("latency").record(30);
+
+    Map<String, Object> latency = (Map<String, Object>) metrics.snapshot().get("latency");
+    assertEquals(2L, latency.get("count"));
+    assertEquals(40L, latency.get("sum"));
+    assertEquals(20.0, latency.get("mean"));
+    assertTrue((long) latency.get("p99") >= 30);
+  }
+}
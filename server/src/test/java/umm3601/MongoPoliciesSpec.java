@@ -0,0 +1,136 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.TaggableReadPreference;
+import com.mongodb.WriteConcern;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how `MongoPolicies` picks read preferences, write concerns, and
+ * deadlines.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class MongoPoliciesSpec {
+
+  @Test
+  public void defaultsMatchThePlainDriver() {
+    MongoPolicies policies = MongoPolicies.defaults();
+
+    assertEquals(ReadPreference.primary(), policies.readPreference("todos.list"));
+    assertEquals(ReadPreference.primary(), policies.readPreference("todos.get"));
+    assertEquals(WriteConcern.ACKNOWLEDGED, policies.writeConcern("todos.insert"));
+  }
+
+  @Test
+  public void listReadsUseTheListPreference() {
+    MongoPolicies policies = new MongoPolicies(Map.of(
+        "MONGO_LIST_READ_PREFERENCE", "secondaryPreferred",
+        "MONGO_MAX_STALENESS_SECONDS", "120"));
+
+    ReadPreference list = policies.readPreference("users.list");
+    assertEquals("secondaryPreferred", list.getName());
+    assertEquals(120L, ((TaggableReadPreference) list).getMaxStaleness(TimeUnit.SECONDS));
+    // Lookups by id still go to the primary
+    assertEquals(ReadPreference.primary(), policies.readPreference("users.get"));
+  }
+
+  @Test
+  public void operationsCanBeOverriddenOneAtATime() {
+    MongoPolicies policies = new MongoPolicies(Map.of(
+        "MONGO_WRITE_CONCERN", "majority",
+        "MONGO_WRITE_CONCERN_TODOS_DELETE", "2",
+        "MONGO_READ_PREFERENCE_TODOS_GET", "nearest"));
+
+    assertEquals(WriteConcern.MAJORITY, policies.writeConcern("todos.insert"));
+    assertEquals(new WriteConcern(2), policies.writeConcern("todos.delete"));
+    assertEquals("nearest", policies.readPreference("todos.get").getName());
+  }
+
+  @Test
+  public void unknownWriteConcernsAreRejected() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new MongoPolicies(Map.of("MONGO_WRITE_CONCERN", "whenever")));
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+        () -> new MongoPolicies(Map.of("MONGO_WRITE_CONCERN", "")));
+    assertEquals("Unknown Mongo write concern: ", e.getMessage());
+  }
+
+  @Test
+  public void listsAndLookupsHaveDeadlinesByDefault() {
+    MongoPolicies policies = new MongoPolicies(Map.of("MONGO_GET_MAX_TIME_MS", "500"));
+
+    assertEquals(10_000, policies.maxTimeMillis("todos.list"));
+    assertEquals(500, policies.maxTimeMillis("users.get"));
+    assertEquals(0, policies.maxTimeMillis("todos.insert"));
+    assertEquals(0, MongoPolicies.defaults().maxTimeMillis("todos.list"));
+  }
+
+  @Test
+  public void deadlinesCanBeOverriddenOneAtATime() {
+    MongoPolicies policies = new MongoPolicies(Map.of(
+        "MONGO_MAX_TIME_MS_TODOS_LIST", "3000",
+        "MONGO_MAX_TIME_MS_TODOS_EXPORT", "60000"));
+
+    assertEquals(3000, policies.maxTimeMillis("todos.list"));
+    assertEquals(10_000, policies.maxTimeMillis("users.list"));
+    assertEquals(60_000, policies.maxTimeMillis("todos.export"));
+  }
+
+  @Test
+  public void onlyListsAreHedgedAndOnlyIfAskedFor() {
+    assertFalse(new MongoPolicies(Map.of("MONGO_REPLICA_SET", "rs0",
+        "MONGO_LIST_READ_PREFERENCE", "secondaryPreferred")).hedged("todos.list"));
+
+    MongoPolicies policies = new MongoPolicies(Map.of(
+        "MONGO_HEDGE_READS", "true",
+        "MONGO_LIST_READ_PREFERENCE", "secondaryPreferred",
+        "MONGO_HEDGE_READS_USERS_LIST", "false"));
+    assertTrue(policies.hedged("todos.list"));
+    assertFalse(policies.hedged("users.list"));
+    assertFalse(policies.hedged("todos.get"));
+  }
+
+  @Test
+  public void readsThatCanOnlyGoToOneMemberAreNeverHedged() {
+    MongoPolicies policies = new MongoPolicies(Map.of(
+        "MONGO_HEDGE_READS", "true",
+        "MONGO_HEDGE_READS_TODOS_GET", "true",
+        "MONGO_READ_PREFERENCE_USERS_LIST", "primaryPreferred"));
+
+    assertFalse(policies.hedged("todos.list"));
+    assertFalse(policies.hedged("todos.get"));
+    assertFalse(policies.hedged("users.list"));
+  }
+
+  @Test
+  public void hedgesKeepTheReadPreferenceAndStaleness() {
+    MongoPolicies policies = new MongoPolicies(Map.of(
+        "MONGO_LIST_READ_PREFERENCE", "secondaryPreferred",
+        "MONGO_MAX_STALENESS_SECONDS", "120",
+        "MONGO_READ_PREFERENCE_USERS_LIST", "nearest"));
+
+    assertEquals(policies.readPreference("todos.list"), policies.hedgePreference("todos.list"));
+    assertEquals(120L, ((TaggableReadPreference) policies.hedgePreference("todos.list"))
+        .getMaxStaleness(TimeUnit.SECONDS));
+    assertEquals("nearest", policies.hedgePreference("users.list").getName());
+  }
+
+  @Test
+  public void onlyListsAreCoalesced() {
+    assertFalse(MongoPolicies.defaults().coalesced("todos.list"));
+
+    MongoPolicies policies = new MongoPolicies(Map.of("MONGO_COALESCE_READS_USERS_LIST", "false"));
+    assertTrue(policies.coalesced("todos.list"));
+    assertFalse(policies.coalesced("users.list"));
+    assertFalse(policies.coalesced("todos.get"));
+  }
+}
@@ -0,0 +1,171 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Sorts;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.BadRequestResponse;
+import umm3601.QueryLanguage.Type;
+import umm3601.mongotest.InMemoryMongo;
+
+/**
+ * Tests what `QueryLanguage` queries match, by running them on the
+ * in-memory Mongo, and how it keeps compiled queries.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class QueryLanguageSpec {
+
+  private static final Map<String, Type> FIELDS = Map.of(
+      "_id", Type.ID,
+      "name", Type.STRING,
+      "status", Type.BOOLEAN,
+      "category", Type.STRING,
+      "age", Type.INTEGER,
+      "createdAt", Type.CREATED);
+
+  private static MongoClient mongoClient;
+  private static MongoCollection<Document> things;
+
+  private final QueryLanguage queries = new QueryLanguage("things", FIELDS);
+
+  @BeforeAll
+  public static void setupAll() {
+    mongoClient = InMemoryMongo.forTests();
+    things = mongoClient.getDatabase("test").getCollection("things");
+    things.drop();
+    things.insertMany(List.of(
+        new Document("name", "Chris").append("status", false).append("category", "homework").append("age", 25),
+        new Document("name", "Pat").append("status", true).append("category", "groceries").append("age", 37),
+        new Document("name", "Jamie").append("status", false).append("category", "groceries").append("age", 37),
+        new Document("name", "Sam").append("status", false).append("category", "video games").append("age", 45)));
+  }
+
+  @AfterAll
+  public static void teardown() {
+    mongoClient.close();
+  }
+
+  // The names of the things a query matches, in order
+  private List<String> names(String query) {
+    List<String> names = new ArrayList<>();
+    for (Document thing : things.find(queries.compile(query)).sort(Sorts.ascending("name"))) {
+      names.add(thing.getString("name"));
+    }
+    return names;
+  }
+
+  private static String json(Bson filter) {
+    return filter.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()).toJson();
+  }
+
+  @Test
+  public void andBindsTighterThanOr() {
+    assertEquals(List.of("Chris", "Jamie"), names("status:false AND (category:homework OR category:groceries)"));
+    assertEquals(List.of("Chris", "Jamie", "Pat"), names("status:false AND category:homework OR category:groceries"));
+    assertEquals(List.of("Pat"), names("NOT status:false"));
+    // Keywords aren't case-sensitive
+    assertEquals(List.of("Jamie", "Sam"), names("status:false and not category:homework"));
+  }
+
+  @Test
+  public void rangesAndListsOfValues() {
+    assertEquals(List.of("Jamie", "Pat", "Sam"), names("age>=37"));
+    assertEquals(List.of("Jamie", "Pat"), names("age:30..40"));
+    assertEquals(List.of("Chris", "Sam"), names("age<37 OR age>40"));
+    assertEquals(List.of("Chris", "Sam"), names("category in (homework, \"video games\")"));
+    assertEquals(List.of("Pat"), names("name IN (Pat)"));
+  }
+
+  @Test
+  public void createdAtIsARangeOfIds() {
+    Instant day = Instant.parse("2022-02-01T00:00:00Z");
+    assertEquals(json(and(gte("_id", CreationTime.firstIdAt(day)),
+        lt("_id", CreationTime.firstIdAt(day.plusSeconds(86_400))))),
+        json(queries.compile("createdAt:2022-02-01")));
+
+    Instant time = Instant.parse("2022-02-01T09:30:00Z");
+    assertEquals(json(gte("_id", CreationTime.firstIdAt(time.plusSeconds(1)))),
+        json(queries.compile("createdAt>\"2022-02-01T09:30:00Z\"")));
+    assertEquals(json(lt("_id", CreationTime.firstIdAt(time))),
+        json(queries.compile("createdAt<\"2022-02-01T09:30:00Z\"")));
+    // Everything here was made just now
+    assertEquals(4, names("createdAt>=2022-02-01").size());
+    assertEquals(0, names("createdAt:2022-02-01..2022-02-28").size());
+  }
+
+  @Test
+  public void illegalQueriesAreRejected() {
+    for (String query : List.of("", "color:red", "status:maybe", "age>old", "(status:true", "status:true OR",
+        "name:\"unclosed", "status>true", "_id:nope", "name", "name:Pat category:groceries", "createdAt:soon")) {
+      assertThrows(BadRequestResponse.class, () -> queries.compile(query), query);
+    }
+    BadRequestResponse e = assertThrows(BadRequestResponse.class, () -> queries.compile("status:true AND color:red"));
+    assertEquals("Things don't have a field named color that can be queried at position 17 of the query: "
+        + "status:true AND color:red", e.getMessage());
+  }
+
+  @Test
+  public void nestingIsLimited() {
+    int limit = QueryLanguage.MAX_DEPTH;
+    assertEquals(4, names("NOT ".repeat(limit - 1) + "(name:nobody)").size());
+    assertEquals(1, names("(".repeat(limit) + "name:Pat" + ")".repeat(limit)).size());
+    // Deep enough to overflow the stack, if it weren't stopped first
+    for (String query : List.of("NOT ".repeat(limit) + "(name:Pat)", "(".repeat(limit + 1) + "name:Pat",
+        "(".repeat(QueryLanguage.MAX_QUERY_LENGTH))) {
+      assertThrows(BadRequestResponse.class, () -> queries.compile(query), query);
+    }
+  }
+
+  @Test
+  public void stringsMatchExactly() {
+    assertEquals(1, names("name:Pat").size());
+    assertEquals(0, names("name:pat").size());
+    assertEquals(0, names("name:Pa").size());
+  }
+
+  @Test
+  public void compiledQueriesAreKept() {
+    QueryLanguage small = new QueryLanguage("things", FIELDS, 2);
+
+    Bson first = small.compile("age>30");
+    assertSame(first, small.compile("age>30"));
+    assertEquals(1, small.hits());
+    assertEquals(1, small.misses());
+
+    // The least recently used goes first
+    small.compile("age>40");
+    small.compile("age>30");
+    small.compile("age>50");
+    assertSame(first, small.compile("age>30"));
+    small.compile("age>40");
+    assertEquals(2, small.size());
+    assertEquals(4, small.misses());
+
+    // Mistakes aren't kept
+    assertThrows(BadRequestResponse.class, () -> small.compile("age>"));
+    assertThrows(BadRequestResponse.class, () -> small.compile("age>"));
+    assertEquals(6, small.misses());
+    assertTrue(small.size() <= 2);
+  }
+}
@@ -0,0 +1,94 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the lock-free `RingBuffer` used by the access log.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class RingBufferSpec {
+
+  @Test
+  public void capacityIsRoundedUpToAPowerOfTwo() {
+    assertEquals(8, new RingBuffer<String>(5).capacity());
+    assertEquals(8, new RingBuffer<String>(8).capacity());
+  }
+
+  @Test
+  public void drainsInOrder() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(4);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(buffer.offer(i));
+    }
+
+    List<Integer> drained = new ArrayList<>();
+    assertEquals(3, buffer.drain(drained::add, 10));
+    assertEquals(List.of(0, 1, 2), drained);
+    assertEquals(0, buffer.size());
+  }
+
+  @Test
+  public void refusesElementsWhenFull() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(2);
+    assertTrue(buffer.offer(1));
+    assertTrue(buffer.offer(2));
+    assertFalse(buffer.offer(3));
+
+    // Draining frees up room again, and the slots are reused
+    buffer.drain(value -> { }, 1);
+    assertTrue(buffer.offer(3));
+    List<Integer> drained = new ArrayList<>();
+    buffer.drain(drained::add, 10);
+    assertEquals(List.of(2, 3), drained);
+  }
+
+  @Test
+  public void drainStopsAtMax() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(8);
+    for (int i = 0; i < 5; i++) {
+      buffer.offer(i);
+    }
+
+    assertEquals(2, buffer.drain(value -> { }, 2));
+    assertEquals(3, buffer.size());
+  }
+
+  @Test
+  public void concurrentProducersDontLoseAcceptedElements() throws InterruptedException {
+    RingBuffer<Integer> buffer = new RingBuffer<>(1024);
+    AtomicInteger accepted = new AtomicInteger();
+    List<Thread> producers = new ArrayList<>();
+    for (int p = 0; p < 4; p++) {
+      Thread producer = new Thread(() -> {
+        for (int i = 0; i < 1000; i++) {
+          if (buffer.offer(i)) {
+            accepted.incrementAndGet();
+          }
+        }
+      });
+      producers.add(producer);
+      producer.start();
+    }
+
+    AtomicInteger drained = new AtomicInteger();
+    boolean producing = true;
+    while (producing) {
+      producing = producers.stream().anyMatch(Thread::isAlive);
+      buffer.drain(value -> drained.incrementAndGet(), 100);
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    buffer.drain(value -> drained.incrementAndGet(), Integer.MAX_VALUE);
+
+    assertEquals(accepted.get(), drained.get());
+  }
+}
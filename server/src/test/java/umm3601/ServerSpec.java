@@ -0,0 +1,113 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.Javalin;
+
+/**
+ * Tests what a request gets back when Mongo fails underneath it, with the
+ * circuit breaker in front (see `Server.addCircuitBreaker`). The requests
+ * go straight to Javalin's servlet, with no Jetty in front.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ServerSpec {
+
+  private final ObjectMapper json = new ObjectMapper();
+  private final AtomicLong now = new AtomicLong();
+  private final CircuitBreaker breaker = new CircuitBreaker(2, 5000, now::get);
+  private Javalin server;
+
+  @BeforeEach
+  public void setupEach() {
+    server = Javalin.create();
+    Server.addCircuitBreaker(server, breaker, new Metrics());
+    server.get("/api/slow", ctx -> {
+      throw new MongoExecutionTimeoutException(50, "operation exceeded time limit");
+    });
+    server.get("/api/unreachable", ctx -> {
+      throw new MongoTimeoutException("Timed out after 30000 ms while waiting for a server");
+    });
+    server.get("/api/duplicate", ctx -> {
+      throw new MongoWriteException(new WriteError(11000, "duplicate key", new BsonDocument()), new ServerAddress());
+    });
+  }
+
+  private MockHttpServletResponse get(String path) throws IOException, ServletException {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    request.setMethod("GET");
+    request.setRequestURI(path);
+    request.setContextPath("");
+    MockHttpServletResponse response = new MockHttpServletResponse() {
+      // Mockrunner only implements the servlet 2.5 API
+      @Override
+      public int getStatus() {
+        return getStatusCode();
+      }
+    };
+    server.javalinServlet().service(request, response);
+    return response;
+  }
+
+  private JsonNode body(MockHttpServletResponse response) throws IOException {
+    return json.readTree(response.getOutputStreamContent());
+  }
+
+  @Test
+  public void aReadThatRanOutOfTimeIsAGatewayTimeout() throws IOException, ServletException {
+    MockHttpServletResponse response = get("/api/slow");
+
+    assertEquals(504, response.getStatusCode());
+    assertEquals(504, body(response).get("status").asInt());
+    assertEquals("The database took too long to answer", body(response).get("title").asText());
+  }
+
+  @Test
+  public void anUnreachableDatabaseIsUnavailable() throws IOException, ServletException {
+    MockHttpServletResponse response = get("/api/unreachable");
+
+    assertEquals(503, response.getStatusCode());
+    assertEquals(503, body(response).get("status").asInt());
+    // The breaker isn't open yet, so it's worth trying again right away
+    assertEquals("1", response.getHeader("Retry-After"));
+  }
+
+  @Test
+  public void onceTheBreakerOpensRequestsAreTurnedAway() throws IOException, ServletException {
+    get("/api/unreachable");
+    get("/api/slow");
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+
+    MockHttpServletResponse response = get("/api/duplicate");
+
+    assertEquals(503, response.getStatusCode());
+    assertEquals("5", response.getHeader("Retry-After"));
+  }
+
+  @Test
+  public void otherMongoErrorsAreStillServerErrors() throws IOException, ServletException {
+    MockHttpServletResponse response = get("/api/duplicate");
+
+    assertEquals(500, response.getStatusCode());
+    assertEquals(500, body(response).get("status").asInt());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+  }
+}
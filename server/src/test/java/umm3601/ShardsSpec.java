@@ -0,0 +1,78 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how `Shards` places keys and fans out.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ShardsSpec {
+
+  private final Shards shards = new Shards(4);
+
+  @Test
+  public void placesAKeyTheSameWayWhateverItsCase() {
+    assertEquals(shards.shardFor("Fry"), shards.shardFor("fry"));
+    assertEquals(shards.shardFor("Fry"), shards.shardFor("FRY"));
+    assertEquals(shards.shardFor("Fry"), new Shards(4).shardFor("Fry"));
+  }
+
+  @Test
+  public void spreadsKeysAcrossEveryShard() {
+    int[] counts = new int[4];
+    for (int i = 0; i < 1000; i++) {
+      counts[shards.shardFor("owner" + i)]++;
+    }
+    for (int count : counts) {
+      assertTrue(count > 150, "Too few keys on a shard: " + count);
+    }
+  }
+
+  @Test
+  public void oneShardHasEverything() {
+    Shards one = new Shards(1);
+    assertEquals(0, one.shardFor("Fry"));
+    assertEquals(List.of(0), one.all());
+  }
+
+  @Test
+  public void findsTheShardsForSomeKeys() {
+    List<Integer> forKeys = shards.shardsFor(List.of("Fry", "fry", "Leela"));
+    assertTrue(forKeys.contains(shards.shardFor("Fry")));
+    assertTrue(forKeys.contains(shards.shardFor("Leela")));
+    assertTrue(forKeys.size() <= 2);
+  }
+
+  @Test
+  public void fansOutAndKeepsTheOrder() {
+    List<String> threads = new ArrayList<>();
+    List<Integer> results = shards.fanOut(List.of(3, 1, 2), shard -> {
+      synchronized (threads) {
+        threads.add(Thread.currentThread().getName());
+      }
+      return shard * 10;
+    });
+
+    assertEquals(List.of(30, 10, 20), results);
+    assertTrue(threads.stream().allMatch(name -> name.equals("shard-fan-out")));
+  }
+
+  @Test
+  public void passesOnAShardsFailure() {
+    IllegalStateException thrown = assertThrows(IllegalStateException.class,
+        () -> shards.fanOut(shards.all(), shard -> {
+          if (shard == 2) {
+            throw new IllegalStateException("shard 2 is down");
+          }
+          return shard;
+        }));
+    assertEquals("shard 2 is down", thrown.getMessage());
+  }
+}
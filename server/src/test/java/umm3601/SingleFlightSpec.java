@@ -0,0 +1,122 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that `SingleFlight` shares work between callers that arrive
+ * while it's in flight, and only them.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SingleFlightSpec {
+
+  private final Metrics metrics = new Metrics();
+  private final SingleFlight<String, Object> flight = new SingleFlight<>(metrics, "work");
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @AfterEach
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  // Start `callers` calls with the same key, the first of which blocks
+  // until the others are waiting for it, and return their futures.
+  private List<Future<Object>> callTogether(int callers, CountDownLatch release, Object answer) throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    List<Future<Object>> calls = new ArrayList<>();
+    calls.add(executor.submit(() -> flight.run("key", () -> {
+      started.countDown();
+      await(release);
+      return answer;
+    })));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    for (int i = 1; i < callers; i++) {
+      calls.add(executor.submit(() -> flight.run("key", () -> "not shared")));
+    }
+    // Wait for the others to join the flight before letting it land
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (metrics.counter("work.coalesced").sum() < callers - 1 && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    return calls;
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  public void concurrentCallersShareOneAnswer() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Object answer = new Object();
+    List<Future<Object>> calls = callTogether(5, release, answer);
+    release.countDown();
+
+    for (Future<Object> call : calls) {
+      assertSame(answer, call.get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(1, metrics.counter("work.flights").sum());
+    assertEquals(4, metrics.counter("work.coalesced").sum());
+    assertEquals(0, flight.inFlight());
+  }
+
+  @Test
+  public void concurrentCallersShareOneFailure() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Future<Object> first = executor.submit(() -> flight.run("key", () -> {
+      started.countDown();
+      await(release);
+      throw new IllegalStateException("Mongo is down");
+    }));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    Future<Object> second = executor.submit(() -> flight.run("key", () -> "not shared"));
+    while (metrics.counter("work.coalesced").sum() < 1) {
+      Thread.sleep(1);
+    }
+    release.countDown();
+
+    for (Future<Object> call : List.of(first, second)) {
+      Exception e = assertThrows(Exception.class, () -> call.get(5, TimeUnit.SECONDS));
+      assertTrue(e.getCause() instanceof IllegalStateException);
+      assertEquals("Mongo is down", e.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void differentKeysDoNotShare() {
+    assertEquals("a", flight.run("a", () -> "a"));
+    assertEquals("b", flight.run("b", () -> "b"));
+    assertEquals(2, metrics.counter("work.flights").sum());
+    assertEquals(0, metrics.counter("work.coalesced").sum());
+  }
+
+  @Test
+  public void laterCallersRunTheWorkAgain() {
+    AtomicInteger runs = new AtomicInteger();
+
+    flight.run("key", runs::incrementAndGet);
+    flight.run("key", runs::incrementAndGet);
+
+    assertEquals(2, runs.get());
+    assertEquals(0, flight.inFlight());
+  }
+}
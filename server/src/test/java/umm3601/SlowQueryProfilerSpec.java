@@ -0,0 +1,103 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.model.Filters;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how the `SlowQueryProfiler` groups queries into shapes.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SlowQueryProfilerSpec {
+
+  private static BsonDocument shapeOf(Bson filter) {
+    return SlowQueryProfiler.normalize(
+        filter.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()));
+  }
+
+  private static final ConnectionDescription CONNECTION =
+      new ConnectionDescription(new ServerId(new ClusterId(), new ServerAddress()));
+
+  private static void run(SlowQueryProfiler profiler, int requestId, String command, String response) {
+    BsonDocument started = BsonDocument.parse(command);
+    profiler.commandStarted(new CommandStartedEvent(requestId, CONNECTION, "test",
+        started.getFirstKey(), started));
+    profiler.commandSucceeded(new CommandSucceededEvent(requestId, CONNECTION,
+        started.getFirstKey(), BsonDocument.parse(response), 1_000_000));
+  }
+
+  @Test
+  public void valuesAreReplaced() {
+    BsonDocument fry = shapeOf(Filters.and(
+        Filters.regex("owner", Pattern.quote("Fry"), "i"), Filters.eq("status", true)));
+    BsonDocument blanche = shapeOf(Filters.and(
+        Filters.regex("owner", Pattern.quote("Blanche"), "i"), Filters.eq("status", false)));
+
+    assertEquals(fry, blanche);
+    assertTrue(fry.toJson().contains("\"status\": \"?\""), fry.toJson());
+  }
+
+  @Test
+  public void regexOptionsAreKept() {
+    BsonDocument insensitive = shapeOf(Filters.regex("owner", "Fry", "i"));
+    BsonDocument sensitive = shapeOf(Filters.regex("owner", "Fry"));
+
+    assertNotEquals(insensitive, sensitive);
+  }
+
+  @Test
+  public void differentFieldsAreDifferentShapes() {
+    assertNotEquals(shapeOf(Filters.eq("owner", "Fry")), shapeOf(Filters.eq("category", "Fry")));
+  }
+
+  @Test
+  public void operatorsAreKept() {
+    BsonDocument shape = shapeOf(Filters.in("owner", List.of("Fry", "Blanche", "Dawn")));
+
+    assertEquals(BsonDocument.parse("{owner: {$in: '?'}}"), shape);
+  }
+
+  @Test
+  public void nothingIsRecordedWithoutQueries() {
+    List<Map<String, Object>> worst = new SlowQueryProfiler(0, 0).worstShapes(10);
+
+    assertTrue(worst.isEmpty());
+  }
+
+  @Test
+  public void docsReturnedIncludeLaterBatches() {
+    SlowQueryProfiler profiler = new SlowQueryProfiler(0, 0);
+
+    run(profiler, 1, "{find: 'todos', filter: {owner: 'Fry'}}",
+        "{cursor: {id: {$numberLong: '42'}, firstBatch: [{}, {}]}}");
+    run(profiler, 2, "{getMore: {$numberLong: '42'}, collection: 'todos'}",
+        "{cursor: {id: {$numberLong: '42'}, nextBatch: [{}, {}, {}]}}");
+    run(profiler, 3, "{getMore: {$numberLong: '42'}, collection: 'todos'}",
+        "{cursor: {id: {$numberLong: '0'}, nextBatch: [{}]}}");
+    // The cursor is exhausted, so this one isn't counted
+    run(profiler, 4, "{getMore: {$numberLong: '42'}, collection: 'todos'}",
+        "{cursor: {id: {$numberLong: '0'}, nextBatch: [{}]}}");
+
+    List<Map<String, Object>> worst = profiler.worstShapes(10);
+    assertEquals(1, worst.size());
+    assertEquals(1L, worst.get(0).get("count"));
+    assertEquals(6L, worst.get(0).get("docsReturned"));
+  }
+}
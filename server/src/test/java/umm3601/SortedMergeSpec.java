@@ -0,0 +1,81 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonNull;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests merging sorted results from several shards with `SortedMerge`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SortedMergeSpec {
+
+  private static <T> List<T> drain(Iterator<T> merge) {
+    List<T> all = new ArrayList<>();
+    merge.forEachRemaining(all::add);
+    return all;
+  }
+
+  @Test
+  public void mergesSortedSequences() {
+    SortedMerge<Integer> merge = new SortedMerge<>(List.of(
+        List.of(1, 4, 7).iterator(),
+        List.<Integer>of().iterator(),
+        List.of(2, 3, 8, 9).iterator(),
+        List.of(5, 6).iterator()), Comparator.naturalOrder());
+
+    assertEquals(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9), drain(merge));
+    assertFalse(merge.hasNext());
+  }
+
+  @Test
+  public void mergesNothing() {
+    assertFalse(new SortedMerge<>(List.<Iterator<String>>of(), Comparator.<String>naturalOrder()).hasNext());
+  }
+
+  @Test
+  public void keepsTiesInSourceOrder() {
+    Comparator<String> byLength = Comparator.comparingInt(String::length);
+    SortedMerge<String> merge = new SortedMerge<>(List.of(
+        List.of("b", "dd").iterator(),
+        List.of("a", "cc").iterator()), byLength);
+
+    assertEquals(List.of("b", "a", "dd", "cc"), drain(merge));
+  }
+
+  @Test
+  public void ordersDocumentsLikeMongo() {
+    BsonDocument missing = new BsonDocument();
+    BsonDocument nothing = new BsonDocument("owner", BsonNull.VALUE);
+    BsonDocument number = new BsonDocument("owner", new BsonInt32(3));
+    BsonDocument ann = new BsonDocument("owner", new BsonString("Ann"));
+    BsonDocument bob = new BsonDocument("owner", new BsonString("Bob"));
+    BsonDocument id = new BsonDocument("owner", new BsonObjectId(new ObjectId()));
+
+    Comparator<BsonDocument> ascending = SortedMerge.bsonOrder("owner", false);
+    assertEquals(0, ascending.compare(missing, nothing));
+    assertTrue(ascending.compare(nothing, number) < 0);
+    assertTrue(ascending.compare(number, ann) < 0);
+    assertTrue(ascending.compare(ann, bob) < 0);
+    assertTrue(ascending.compare(bob, id) < 0);
+
+    Comparator<BsonDocument> descending = SortedMerge.bsonOrder("owner", true);
+    SortedMerge<BsonDocument> merge = new SortedMerge<>(List.of(
+        List.of(bob, number).iterator(),
+        List.of(id, ann, nothing).iterator()), descending);
+    assertEquals(List.of(id, bob, ann, number, nothing), drain(merge));
+  }
+}
@@ -0,0 +1,106 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests `WarmUp` against a stand-in server.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class WarmUpSpec {
+
+  private final Set<String> requested = ConcurrentHashMap.newKeySet();
+  private HttpServer server;
+  private URI base;
+
+  @BeforeEach
+  public void startServer() throws IOException {
+    // A plain JDK server, since the test classpath's servlet API is too
+    // old for Jetty
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/todos", exchange -> {
+      String path = exchange.getRequestURI().getPath();
+      respond(exchange, path.equals("/api/todos")
+          ? "[{\"_id\": \"t1\"}, {\"_id\": \"t2\"}]"
+          : "{\"_id\": \"" + path.substring(path.lastIndexOf('/') + 1) + "\"}");
+    });
+    server.createContext("/api/users", exchange -> respond(exchange, "[]"));
+    server.createContext("/", exchange -> {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+    });
+    server.start();
+    base = URI.create("http://localhost:" + server.getAddress().getPort());
+  }
+
+  private void respond(HttpExchange exchange, String json) throws IOException {
+    requested.add(exchange.getRequestURI().toString());
+    byte[] body = json.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  @AfterEach
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void warmsUpWithTheListsAndTheirIds() {
+    WarmUp warmUp = new WarmUp(base, List.of("/api/todos", "/api/users"), 3, 60_000);
+    assertFalse(warmUp.isReady());
+
+    warmUp.run();
+
+    assertTrue(warmUp.isReady());
+    assertEquals(3, warmUp.status().get("iterations"));
+    assertEquals(0L, warmUp.status().get("failures"));
+    assertTrue(requested.contains("/api/todos/t1"));
+    assertTrue(requested.contains("/api/todos/t2"));
+    assertTrue(requested.contains("/api/todos?ids=t1,t2"));
+  }
+
+  @Test
+  public void countsFailedRequests() {
+    WarmUp warmUp = new WarmUp(base, List.of("/api/missing"), 2, 60_000);
+
+    warmUp.run();
+
+    assertTrue(warmUp.isReady());
+    assertEquals(2L, warmUp.status().get("failures"));
+  }
+
+  @Test
+  public void givesUpAtTheDeadline() {
+    WarmUp warmUp = new WarmUp(base, List.of("/api/todos"), Integer.MAX_VALUE, 200);
+
+    warmUp.run();
+
+    assertTrue(warmUp.isReady());
+    assertTrue((Integer) warmUp.status().get("iterations") < Integer.MAX_VALUE);
+  }
+
+  @Test
+  public void noIterationsMeansReadyStraightAway() {
+    assertTrue(new WarmUp(base, List.of("/api/todos"), 0, 60_000).isReady());
+  }
+}
@@ -0,0 +1,786 @@
+package umm3601.mongotest;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.bson.BsonArray;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+
+import umm3601.SortedMerge;
+
+/**
+ * What the in-memory Mongo does with the filters, sorts, projections,
+ * updates, and aggregation pipelines it's given, once the driver's
+ * builders have turned them into `BsonDocument`s.
+ *
+ * It covers what the controllers and specs use, following Mongo's rules
+ * where they're easy to get wrong: a filter on a field that holds an
+ * array matches if any element does, `{field: null}` matches documents
+ * without the field, numbers of different types are equal if their values
+ * are, and comparisons (`$gt` etc.) only match values of the same type.
+ * Anything it doesn't understand throws `UnsupportedOperationException`.
+ */
+final class BsonQueries {
+
+  // Compiled regexes by their options and source, since a filter's regex
+  // is tried against every document
+  private static final Map<String, Pattern> PATTERNS = new ConcurrentHashMap<>();
+
+  private BsonQueries() {
+  }
+
+  /**
+   * Whether a document matches a filter.
+   */
+  static boolean matches(BsonDocument document, BsonDocument filter) {
+    for (Map.Entry<String, BsonValue> clause : filter.entrySet()) {
+      if (!matchesClause(document, clause.getKey(), clause.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matchesClause(BsonDocument document, String key, BsonValue condition) {
+    switch (key) {
+      case "$and":
+        for (BsonValue part : condition.asArray()) {
+          if (!matches(document, part.asDocument())) {
+            return false;
+          }
+        }
+        return true;
+      case "$or":
+        for (BsonValue part : condition.asArray()) {
+          if (matches(document, part.asDocument())) {
+            return true;
+          }
+        }
+        return false;
+      case "$nor":
+        for (BsonValue part : condition.asArray()) {
+          if (matches(document, part.asDocument())) {
+            return false;
+          }
+        }
+        return true;
+      default:
+        if (key.startsWith("$")) {
+          throw new UnsupportedOperationException("The in-memory Mongo doesn't support " + key);
+        }
+        return matchesValues(valuesAt(document, key), condition);
+    }
+  }
+
+  private static boolean matchesValues(List<BsonValue> values, BsonValue condition) {
+    if (!isOperators(condition)) {
+      return equalsAny(values, condition);
+    }
+    BsonDocument operators = condition.asDocument();
+    for (Map.Entry<String, BsonValue> operator : operators.entrySet()) {
+      if (!matchesOperator(values, operator.getKey(), operator.getValue(), operators)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matchesOperator(List<BsonValue> values, String operator, BsonValue operand,
+      BsonDocument operators) {
+    switch (operator) {
+      case "$eq":
+        return equalsAny(values, operand);
+      case "$ne":
+        return !equalsAny(values, operand);
+      case "$in":
+        return inAny(values, operand.asArray());
+      case "$nin":
+        return !inAny(values, operand.asArray());
+      case "$exists":
+        return values.isEmpty() != isTruthy(operand);
+      case "$type":
+        // Only by number, which is what `Filters.type` sends
+        for (BsonValue value : values) {
+          if (value.getBsonType().getValue() == operand.asNumber().intValue()) {
+            return true;
+          }
+        }
+        return false;
+      case "$gt":
+      case "$gte":
+      case "$lt":
+      case "$lte":
+        return comparesAny(values, operator, operand);
+      case "$regex":
+        return matchesRegex(values, pattern(operand, operators.get("$options")));
+      case "$options":
+        // Read along with `$regex`
+        return true;
+      case "$not":
+        return !matchesValues(values, operand);
+      case "$size":
+        for (BsonValue value : values) {
+          if (value.isArray() && value.asArray().size() == operand.asNumber().intValue()) {
+            return true;
+          }
+        }
+        return false;
+      case "$all":
+        for (BsonValue wanted : operand.asArray()) {
+          if (!equalsAny(values, wanted)) {
+            return false;
+          }
+        }
+        return true;
+      default:
+        throw new UnsupportedOperationException("The in-memory Mongo doesn't support " + operator);
+    }
+  }
+
+  private static boolean isOperators(BsonValue condition) {
+    return condition.isDocument() && !condition.asDocument().isEmpty()
+        && condition.asDocument().getFirstKey().startsWith("$");
+  }
+
+  private static boolean equalsAny(List<BsonValue> values, BsonValue wanted) {
+    if (wanted.isNull() && values.isEmpty()) {
+      return true;
+    }
+    if (wanted.isRegularExpression()) {
+      return matchesRegex(values, pattern(wanted, null));
+    }
+    for (BsonValue value : values) {
+      if (valueEquals(value, wanted)) {
+        return true;
+      }
+      if (value.isArray()) {
+        for (BsonValue element : value.asArray()) {
+          if (valueEquals(element, wanted)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean inAny(List<BsonValue> values, BsonArray wanted) {
+    for (BsonValue each : wanted) {
+      if (equalsAny(values, each)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean comparesAny(List<BsonValue> values, String operator, BsonValue operand) {
+    for (BsonValue value : flatten(values)) {
+      if (!sameType(value, operand)) {
+        continue;
+      }
+      int order = SortedMerge.compare(value, operand);
+      boolean matched;
+      switch (operator) {
+        case "$gt":
+          matched = order > 0;
+          break;
+        case "$gte":
+          matched = order >= 0;
+          break;
+        case "$lt":
+          matched = order < 0;
+          break;
+        default:
+          matched = order <= 0;
+          break;
+      }
+      if (matched) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Mongo only compares values of the same type (counting all numbers as one)
+  private static boolean sameType(BsonValue a, BsonValue b) {
+    return a.isNumber() && b.isNumber() || a.getBsonType() == b.getBsonType();
+  }
+
+  private static Pattern pattern(BsonValue regex, BsonValue extraOptions) {
+    String source;
+    String options;
+    if (regex.isRegularExpression()) {
+      BsonRegularExpression expression = regex.asRegularExpression();
+      source = expression.getPattern();
+      options = expression.getOptions();
+    } else {
+      source = regex.asString().getValue();
+      options = "";
+    }
+    if (extraOptions != null) {
+      options += extraOptions.asString().getValue();
+    }
+    String flagged = options;
+    return PATTERNS.computeIfAbsent(options + "/" + source, key -> compile(source, flagged));
+  }
+
+  private static Pattern compile(String source, String options) {
+    int flags = 0;
+    for (char option : options.toCharArray()) {
+      switch (option) {
+        case 'i':
+          flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+          break;
+        case 'm':
+          flags |= Pattern.MULTILINE;
+          break;
+        case 's':
+          flags |= Pattern.DOTALL;
+          break;
+        case 'x':
+          flags |= Pattern.COMMENTS;
+          break;
+        default:
+          throw new UnsupportedOperationException("The in-memory Mongo doesn't support regex option " + option);
+      }
+    }
+    return Pattern.compile(source, flags);
+  }
+
+  private static boolean matchesRegex(List<BsonValue> values, Pattern pattern) {
+    for (BsonValue value : flatten(values)) {
+      if (value.isString() && pattern.matcher(value.asString().getValue()).find()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<BsonValue> flatten(List<BsonValue> values) {
+    List<BsonValue> flat = new ArrayList<>();
+    for (BsonValue value : values) {
+      flat.add(value);
+      if (value.isArray()) {
+        flat.addAll(value.asArray());
+      }
+    }
+    return flat;
+  }
+
+  /**
+   * The values at a path like `a.b`, looking inside arrays along the way
+   * the way Mongo does; empty if there aren't any.
+   */
+  static List<BsonValue> valuesAt(BsonDocument document, String path) {
+    List<BsonValue> values = new ArrayList<>();
+    collect(document, path.split("\\."), 0, values);
+    return values;
+  }
+
+  private static void collect(BsonValue value, String[] parts, int depth, List<BsonValue> values) {
+    if (depth == parts.length) {
+      values.add(value);
+    } else if (value.isDocument()) {
+      BsonValue next = value.asDocument().get(parts[depth]);
+      if (next != null) {
+        collect(next, parts, depth + 1, values);
+      }
+    } else if (value.isArray()) {
+      BsonArray array = value.asArray();
+      if (parts[depth].matches("\\d+")) {
+        int index = Integer.parseInt(parts[depth]);
+        if (index < array.size()) {
+          collect(array.get(index), parts, depth + 1, values);
+        }
+      } else {
+        for (BsonValue element : array) {
+          if (element.isDocument()) {
+            collect(element, parts, depth, values);
+          }
+        }
+      }
+    }
+  }
+
+  private static BsonValue valueAt(BsonDocument document, String path) {
+    if (path.indexOf('.') < 0) {
+      return document.get(path);
+    }
+    List<BsonValue> values = valuesAt(document, path);
+    return values.isEmpty() ? null : values.get(0);
+  }
+
+  /**
+   * Whether two values are equal the way Mongo sees it: numbers by value
+   * whatever their type, and arrays and documents field by field.
+   */
+  static boolean valueEquals(BsonValue a, BsonValue b) {
+    if (a.isNumber() && b.isNumber()) {
+      return SortedMerge.compare(a, b) == 0;
+    }
+    if (a.isArray() && b.isArray()) {
+      BsonArray left = a.asArray();
+      BsonArray right = b.asArray();
+      if (left.size() != right.size()) {
+        return false;
+      }
+      for (int i = 0; i < left.size(); i++) {
+        if (!valueEquals(left.get(i), right.get(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (a.isDocument() && b.isDocument()) {
+      List<String> leftKeys = new ArrayList<>(a.asDocument().keySet());
+      List<String> rightKeys = new ArrayList<>(b.asDocument().keySet());
+      if (!leftKeys.equals(rightKeys)) {
+        return false;
+      }
+      for (String key : leftKeys) {
+        if (!valueEquals(a.asDocument().get(key), b.asDocument().get(key))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return a.equals(b);
+  }
+
+  /**
+   * The order a sort document (e.g., from `Sorts.ascending`) puts
+   * documents in, or `null` if there's no sort.
+   */
+  static Comparator<BsonDocument> order(BsonDocument sort) {
+    Comparator<BsonDocument> order = null;
+    for (Map.Entry<String, BsonValue> key : sort.entrySet()) {
+      if (!key.getValue().isNumber()) {
+        throw new UnsupportedOperationException("The in-memory Mongo doesn't support sorting by " + key.getValue());
+      }
+      String path = key.getKey();
+      Comparator<BsonDocument> byKey = (a, b) -> SortedMerge.compare(valueAt(a, path), valueAt(b, path));
+      if (key.getValue().asNumber().intValue() < 0) {
+        byKey = byKey.reversed();
+      }
+      order = order == null ? byKey : order.thenComparing(byKey);
+    }
+    return order;
+  }
+
+  /**
+   * Apply a projection (e.g., from `Projections.include`) to a document,
+   * returning a new document or the same one if there's nothing to do.
+   */
+  static BsonDocument project(BsonDocument document, BsonDocument projection) {
+    if (projection == null || projection.isEmpty()) {
+      return document;
+    }
+    boolean includeId = true;
+    boolean including = false;
+    for (Map.Entry<String, BsonValue> field : projection.entrySet()) {
+      BsonValue value = field.getValue();
+      if (!value.isNumber() && !value.isBoolean() || field.getKey().contains(".")) {
+        throw new UnsupportedOperationException("The in-memory Mongo doesn't support projecting "
+            + field.getKey() + ": " + value);
+      }
+      if (field.getKey().equals("_id")) {
+        includeId = isTruthy(value);
+      } else if (isTruthy(value)) {
+        including = true;
+      }
+    }
+    BsonDocument projected = new BsonDocument();
+    for (Map.Entry<String, BsonValue> field : document.entrySet()) {
+      String key = field.getKey();
+      boolean keep;
+      if (key.equals("_id")) {
+        keep = includeId;
+      } else if (including) {
+        keep = projection.containsKey(key) && isTruthy(projection.get(key));
+      } else {
+        keep = !projection.containsKey(key);
+      }
+      if (keep) {
+        projected.put(key, field.getValue());
+      }
+    }
+    return projected;
+  }
+
+  private static boolean isTruthy(BsonValue value) {
+    if (value.isBoolean()) {
+      return value.asBoolean().getValue();
+    }
+    return !value.isNumber() || value.asNumber().doubleValue() != 0;
+  }
+
+  /**
+   * Whether an update is a replacement document rather than a set of
+   * update operators like `$set`.
+   */
+  static boolean isReplacement(BsonDocument update) {
+    return update.isEmpty() || !update.getFirstKey().startsWith("$");
+  }
+
+  /**
+   * Apply an update (e.g., from `Updates.set`) to a document in place.
+   *
+   * @param inserting whether the document is being upserted, for
+   *   `$setOnInsert`
+   */
+  static void update(BsonDocument document, BsonDocument update, boolean inserting) {
+    if (isReplacement(update)) {
+      BsonValue id = document.get("_id");
+      document.clear();
+      if (id != null) {
+        document.put("_id", id);
+      }
+      for (Map.Entry<String, BsonValue> field : update.entrySet()) {
+        document.put(field.getKey(), copy(field.getValue()));
+      }
+      return;
+    }
+    for (Map.Entry<String, BsonValue> operator : update.entrySet()) {
+      for (Map.Entry<String, BsonValue> field : operator.getValue().asDocument().entrySet()) {
+        String path = field.getKey();
+        BsonValue value = field.getValue();
+        switch (operator.getKey()) {
+          case "$setOnInsert":
+            if (inserting) {
+              setAt(document, path, copy(value));
+            }
+            break;
+          case "$set":
+            setAt(document, path, copy(value));
+            break;
+          case "$unset":
+            BsonDocument parent = parentOf(document, path, false);
+            if (parent != null) {
+              parent.remove(lastPart(path));
+            }
+            break;
+          case "$inc":
+            BsonValue current = valueAt(document, path);
+            setAt(document, path, current == null ? value : add(current, value));
+            break;
+          case "$push":
+            BsonValue array = valueAt(document, path);
+            BsonArray pushed = array == null ? new BsonArray() : array.asArray().clone();
+            pushed.add(copy(value));
+            setAt(document, path, pushed);
+            break;
+          default:
+            throw new UnsupportedOperationException("The in-memory Mongo doesn't support " + operator.getKey());
+        }
+      }
+    }
+  }
+
+  /**
+   * The document an upsert starts from: the `_id` and any other fields
+   * the filter says have to equal something.
+   */
+  static BsonDocument upsertSeed(BsonDocument filter) {
+    BsonDocument seed = new BsonDocument();
+    for (Map.Entry<String, BsonValue> clause : filter.entrySet()) {
+      String key = clause.getKey();
+      BsonValue condition = clause.getValue();
+      if (key.equals("$and")) {
+        for (BsonValue part : condition.asArray()) {
+          seed.putAll(upsertSeed(part.asDocument()));
+        }
+      } else if (!key.startsWith("$") && !isOperators(condition)) {
+        setAt(seed, key, copy(condition));
+      } else if (!key.startsWith("$") && condition.asDocument().containsKey("$eq")) {
+        setAt(seed, key, copy(condition.asDocument().get("$eq")));
+      }
+    }
+    return seed;
+  }
+
+  private static void setAt(BsonDocument document, String path, BsonValue value) {
+    parentOf(document, path, true).put(lastPart(path), value);
+  }
+
+  private static BsonDocument parentOf(BsonDocument document, String path, boolean create) {
+    String[] parts = path.split("\\.");
+    BsonDocument parent = document;
+    for (int i = 0; i < parts.length - 1; i++) {
+      BsonValue next = parent.get(parts[i]);
+      if (next == null && create) {
+        next = new BsonDocument();
+        parent.put(parts[i], next);
+      } else if (next == null) {
+        return null;
+      } else if (!next.isDocument()) {
+        throw new UnsupportedOperationException("The in-memory Mongo doesn't support updating inside "
+            + next.getBsonType() + " at " + path);
+      }
+      parent = next.asDocument();
+    }
+    return parent;
+  }
+
+  private static String lastPart(String path) {
+    return path.substring(path.lastIndexOf('.') + 1);
+  }
+
+  private static BsonValue copy(BsonValue value) {
+    if (value.isDocument()) {
+      return value.asDocument().clone();
+    }
+    if (value.isArray()) {
+      return value.asArray().clone();
+    }
+    return value;
+  }
+
+  private static BsonValue add(BsonValue a, BsonValue b) {
+    if (a.getBsonType() == BsonType.DOUBLE || b.getBsonType() == BsonType.DOUBLE) {
+      return new BsonDouble(a.asNumber().doubleValue() + b.asNumber().doubleValue());
+    }
+    long sum = a.asNumber().longValue() + b.asNumber().longValue();
+    if (a.isInt32() && b.isInt32() && sum == (int) sum) {
+      return new BsonInt32((int) sum);
+    }
+    return new BsonInt64(sum);
+  }
+
+  /**
+   * Run an aggregation pipeline over some documents. It knows `$match`,
+   * `$group` (with `$sum`, `$avg`, `$min`, `$max`, `$first`, `$last`, and
+   * `$push`), `$bucket`, `$sort`, `$skip`, `$limit`, `$project`, and
+   * `$count`.
+   */
+  static List<BsonDocument> aggregate(List<BsonDocument> documents, List<BsonDocument> pipeline) {
+    List<BsonDocument> results = documents;
+    for (BsonDocument stage : pipeline) {
+      String name = stage.getFirstKey();
+      BsonValue spec = stage.get(name);
+      List<BsonDocument> next = new ArrayList<>();
+      switch (name) {
+        case "$match":
+          for (BsonDocument document : results) {
+            if (matches(document, spec.asDocument())) {
+              next.add(document);
+            }
+          }
+          break;
+        case "$group":
+          next = group(results, spec.asDocument());
+          break;
+        case "$bucket":
+          next = bucket(results, spec.asDocument());
+          break;
+        case "$sort":
+          next.addAll(results);
+          next.sort(order(spec.asDocument()));
+          break;
+        case "$skip":
+          next.addAll(results.subList(Math.min(results.size(), spec.asNumber().intValue()), results.size()));
+          break;
+        case "$limit":
+          next.addAll(results.subList(0, Math.min(results.size(), spec.asNumber().intValue())));
+          break;
+        case "$project":
+          for (BsonDocument document : results) {
+            next.add(project(document, spec.asDocument()));
+          }
+          break;
+        case "$count":
+          next.add(new BsonDocument(spec.asString().getValue(), new BsonInt32(results.size())));
+          break;
+        default:
+          throw new UnsupportedOperationException("The in-memory Mongo doesn't support " + name);
+      }
+      results = next;
+    }
+    return results;
+  }
+
+  private static List<BsonDocument> group(List<BsonDocument> documents, BsonDocument spec) {
+    Map<BsonValue, List<BsonDocument>> groups = new LinkedHashMap<>();
+    for (BsonDocument document : documents) {
+      groups.computeIfAbsent(evaluate(document, spec.get("_id")), key -> new ArrayList<>()).add(document);
+    }
+    List<BsonDocument> results = new ArrayList<>();
+    for (Map.Entry<BsonValue, List<BsonDocument>> group : groups.entrySet()) {
+      BsonDocument result = new BsonDocument("_id", group.getKey());
+      for (Map.Entry<String, BsonValue> field : spec.entrySet()) {
+        if (!field.getKey().equals("_id")) {
+          result.put(field.getKey(), accumulate(group.getValue(), field.getValue().asDocument()));
+        }
+      }
+      results.add(result);
+    }
+    return results;
+  }
+
+  // Each document goes in the bucket whose boundaries its `groupBy` is
+  // between, or the default; buckets with nothing in them are left out
+  private static List<BsonDocument> bucket(List<BsonDocument> documents, BsonDocument spec) {
+    BsonArray boundaries = spec.getArray("boundaries");
+    BsonDocument output = spec.getDocument("output",
+        new BsonDocument("count", new BsonDocument("$sum", new BsonInt32(1))));
+    Map<BsonValue, List<BsonDocument>> buckets = new LinkedHashMap<>();
+    for (BsonValue boundary : boundaries.subList(0, boundaries.size() - 1)) {
+      buckets.put(boundary, new ArrayList<>());
+    }
+    List<BsonDocument> others = new ArrayList<>();
+    for (BsonDocument document : documents) {
+      BsonValue value = evaluate(document, spec.get("groupBy"));
+      BsonValue lower = null;
+      for (int i = 0; i < boundaries.size() - 1 && lower == null; i++) {
+        if (sameType(value, boundaries.get(i))
+            && SortedMerge.compare(value, boundaries.get(i)) >= 0
+            && SortedMerge.compare(value, boundaries.get(i + 1)) < 0) {
+          lower = boundaries.get(i);
+        }
+      }
+      if (lower != null) {
+        buckets.get(lower).add(document);
+      } else if (spec.containsKey("default")) {
+        others.add(document);
+      } else {
+        throw new IllegalArgumentException("$bucket has no bucket or default for " + value);
+      }
+    }
+    if (!others.isEmpty()) {
+      buckets.put(spec.get("default"), others);
+    }
+    List<BsonDocument> results = new ArrayList<>();
+    for (Map.Entry<BsonValue, List<BsonDocument>> bucket : buckets.entrySet()) {
+      if (bucket.getValue().isEmpty()) {
+        continue;
+      }
+      BsonDocument result = new BsonDocument("_id", bucket.getKey());
+      for (Map.Entry<String, BsonValue> field : output.entrySet()) {
+        result.put(field.getKey(), accumulate(bucket.getValue(), field.getValue().asDocument()));
+      }
+      results.add(result);
+    }
+    return results;
+  }
+
+  private static BsonValue accumulate(List<BsonDocument> documents, BsonDocument accumulator) {
+    String name = accumulator.getFirstKey();
+    BsonValue expression = accumulator.get(name);
+    List<BsonValue> values = new ArrayList<>();
+    for (BsonDocument document : documents) {
+      values.add(evaluate(document, expression));
+    }
+    switch (name) {
+      case "$sum":
+        BsonValue sum = new BsonInt32(0);
+        for (BsonValue value : values) {
+          if (value.isNumber()) {
+            sum = add(sum, value);
+          }
+        }
+        return sum;
+      case "$avg":
+        double total = 0;
+        int count = 0;
+        for (BsonValue value : values) {
+          if (value.isNumber()) {
+            total += value.asNumber().doubleValue();
+            count++;
+          }
+        }
+        return count == 0 ? BsonNull.VALUE : new BsonDouble(total / count);
+      case "$min":
+      case "$max":
+        BsonValue best = null;
+        for (BsonValue value : values) {
+          if (!value.isNull() && (best == null
+              || SortedMerge.compare(value, best) * (name.equals("$min") ? -1 : 1) > 0)) {
+            best = value;
+          }
+        }
+        return best == null ? BsonNull.VALUE : best;
+      case "$first":
+        return values.isEmpty() ? BsonNull.VALUE : values.get(0);
+      case "$last":
+        return values.isEmpty() ? BsonNull.VALUE : values.get(values.size() - 1);
+      case "$push":
+        return new BsonArray(values);
+      default:
+        throw new UnsupportedOperationException("The in-memory Mongo doesn't support " + name);
+    }
+  }
+
+  // A `$group` expression: a `$field` path, a document of expressions, or a constant
+  private static BsonValue evaluate(BsonDocument document, BsonValue expression) {
+    if (expression == null) {
+      return BsonNull.VALUE;
+    }
+    if (expression.isString() && expression.asString().getValue().startsWith("$")) {
+      BsonValue value = valueAt(document, expression.asString().getValue().substring(1));
+      return value == null ? BsonNull.VALUE : value;
+    }
+    if (expression.isDocument() && !isOperators(expression)) {
+      BsonDocument evaluated = new BsonDocument();
+      for (Map.Entry<String, BsonValue> field : expression.asDocument().entrySet()) {
+        evaluated.put(field.getKey(), evaluate(document, field.getValue()));
+      }
+      return evaluated;
+    }
+    if (expression.isDocument()) {
+      return evaluateOperator(document, expression.asDocument().getFirstKey(),
+          expression.asDocument().get(expression.asDocument().getFirstKey()));
+    }
+    return expression;
+  }
+
+  // The expression operators it knows: `$toDate` (of a date or ObjectId)
+  // and `$dateToString` (in UTC, with `%Y`, `%m`, and `%d`)
+  private static BsonValue evaluateOperator(BsonDocument document, String operator, BsonValue operand) {
+    switch (operator) {
+      case "$toDate":
+        return toDate(evaluate(document, operand));
+      case "$dateToString":
+        return dateToString(evaluate(document, operand.asDocument().get("date")),
+            operand.asDocument().getString("format").getValue());
+      default:
+        throw new UnsupportedOperationException("The in-memory Mongo doesn't support the expression " + operator);
+    }
+  }
+
+  private static BsonValue toDate(BsonValue value) {
+    if (value.isObjectId()) {
+      return new BsonDateTime(value.asObjectId().getValue().getDate().getTime());
+    }
+    if (value.isDateTime() || value.isNull()) {
+      return value;
+    }
+    throw new UnsupportedOperationException("The in-memory Mongo can't convert " + value + " to a date");
+  }
+
+  private static BsonValue dateToString(BsonValue date, String format) {
+    if (date.isNull()) {
+      return BsonNull.VALUE;
+    }
+    LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(date.asDateTime().getValue()), ZoneOffset.UTC);
+    return new BsonString(format
+        .replace("%Y", String.format("%04d", time.getYear()))
+        .replace("%m", String.format("%02d", time.getMonthValue()))
+        .replace("%d", String.format("%02d", time.getDayOfMonth())));
+  }
+}
@@ -0,0 +1,571 @@
+package umm3601.mongotest;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteError;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.bulk.WriteConcernError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndReplaceOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonInt32;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.codecs.Codec;
+import org.bson.codecs.CollectibleCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+/**
+ * The in-memory Mongo's `MongoCollection`: finds, counts, aggregations,
+ * and writes against one collection's documents in an `InMemoryMongo`.
+ *
+ * Documents go in and come out through the collection's codecs, just as
+ * they would going to and from a real server, so MongoJack collections
+ * and `RawBsonDocument` collections work on top of it unchanged. Stored
+ * documents are never changed in place; an update stores a new copy, so
+ * a read that's still decoding what it found sees it as it was.
+ */
+final class CollectionHandler extends ProxyHandler {
+
+  // Mongo's error code for a duplicate key
+  private static final int DUPLICATE_KEY = 11000;
+  // And for "change streams need a replica set"
+  private static final int CHANGE_STREAMS_UNSUPPORTED = 40573;
+  // And for "that write concern can't be met"
+  private static final int UNSATISFIABLE_WRITE_CONCERN = 100;
+
+  private final InMemoryMongo mongo;
+  private final MongoNamespace namespace;
+  private final Class<?> documentClass;
+  private final CodecRegistry codecRegistry;
+  private final ReadPreference readPreference;
+  private final WriteConcern writeConcern;
+  private final ReadConcern readConcern;
+
+  CollectionHandler(InMemoryMongo mongo, MongoNamespace namespace, Class<?> documentClass,
+      CodecRegistry codecRegistry, ReadPreference readPreference, WriteConcern writeConcern,
+      ReadConcern readConcern) {
+    this.mongo = mongo;
+    this.namespace = namespace;
+    this.documentClass = documentClass;
+    this.codecRegistry = codecRegistry;
+    this.readPreference = readPreference;
+    this.writeConcern = writeConcern;
+    this.readConcern = readConcern;
+  }
+
+  /**
+   * Make a `MongoCollection` from a handler.
+   */
+  static MongoCollection<?> of(CollectionHandler handler) {
+    return ProxyHandler.proxy(MongoCollection.class, handler);
+  }
+
+  @Override
+  Object handle(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "getNamespace":
+        return namespace;
+      case "getDocumentClass":
+        return documentClass;
+      case "getCodecRegistry":
+        return codecRegistry;
+      case "getReadPreference":
+        return readPreference;
+      case "getWriteConcern":
+        return writeConcern;
+      case "getReadConcern":
+        return readConcern;
+      case "withDocumentClass":
+        return of(new CollectionHandler(mongo, namespace, (Class<?>) args[0], codecRegistry, readPreference,
+            writeConcern, readConcern));
+      case "withCodecRegistry":
+        return of(new CollectionHandler(mongo, namespace, documentClass, (CodecRegistry) args[0], readPreference,
+            writeConcern, readConcern));
+      case "withReadPreference":
+        return of(new CollectionHandler(mongo, namespace, documentClass, codecRegistry, (ReadPreference) args[0],
+            writeConcern, readConcern));
+      case "withWriteConcern":
+        return of(new CollectionHandler(mongo, namespace, documentClass, codecRegistry, readPreference,
+            (WriteConcern) args[0], readConcern));
+      case "withReadConcern":
+        return of(new CollectionHandler(mongo, namespace, documentClass, codecRegistry, readPreference,
+            writeConcern, (ReadConcern) args[0]));
+      case "count":
+      case "countDocuments":
+        return count(args.length > 0 ? (Bson) args[0] : null, args.length > 1 ? (CountOptions) args[1] : null);
+      case "estimatedDocumentCount":
+        return count(null, null);
+      case "find":
+        return find(args);
+      case "aggregate":
+        return IterableHandler.AggregateHandler.of(this, listOf(args[0], Bson.class),
+            args.length > 1 ? (Class<?>) args[1] : documentClass);
+      case "watch":
+        // Like a standalone `mongod`, which is what the specs stand in for
+        throw new MongoCommandException(new BsonDocument("ok", new BsonInt32(0))
+            .append("errmsg", new BsonString("The $changeStream stage is only supported on replica sets"))
+            .append("code", new BsonInt32(CHANGE_STREAMS_UNSUPPORTED)), new ServerAddress());
+      default:
+        return handleWrite(method, args);
+    }
+  }
+
+  private Object handleWrite(Method method, Object[] args) {
+    if (args.length > 1 && args[1] instanceof List) {
+      // Updates with an aggregation pipeline
+      throw unsupported(method);
+    }
+    switch (method.getName()) {
+      case "insertOne":
+        insertOne(args[0]);
+        return null;
+      case "insertMany":
+        insertMany((List<?>) args[0], args.length < 2 || ((InsertManyOptions) args[1]).isOrdered());
+        return null;
+      case "deleteOne":
+        return delete(toBsonDocument((Bson) args[0]), false);
+      case "deleteMany":
+        return delete(toBsonDocument((Bson) args[0]), true);
+      case "replaceOne":
+        return update(toBsonDocument((Bson) args[0]), encode(args[1], false), false, isUpsert(args));
+      case "updateOne":
+        return update(toBsonDocument((Bson) args[0]), toBsonDocument((Bson) args[1]), false, isUpsert(args));
+      case "updateMany":
+        return update(toBsonDocument((Bson) args[0]), toBsonDocument((Bson) args[1]), true, isUpsert(args));
+      case "findOneAndDelete":
+        return findOneAndDelete(args);
+      case "findOneAndUpdate":
+        FindOneAndUpdateOptions updateOptions = args.length > 2
+            ? (FindOneAndUpdateOptions) args[2] : new FindOneAndUpdateOptions();
+        return findOneAndModify(toBsonDocument((Bson) args[0]), toBsonDocument((Bson) args[1]),
+            updateOptions.getSort(), updateOptions.getProjection(), updateOptions.isUpsert(),
+            updateOptions.getReturnDocument());
+      case "findOneAndReplace":
+        FindOneAndReplaceOptions replaceOptions = args.length > 2
+            ? (FindOneAndReplaceOptions) args[2] : new FindOneAndReplaceOptions();
+        return findOneAndModify(toBsonDocument((Bson) args[0]), encode(args[1], false),
+            replaceOptions.getSort(), replaceOptions.getProjection(), replaceOptions.isUpsert(),
+            replaceOptions.getReturnDocument());
+      case "bulkWrite":
+        return bulkWrite((List<?>) args[0], args.length < 2 || ((BulkWriteOptions) args[1]).isOrdered());
+      case "drop":
+        mongo.drop(namespace);
+        return null;
+      case "createIndex":
+        // Indexes are accepted, but only `_id` is unique
+        return indexName(toBsonDocument((Bson) args[0]));
+      case "createIndexes":
+        List<String> names = new ArrayList<>();
+        for (IndexModel index : listOf(args[0], IndexModel.class)) {
+          names.add(index.getOptions().getName() != null
+              ? index.getOptions().getName() : indexName(toBsonDocument(index.getKeys())));
+        }
+        return names;
+      case "dropIndex":
+      case "dropIndexes":
+        return null;
+      default:
+        throw unsupported(method);
+    }
+  }
+
+  private Object find(Object[] args) {
+    Bson filter = null;
+    Class<?> resultClass = documentClass;
+    for (Object arg : args) {
+      if (arg instanceof Bson) {
+        filter = (Bson) arg;
+      } else {
+        resultClass = (Class<?>) arg;
+      }
+    }
+    return IterableHandler.FindHandler.of(this, filter, resultClass);
+  }
+
+  /**
+   * Turn a filter, sort, etc. into a document, with this collection's
+   * codecs.
+   */
+  BsonDocument toBsonDocument(Bson bson) {
+    return bson == null ? new BsonDocument() : bson.toBsonDocument(documentClass, codecRegistry);
+  }
+
+  /**
+   * Decode a stored document with this collection's codecs.
+   */
+  Object decode(BsonDocument document, Class<?> resultClass) {
+    return codecRegistry.get(resultClass).decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+  }
+
+  /**
+   * Encode a document with this collection's codecs, giving it an `_id`
+   * (first, the way Mongo stores it) if it's being inserted and doesn't
+   * have one.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private BsonDocument encode(Object document, boolean inserting) {
+    Codec codec = codecRegistry.get(documentClass);
+    if (inserting && codec instanceof CollectibleCodec && !((CollectibleCodec) codec).documentHasId(document)) {
+      // Lets the caller see the generated id, as the real driver does
+      ((CollectibleCodec) codec).generateIdIfAbsentFromDocument(document);
+    }
+    BsonDocument encoded = new BsonDocument();
+    codec.encode(new BsonDocumentWriter(encoded), document,
+        EncoderContext.builder().isEncodingCollectibleDocument(true).build());
+    return inserting ? withId(encoded) : encoded;
+  }
+
+  private static BsonDocument withId(BsonDocument document) {
+    if (document.isEmpty() || !document.getFirstKey().equals("_id")) {
+      BsonValue id = document.containsKey("_id") ? document.remove("_id") : new BsonObjectId();
+      BsonDocument reordered = new BsonDocument("_id", id);
+      reordered.putAll(document);
+      return reordered;
+    }
+    return document;
+  }
+
+  /**
+   * The documents that match a filter, in the order given (or the order
+   * they were inserted in).
+   *
+   * @param limit the most to return, or 0 for all of them
+   */
+  List<BsonDocument> find(BsonDocument filter, Comparator<BsonDocument> order, int skip, int limit) {
+    return mongo.withDocuments(namespace, false, documents -> {
+      List<BsonDocument> found = matching(documents, filter, order);
+      int from = Math.min(skip, found.size());
+      int to = limit > 0 ? Math.min(found.size(), from + limit) : found.size();
+      return new ArrayList<>(found.subList(from, to));
+    });
+  }
+
+  private static List<BsonDocument> matching(Map<BsonValue, BsonDocument> documents, BsonDocument filter,
+      Comparator<BsonDocument> order) {
+    List<BsonDocument> found = new ArrayList<>();
+    BsonValue id = filter.size() == 1 ? filter.get("_id") : null;
+    if (id != null && !id.isDocument() && !id.isRegularExpression()) {
+      // Look a document up by id without going through them all
+      BsonDocument document = documents.get(id);
+      if (document != null) {
+        found.add(document);
+      }
+      return found;
+    }
+    for (BsonDocument document : documents.values()) {
+      if (BsonQueries.matches(document, filter)) {
+        found.add(document);
+      }
+    }
+    if (order != null) {
+      found.sort(order);
+    }
+    return found;
+  }
+
+  private long count(Bson filter, CountOptions options) {
+    int skip = options == null ? 0 : options.getSkip();
+    int limit = options == null ? 0 : options.getLimit();
+    return find(toBsonDocument(filter), null, skip, limit).size();
+  }
+
+  private void insertOne(Object document) {
+    BsonDocument encoded = encode(document, true);
+    mongo.withDocuments(namespace, true, documents -> {
+      insert(documents, encoded);
+      return null;
+    });
+  }
+
+  private void insertMany(List<?> documents, boolean ordered) {
+    List<BsonDocument> encoded = new ArrayList<>();
+    for (Object document : documents) {
+      encoded.add(encode(document, true));
+    }
+    List<BulkWriteError> errors = new ArrayList<>();
+    int inserted = mongo.withDocuments(namespace, true, stored -> {
+      int count = 0;
+      for (int i = 0; i < encoded.size(); i++) {
+        try {
+          insert(stored, encoded.get(i));
+          count++;
+        } catch (MongoWriteException e) {
+          errors.add(new BulkWriteError(e.getCode(), e.getError().getMessage(), new BsonDocument(), i));
+          if (ordered) {
+            break;
+          }
+        }
+      }
+      return count;
+    });
+    WriteConcernError concernError = writeConcernError();
+    if (!errors.isEmpty() || concernError != null) {
+      throw new MongoBulkWriteException(BulkWriteResult.acknowledged(inserted, 0, 0, 0, List.of()),
+          errors, concernError, new ServerAddress());
+    }
+  }
+
+  /**
+   * The in-memory Mongo is like a replica set with one member, so a
+   * write concern asking for more than one can't be met: the write is
+   * done, but reported with Mongo's write concern error.
+   */
+  private WriteConcernError writeConcernError() {
+    Object w = writeConcern.getWObject();
+    if (w instanceof Integer && (Integer) w > 1) {
+      return new WriteConcernError(UNSATISFIABLE_WRITE_CONCERN, "UnsatisfiableWriteConcern",
+          "Not enough data-bearing nodes", new BsonDocument());
+    }
+    return null;
+  }
+
+  private void insert(Map<BsonValue, BsonDocument> documents, BsonDocument document) {
+    BsonValue id = document.get("_id");
+    if (documents.containsKey(id)) {
+      throw new MongoWriteException(new WriteError(DUPLICATE_KEY, "E11000 duplicate key error collection: "
+          + namespace + " index: _id_ dup key: { _id: " + id + " }", new BsonDocument()), new ServerAddress());
+    }
+    documents.put(id, document);
+  }
+
+  private DeleteResult delete(BsonDocument filter, boolean many) {
+    return mongo.withDocuments(namespace, false, documents -> {
+      long deleted = 0;
+      for (BsonDocument document : matching(documents, filter, null)) {
+        documents.remove(document.get("_id"));
+        deleted++;
+        if (!many) {
+          break;
+        }
+      }
+      return DeleteResult.acknowledged(deleted);
+    });
+  }
+
+  // A list argument, cast element by element rather than with an
+  // unchecked cast of the whole list
+  private static <T> List<T> listOf(Object list, Class<T> type) {
+    List<T> typed = new ArrayList<>();
+    for (Object element : (List<?>) list) {
+      typed.add(type.cast(element));
+    }
+    return typed;
+  }
+
+  private static boolean isUpsert(Object[] args) {
+    Object options = args[args.length - 1];
+    if (options instanceof ReplaceOptions) {
+      return ((ReplaceOptions) options).isUpsert();
+    }
+    return options instanceof UpdateOptions && ((UpdateOptions) options).isUpsert();
+  }
+
+  private UpdateResult update(BsonDocument filter, BsonDocument update, boolean many, boolean upsert) {
+    return mongo.withDocuments(namespace, true, documents -> {
+      long matched = 0;
+      long modified = 0;
+      for (BsonDocument document : matching(documents, filter, null)) {
+        matched++;
+        if (replace(documents, document, update) != document) {
+          modified++;
+        }
+        if (!many) {
+          break;
+        }
+      }
+      if (matched == 0 && upsert) {
+        BsonDocument inserted = upserted(filter, update);
+        insert(documents, inserted);
+        return UpdateResult.acknowledged(0, 0L, inserted.get("_id"));
+      }
+      return UpdateResult.acknowledged(matched, modified, null);
+    });
+  }
+
+  /**
+   * Store an updated copy of a document.
+   *
+   * @return the new copy, or the same document if the update didn't
+   *   change it
+   */
+  private static BsonDocument replace(Map<BsonValue, BsonDocument> documents, BsonDocument document,
+      BsonDocument update) {
+    BsonDocument updated = document.clone();
+    BsonQueries.update(updated, update, false);
+    if (updated.equals(document)) {
+      return document;
+    }
+    documents.put(document.get("_id"), updated);
+    return updated;
+  }
+
+  private static BsonDocument upserted(BsonDocument filter, BsonDocument update) {
+    BsonDocument inserted = BsonQueries.isReplacement(update) ? update.clone() : BsonQueries.upsertSeed(filter);
+    if (!BsonQueries.isReplacement(update)) {
+      BsonQueries.update(inserted, update, true);
+    } else if (!inserted.containsKey("_id") && filter.containsKey("_id") && !filter.get("_id").isDocument()) {
+      inserted.put("_id", filter.get("_id"));
+    }
+    return withId(inserted);
+  }
+
+  private Object findOneAndDelete(Object[] args) {
+    FindOneAndDeleteOptions options = args.length > 1
+        ? (FindOneAndDeleteOptions) args[1] : new FindOneAndDeleteOptions();
+    BsonDocument filter = toBsonDocument((Bson) args[0]);
+    Comparator<BsonDocument> order = options.getSort() == null
+        ? null : BsonQueries.order(toBsonDocument(options.getSort()));
+    BsonDocument deleted = mongo.withDocuments(namespace, false, documents -> {
+      List<BsonDocument> found = matching(documents, filter, order);
+      if (found.isEmpty()) {
+        return null;
+      }
+      documents.remove(found.get(0).get("_id"));
+      return found.get(0);
+    });
+    return result(deleted, options.getProjection());
+  }
+
+  private Object findOneAndModify(BsonDocument filter, BsonDocument update, Bson sort, Bson projection,
+      boolean upsert, ReturnDocument returnDocument) {
+    Comparator<BsonDocument> order = sort == null ? null : BsonQueries.order(toBsonDocument(sort));
+    BsonDocument returned = mongo.withDocuments(namespace, true, documents -> {
+      List<BsonDocument> found = matching(documents, filter, order);
+      if (found.isEmpty()) {
+        if (!upsert) {
+          return null;
+        }
+        BsonDocument inserted = upserted(filter, update);
+        insert(documents, inserted);
+        return returnDocument == ReturnDocument.AFTER ? inserted : null;
+      }
+      BsonDocument updated = replace(documents, found.get(0), update);
+      return returnDocument == ReturnDocument.AFTER ? updated : found.get(0);
+    });
+    return result(returned, projection);
+  }
+
+  private Object result(BsonDocument document, Bson projection) {
+    if (document == null) {
+      return null;
+    }
+    return decode(BsonQueries.project(document, projection == null ? null : toBsonDocument(projection)),
+        documentClass);
+  }
+
+  @SuppressWarnings("unchecked")
+  private BulkWriteResult bulkWrite(List<?> requests, boolean ordered) {
+    int inserted = 0;
+    int matched = 0;
+    int modified = 0;
+    int removed = 0;
+    List<BulkWriteUpsert> upserts = new ArrayList<>();
+    List<BulkWriteError> errors = new ArrayList<>();
+    for (int i = 0; i < requests.size(); i++) {
+      WriteModel<Object> request = (WriteModel<Object>) requests.get(i);
+      try {
+        if (request instanceof InsertOneModel) {
+          insertOne(((InsertOneModel<Object>) request).getDocument());
+          inserted++;
+          continue;
+        }
+        UpdateResult updated;
+        if (request instanceof UpdateOneModel || request instanceof UpdateManyModel) {
+          boolean many = request instanceof UpdateManyModel;
+          Bson filter = many ? ((UpdateManyModel<Object>) request).getFilter()
+              : ((UpdateOneModel<Object>) request).getFilter();
+          Bson update = many ? ((UpdateManyModel<Object>) request).getUpdate()
+              : ((UpdateOneModel<Object>) request).getUpdate();
+          UpdateOptions options = many ? ((UpdateManyModel<Object>) request).getOptions()
+              : ((UpdateOneModel<Object>) request).getOptions();
+          if (update == null) {
+            throw new UnsupportedOperationException("The in-memory Mongo doesn't support update pipelines");
+          }
+          updated = update(toBsonDocument(filter), toBsonDocument(update), many, options.isUpsert());
+        } else if (request instanceof ReplaceOneModel) {
+          ReplaceOneModel<Object> replace = (ReplaceOneModel<Object>) request;
+          updated = update(toBsonDocument(replace.getFilter()), encode(replace.getReplacement(), false), false,
+              replace.getReplaceOptions().isUpsert());
+        } else if (request instanceof DeleteOneModel) {
+          removed += delete(toBsonDocument(((DeleteOneModel<Object>) request).getFilter()), false).getDeletedCount();
+          continue;
+        } else if (request instanceof DeleteManyModel) {
+          removed += delete(toBsonDocument(((DeleteManyModel<Object>) request).getFilter()), true).getDeletedCount();
+          continue;
+        } else {
+          throw new UnsupportedOperationException("The in-memory Mongo doesn't support " + request);
+        }
+        matched += updated.getMatchedCount();
+        modified += updated.getModifiedCount();
+        if (updated.getUpsertedId() != null) {
+          upserts.add(new BulkWriteUpsert(i, updated.getUpsertedId()));
+        }
+      } catch (MongoWriteException e) {
+        errors.add(new BulkWriteError(e.getCode(), e.getError().getMessage(), new BsonDocument(), i));
+        if (ordered) {
+          break;
+        }
+      }
+    }
+    BulkWriteResult result = BulkWriteResult.acknowledged(inserted, matched, removed, modified, upserts);
+    if (!errors.isEmpty()) {
+      throw new MongoBulkWriteException(result, errors, null, new ServerAddress());
+    }
+    return result;
+  }
+
+  // The name Mongo gives an index, e.g., `owner_1`
+  private static String indexName(BsonDocument keys) {
+    StringBuilder name = new StringBuilder();
+    for (Map.Entry<String, BsonValue> key : keys.entrySet()) {
+      if (name.length() > 0) {
+        name.append('_');
+      }
+      BsonValue direction = key.getValue();
+      name.append(key.getKey()).append('_')
+          .append(direction.isNumber() ? String.valueOf(direction.asNumber().intValue())
+              : direction.asString().getValue());
+    }
+    return name.toString();
+  }
+}
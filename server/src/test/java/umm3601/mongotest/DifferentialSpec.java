@@ -0,0 +1,258 @@
+package umm3601.mongotest;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.nin;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Filters.regex;
+import static com.mongodb.client.model.Projections.exclude;
+import static com.mongodb.client.model.Projections.excludeId;
+import static com.mongodb.client.model.Projections.fields;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Sorts.descending;
+import static com.mongodb.client.model.Sorts.orderBy;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.unset;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BucketOptions;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.result.UpdateResult;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that `InMemoryMongo` behaves like a real Mongo, by doing the
+ * same things to both and comparing the results. Skipped if there's no
+ * Mongo at `MONGO_ADDR` (default `localhost`).
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class DifferentialSpec {
+
+  private static MongoClient realClient;
+  private static MongoClient memoryClient;
+  private static MongoDatabase real;
+  private static MongoDatabase memory;
+
+  @BeforeAll
+  public static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    realClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(List.of(new ServerAddress(mongoAddr)))
+                .serverSelectionTimeout(2, TimeUnit.SECONDS))
+            .build());
+    real = realClient.getDatabase("test-differential");
+    boolean reachable;
+    try {
+      real.runCommand(new Document("ping", 1));
+      reachable = true;
+    } catch (MongoException e) {
+      reachable = false;
+    }
+    assumeTrue(reachable, "No Mongo at " + mongoAddr + " to compare with");
+    memoryClient = InMemoryMongo.client();
+    memory = memoryClient.getDatabase("test-differential");
+  }
+
+  @AfterAll
+  public static void teardown() {
+    if (memoryClient != null) {
+      real.drop();
+      memoryClient.close();
+    }
+    realClient.close();
+  }
+
+  @BeforeEach
+  public void populate() {
+    for (MongoDatabase database : List.of(real, memory)) {
+      MongoCollection<Document> things = database.getCollection("things");
+      things.drop();
+      things.insertMany(things());
+    }
+  }
+
+  private static List<Document> things() {
+    List<Document> things = new ArrayList<>();
+    things.add(new Document("_id", new ObjectId("5f1a00000000000000000001"))
+        .append("name", "Chris").append("age", 25).append("tags", List.of("a", "b"))
+        .append("address", new Document("city", "Morris").append("zip", "56267")));
+    things.add(new Document("_id", new ObjectId("5f1a00000000000000000002"))
+        .append("name", "pat").append("age", 37L).append("tags", List.of("b"))
+        .append("address", new Document("city", "Fargo")));
+    things.add(new Document("_id", new ObjectId("5f1a00000000000000000003"))
+        .append("name", "Jamie").append("age", 37.0).append("nickname", null));
+    things.add(new Document("_id", new ObjectId("5f1a00000000000000000004"))
+        .append("name", "Ann").append("age", "unknown").append("tags", List.of()));
+    things.add(new Document("_id", new ObjectId("5f1a00000000000000000005"))
+        .append("name", "PATRICIA").append("age", 12).append("status", true));
+    return things;
+  }
+
+  /**
+   * Do something to both Mongos, and check the results agree.
+   */
+  private static void bothAgree(String what, Function<MongoCollection<Document>, Object> operation) {
+    Object expected = operation.apply(real.getCollection("things"));
+    Object actual = operation.apply(memory.getCollection("things"));
+    assertEquals(expected, actual, what);
+  }
+
+  private static List<Document> everything(MongoCollection<Document> things) {
+    return things.find().sort(ascending("_id")).into(new ArrayList<>());
+  }
+
+  @Test
+  public void findsTheSameDocuments() {
+    List<Bson> filters = List.of(
+        eq("name", "Chris"),
+        eq("age", 37),
+        eq("tags", "b"),
+        eq("tags", List.of("a", "b")),
+        eq("address.city", "Fargo"),
+        eq("nickname", null),
+        ne("age", 37),
+        in("name", "Chris", "Ann", "Nobody"),
+        nin("tags", "a"),
+        regex("name", "^pat", "i"),
+        regex("name", Pattern.compile("a.*i")),
+        regex("name", Pattern.quote("PAT")),
+        and(gt("age", 20), lt("age", 40)),
+        or(eq("status", true), exists("nickname")),
+        exists("tags", false),
+        gte("age", 25),
+        lte("age", 25),
+        gt("name", "J"),
+        gt("age", "a"));
+    for (Bson filter : filters) {
+      bothAgree("find " + filter, things -> things.find(filter).sort(ascending("_id")).into(new ArrayList<>()));
+      bothAgree("count " + filter, things -> things.countDocuments(filter));
+    }
+  }
+
+  @Test
+  public void sortsTheSameWay() {
+    List<Bson> sorts = List.of(
+        orderBy(ascending("age"), ascending("_id")),
+        orderBy(descending("age"), ascending("_id")),
+        ascending("name"),
+        orderBy(ascending("status"), descending("_id")));
+    for (Bson sort : sorts) {
+      bothAgree("sort " + sort, things -> things.find().sort(sort).into(new ArrayList<>()));
+      bothAgree("sort, skip, and limit " + sort, things -> things.find().sort(sort).skip(1).limit(2)
+          .into(new ArrayList<>()));
+    }
+  }
+
+  @Test
+  public void projectsTheSameFields() {
+    List<Bson> projections = List.of(
+        include("name", "age"),
+        fields(include("name"), excludeId()),
+        exclude("tags", "address"));
+    for (Bson projection : projections) {
+      bothAgree("projection " + projection, things -> things.find().sort(ascending("_id")).projection(projection)
+          .into(new ArrayList<>()));
+    }
+  }
+
+  @Test
+  public void updatesTheSameWay() {
+    bothAgree("updateMany", things -> {
+      UpdateResult result = things.updateMany(gte("age", 25), combine(set("checked", true), inc("visits", 1)));
+      return List.of(result.getMatchedCount(), result.getModifiedCount(), everything(things));
+    });
+    bothAgree("updateOne", things -> {
+      UpdateResult result = things.updateOne(eq("name", "Chris"), combine(unset("tags"), set("address.zip", "0")));
+      return List.of(result.getMatchedCount(), result.getModifiedCount(), everything(things));
+    });
+    bothAgree("unchanged", things -> things.updateMany(eq("checked", true), set("checked", true))
+        .getModifiedCount());
+    bothAgree("findOneAndUpdate", things -> List.of(
+        things.findOneAndUpdate(exists("status", false), set("status", false),
+            new FindOneAndUpdateOptions().sort(descending("name")).returnDocument(ReturnDocument.AFTER)),
+        everything(things)));
+    bothAgree("upsert", things -> {
+      things.replaceOne(eq("_id", "progress"), new Document("_id", "progress").append("done", 3),
+          new ReplaceOptions().upsert(true));
+      things.replaceOne(eq("_id", "progress"), new Document("_id", "progress").append("done", 4),
+          new ReplaceOptions().upsert(true));
+      return everything(things);
+    });
+  }
+
+  @Test
+  public void deletesTheSameDocuments() {
+    bothAgree("deleteOne", things -> List.of(things.deleteOne(regex("name", "^p", "i")).getDeletedCount(),
+        everything(things)));
+    bothAgree("deleteMany", things -> List.of(things.deleteMany(exists("tags")).getDeletedCount(),
+        everything(things)));
+    bothAgree("findOneAndDelete", things -> List.of(
+        things.findOneAndDelete(exists("name"), new FindOneAndDeleteOptions()
+            .sort(descending("name"))),
+        everything(things)));
+  }
+
+  @Test
+  public void aggregatesTheSameWay() {
+    bothAgree("group", things -> things.aggregate(List.of(
+        Aggregates.match(exists("tags")),
+        Aggregates.group("$address.city", Accumulators.sum("count", 1), Accumulators.avg("age", "$age")),
+        Aggregates.sort(ascending("_id")))).into(new ArrayList<>()));
+    bothAgree("bucket", things -> things.aggregate(List.of(
+        Aggregates.bucket("$age", List.of(0, 20, 40), new BucketOptions()
+            .defaultBucket("other")
+            .output(Accumulators.sum("count", 1), Accumulators.push("names", "$name"))))).into(new ArrayList<>()));
+  }
+
+  @Test
+  public void rejectsTheSameDuplicates() {
+    bothAgree("duplicate _id", things -> {
+      Document again = new Document("_id", new ObjectId("5f1a00000000000000000001")).append("name", "Again");
+      return assertThrows(MongoWriteException.class, () -> things.insertOne(again)).getCode();
+    });
+    bothAgree("generated _id", things -> {
+      Document added = new Document("name", "Added");
+      things.insertOne(added);
+      return things.countDocuments(eq("_id", added.getObjectId("_id")));
+    });
+  }
+}
@@ -0,0 +1,224 @@
+package umm3601.mongotest;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoNamespace;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * A stand-in for a Mongo server that keeps everything in memory, so the
+ * controller specs and benchmarks can run without a `mongod` and at
+ * in-process speed.
+ *
+ * `client()` gives a `MongoClient` whose databases and collections
+ * behave like the real ones for what the controllers use: `find` with
+ * filters (`eq`, `ne`, `in`, `regex`, `and`, `or`, `exists`, `gt` and
+ * friends), `sort`, `projection`, `skip`, and `limit`; `countDocuments`;
+ * `insertOne`/`insertMany` (with generated ids, duplicate `_id`s
+ * rejected with Mongo's error, and, for `insertMany`, a write concern
+ * error for `w` above 1, as a one-member replica set would give); `deleteOne`/`deleteMany`; `updateOne`,
+ * `updateMany`, and `replaceOne` with `$set`, `$unset`, `$inc`, and
+ * upserts; `findOneAndDelete`/`findOneAndUpdate`; `bulkWrite`; and
+ * simple aggregations (`$match`, `$group`, `$sort`, ...). See
+ * `BsonQueries` for the details. Indexes are accepted and ignored, and
+ * documents come back in the order they were inserted unless sorted.
+ * Change streams fail the way they do on a standalone `mongod`. Anything
+ * else (tailable cursors, commands, sessions) throws
+ * `UnsupportedOperationException`.
+ *
+ * `DifferentialSpec` runs the same operations against this and a real
+ * Mongo and checks they agree.
+ */
+public final class InMemoryMongo {
+
+  // Databases by name, then collections by name, then documents by `_id`
+  // in the order they were inserted
+  private final Map<String, Map<String, Map<BsonValue, BsonDocument>>> databases = new TreeMap<>();
+
+  private InMemoryMongo() {
+  }
+
+  /**
+   * A new, empty, in-memory Mongo.
+   *
+   * @return a client for it
+   */
+  public static MongoClient client() {
+    return ProxyHandler.proxy(MongoClient.class, new InMemoryMongo().new ClientHandler());
+  }
+
+  /**
+   * A client for the specs: an in-memory Mongo, unless the environment
+   * variable `MONGO_TEST` is `real`, in which case it's a real Mongo at
+   * `MONGO_ADDR` (default `localhost`).
+   *
+   * @return the client
+   */
+  public static MongoClient forTests() {
+    if (!"real".equals(System.getenv("MONGO_TEST"))) {
+      return client();
+    }
+    return realClient();
+  }
+
+  /**
+   * A client for a real Mongo at `MONGO_ADDR` (default `localhost`).
+   *
+   * @return the client
+   */
+  public static MongoClient realClient() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    return MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+  }
+
+  /**
+   * Do something with a collection's documents, holding the lock on the
+   * whole Mongo.
+   *
+   * @param create whether to create the collection if it doesn't exist;
+   *   if not, a missing collection looks empty
+   */
+  synchronized <R> R withDocuments(MongoNamespace namespace, boolean create,
+      Function<Map<BsonValue, BsonDocument>, R> operation) {
+    Map<String, Map<BsonValue, BsonDocument>> collections = databases.get(namespace.getDatabaseName());
+    Map<BsonValue, BsonDocument> documents = collections == null
+        ? null : collections.get(namespace.getCollectionName());
+    if (documents == null && create) {
+      documents = databases.computeIfAbsent(namespace.getDatabaseName(), name -> new TreeMap<>())
+          .computeIfAbsent(namespace.getCollectionName(), name -> new LinkedHashMap<>());
+    }
+    return operation.apply(documents == null ? new LinkedHashMap<>() : documents);
+  }
+
+  /**
+   * Drop a collection.
+   */
+  synchronized void drop(MongoNamespace namespace) {
+    Map<String, Map<BsonValue, BsonDocument>> collections = databases.get(namespace.getDatabaseName());
+    if (collections != null) {
+      collections.remove(namespace.getCollectionName());
+    }
+  }
+
+  private synchronized void dropDatabase(String name) {
+    databases.remove(name);
+  }
+
+  private synchronized List<Object> names(String database) {
+    if (database == null) {
+      return new ArrayList<>(databases.keySet());
+    }
+    return new ArrayList<>(databases.getOrDefault(database, Map.of()).keySet());
+  }
+
+  /**
+   * The in-memory Mongo's `MongoClient`.
+   */
+  private final class ClientHandler extends ProxyHandler {
+    @Override
+    Object handle(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "getDatabase":
+          return ProxyHandler.proxy(MongoDatabase.class, new DatabaseHandler((String) args[0],
+              MongoClientSettings.getDefaultCodecRegistry(), ReadPreference.primary(), WriteConcern.ACKNOWLEDGED,
+              ReadConcern.DEFAULT));
+        case "listDatabaseNames":
+          return ProxyHandler.proxy(MongoIterable.class, new IterableHandler.ListHandler(() -> names(null)));
+        case "close":
+          return null;
+        default:
+          throw unsupported(method);
+      }
+    }
+  }
+
+  /**
+   * The in-memory Mongo's `MongoDatabase`.
+   */
+  private final class DatabaseHandler extends ProxyHandler {
+    private final String name;
+    private final CodecRegistry codecRegistry;
+    private final ReadPreference readPreference;
+    private final WriteConcern writeConcern;
+    private final ReadConcern readConcern;
+
+    DatabaseHandler(String name, CodecRegistry codecRegistry, ReadPreference readPreference,
+        WriteConcern writeConcern, ReadConcern readConcern) {
+      this.name = name;
+      this.codecRegistry = codecRegistry;
+      this.readPreference = readPreference;
+      this.writeConcern = writeConcern;
+      this.readConcern = readConcern;
+    }
+
+    @Override
+    Object handle(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "getName":
+          return name;
+        case "getCodecRegistry":
+          return codecRegistry;
+        case "getReadPreference":
+          return readPreference;
+        case "getWriteConcern":
+          return writeConcern;
+        case "getReadConcern":
+          return readConcern;
+        case "withCodecRegistry":
+          return with(new DatabaseHandler(name, (CodecRegistry) args[0], readPreference, writeConcern,
+              readConcern));
+        case "withReadPreference":
+          return with(new DatabaseHandler(name, codecRegistry, (ReadPreference) args[0], writeConcern,
+              readConcern));
+        case "withWriteConcern":
+          return with(new DatabaseHandler(name, codecRegistry, readPreference, (WriteConcern) args[0],
+              readConcern));
+        case "withReadConcern":
+          return with(new DatabaseHandler(name, codecRegistry, readPreference, writeConcern,
+              (ReadConcern) args[0]));
+        case "getCollection":
+          return CollectionHandler.of(new CollectionHandler(InMemoryMongo.this,
+              new MongoNamespace(name, (String) args[0]), args.length > 1 ? (Class<?>) args[1] : Document.class,
+              codecRegistry, readPreference, writeConcern, readConcern));
+        case "createCollection":
+          // Options like `capped` make no difference here
+          withDocuments(new MongoNamespace(name, (String) args[0]), true, documents -> null);
+          return null;
+        case "listCollectionNames":
+          return ProxyHandler.proxy(MongoIterable.class, new IterableHandler.ListHandler(() -> names(name)));
+        case "drop":
+          dropDatabase(name);
+          return null;
+        default:
+          throw unsupported(method);
+      }
+    }
+
+    private MongoDatabase with(DatabaseHandler handler) {
+      return ProxyHandler.proxy(MongoDatabase.class, handler);
+    }
+  }
+}
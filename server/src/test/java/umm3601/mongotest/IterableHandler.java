@@ -0,0 +1,279 @@
+package umm3601.mongotest;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.mongodb.Block;
+import com.mongodb.CursorType;
+import com.mongodb.Function;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
+
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+
+/**
+ * The in-memory Mongo's `MongoIterable`s: the results of a `find` or an
+ * `aggregate`, or just a list. The results are worked out afresh each
+ * time the iterable is iterated, the way a real one sends its query
+ * again, and handed out by a cursor over a copy.
+ */
+abstract class IterableHandler extends ProxyHandler {
+
+  /**
+   * The results, worked out now.
+   */
+  abstract List<Object> results();
+
+  /**
+   * Answer a method that's particular to this kind of iterable, e.g., an
+   * option like `sort`.
+   */
+  abstract Object option(Object proxy, Method method, Object[] args);
+
+  @Override
+  @SuppressWarnings({ "unchecked", "deprecation" })
+  final Object handle(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "iterator":
+      case "cursor":
+        return ProxyHandler.proxy(MongoCursor.class, new CursorHandler(results().iterator()));
+      case "first":
+        List<Object> results = results();
+        return results.isEmpty() ? null : results.get(0);
+      case "map":
+        Function<Object, Object> mapper = (Function<Object, Object>) args[0];
+        return ProxyHandler.proxy(MongoIterable.class, new ListHandler(() -> {
+          List<Object> mapped = new ArrayList<>();
+          for (Object result : results()) {
+            mapped.add(mapper.apply(result));
+          }
+          return mapped;
+        }));
+      case "forEach":
+        for (Object result : results()) {
+          if (args[0] instanceof Block) {
+            ((Block<Object>) args[0]).apply(result);
+          } else {
+            ((Consumer<Object>) args[0]).accept(result);
+          }
+        }
+        return null;
+      case "into":
+        ((Collection<Object>) args[0]).addAll(results());
+        return args[0];
+      case "spliterator":
+        return results().spliterator();
+      case "batchSize":
+        return proxy;
+      default:
+        return option(proxy, method, args);
+    }
+  }
+
+  /**
+   * A `MongoIterable` over a list.
+   */
+  static final class ListHandler extends IterableHandler {
+    private final Supplier<List<Object>> results;
+
+    ListHandler(Supplier<List<Object>> results) {
+      this.results = results;
+    }
+
+    @Override
+    List<Object> results() {
+      return results.get();
+    }
+
+    @Override
+    Object option(Object proxy, Method method, Object[] args) {
+      throw unsupported(method);
+    }
+  }
+
+  /**
+   * The `FindIterable` from a collection's `find`.
+   */
+  static final class FindHandler extends IterableHandler {
+    private final CollectionHandler collection;
+    private final Class<?> resultClass;
+    private Bson filter;
+    private Bson sort;
+    private Bson projection;
+    private int skip;
+    private int limit;
+
+    FindHandler(CollectionHandler collection, Bson filter, Class<?> resultClass) {
+      this.collection = collection;
+      this.filter = filter;
+      this.resultClass = resultClass;
+    }
+
+    /**
+     * Make a `FindIterable` for a collection.
+     */
+    static FindIterable<?> of(CollectionHandler collection, Bson filter, Class<?> resultClass) {
+      return ProxyHandler.proxy(FindIterable.class, new FindHandler(collection, filter, resultClass));
+    }
+
+    @Override
+    List<Object> results() {
+      Comparator<BsonDocument> order = sort == null ? null : BsonQueries.order(collection.toBsonDocument(sort));
+      BsonDocument fields = projection == null ? null : collection.toBsonDocument(projection);
+      List<Object> results = new ArrayList<>();
+      for (BsonDocument document : collection.find(collection.toBsonDocument(filter), order, skip, limit)) {
+        results.add(collection.decode(BsonQueries.project(document, fields), resultClass));
+      }
+      return results;
+    }
+
+    @Override
+    Object option(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "filter":
+          filter = (Bson) args[0];
+          return proxy;
+        case "sort":
+          sort = (Bson) args[0];
+          return proxy;
+        case "projection":
+          projection = (Bson) args[0];
+          return proxy;
+        case "skip":
+          skip = (Integer) args[0];
+          return proxy;
+        case "limit":
+          // A negative limit means the same as a positive one, in one batch
+          limit = Math.abs((Integer) args[0]);
+          return proxy;
+        case "cursorType":
+          if (args[0] != CursorType.NonTailable) {
+            throw unsupported(method);
+          }
+          return proxy;
+        case "collation":
+          if (args[0] != null) {
+            throw unsupported(method);
+          }
+          return proxy;
+        case "maxTime":
+        case "maxAwaitTime":
+        case "noCursorTimeout":
+        case "oplogReplay":
+        case "partial":
+        case "comment":
+        case "hint":
+        case "hintString":
+        case "showRecordId":
+        case "maxScan":
+        case "snapshot":
+          // Everything's in memory, so these make no difference
+          return proxy;
+        default:
+          throw unsupported(method);
+      }
+    }
+  }
+
+  /**
+   * The `AggregateIterable` from a collection's `aggregate`.
+   */
+  static final class AggregateHandler extends IterableHandler {
+    private final CollectionHandler collection;
+    private final List<? extends Bson> pipeline;
+    private final Class<?> resultClass;
+
+    AggregateHandler(CollectionHandler collection, List<? extends Bson> pipeline, Class<?> resultClass) {
+      this.collection = collection;
+      this.pipeline = pipeline;
+      this.resultClass = resultClass;
+    }
+
+    /**
+     * Make an `AggregateIterable` for a collection.
+     */
+    static AggregateIterable<?> of(CollectionHandler collection, List<? extends Bson> pipeline,
+        Class<?> resultClass) {
+      return ProxyHandler.proxy(AggregateIterable.class, new AggregateHandler(collection, pipeline, resultClass));
+    }
+
+    @Override
+    List<Object> results() {
+      List<BsonDocument> stages = new ArrayList<>();
+      for (Bson stage : pipeline) {
+        stages.add(collection.toBsonDocument(stage));
+      }
+      List<BsonDocument> documents = collection.find(new BsonDocument(), null, 0, 0);
+      List<Object> results = new ArrayList<>();
+      for (BsonDocument document : BsonQueries.aggregate(documents, stages)) {
+        results.add(collection.decode(document, resultClass));
+      }
+      return results;
+    }
+
+    @Override
+    Object option(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "collation":
+          if (args[0] != null) {
+            throw unsupported(method);
+          }
+          return proxy;
+        case "allowDiskUse":
+        case "maxTime":
+        case "maxAwaitTime":
+        case "useCursor":
+        case "bypassDocumentValidation":
+        case "comment":
+        case "hint":
+          return proxy;
+        default:
+          throw unsupported(method);
+      }
+    }
+  }
+
+  /**
+   * A `MongoCursor` over results that have already been worked out.
+   */
+  private static final class CursorHandler extends ProxyHandler {
+    private final Iterator<Object> results;
+
+    CursorHandler(Iterator<Object> results) {
+      this.results = results;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    Object handle(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "hasNext":
+          return results.hasNext();
+        case "next":
+          return results.next();
+        case "tryNext":
+          return results.hasNext() ? results.next() : null;
+        case "forEachRemaining":
+          results.forEachRemaining((Consumer<Object>) args[0]);
+          return null;
+        case "close":
+        case "getServerCursor":
+          return null;
+        case "getServerAddress":
+          return new ServerAddress();
+        default:
+          throw unsupported(method);
+      }
+    }
+  }
+}
@@ -16,12 +16,9 @@ import java.util.List;
 
 //import javax.print.Doc;
 
-import com.mongodb.MongoClientSettings;
-import com.mongodb.ServerAddress;
 import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoClient;
-import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoIterable;
@@ -67,12 +64,7 @@ public class MongoSpec {
 
   @BeforeAll
   public static void setupDB() {
-    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
-
-    mongoClient = MongoClients.create(
-        MongoClientSettings.builder()
-            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
-            .build());
+    mongoClient = InMemoryMongo.forTests();
 
     db = mongoClient.getDatabase("test");
   }
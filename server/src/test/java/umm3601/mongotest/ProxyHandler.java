@@ -0,0 +1,79 @@
+package umm3601.mongotest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.mongodb.session.ClientSession;
+
+/**
+ * The common part of the in-memory Mongo's stand-ins for the driver's
+ * interfaces, which are far too big to implement by hand: each one is a
+ * dynamic proxy that answers the methods it knows by name, and throws
+ * `UnsupportedOperationException` for the rest (and for anything in a
+ * `ClientSession`), so a test using something new fails loudly instead
+ * of quietly getting `null`.
+ */
+abstract class ProxyHandler implements InvocationHandler {
+
+  /**
+   * Make a proxy for an interface.
+   *
+   * @param type the interface
+   * @param handler what answers its methods
+   * @param <T> the interface
+   * @return the proxy
+   */
+  @SuppressWarnings("unchecked")
+  static <T> T proxy(Class<?> type, ProxyHandler handler) {
+    return (T) Proxy.newProxyInstance(InMemoryMongo.class.getClassLoader(), new Class<?>[] {type}, handler);
+  }
+
+  @Override
+  public final Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    Object[] arguments = args == null ? new Object[0] : args;
+    switch (method.getName()) {
+      case "equals":
+        if (arguments.length == 1 && method.getDeclaringClass() == Object.class) {
+          return proxy == arguments[0];
+        }
+        break;
+      case "hashCode":
+        if (arguments.length == 0) {
+          return System.identityHashCode(proxy);
+        }
+        break;
+      case "toString":
+        if (arguments.length == 0) {
+          return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+        }
+        break;
+      default:
+        break;
+    }
+    if (arguments.length > 0 && arguments[0] instanceof ClientSession) {
+      throw unsupported(method);
+    }
+    return handle(proxy, method, arguments);
+  }
+
+  /**
+   * Answer a method.
+   *
+   * @param proxy the proxy it was called on, for methods that return it
+   * @param method the method
+   * @param args its arguments, never `null`
+   * @return what it returns
+   * @throws Throwable whatever it throws
+   */
+  abstract Object handle(Object proxy, Method method, Object[] args) throws Throwable;
+
+  /**
+   * The error for a method the in-memory Mongo doesn't support.
+   */
+  static UnsupportedOperationException unsupported(Method method) {
+    return new UnsupportedOperationException("The in-memory Mongo doesn't support "
+        + method.getDeclaringClass().getSimpleName() + "." + method.getName()
+        + " with " + method.getParameterCount() + " argument(s)");
+  }
+}
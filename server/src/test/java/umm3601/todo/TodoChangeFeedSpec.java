@@ -0,0 +1,176 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import umm3601.mongotest.InMemoryMongo;
+
+/**
+ * Tests which changes `TodoChangeFeed` sends to which subscribers, and
+ * when it tells them to resync.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TodoChangeFeedSpec {
+
+  private static final int BUFFER = 8;
+
+  private MongoClient mongoClient;
+  private TodoChangeFeed feed;
+
+  @BeforeEach
+  public void setUp() {
+    mongoClient = InMemoryMongo.client();
+    feed = new TodoChangeFeed(mongoClient.getDatabase("test"), BUFFER);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    feed.stop();
+    mongoClient.close();
+  }
+
+  private static Todo todo(String owner, String category, boolean status) {
+    Todo todo = new Todo();
+    todo.owner = owner;
+    todo.category = category;
+    todo.status = status;
+    return todo;
+  }
+
+  /**
+   * Records what it's sent as "type:owner" or "type:id", and can be made
+   * to block, like a client that's stopped reading.
+   */
+  private static final class Recorder implements TodoChangeFeed.Sink {
+    private final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private volatile CountDownLatch release = new CountDownLatch(0);
+
+    @Override
+    public void event(String type, Object data) {
+      if (data instanceof Todo) {
+        sent.add(type + ":" + ((Todo) data).owner);
+      } else if (data instanceof Map) {
+        Object id = ((Map<?, ?>) data).get("id");
+        sent.add(id == null || "".equals(id) ? type : type + ":" + id);
+      }
+      blocked.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void comment(String comment) {
+      sent.add("comment");
+    }
+
+    String next() throws InterruptedException {
+      return sent.poll(5, TimeUnit.SECONDS);
+    }
+
+    String nothingMore() throws InterruptedException {
+      return sent.poll(200, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Test
+  public void filtersMatchLikeTheTodoList() throws InterruptedException {
+    Recorder fry = new Recorder();
+    Recorder everyone = new Recorder();
+    feed.subscribe(fry, "FR", "home", "false");
+    feed.subscribe(everyone, null, null, null);
+
+    feed.publishInsert(todo("Bender", "homework", false));
+    feed.publishInsert(todo("Fry", "groceries", false));
+    feed.publishInsert(todo("Fry", "Homework", true));
+    feed.publishInsert(todo("fry", "HOMEWORK", false));
+    feed.publishDelete("abc");
+
+    assertEquals("insert:fry", fry.next());
+    // Nothing is known about a deleted todo, so everyone gets it
+    assertEquals("delete:abc", fry.next());
+    assertNull(fry.nothingMore());
+
+    for (String owner : List.of("Bender", "Fry", "Fry", "fry")) {
+      assertEquals("insert:" + owner, everyone.next());
+    }
+    assertEquals("delete:abc", everyone.next());
+  }
+
+  @Test
+  public void aSlowSubscriberIsToldToResync() throws InterruptedException {
+    Recorder slow = new Recorder();
+    slow.release = new CountDownLatch(1);
+    Recorder fast = new Recorder();
+    feed.subscribe(slow, null, null, null);
+    feed.subscribe(fast, null, null, null);
+
+    feed.publishInsert(todo("Fry", "homework", false));
+    assertTrue(slow.blocked.await(5, TimeUnit.SECONDS));
+    // The other subscriber isn't held up meanwhile, and gets everything
+    // as long as it doesn't fall behind
+    assertEquals("insert:Fry", fast.next());
+    for (int i = 0; i <= BUFFER; i++) {
+      feed.publishInsert(todo("Owner " + i, "homework", false));
+      assertEquals("insert:Owner " + i, fast.next());
+    }
+
+    slow.release.countDown();
+    assertEquals("insert:Fry", slow.next());
+    assertEquals("resync", slow.next());
+    assertNull(slow.nothingMore());
+
+    feed.publishInsert(todo("Hermes", "homework", false));
+    assertEquals("insert:Hermes", slow.next());
+  }
+
+  @Test
+  public void givesUpWithoutResyncingWhenChangeStreamsArentSupported() throws InterruptedException {
+    Recorder subscriber = new Recorder();
+    feed.subscribe(subscriber, null, null, null);
+
+    // The in-memory Mongo answers like a standalone `mongod`
+    feed.start();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (feed.watching() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    assertEquals(0, feed.watching());
+    assertNull(subscriber.nothingMore());
+  }
+
+  @Test
+  public void knowsWhenChangeStreamsArentSupported() {
+    assertTrue(TodoChangeFeed.isUnsupported(commandError(40573)));
+    assertTrue(TodoChangeFeed.isUnsupported(commandError(40324)));
+    assertFalse(TodoChangeFeed.isUnsupported(commandError(11600)));
+  }
+
+  private static MongoCommandException commandError(int code) {
+    return new MongoCommandException(new BsonDocument("ok", new BsonInt32(0)).append("code", new BsonInt32(code)),
+        new ServerAddress());
+  }
+}
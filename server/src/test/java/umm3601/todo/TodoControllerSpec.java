@@ -1,24 +1,28 @@
 package umm3601.todo;
 
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
 import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
 import static java.util.Map.entry;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.mockrunner.mock.web.MockHttpServletRequest;
 import com.mockrunner.mock.web.MockHttpServletResponse;
-import com.mongodb.MongoClientSettings;
-import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
@@ -40,6 +44,11 @@ import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
 import io.javalin.http.util.ContextUtil;
 import io.javalin.plugin.json.JavalinJackson;
+import umm3601.IdCache;
+import umm3601.MongoPolicies;
+import umm3601.ShadowFieldMigration;
+import umm3601.Shards;
+import umm3601.mongotest.InMemoryMongo;
 
 /**
  * Tests the logic of the TodoController
@@ -71,12 +80,7 @@ public class TodoControllerSpec {
 
   @BeforeAll
   public static void setupAll() {
-    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
-
-    mongoClient = MongoClients.create(
-        MongoClientSettings.builder()
-            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
-            .build());
+    mongoClient = InMemoryMongo.forTests();
 
     db = mongoClient.getDatabase("test");
   }
@@ -269,6 +273,167 @@ public class TodoControllerSpec {
     }
   }
 
+  @Test
+  public void canGetTodosWithOwnerPrefix() throws IOException {
+
+    mockReq.setQueryString("owner=kar");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, resultTodos.length);
+    assertEquals("Karen", resultTodos[0].owner);
+  }
+
+  @Test
+  public void ownerPrefixIsAnchored() throws IOException {
+
+    // "ren" is in "Karen", but not at the start
+    mockReq.setQueryString("owner=ren");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(0, resultTodos.length);
+  }
+
+  @Test
+  public void ownerPrefixFindsTodosWrittenElsewhere() throws IOException {
+
+    // Load the owner index, then add a todo behind this server's back
+    // (e.g., with `mongoimport`), so the index never hears of it
+    mockReq.setQueryString("prefix=k");
+    todoController.getOwners(mockContext("api/todos/owners"));
+    db.getCollection("todos").insertOne(new Document()
+        .append("owner", "Kif")
+        .append("status", false)
+        .append("category", "crew")
+        .append("body", "Sigh"));
+
+    mockReq.setQueryString("owner=ki");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, resultTodos.length);
+    assertEquals("Kif", resultTodos[0].owner);
+  }
+
+  @Test
+  public void canAutocompleteOwners() throws IOException {
+
+    mockReq.setQueryString("prefix=l");
+    Context ctx = mockContext("api/todos/owners");
+    todoController.getOwners(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    String[] owners = javalinJackson.fromJsonString(ctx.resultString(), String[].class);
+    assertArrayEquals(new String[] {"Lucy"}, owners);
+  }
+
+  @Test
+  public void autocompleteSeesNewAndDeletedOwners() throws IOException {
+
+    // Load the index before we change anything
+    mockReq.setQueryString("prefix=s");
+    Context ctx = mockContext("api/todos/owners");
+    todoController.getOwners(ctx);
+    assertArrayEquals(new String[] {"Sam"}, javalinJackson.fromJsonString(ctx.resultString(), String[].class));
+
+    String testNewTodo = "{"
+        + "\"owner\": \"Sally\","
+        + "\"status\": true,"
+        + "\"category\": \"testers\","
+        + "\"body\": \"viewer\""
+        + "}";
+    mockReq.setBodyContent(testNewTodo);
+    mockReq.setMethod("POST");
+    todoController.addNewTodo(mockContext("api/todos"));
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", samsId.toHexString())));
+
+    mockRes.resetAll();
+    ctx = mockContext("api/todos/owners");
+    todoController.getOwners(ctx);
+    assertArrayEquals(new String[] {"Sally"}, javalinJackson.fromJsonString(ctx.resultString(), String[].class));
+  }
+
+  @Test
+  public void addedTodosHaveFoldedFields() throws IOException {
+    String testNewTodo = "{"
+        + "\"owner\": \"Daniel\","
+        + "\"status\": true,"
+        + "\"category\": \"Testers\","
+        + "\"body\": \"viewer\""
+        + "}";
+    mockReq.setBodyContent(testNewTodo);
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/todos");
+    todoController.addNewTodo(ctx);
+
+    String id = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("id").asText();
+    Document addedTodo = db.getCollection("todos").find(eq("_id", new ObjectId(id))).first();
+    assertEquals("daniel", addedTodo.getString("ownerFolded"));
+    assertEquals("testers", addedTodo.getString("categoryFolded"));
+  }
+
+  @Test
+  public void migrationBackfillsFoldedFields() throws IOException {
+    db.getCollection("migrations").drop();
+
+    // Small batches so it takes a few rounds
+    todoController.migrations().get(0).run(3, 0);
+
+    assertTrue(todoController.migrations().get(0).isComplete());
+    assertEquals(0, db.getCollection("todos").countDocuments(exists("ownerFolded", false)));
+    Document karen = db.getCollection("todos").find(eq("owner", "Karen")).first();
+    assertEquals("karen", karen.getString("ownerFolded"));
+    assertEquals("gibberish", karen.getString("categoryFolded"));
+
+    // Filters now use the folded fields
+    mockReq.setQueryString("owner=KAR&category=GIB");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, resultTodos.length);
+    assertEquals("Karen", resultTodos[0].owner);
+  }
+
+  @Test
+  public void aStopBeforeTheMigrationStartsIsntLost() {
+    db.getCollection("migrations").drop();
+    ShadowFieldMigration migration = todoController.migrations().get(0);
+
+    migration.stop();
+    migration.run(3, 0);
+
+    assertFalse(migration.isComplete());
+    assertEquals(false, migration.progress().get("running"));
+    assertEquals(4, db.getCollection("todos").countDocuments(exists("ownerFolded", false)));
+  }
+
+  @Test
+  public void prefixFiltersFindTodosWithoutFoldedFieldsAfterMigration() throws IOException {
+    db.getCollection("migrations").drop();
+    todoController.migrations().get(0).run(100, 0);
+    assertTrue(todoController.migrations().get(0).isComplete());
+
+    // Seeded or imported afterwards, without the folded fields
+    db.getCollection("todos").insertOne(new Document()
+        .append("owner", "Kif")
+        .append("status", false)
+        .append("category", "Software Design")
+        .append("body", "Sigh"));
+
+    mockReq.setQueryString("owner=KI&category=software%20design");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, resultTodos.length);
+    assertEquals("Kif", resultTodos[0].owner);
+  }
+
   @Test
   public void canGetTodosWithGivenContainsCategoryStatus() throws IOException {
 
@@ -290,6 +455,40 @@ public class TodoControllerSpec {
     }
   }
 
+  @Test
+  public void canGetTodosMatchingAQuery() throws IOException {
+    mockReq.setQueryString("q=status%3Atrue%20AND%20(category%3Awoof%20OR%20category%3Aphoney)");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(2, resultTodos.length);
+    for (Todo todo : resultTodos) {
+      assertTrue(todo.owner.equals("Lucy") || todo.owner.equals("Sam"));
+    }
+  }
+
+  @Test
+  public void queriesCombineWithOtherFilters() throws IOException {
+    mockReq.setQueryString("category=gibberish&q=NOT%20status%3Afalse");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, resultTodos.length);
+    assertEquals("Karen", resultTodos[0].owner);
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalQuery() {
+    mockReq.setQueryString("q=color%3Ared");
+    Context ctx = mockContext("api/todos");
+
+    BadRequestResponse e = assertThrows(BadRequestResponse.class, () -> todoController.getTodos(ctx));
+    assertTrue(e.getMessage().startsWith("Todos don't have a field named color"));
+  }
+
   @Test
   public void canGetTodoWithSpecifiedId() throws IOException {
 
@@ -325,6 +524,58 @@ public class TodoControllerSpec {
     });
   }
 
+  @Test
+  public void canGetManyTodosById() throws IOException {
+    String sams = samsId.toHexString();
+    mockReq.setQueryString("ids=" + sams + ",bad,58af3a600343927e48e87335," + sams);
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    JsonNode results = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("results");
+    assertEquals(4, results.size());
+    // One entry per requested id, in the order they were asked for
+    assertEquals(sams, results.get(0).get("id").asText());
+    assertEquals("Sam", results.get(0).get("todo").get("owner").asText());
+    assertEquals(false, results.get(1).get("found").asBoolean());
+    assertEquals("The requested todo id wasn't a legal Mongo Object ID.", results.get(1).get("error").asText());
+    assertEquals("The requested todo was not found", results.get(2).get("error").asText());
+    assertEquals("Sam", results.get(3).get("todo").get("owner").asText());
+  }
+
+  @Test
+  public void canGetManyTodosByIdFromTheBody() throws IOException {
+    mockReq.setBodyContent("{\"ids\": [\"" + samsId.toHexString() + "\", \"58af3a600343927e48e87335\", null]}");
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/todos/_mget");
+    todoController.getTodosById(ctx);
+
+    JsonNode results = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("results");
+    assertEquals(3, results.size());
+    assertEquals(true, results.get(0).get("found").asBoolean());
+    assertEquals(false, results.get(1).get("found").asBoolean());
+    // A null id is just one that isn't legal
+    assertEquals("The requested todo id wasn't a legal Mongo Object ID.", results.get(2).get("error").asText());
+  }
+
+  @Test
+  public void cachedTodosAreForgottenWhenDeleted() throws IOException {
+    todoController = new TodoController(db, MongoPolicies.defaults(), null, new IdCache<>(10, 60_000));
+    String sams = samsId.toHexString();
+    todoController.getTodo(mockContext("api/todos", Map.of("id", sams)));
+
+    // Served from the cache, even though it's gone from the database
+    db.getCollection("todos").deleteOne(eq("_id", samsId));
+    Context ctx = mockContext("api/todos", Map.of("id", sams));
+    todoController.getTodo(ctx);
+    assertEquals("Sam", javalinJackson.fromJsonString(ctx.resultString(), Todo.class).owner);
+
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", sams)));
+    assertThrows(NotFoundResponse.class, () -> {
+      todoController.getTodo(mockContext("api/todos", Map.of("id", sams)));
+    });
+  }
+
   @Test
   public void canAddTodo() throws IOException {
 
@@ -476,6 +727,317 @@ public class TodoControllerSpec {
     });
   }
 
+  @Test
+  public void canImportTodos() throws IOException {
+    String ndjson = "{\"owner\": \"Bender\", \"status\": false, \"category\": \"robots\", \"body\": \"bend\"}\n"
+        + "{\"owner\": \"\", \"status\": true, \"category\": \"robots\", \"body\": \"no owner\"}\n"
+        + "{\"owner\": \"Leela\", \"status\": true, \"category\": \"pilots\", \"body\": \"fly\"}\n";
+    mockReq.setBodyContent(ndjson);
+    mockReq.setMethod("POST");
+    mockReq.setQueryString("batchSize=1");
+    Context ctx = mockContext("api/todos/import");
+
+    todoController.importTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    ObjectNode summary = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertTrue(summary.get("complete").asBoolean());
+    assertEquals(3, summary.get("read").asInt());
+    assertEquals(2, summary.get("inserted").asInt());
+    assertEquals(1, summary.get("rejected").asInt());
+    // The second record is the one that's rejected
+    assertEquals(1, summary.get("errors").get(0).get("record").asInt());
+
+    assertEquals(6, db.getCollection("todos").countDocuments());
+    Document bender = db.getCollection("todos").find(eq("owner", "Bender")).first();
+    assertNotNull(bender);
+    assertEquals("bender", bender.getString("ownerFolded"));
+  }
+
+  @Test
+  public void canImportAJsonArray() throws IOException {
+    String array = "[{\"owner\": \"Bender\", \"status\": false, \"category\": \"robots\", \"body\": \"bend\"},"
+        + " {\"owner\": \"Leela\", \"status\": true, \"category\": \"pilots\", \"body\": \"fly\"}]";
+    mockReq.setBodyContent(array);
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/todos/import");
+
+    todoController.importTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    assertEquals(6, db.getCollection("todos").countDocuments());
+  }
+
+  @Test
+  public void importKeepsWhatCameBeforeMalformedJson() throws IOException {
+    String ndjson = "{\"owner\": \"Bender\", \"status\": false, \"category\": \"robots\", \"body\": \"bend\"}\n"
+        + "{\"owner\": \"Leela\", \"status\": tru";
+    mockReq.setBodyContent(ndjson);
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/todos/import");
+
+    todoController.importTodos(ctx);
+
+    assertEquals(HttpCode.BAD_REQUEST.getStatus(), mockRes.getStatus());
+    ObjectNode summary = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(false, summary.get("complete").asBoolean());
+    assertEquals(1, summary.get("inserted").asInt());
+    assertEquals(1, db.getCollection("todos").countDocuments(eq("owner", "Bender")));
+  }
+
+  @Test
+  public void importRejectsRecordsThatArentObjects() throws IOException {
+    String ndjson = "null\n"
+        + "{\"owner\": \"Bender\", \"status\": false, \"category\": \"robots\", \"body\": \"bend\"}\n"
+        + "[1, 2]\n";
+    mockReq.setBodyContent(ndjson);
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/todos/import");
+
+    todoController.importTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    ObjectNode summary = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(3, summary.get("read").asInt());
+    assertEquals(1, summary.get("inserted").asInt());
+    assertEquals(2, summary.get("rejected").asInt());
+    assertEquals("Not a valid todo: expected a JSON object", summary.get("errors").get(0).get("message").asText());
+  }
+
+  @Test
+  public void importStopsWithASummaryWhenMongoFails() throws IOException {
+    // The second shard is somewhere that can't be reached
+    try (MongoClient unreachable = MongoClients.create("mongodb://localhost:1/?serverSelectionTimeoutMS=100")) {
+      List<MongoDatabase> shardDatabases = List.of(mongoClient.getDatabase("test-shard0"),
+          unreachable.getDatabase("test-shard1"));
+      shardDatabases.get(0).getCollection("todos").drop();
+      todoController = new TodoController(shardDatabases, MongoPolicies.defaults(), null, null);
+      Shards shards = new Shards(2);
+      List<String> owners = List.of("Ann", "Bea", "Carl", "Dana", "Eve", "Fay");
+      String reachable = owners.stream().filter(owner -> shards.shardFor(owner) == 0).findFirst().orElseThrow();
+      String lost = owners.stream().filter(owner -> shards.shardFor(owner) == 1).findFirst().orElseThrow();
+      String todo = "{\"owner\": \"%s\", \"status\": false, \"category\": \"shards\", \"body\": \"import me\"}\n";
+      mockReq.setBodyContent(String.format(todo, reachable) + String.format(todo, lost)
+          + String.format(todo, reachable));
+      mockReq.setMethod("POST");
+      mockReq.setQueryString("batchSize=1");
+      Context ctx = mockContext("api/todos/import");
+
+      todoController.importTodos(ctx);
+
+      assertEquals(HttpCode.SERVICE_UNAVAILABLE.getStatus(), mockRes.getStatus());
+      ObjectNode summary = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+      assertEquals(false, summary.get("complete").asBoolean());
+      assertTrue(summary.get("writeFailed").asBoolean());
+      // It stopped at the batch that failed
+      assertEquals(2, summary.get("read").asInt());
+      assertEquals(1, summary.get("inserted").asInt());
+      assertEquals(1, summary.get("errors").get(0).get("record").asInt());
+      assertEquals(1, shardDatabases.get(0).getCollection("todos").countDocuments());
+    }
+  }
+
+  @Test
+  public void canUpdateSomeFieldsOfATodo() throws IOException {
+    mockReq.setBodyContent("{\"owner\": \"Samwise\", \"status\": false}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos", Map.of("id", samsId.toHexString()));
+
+    todoController.updateTodo(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    Todo updated = javalinJackson.fromJsonString(ctx.resultString(), Todo.class);
+    assertEquals("Samwise", updated.owner);
+    assertEquals(false, updated.status);
+    assertEquals("phoney", updated.category);
+
+    Document sam = db.getCollection("todos").find(eq("_id", samsId)).first();
+    assertEquals("Samwise", sam.getString("owner"));
+    assertEquals("samwise", sam.getString("ownerFolded"));
+    assertEquals(false, sam.getBoolean("status"));
+  }
+
+  @Test
+  public void aNewOwnerMovesATodoToTheirShard() throws IOException {
+    List<MongoDatabase> shardDatabases = List.of(mongoClient.getDatabase("test-shard0"),
+        mongoClient.getDatabase("test-shard1"));
+    shardDatabases.forEach(shard -> shard.getCollection("todos").drop());
+    todoController = new TodoController(shardDatabases, MongoPolicies.defaults(), null, null);
+    Shards shards = new Shards(2);
+    int from = shards.shardFor("Ann");
+    String newOwner = List.of("Bea", "Carl", "Dana", "Eve", "Fay").stream()
+        .filter(owner -> shards.shardFor(owner) != from)
+        .findFirst().orElseThrow();
+    ObjectId id = new ObjectId();
+    shardDatabases.get(from).getCollection("todos").insertOne(new Document()
+        .append("_id", id)
+        .append("owner", "Ann")
+        .append("status", false)
+        .append("category", "shards")
+        .append("body", "move me"));
+
+    mockReq.setBodyContent("{\"owner\": \"" + newOwner + "\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos", Map.of("id", id.toHexString()));
+    todoController.updateTodo(ctx);
+
+    Todo updated = javalinJackson.fromJsonString(ctx.resultString(), Todo.class);
+    assertEquals(newOwner, updated.owner);
+    assertEquals("move me", updated.body);
+    assertEquals(0, shardDatabases.get(from).getCollection("todos").countDocuments(eq("_id", id)));
+    Document moved = shardDatabases.get(1 - from).getCollection("todos").find(eq("_id", id)).first();
+    assertEquals(newOwner, moved.getString("owner"));
+    assertEquals("shards", moved.getString("categoryFolded"));
+  }
+
+  @Test
+  public void exactOwnersOnlyAskTheirShards() throws IOException {
+    List<MongoDatabase> shardDatabases = List.of(mongoClient.getDatabase("test-shard0"),
+        mongoClient.getDatabase("test-shard1"));
+    shardDatabases.forEach(shard -> shard.getCollection("todos").drop());
+    todoController = new TodoController(shardDatabases, MongoPolicies.defaults(), null, null);
+    int annsShard = new Shards(2).shardFor("Ann");
+    // One where it belongs, and one that's on the wrong shard, so we can
+    // tell which shards were asked
+    for (int shard = 0; shard < 2; shard++) {
+      shardDatabases.get(shard).getCollection("todos").insertOne(new Document()
+          .append("owner", "Ann")
+          .append("status", shard == annsShard)
+          .append("category", "shards")
+          .append("body", "on shard " + shard));
+    }
+
+    mockReq.setQueryString("q=owner:Ann");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    Todo[] exact = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, exact.length);
+    assertEquals("on shard " + annsShard, exact[0].body);
+
+    mockReq.setQueryString("owner=Ann");
+    ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    assertEquals(2, javalinJackson.fromJsonString(ctx.resultString(), Todo[].class).length);
+  }
+
+  @Test
+  public void updateChecksTheSameRulesAsAdd() throws IOException {
+    mockReq.setBodyContent("{\"owner\": \"\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos", Map.of("id", samsId.toHexString()));
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+    assertEquals(1, db.getCollection("todos").countDocuments(eq("owner", "Sam")));
+  }
+
+  @Test
+  public void updateRejectsUnknownFields() throws IOException {
+    mockReq.setBodyContent("{\"priority\": 3}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos", Map.of("id", samsId.toHexString()));
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+  }
+
+  @Test
+  public void updatingAMissingTodoIsNotFound() throws IOException {
+    mockReq.setBodyContent("{\"status\": false}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos", Map.of("id", "58af3a600343927e48e87335"));
+
+    assertThrows(NotFoundResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+  }
+
+  @Test
+  public void canSetTheStatusOfManyTodosByFilter() throws IOException {
+    mockReq.setBodyContent("{\"status\": true}");
+    mockReq.setMethod("PATCH");
+    mockReq.setQueryString("category=gibberish");
+    Context ctx = mockContext("api/todos");
+
+    todoController.updateTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    ObjectNode result = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(2, result.get("matched").asInt());
+    // Karen's was already done
+    assertEquals(1, result.get("modified").asInt());
+    assertEquals(0, db.getCollection("todos").countDocuments(eq("status", false)));
+  }
+
+  @Test
+  public void canSetTheStatusOfManyTodosById() throws IOException {
+    mockReq.setBodyContent("{\"status\": false, \"ids\": [\"" + samsId.toHexString() + "\"]}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos");
+
+    todoController.updateTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    assertEquals(false, db.getCollection("todos").find(eq("_id", samsId)).first().getBoolean("status"));
+    assertEquals(2, db.getCollection("todos").countDocuments(eq("status", false)));
+  }
+
+  @Test
+  public void bulkUpdateNeedsAFilterOrIds() throws IOException {
+    mockReq.setBodyContent("{\"status\": true}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodos(ctx);
+    });
+  }
+
+  @Test
+  public void canSplitTodosAcrossShards() throws IOException {
+    List<MongoDatabase> shardDatabases = List.of(mongoClient.getDatabase("test-shard0"),
+        mongoClient.getDatabase("test-shard1"));
+    shardDatabases.forEach(shard -> shard.getCollection("todos").drop());
+    todoController = new TodoController(shardDatabases, MongoPolicies.defaults(), null, null);
+    Shards shards = new Shards(2);
+
+    List<String> owners = List.of("Dana", "Ann", "Carl", "Bea", "Eve", "Fay");
+    for (String owner : owners) {
+      mockReq.setBodyContent("{\"owner\": \"" + owner + "\", \"status\": false, \"category\": \"shards\","
+          + " \"body\": \"split\"}");
+      mockReq.setMethod("POST");
+      todoController.addNewTodo(mockContext("api/todos"));
+      // Each todo is on its owner's shard and no other
+      int shard = shards.shardFor(owner);
+      assertEquals(1, shardDatabases.get(shard).getCollection("todos").countDocuments(eq("owner", owner)));
+      assertEquals(0, shardDatabases.get(1 - shard).getCollection("todos").countDocuments(eq("owner", owner)));
+    }
+    // With this many owners, neither shard should be empty
+    assertTrue(shardDatabases.get(0).getCollection("todos").countDocuments() > 0);
+    assertTrue(shardDatabases.get(1).getCollection("todos").countDocuments() > 0);
+
+    // The list is merged from both shards in order
+    mockReq.setQueryString("sortby=owner&sortorder=desc");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    Todo[] listed = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    List<String> listedOwners = new ArrayList<>();
+    for (Todo todo : listed) {
+      listedOwners.add(todo.owner);
+    }
+    assertEquals(List.of("Fay", "Eve", "Dana", "Carl", "Bea", "Ann"), listedOwners);
+
+    // And an owner is found on their shard
+    mockReq.setQueryString("owner=car");
+    ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    listed = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, listed.length);
+    assertEquals("Carl", listed[0].owner);
+  }
+
   @Test
   public void canDeleteTodo() throws IOException {
 
@@ -493,4 +1055,74 @@ public class TodoControllerSpec {
     assertEquals(0, db.getCollection("todos").countDocuments(eq("_id", new ObjectId(testID))));
   }
 
+  // Add a todo for each day, made at noon (UTC) that day
+  private static void addTodosCreatedOn(String... days) {
+    for (String day : days) {
+      db.getCollection("todos").insertOne(new Document()
+          .append("_id", new ObjectId(Date.from(Instant.parse(day + "T12:00:00Z"))))
+          .append("owner", "Old")
+          .append("body", "Made on " + day)
+          .append("category", "history")
+          .append("status", false));
+    }
+  }
+
+  @Test
+  public void canGetTodosCreatedInARange() throws IOException {
+    addTodosCreatedOn("2020-01-01", "2020-01-02", "2020-01-05");
+
+    mockReq.setQueryString("createdAfter=2020-01-02&createdBefore=2020-01-05");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    Todo[] todos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, todos.length);
+    assertEquals("Made on 2020-01-02", todos[0].body);
+    assertEquals("2020-01-02T12:00:00Z", todos[0].createdAt);
+
+    // The others were all made just now
+    mockReq.setQueryString("createdAfter=2020-01-02T12:00:01Z");
+    ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    assertEquals(5, javalinJackson.fromJsonString(ctx.resultString(), Todo[].class).length);
+  }
+
+  @Test
+  public void illegalCreationTimesAreRejected() {
+    mockReq.setQueryString("createdBefore=last%20week");
+    Context ctx = mockContext("api/todos");
+
+    assertThrows(BadRequestResponse.class, () -> todoController.getTodos(ctx));
+  }
+
+  @Test
+  public void canCountTodosCreatedPerDay() throws IOException {
+    addTodosCreatedOn("2020-01-01", "2020-01-01", "2020-01-04");
+
+    mockReq.setQueryString("createdBefore=2021-01-01");
+    Context ctx = mockContext("api/todos/created-per-day");
+    todoController.getTodosCreatedPerDay(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    // Every day from the first to the last, including the empty ones
+    assertEquals("[{\"day\":\"2020-01-01\",\"count\":2},{\"day\":\"2020-01-02\",\"count\":0},"
+        + "{\"day\":\"2020-01-03\",\"count\":0},{\"day\":\"2020-01-04\",\"count\":1}]",
+        ctx.resultString());
+  }
+
+  @Test
+  public void countsPerDayRefuseToSpanDecades() throws IOException {
+    // One made-up id from long ago among the recent ones
+    addTodosCreatedOn("1971-01-01", "2020-01-01");
+
+    mockReq.setQueryString("createdBefore=2021-01-01");
+    Context ctx = mockContext("api/todos/created-per-day");
+    assertThrows(BadRequestResponse.class, () -> todoController.getTodosCreatedPerDay(ctx));
+
+    // Narrowing the range leaves it out
+    mockReq.setQueryString("createdAfter=2019-12-31&createdBefore=2021-01-01");
+    Context narrowed = mockContext("api/todos/created-per-day");
+    todoController.getTodosCreatedPerDay(narrowed);
+    assertEquals("[{\"day\":\"2020-01-01\",\"count\":1}]", narrowed.resultString());
+  }
 }
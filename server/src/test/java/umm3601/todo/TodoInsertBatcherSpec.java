@@ -0,0 +1,184 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import umm3601.Metrics;
+import umm3601.mongotest.InMemoryMongo;
+
+/**
+ * Tests that `TodoInsertBatcher` writes concurrent inserts together and
+ * gives each caller back its own result.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TodoInsertBatcherSpec {
+
+  private MongoClient mongoClient;
+  private MongoDatabase database;
+  private Metrics metrics;
+  private TodoInsertBatcher batcher;
+  private final ExecutorService callers = Executors.newCachedThreadPool();
+
+  @BeforeEach
+  public void setUp() {
+    mongoClient = InMemoryMongo.client();
+    database = mongoClient.getDatabase("test");
+    metrics = new Metrics();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    if (batcher != null) {
+      batcher.close();
+    }
+    callers.shutdownNow();
+    mongoClient.close();
+  }
+
+  private static Todo todo(String owner) {
+    Todo todo = new Todo();
+    todo.owner = owner;
+    todo.category = "homework";
+    todo.body = "Do it";
+    return todo;
+  }
+
+  /**
+   * Insert the todos at the same time, each from its own thread.
+   *
+   * @return what each insert threw, or `null` if it worked, in order
+   */
+  private List<Throwable> insertTogether(List<Todo> todos) {
+    List<CompletableFuture<Throwable>> results = new ArrayList<>();
+    for (Todo todo : todos) {
+      results.add(CompletableFuture.supplyAsync(() -> {
+        try {
+          batcher.insert(todo);
+          return null;
+        } catch (RuntimeException e) {
+          return e;
+        }
+      }, callers));
+    }
+    List<Throwable> thrown = new ArrayList<>();
+    for (CompletableFuture<Throwable> result : results) {
+      thrown.add(result.orTimeout(10, TimeUnit.SECONDS).join());
+    }
+    return thrown;
+  }
+
+  private long batches() {
+    return (Long) ((Map<?, ?>) metrics.snapshot().get("todos.insertBatch.size")).get("count");
+  }
+
+  @Test
+  public void everyCallerGetsItsOwnId() {
+    batcher = new TodoInsertBatcher(database, WriteConcern.ACKNOWLEDGED, 60_000, 5, metrics);
+    List<Todo> todos = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      todos.add(todo("Owner " + i));
+    }
+
+    List<Throwable> thrown = insertTogether(todos);
+
+    Set<String> ids = new HashSet<>();
+    for (int i = 0; i < todos.size(); i++) {
+      assertNull(thrown.get(i));
+      assertTrue(ids.add(todos.get(i)._id));
+      Document stored = database.getCollection("todos").find(eq("_id", new ObjectId(todos.get(i)._id))).first();
+      assertEquals("Owner " + i, stored.getString("owner"));
+    }
+    // All in one `insertMany`
+    assertEquals(1, batches());
+  }
+
+  @Test
+  public void aFullBatchIsWrittenWithoutWaitingForTheWindow() {
+    // A window this long would time the inserts out if we waited for it
+    batcher = new TodoInsertBatcher(database, WriteConcern.ACKNOWLEDGED, 60_000, 3, metrics);
+
+    List<Throwable> thrown = insertTogether(List.of(todo("Fry"), todo("Leela"), todo("Bender")));
+
+    for (Throwable e : thrown) {
+      assertNull(e);
+    }
+    assertEquals(3, database.getCollection("todos").countDocuments());
+  }
+
+  @Test
+  public void theWindowFlushesAPartialBatch() {
+    batcher = new TodoInsertBatcher(database, WriteConcern.ACKNOWLEDGED, 20, 100, metrics);
+
+    assertNull(insertTogether(List.of(todo("Fry"))).get(0));
+    assertNull(insertTogether(List.of(todo("Leela"))).get(0));
+
+    assertEquals(2, database.getCollection("todos").countDocuments());
+    assertEquals(2, batches());
+  }
+
+  @Test
+  public void aBadTodoOnlyFailsItsOwnCaller() {
+    batcher = new TodoInsertBatcher(database, WriteConcern.ACKNOWLEDGED, 60_000, 3, metrics);
+    ObjectId taken = new ObjectId();
+    database.getCollection("todos").insertOne(new Document("_id", taken).append("owner", "Zoidberg"));
+    Todo duplicate = todo("Hermes");
+    duplicate._id = taken.toHexString();
+
+    List<Throwable> thrown = insertTogether(List.of(todo("Fry"), duplicate, todo("Leela")));
+
+    assertNull(thrown.get(0));
+    assertTrue(thrown.get(1) instanceof MongoException);
+    assertEquals(11000, ((MongoException) thrown.get(1)).getCode());
+    assertNull(thrown.get(2));
+    // The rest of the batch was still written
+    assertEquals(3, database.getCollection("todos").countDocuments());
+    assertEquals("Zoidberg", database.getCollection("todos").find(eq("_id", taken)).first().getString("owner"));
+  }
+
+  @Test
+  public void aWriteConcernErrorReachesEveryCaller() {
+    // The in-memory Mongo only has one member to acknowledge writes
+    batcher = new TodoInsertBatcher(database, new WriteConcern(2), 60_000, 3, metrics);
+
+    List<Throwable> thrown = insertTogether(List.of(todo("Fry"), todo("Leela"), todo("Bender")));
+
+    for (Throwable e : thrown) {
+      assertNotNull(e);
+      assertEquals(100, ((MongoException) e).getCode());
+    }
+  }
+
+  @Test
+  public void nothingIsAcceptedOnceClosed() {
+    batcher = new TodoInsertBatcher(database, WriteConcern.ACKNOWLEDGED, 20, 100, metrics);
+    batcher.close();
+
+    assertThrows(IllegalStateException.class, () -> batcher.insert(todo("Fry")));
+    assertEquals(0, database.getCollection("todos").countDocuments());
+  }
+}
@@ -10,18 +10,16 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.mockrunner.mock.web.MockHttpServletRequest;
 import com.mockrunner.mock.web.MockHttpServletResponse;
-import com.mongodb.MongoClientSettings;
-import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
-import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 
@@ -41,6 +39,7 @@ import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
 import io.javalin.http.util.ContextUtil;
 import io.javalin.plugin.json.JavalinJackson;
+import umm3601.mongotest.InMemoryMongo;
 
 /**
 * Tests the logic of the UserController
@@ -72,13 +71,7 @@ public class UserControllerSpec {
 
   @BeforeAll
   public static void setupAll() {
-    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
-
-    mongoClient = MongoClients.create(
-    MongoClientSettings.builder()
-    .applyToClusterSettings(builder ->
-    builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
-    .build());
+    mongoClient = InMemoryMongo.forTests();
 
     db = mongoClient.getDatabase("test");
   }
@@ -211,6 +204,35 @@ public class UserControllerSpec {
     }
   }
 
+  @Test
+  public void canGetUsersMatchingAQuery() throws IOException {
+    mockReq.setQueryString("q=role%3Aviewer%20OR%20age%3C30");
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    User[] resultUsers = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+    assertEquals(3, resultUsers.length);
+    for (User user : resultUsers) {
+      assertTrue(user.role.equals("viewer") || user.age < 30);
+    }
+
+    mockReq.setQueryString("q=age%20in%20(25%2C%2045)%20AND%20company%3AOHMNET");
+    ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+    resultUsers = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+    assertEquals(1, resultUsers.length);
+    assertEquals("Sam", resultUsers[0].name);
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalQuery() {
+    mockReq.setQueryString("q=age%3Aold");
+    Context ctx = mockContext("api/users");
+
+    assertThrows(BadRequestResponse.class, () -> userController.getUsers(ctx));
+  }
+
   /**
   * Test that if the user sends a request with an illegal value in
   * the age field (i.e., something that can't be parsed to a number)
@@ -229,6 +251,48 @@ public class UserControllerSpec {
     });
   }
 
+  @Test
+  public void canGetUsersWithCompanyPrefixAfterMigration() throws IOException {
+    db.getCollection("migrations").drop();
+    userController.migration().run(2, 0);
+    assertTrue(userController.migration().isComplete());
+
+    mockReq.setQueryString("company=ohm");
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+
+    User[] resultUsers = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+    assertEquals(2, resultUsers.length);
+    for (User user : resultUsers) {
+      assertEquals("OHMNET", user.company);
+    }
+  }
+
+  @Test
+  public void canGetUsersWithCompanyPrefixWithoutFoldedField() throws IOException {
+    db.getCollection("migrations").drop();
+    userController.migration().run(100, 0);
+    assertTrue(userController.migration().isComplete());
+
+    // Seeded or imported afterwards, without the folded field
+    db.getCollection("users").insertOne(new Document()
+        .append("name", "Kif")
+        .append("age", 30)
+        .append("company", "OHMNET")
+        .append("email", "kif@ohmnet.com")
+        .append("role", "viewer"));
+
+    mockReq.setQueryString("company=ohm");
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+
+    User[] resultUsers = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+    assertEquals(3, resultUsers.length);
+    for (User user : resultUsers) {
+      assertEquals("OHMNET", user.company);
+    }
+  }
+
   @Test
   public void canGetUsersWithCompany() throws IOException {
 
@@ -529,4 +593,99 @@ public class UserControllerSpec {
     assertEquals(0, db.getCollection("users").countDocuments(eq("_id", new ObjectId(testID))));
   }
 
+  @Test
+  public void canGetUsersCreatedInARange() throws IOException {
+    for (String day : List.of("2020-03-01", "2020-03-03")) {
+      db.getCollection("users").insertOne(new Document()
+          .append("_id", new ObjectId(Date.from(Instant.parse(day + "T23:59:59Z"))))
+          .append("name", "Joined " + day)
+          .append("age", 30)
+          .append("company", "Early")
+          .append("email", "early@example.com")
+          .append("role", "viewer"));
+    }
+
+    mockReq.setQueryString("createdBefore=2020-03-02");
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+    User[] users = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+    assertEquals(1, users.length);
+    assertEquals("2020-03-01T23:59:59Z", users[0].createdAt);
+
+    mockReq.setQueryString("createdBefore=2021-01-01");
+    ctx = mockContext("api/users/created-per-day");
+    userController.getUsersCreatedPerDay(ctx);
+    assertEquals("[{\"day\":\"2020-03-01\",\"count\":1},{\"day\":\"2020-03-02\",\"count\":0},"
+        + "{\"day\":\"2020-03-03\",\"count\":1}]", ctx.resultString());
+  }
+
+  @Test
+  public void canGetUsersInAnAgeRange() throws IOException {
+    mockReq.setQueryString("minAge=30&maxAge=40");
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+    User[] users = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+    assertEquals(2, users.length);
+    for (User user : users) {
+      assertEquals(37, user.age);
+    }
+
+    // Combined with the other filters
+    mockReq.setQueryString("minAge=30&role=viewer");
+    ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+    users = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+    assertEquals(2, users.length);
+    assertEquals("Jamie", users[0].name);
+    assertEquals("Sam", users[1].name);
+  }
+
+  @Test
+  public void illegalAgeRangesAreRejected() {
+    mockReq.setQueryString("minAge=old");
+    Context ctx = mockContext("api/users");
+
+    assertThrows(ValidationException.class, () -> userController.getUsers(ctx));
+  }
+
+  private String ageHistogram(String query) {
+    mockReq.setQueryString(query);
+    Context ctx = mockContext("api/users/age-histogram");
+    userController.getAgeHistogram(ctx);
+    return ctx.resultString();
+  }
+
+  @Test
+  public void canGetAgeHistogram() {
+    assertEquals("{\"bucket\":10,\"buckets\":[{\"min\":20,\"max\":30,\"count\":1},"
+        + "{\"min\":30,\"max\":40,\"count\":2},{\"min\":40,\"max\":50,\"count\":1}],\"other\":0}",
+        ageHistogram(""));
+    assertEquals("{\"bucket\":20,\"buckets\":[{\"min\":20,\"max\":40,\"count\":3},"
+        + "{\"min\":40,\"max\":60,\"count\":1}],\"other\":0}",
+        ageHistogram("bucket=20"));
+    // With the list's filters, and an empty bucket in the middle
+    assertEquals("{\"bucket\":5,\"buckets\":[{\"min\":35,\"max\":40,\"count\":1},"
+        + "{\"min\":40,\"max\":45,\"count\":0},{\"min\":45,\"max\":50,\"count\":1}],\"other\":0}",
+        ageHistogram("bucket=5&role=viewer"));
+  }
+
+  @Test
+  public void illegalBucketsAreRejected() {
+    assertThrows(ValidationException.class, () -> ageHistogram("bucket=0"));
+  }
+
+  @Test
+  public void ageHistogramIsCachedUntilUsersChange() {
+    String before = ageHistogram("bucket=50");
+    assertEquals("{\"bucket\":50,\"buckets\":[{\"min\":0,\"max\":50,\"count\":4}],\"other\":0}", before);
+
+    // Changed behind the controller's back, so still cached
+    db.getCollection("users").insertOne(new Document("name", "Ancient").append("age", 200));
+    assertEquals(before, ageHistogram("bucket=50"));
+
+    // Deleting through the controller clears it
+    userController.deleteUser(mockContext("api/users", Map.of("id", samsId.toHexString())));
+    assertEquals("{\"bucket\":50,\"buckets\":[{\"min\":0,\"max\":50,\"count\":3}],\"other\":1}",
+        ageHistogram("bucket=50"));
+  }
 }